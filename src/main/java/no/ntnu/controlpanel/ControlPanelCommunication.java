@@ -1,20 +1,24 @@
 package no.ntnu.controlpanel;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.math.BigInteger;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.LinkedBlockingQueue;
 import no.ntnu.greenhouse.Actuator;
+import no.ntnu.greenhouse.AggregateReading;
 import no.ntnu.greenhouse.Camera;
 import no.ntnu.greenhouse.SensorReading;
+import no.ntnu.greenhouse.SensorSchema;
 import no.ntnu.tools.Config;
-import no.ntnu.tools.RSA;
+import no.ntnu.tools.cipher.HybridCipher;
+import no.ntnu.tools.cipher.KeyExchange;
 import no.ntnu.tools.loggers.ControlPanelLogger;
+import no.ntnu.tools.transport.Compression;
+import no.ntnu.tools.transport.MessageStream;
 
 
 /**
@@ -22,11 +26,14 @@ import no.ntnu.tools.loggers.ControlPanelLogger;
  */
 public class ControlPanelCommunication extends Thread implements CommunicationChannel {
   private final ControlPanelLogic logic;
-  private final BigInteger[] keys = this.keyGen();
-  private ObjectInputStream inputStream;
-  private ObjectOutputStream outputStream;
+  private final HybridCipher cipher = new HybridCipher();
+  private KeyExchange keyExchange;
+  private MessageStream stream;
   private Socket socket;
   private LinkedBlockingQueue<String[]> commandQueue;
+  private final Map<Integer, SensorSchema> schemas = new HashMap<>();
+  private final Map<Integer, List<SensorReading>> keyframes = new HashMap<>();
+  private final ImageAssembler images = new ImageAssembler();
   private ControlPanelLogger logger = ControlPanelLogger.getInstance();
 
 
@@ -54,7 +61,7 @@ public class ControlPanelCommunication extends Thread implements CommunicationCh
     payload[2] = Boolean.toString(isOn);
     try {
 
-      outputStream.writeObject(RSA.encrypt(payload, keys));
+      stream.write(cipher.encrypt(payload));
     } catch (IOException e) {
       logger.error("Failed to send actuator change");
     }
@@ -63,13 +70,22 @@ public class ControlPanelCommunication extends Thread implements CommunicationCh
 
   /**
    * Opens a communication socket with the remote server and sets up the input and output streams.
+   * A control panel using the session cipher offers a public key first, and is sent the
+   * session key before anything else. A framed control panel configured for compression offers
+   * it before subscribing.
    */
   private void instantiate() {
     try {
       this.socket = new Socket(Config.SERVER_ADDRESS, Config.SERVER_PORT);
-      this.inputStream = new ObjectInputStream(socket.getInputStream());
-      this.outputStream = new ObjectOutputStream(socket.getOutputStream());
-      this.outputStream.writeObject("cp");
+      this.stream = MessageStream.open(socket);
+      if (Config.CIPHER.equals("session")) {
+        keyExchange = new KeyExchange();
+        this.stream.write(keyExchange.offer());
+      }
+      if (stream.getCompression() != null && Config.COMPRESSION.equals("deflate")) {
+        this.stream.write(Compression.negotiation());
+      }
+      this.stream.write(new String[] {"cp", Config.CONTROL_PANEL_NODES});
       logic.setCommunicationChannel(this);
     } catch (IOException e) {
       throw new RuntimeException(e);
@@ -78,8 +94,9 @@ public class ControlPanelCommunication extends Thread implements CommunicationCh
   }
 
   /**
-   * Handles the readings from the sensor. The readings are split by comma and the type,
-   * value and unit are extracted.
+   * Handles the readings from the sensor. A node which declared its sensors sends one
+   * fixed-point value per sensor, which is read with the type and unit of its slot. Otherwise
+   * the readings are split by comma and the type, value and unit are extracted.
    *
    * @param readings The readings from the sensor
    * @return A list of sensor readings
@@ -87,6 +104,10 @@ public class ControlPanelCommunication extends Thread implements CommunicationCh
   private List<SensorReading> handleReadings(String[] readings) {
     List<SensorReading> list = new ArrayList<>();
     if (readings.length >= 3) {
+      SensorSchema schema = schemas.get(Integer.parseInt(readings[1]));
+      if (schema != null && !readings[2].startsWith("{")) {
+        return schema.decode(readings, 2);
+      }
       for (int i = 2; i < readings.length; i++) {
         String[] values = readings[i].split(",");
         String type = values[0].split("=")[1];
@@ -99,6 +120,97 @@ public class ControlPanelCommunication extends Thread implements CommunicationCh
     return list;
   }
 
+  /**
+   * Handles the readings of an "aggregate" message, with the minimum, maximum and standard
+   * deviation of every sensor along with its mean, where the node sent them.
+   *
+   * @param readings The "aggregate" message
+   * @return The aggregate readings
+   */
+  private List<SensorReading> handleAggregate(String[] readings) {
+    List<SensorReading> list = new ArrayList<>();
+    if (readings.length >= 3) {
+      SensorSchema schema = schemas.get(Integer.parseInt(readings[1]));
+      if (schema != null && !readings[2].startsWith("{")) {
+        return schema.decodeAggregate(readings, 2);
+      }
+      for (int i = 2; i < readings.length; i++) {
+        Map<String, String> fields = new HashMap<>();
+        for (String field : readings[i].replace("{", "").replace("}", "").split(",")) {
+          String[] pair = field.split("=", 2);
+          fields.put(pair[0].trim(), pair.length > 1 ? pair[1].trim() : "");
+        }
+        double mean = Double.parseDouble(fields.get("value"));
+        if (fields.containsKey("stddev")) {
+          list.add(new AggregateReading(fields.get("type"), mean, fields.get("unit"),
+              Double.parseDouble(fields.get("min")), Double.parseDouble(fields.get("max")),
+              Double.parseDouble(fields.get("stddev"))));
+        } else {
+          list.add(new SensorReading(fields.get("type"), mean, fields.get("unit")));
+        }
+      }
+    }
+    return list;
+  }
+
+  /**
+   * Handles the values that changed since the last keyframe of a node. A delta which arrives
+   * before any keyframe is skipped, the next keyframe brings the panel up to date.
+   *
+   * @param delta The "delta" message
+   */
+  private void handleDelta(String[] delta) {
+    int nodeId = Integer.parseInt(delta[1]);
+    SensorSchema schema = schemas.get(nodeId);
+    List<SensorReading> keyframe = keyframes.get(nodeId);
+    if (schema == null || keyframe == null) {
+      logger.info("Skipping sensor delta from node " + nodeId + " until its next keyframe");
+      return;
+    }
+    logic.onSensorData(nodeId, schema.applyDelta(delta, keyframe));
+  }
+
+  /**
+   * Handles a chunk of a camera image. Once the image is complete the cameras of its node are
+   * updated.
+   *
+   * @param chunk The "chunk" message
+   */
+  private void handleChunk(String[] chunk) {
+    try {
+      List<Camera> cameras = images.add(chunk);
+      if (cameras != null) {
+        logger.info("Camera images: " + images);
+        logic.onImageSensor(Integer.parseInt(chunk[1]), cameras);
+      }
+    } catch (IllegalArgumentException e) {
+      logger.error("Discarding malformed image chunk: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Handles a camera image sent as its hash alone. An image missing from the cache is fetched,
+   * from the server if it has the image, otherwise from the node.
+   *
+   * @param reference The "image" message
+   */
+  private void handleImage(String[] reference) {
+    try {
+      List<Camera> cameras = images.reference(reference);
+      if (cameras != null) {
+        logger.info("Camera images: " + images);
+        logic.onImageSensor(Integer.parseInt(reference[1]), cameras);
+      } else {
+        stream.write(cipher.encrypt(
+            new String[] {"fetch", reference[1], reference[2], reference[3]}));
+      }
+    } catch (IllegalArgumentException e) {
+      logger.error("Discarding malformed image reference: " + e.getMessage());
+    } catch (IOException e) {
+      logger.error("Failed to fetch image " + reference[3]);
+    }
+  }
+
   /**
    * Handles the readings from the sensor. The readings are split by comma and the type,
    * value and unit are extracted.
@@ -120,11 +232,35 @@ public class ControlPanelCommunication extends Thread implements CommunicationCh
 
   /**
    * Handles the payload from the server. The payload is split by comma and the type is extracted.
+   * The server's answer to a compression offer turns on compression of the commands sent.
+   * Image chunks and image references are sealed with the session key like other messages,
+   * and taken as they are from a server which does not seal them.
    *
-   * @param object The object from the server
+   * @param message The message from the server
    */
-  private void handlePayload(Object object) {
-    String[] payload = (object instanceof String[]) ? RSA.decrypt((String[]) object, keys) : null;
+  private void handlePayload(String[] message) {
+    if (KeyExchange.isAnswer(message) && keyExchange != null) {
+      cipher.setSession(keyExchange.accept(message));
+      logger.info("Received the session key");
+      return;
+    }
+    if (Compression.accepts(message) && stream.getCompression() != null) {
+      stream.getCompression().enable();
+      logger.info("Server accepted compression");
+      return;
+    }
+    String[] payload = cipher.decrypt(message);
+    if (payload == null) {
+      logger.error("Discarding " + message[0] + " which could not be decrypted");
+    }
+    if (payload != null && "chunk".equals(payload[0])) {
+      handleChunk(payload);
+      return;
+    }
+    if (payload != null && "image".equals(payload[0])) {
+      handleImage(payload);
+      return;
+    }
 
     if (payload != null) {
       switch (payload[0]) {
@@ -132,7 +268,8 @@ public class ControlPanelCommunication extends Thread implements CommunicationCh
 
           SensorActuatorNodeInfo nodeInfo =
               new SensorActuatorNodeInfo(Integer.parseInt(payload[1]));
-          for (int i = 2; i < payload.length; i += 3) {
+          int i = 2;
+          for (; i + 2 < payload.length && !payload[i].equals(SensorSchema.MARKER); i += 3) {
             Actuator actuator = new Actuator(Integer.parseInt(payload[i + 1]), payload[i],
                 Integer.parseInt(payload[1]));
             Boolean state = Boolean.parseBoolean(payload[i + 2]);
@@ -140,15 +277,29 @@ public class ControlPanelCommunication extends Thread implements CommunicationCh
 
             nodeInfo.addActuator(actuator);
           }
+          if (i < payload.length && payload[i].equals(SensorSchema.MARKER)) {
+            schemas.put(nodeInfo.getId(), SensorSchema.parse(payload, i + 1));
+          } else {
+            schemas.remove(nodeInfo.getId());
+          }
           logic.onNodeAdded(nodeInfo);
           break;
 
         case "remove":
+          schemas.remove(Integer.parseInt(payload[1]));
+          keyframes.remove(Integer.parseInt(payload[1]));
+          images.remove(Integer.parseInt(payload[1]));
           logic.onNodeRemoved(Integer.parseInt(payload[1]));
           break;
 
         case "data":
-          logic.onSensorData(Integer.parseInt(payload[1]), handleReadings(payload));
+          List<SensorReading> readings = handleReadings(payload);
+          keyframes.put(Integer.parseInt(payload[1]), readings);
+          logic.onSensorData(Integer.parseInt(payload[1]), readings);
+          break;
+
+        case "delta":
+          handleDelta(payload);
           break;
 
         case "state":
@@ -163,7 +314,7 @@ public class ControlPanelCommunication extends Thread implements CommunicationCh
           break;
 
         case "aggregate":
-          logic.onAggregateSensorData(Integer.parseInt(payload[1]), handleReadings(payload));
+          logic.onAggregateSensorData(Integer.parseInt(payload[1]), handleAggregate(payload));
           break;
 
         case "camera":
@@ -182,8 +333,8 @@ public class ControlPanelCommunication extends Thread implements CommunicationCh
   private void sendCommandIfExists() {
     while (this.commandQueue.peek() != null) {
       try {
-        String[] sealedPayload = RSA.encrypt(commandQueue.poll(), keys);
-        outputStream.writeObject(sealedPayload);
+        String[] sealedPayload = cipher.encrypt(commandQueue.poll());
+        stream.write(sealedPayload);
       } catch (IOException e) {
         logger.info("Failed to write to the server");
       }
@@ -211,16 +362,16 @@ public class ControlPanelCommunication extends Thread implements CommunicationCh
     while (!socket.isClosed()) {
       try {
         socket.setSoTimeout(Config.TIMEOUT);
-        Object object = inputStream.readObject();
-        if (object != null) {
-          this.handlePayload(object);
+        String[] message = stream.read();
+        if (message != null) {
+          this.handlePayload(message);
+        } else {
+          logger.error("Failed to understand sent object");
         }
       } catch (SocketTimeoutException s) {
         sendCommandIfExists();
       } catch (IOException e) {
         logger.error("Thread timeout ");
-      } catch (ClassNotFoundException e) {
-        logger.error("Failed to understand sent object");
       }
     }
   }
@@ -296,24 +447,57 @@ public class ControlPanelCommunication extends Thread implements CommunicationCh
     payload[0] = "toggle";
     payload[1] = nodeId + ":" + actuatorId;
     try {
-      outputStream.writeObject(RSA.encrypt(payload, keys));
+      stream.write(cipher.encrypt(payload));
     } catch (IOException e) {
       logger.error("Failed to send actuator change");
     }
   }
 
   /**
-   * Generates the RSA keys for the communication.
+   * Subscribe to messages from more nodes.
    *
-   * @return The RSA keys
+   * @param nodes Node IDs and ranges separated by commas, such as "1238,5000-5100", or "*"
    */
-  private BigInteger[] keyGen() {
-    int p = 7;
-    int q = 19;
-    BigInteger product = BigInteger.valueOf(p * q);
-    int totient = (p - 1) * (q - 1);
-    BigInteger pubKey = BigInteger.valueOf(29);
-    BigInteger privKey = BigInteger.valueOf(41);
-    return new BigInteger[] {privKey, pubKey, product};
+  public void subscribe(String nodes) {
+    sendSubscription("subscribe", nodes);
+  }
+
+  /**
+   * Stop receiving messages from some nodes. The server answers with a "remove" message for
+   * each node which is no longer subscribed to.
+   *
+   * @param nodes Node IDs and ranges separated by commas, such as "1238,5000-5100", or "*"
+   */
+  public void unsubscribe(String nodes) {
+    sendSubscription("unsubscribe", nodes);
+  }
+
+  /**
+   * Choose the size of the camera images received from a node. The server sends full images
+   * only while they are shown, and a smaller rendition otherwise.
+   *
+   * @param nodeId The ID of the node
+   * @param size   "thumbnail", "medium" or "full"
+   */
+  public void viewCameras(int nodeId, String size) {
+    try {
+      stream.write(new String[] {"view", String.valueOf(nodeId), size});
+    } catch (IOException e) {
+      logger.error("Failed to send camera view change");
+    }
+  }
+
+  /**
+   * Send a subscription change to the server.
+   *
+   * @param command "subscribe" or "unsubscribe"
+   * @param nodes   The node groups
+   */
+  private void sendSubscription(String command, String nodes) {
+    try {
+      stream.write(new String[] {command, nodes});
+    } catch (IOException e) {
+      logger.error("Failed to send subscription change");
+    }
   }
 }
@@ -0,0 +1,101 @@
+package no.ntnu.controlpanel;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import no.ntnu.greenhouse.Camera;
+import no.ntnu.tools.Config;
+import no.ntnu.tools.ContentCache;
+import no.ntnu.tools.ImageChunks;
+
+/**
+ * Puts camera images back together from the "chunk" messages of the nodes, see
+ * {@link ImageChunks}, and keeps them by their hash in a cache bounded by bytes. A node sends
+ * an image it has sent before as {"image", nodeId, camera, hash}, which is shown from the cache
+ * if the image is there. A camera keeps showing its last complete image until a new one is put
+ * together.
+ */
+public class ImageAssembler {
+  private final ImageChunks chunks = new ImageChunks();
+  private final ContentCache<byte[]> cache = new ContentCache<>(Config.IMAGE_CACHE_SIZE,
+      image -> image.length);
+  private final Map<Integer, Map<Integer, Camera>> latest = new HashMap<>();
+
+  /**
+   * Add a chunk of an image.
+   *
+   * @param chunk The "chunk" message
+   * @return The latest complete images of every camera of the node, with the image the chunk
+   *         completed, or null if the chunk did not complete an image
+   * @throws IllegalArgumentException If the chunk is malformed
+   */
+  public List<Camera> add(String[] chunk) {
+    byte[] image = chunks.add(chunk);
+    if (image == null) {
+      return null;
+    }
+    cache.put(chunk[3], image);
+    return show(Integer.parseInt(chunk[1]), Integer.parseInt(chunk[2]), chunk[3], image);
+  }
+
+  /**
+   * Show an image sent as its hash alone, if it is in the cache.
+   *
+   * @param reference The "image" message
+   * @return The latest complete images of every camera of the node, with the image named, or
+   *         null if the image is not in the cache and has to be fetched
+   * @throws IllegalArgumentException If the message is malformed
+   */
+  public List<Camera> reference(String[] reference) {
+    if (reference.length < 4) {
+      throw new IllegalArgumentException("Truncated image reference");
+    }
+    byte[] image = cache.get(reference[3]);
+    if (image == null) {
+      return null;
+    }
+    return show(Integer.parseInt(reference[1]), Integer.parseInt(reference[2]), reference[3],
+        image);
+  }
+
+  /**
+   * Make an image the latest of its camera.
+   *
+   * @param nodeId The ID of the node
+   * @param camera The index of the camera on the node
+   * @param hash   The hash of the image
+   * @param image  The image
+   * @return The latest complete images of every camera of the node
+   */
+  private List<Camera> show(int nodeId, int camera, String hash, byte[] image) {
+    Map<Integer, Camera> cameras = latest.computeIfAbsent(nodeId, id -> new TreeMap<>());
+    Camera shown = cameras.get(camera);
+    if (shown == null || !hash.equals(shown.getHash())) {
+      cameras.put(camera, new Camera(nodeId, Base64.getEncoder().encodeToString(image), hash));
+    }
+    return new ArrayList<>(cameras.values());
+  }
+
+  /**
+   * Forget the images shown for a node which has been removed. The images stay in the cache.
+   *
+   * @param nodeId The ID of the node
+   */
+  public void remove(int nodeId) {
+    chunks.removeNode(String.valueOf(nodeId));
+    latest.remove(nodeId);
+  }
+
+  /**
+   * Get a short summary of the counters.
+   *
+   * @return The summary
+   */
+  @Override
+  public String toString() {
+    return "image cache " + cache + ", " + chunks.getDiscarded() + " discarded incomplete";
+  }
+}
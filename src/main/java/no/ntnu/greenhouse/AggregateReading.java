@@ -0,0 +1,88 @@
+package no.ntnu.greenhouse;
+
+/**
+ * The aggregate of the readings of a sensor over a period: the mean as the value of the
+ * reading, along with the lowest and highest reading and the standard deviation.
+ */
+public class AggregateReading extends SensorReading {
+  private final double min;
+  private final double max;
+  private final double stddev;
+
+  /**
+   * Create an aggregate reading.
+   *
+   * @param type   The type of sensor being read
+   * @param mean   The mean of the readings
+   * @param unit   The measurement unit
+   * @param min    The lowest reading
+   * @param max    The highest reading
+   * @param stddev The standard deviation of the readings
+   */
+  public AggregateReading(String type, double mean, String unit, double min, double max,
+                          double stddev) {
+    super(type, mean, unit);
+    this.min = round(min);
+    this.max = round(max);
+    this.stddev = round(stddev);
+  }
+
+  /**
+   * Get the lowest reading.
+   *
+   * @return The lowest reading
+   */
+  public double getMin() {
+    return min;
+  }
+
+  /**
+   * Get the highest reading.
+   *
+   * @return The highest reading
+   */
+  public double getMax() {
+    return max;
+  }
+
+  /**
+   * Get the standard deviation of the readings.
+   *
+   * @return The standard deviation
+   */
+  public double getStddev() {
+    return stddev;
+  }
+
+  /**
+   * Write the aggregate like a reading, with the statistics after the unit. Parsers which only
+   * know readings take the mean and ignore the rest.
+   *
+   * @return The aggregate as text
+   */
+  @Override
+  public String toString() {
+    return "{ type=" + getType() + ", value=" + getValue() + ", unit=" + getUnit() + ", min="
+        + min + ", max=" + max + ", stddev=" + stddev + " }";
+  }
+
+  /**
+   * Format the mean, with the range and standard deviation, to display it.
+   *
+   * @return The formatted aggregate
+   */
+  @Override
+  public String getFormatted() {
+    return super.getFormatted() + " (" + min + " to " + max + ", \u00b1" + stddev + ")";
+  }
+
+  /**
+   * Round a value to hundredths, as readings are.
+   *
+   * @param value The value
+   * @return The rounded value
+   */
+  private static double round(double value) {
+    return Math.round(value * 100) / 100.0;
+  }
+}
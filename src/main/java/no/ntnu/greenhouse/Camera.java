@@ -11,6 +11,7 @@ public class Camera {
   private final int id;
   private final int nodeId;
   private String image;
+  private String hash;
   private CameraListener listener;
 
   /**
@@ -25,6 +26,18 @@ public class Camera {
     this.image = image;
   }
 
+  /**
+   * Create a camera holding an image received from a node. An ID will be auto-generated.
+   *
+   * @param nodeId ID of the node to which this camera is connected.
+   * @param image  The "image" of the camera.
+   * @param hash   The hash of the image content, naming it in caches.
+   */
+  public Camera(int nodeId, String image, String hash) {
+    this(nodeId, image);
+    this.hash = hash;
+  }
+
   /**
    * Create a camera id that is unique.
    *
@@ -61,6 +74,15 @@ public class Camera {
     return this.image;
   }
 
+  /**
+   * Get the hash of the image content, if the image was received from a node.
+   *
+   * @return the hash of the image, or null if it is not known
+   */
+  public String getHash() {
+    return this.hash;
+  }
+
   /**
    * Set the listener of the camera.
    *
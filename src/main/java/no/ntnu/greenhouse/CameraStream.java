@@ -0,0 +1,182 @@
+package no.ntnu.greenhouse;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import no.ntnu.tools.Config;
+import no.ntnu.tools.ContentCache;
+import no.ntnu.tools.ImageChunks;
+import no.ntnu.tools.transport.SharedFrame;
+
+/**
+ * The camera images of a node waiting to be sent, split into "chunk" messages of raw JPEG
+ * bytes, see {@link ImageChunks}. An image the node has sent in full before is sent as
+ * {"image", nodeId, camera, hash} instead, and whoever lacks it asks for the chunks with
+ * {"fetch", nodeId, camera, hash}. The node keeps the images it has sent in a cache bounded by
+ * bytes to answer those requests.
+ *
+ * <p>The node takes only a few messages each time it writes, after its other queued messages,
+ * so sensor readings and actuator states never wait behind more than a few chunks. Chunks are
+ * taken from the waiting images in turn, so one camera does not hold up the others. A newer
+ * image from a camera replaces the unsent rest of the older one, which a control panel then
+ * discards, unless it is the same image.
+ */
+public class CameraStream {
+  private final int chunkSize;
+  private final ArrayDeque<Image> waiting = new ArrayDeque<>();
+  private final ContentCache<byte[]> sent;
+  private long images;
+  private long replaced;
+  private long chunks;
+  private long bytes;
+
+  /**
+   * Create a camera stream with the chunk and cache sizes from the configuration.
+   */
+  public CameraStream() {
+    this(Config.CAMERA_CHUNK_SIZE, Config.IMAGE_CACHE_SIZE);
+  }
+
+  /**
+   * Create a camera stream.
+   *
+   * @param chunkSize The most image bytes in one chunk
+   * @param cacheSize The most bytes of sent images kept
+   */
+  public CameraStream(int chunkSize, long cacheSize) {
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException("Chunk size must be positive");
+    }
+    this.chunkSize = chunkSize;
+    this.sent = new ContentCache<>(cacheSize, image -> image.length);
+  }
+
+  /**
+   * Add a new image from a camera, replacing the unsent rest of its previous image. An image
+   * sent before is queued as its hash alone.
+   *
+   * @param camera The index of the camera on the node
+   * @param jpeg   The image
+   */
+  public synchronized void offer(int camera, byte[] jpeg) {
+    images++;
+    String hash = ImageChunks.hash(jpeg);
+    boolean known = sent.get(hash) != null;
+    queue(new Image(camera, hash, jpeg, known));
+  }
+
+  /**
+   * Send an image again in full, because the server or a control panel asked for it.
+   *
+   * @param camera The index of the camera on the node
+   * @param hash   The hash of the image
+   * @return False if the image is no longer kept
+   */
+  public synchronized boolean resend(int camera, String hash) {
+    byte[] jpeg = sent.peek(hash);
+    if (jpeg == null) {
+      return false;
+    }
+    queue(new Image(camera, hash, jpeg, false));
+    return true;
+  }
+
+  /**
+   * Queue an image, replacing the waiting image of the same camera unless it is the same.
+   *
+   * @param image The image
+   */
+  private void queue(Image image) {
+    for (Iterator<Image> it = waiting.iterator(); it.hasNext(); ) {
+      Image other = it.next();
+      if (other.camera == image.camera) {
+        if (other.hash.equals(image.hash) && (!other.known || image.known)) {
+          return;
+        }
+        it.remove();
+        replaced++;
+      }
+    }
+    waiting.add(image);
+  }
+
+  /**
+   * Take the next messages of the waiting images, one image after another.
+   *
+   * @param nodeId The ID of the node, the address of the messages
+   * @param out    Where to add the messages
+   * @param max    The most messages to take
+   * @return The number of messages taken
+   */
+  public synchronized int poll(String nodeId, List<SharedFrame> out, int max) {
+    int taken = 0;
+    while (taken < max && !waiting.isEmpty()) {
+      Image image = waiting.poll();
+      String camera = String.valueOf(image.camera);
+      taken++;
+      if (image.known) {
+        out.add(new SharedFrame(new String[] {"image", nodeId, camera, image.hash}));
+        continue;
+      }
+      int length = Math.min(chunkSize, image.jpeg.length - image.offset);
+      out.add(new SharedFrame(ImageChunks.chunk(nodeId, camera, image.hash, image.jpeg,
+          image.offset, length)));
+      image.offset += length;
+      chunks++;
+      bytes += length;
+      if (image.offset < image.jpeg.length) {
+        waiting.add(image);
+      } else {
+        sent.put(image.hash, image.jpeg);
+      }
+    }
+    return taken;
+  }
+
+  /**
+   * Check whether any image is waiting to be sent.
+   *
+   * @return True if there are no messages to send
+   */
+  public synchronized boolean isEmpty() {
+    return waiting.isEmpty();
+  }
+
+  /**
+   * Get a short summary of the counters. The hits of the cache are the images sent as their
+   * hash alone.
+   *
+   * @return The summary
+   */
+  @Override
+  public synchronized String toString() {
+    return images + " images, " + replaced + " replaced unsent, " + chunks + " chunks, "
+        + bytes + " bytes, " + waiting.size() + " waiting, sent images " + sent;
+  }
+
+  /**
+   * An image being sent, and how much of it has been taken.
+   */
+  private static final class Image {
+    private final int camera;
+    private final String hash;
+    private final byte[] jpeg;
+    private final boolean known;
+    private int offset;
+
+    /**
+     * Create an image waiting to be sent.
+     *
+     * @param camera The index of the camera on the node
+     * @param hash   The hash of the image
+     * @param jpeg   The image
+     * @param known  True to send the hash alone
+     */
+    private Image(int camera, String hash, byte[] jpeg, boolean known) {
+      this.camera = camera;
+      this.hash = hash;
+      this.jpeg = jpeg;
+      this.known = known;
+    }
+  }
+}
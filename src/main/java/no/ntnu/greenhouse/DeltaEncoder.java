@@ -0,0 +1,161 @@
+package no.ntnu.greenhouse;
+
+import java.util.BitSet;
+import java.util.List;
+import no.ntnu.tools.Config;
+
+/**
+ * Turns the readings of a node into "data" keyframes and "delta" messages. A keyframe holds
+ * the value of every sensor slot. A delta holds a bitmap of the slots whose value differs from
+ * the last keyframe, and only the values of those slots. Every delta is relative to the last
+ * keyframe, not to the delta before it, so a newer delta replaces an older one, and a control
+ * panel that missed some deltas is still right after the next one. A keyframe is sent every
+ * few messages, so panels that joined late or missed a keyframe catch up, and whenever a delta
+ * would be no smaller than a keyframe.
+ */
+public class DeltaEncoder {
+  private final int keyframeInterval;
+  private final long deadband;
+  private long[] keyframe;
+  private int sinceKeyframe;
+  private long keyframes;
+  private long deltas;
+  private long bytesSaved;
+
+  /**
+   * Create an encoder with the keyframe interval and deadband from the configuration.
+   */
+  public DeltaEncoder() {
+    this(Config.DELTA_KEYFRAME_INTERVAL, Config.DELTA_DEADBAND);
+  }
+
+  /**
+   * Create an encoder.
+   *
+   * @param keyframeInterval The number of messages from one keyframe to the next, 1 or less to
+   *                         send only keyframes
+   * @param deadband         The change from the keyframe, in the unit of the sensor, up to
+   *                         which a value counts as unchanged
+   */
+  public DeltaEncoder(int keyframeInterval, double deadband) {
+    this.keyframeInterval = keyframeInterval;
+    this.deadband = SensorSchema.toFixed(deadband);
+  }
+
+  /**
+   * Build the next message for the readings of the sensors.
+   *
+   * @param command The command of a keyframe, "data"
+   * @param nodeId  The ID of the node
+   * @param sensors The sensors, in the order of the sensor schema
+   * @return A keyframe, or a "delta" message if a keyframe was sent recently and the delta is
+   *         smaller
+   */
+  public synchronized String[] encode(String command, String nodeId, List<Sensor> sensors) {
+    long[] values = new long[sensors.size()];
+    String[] fields = new String[values.length];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = SensorSchema.toFixed(sensors.get(i).getReading().getValue());
+      fields[i] = Long.toString(values[i]);
+    }
+    if (keyframe != null && keyframe.length == values.length
+        && sinceKeyframe + 1 < keyframeInterval) {
+      String[] delta = delta(nodeId, values, fields);
+      if (delta != null) {
+        sinceKeyframe++;
+        deltas++;
+        return delta;
+      }
+    }
+    keyframe = values;
+    sinceKeyframe = 0;
+    keyframes++;
+    String[] message = new String[2 + values.length];
+    message[0] = command;
+    message[1] = nodeId;
+    System.arraycopy(fields, 0, message, 2, fields.length);
+    return message;
+  }
+
+  /**
+   * Build a delta from the last keyframe, unless it would be no smaller than a keyframe, for
+   * example because every value changed.
+   *
+   * @param nodeId The ID of the node
+   * @param values The values of the sensors
+   * @param fields The values written as fields
+   * @return The delta, or null to send a keyframe instead
+   */
+  private String[] delta(String nodeId, long[] values, String[] fields) {
+    BitSet changed = new BitSet(values.length);
+    long keyframeSize = 0;
+    long deltaSize = 0;
+    for (int i = 0; i < values.length; i++) {
+      keyframeSize += fields[i].length();
+      if (Math.abs(values[i] - keyframe[i]) > deadband) {
+        changed.set(i);
+        deltaSize += fields[i].length();
+      }
+    }
+    String bitmap = SensorSchema.toBitmap(changed);
+    deltaSize += bitmap.length();
+    if (deltaSize >= keyframeSize) {
+      return null;
+    }
+    String[] message = new String[3 + changed.cardinality()];
+    message[0] = "delta";
+    message[1] = nodeId;
+    message[2] = bitmap;
+    int field = 3;
+    for (int slot = changed.nextSetBit(0); slot >= 0; slot = changed.nextSetBit(slot + 1)) {
+      message[field++] = fields[slot];
+    }
+    bytesSaved += keyframeSize - deltaSize;
+    return message;
+  }
+
+  /**
+   * Send a keyframe next, for example because the node joined under a new ID.
+   */
+  public synchronized void reset() {
+    keyframe = null;
+  }
+
+  /**
+   * Get the number of keyframes built.
+   *
+   * @return The number of keyframes
+   */
+  public synchronized long getKeyframes() {
+    return keyframes;
+  }
+
+  /**
+   * Get the number of deltas built.
+   *
+   * @return The number of deltas
+   */
+  public synchronized long getDeltas() {
+    return deltas;
+  }
+
+  /**
+   * Get the bytes deltas saved compared to keyframes, counted as the characters of the values
+   * left out less those of the bitmaps.
+   *
+   * @return The bytes saved
+   */
+  public synchronized long getBytesSaved() {
+    return bytesSaved;
+  }
+
+  /**
+   * Get a short summary of the counters.
+   *
+   * @return The summary
+   */
+  @Override
+  public synchronized String toString() {
+    return keyframes + " keyframes, " + deltas + " deltas, " + bytesSaved + " bytes saved";
+  }
+}
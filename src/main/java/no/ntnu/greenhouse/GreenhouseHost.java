@@ -0,0 +1,269 @@
+package no.ntnu.greenhouse;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import no.ntnu.tools.Config;
+import no.ntnu.tools.cipher.HybridCipher;
+import no.ntnu.tools.cipher.KeyExchange;
+import no.ntnu.tools.loggers.GreenhouseLogger;
+import no.ntnu.tools.transport.Compression;
+import no.ntnu.tools.transport.MessageStream;
+import no.ntnu.tools.transport.SharedFrame;
+
+/**
+ * Runs many greenhouse nodes in one process over a single connection to the server. The host
+ * opens with {"host"} instead of a session of its own, and then sends the "join" or "resume"
+ * message of every node it runs. The server answers each with a welcome, in the same order,
+ * and routes the messages for those nodes to the host from then on.
+ *
+ * <p>Every message already carries the ID of its node in the address field, so the messages
+ * of all the nodes are sent as they are, batched together. Messages from the server are routed
+ * by their address: "nodeId" or "nodeId:actuatorId" goes to that node, with the actuator ID as
+ * the address, and -1 as node ID to every node. A message for every node is decrypted once.
+ * If the connection is lost the host reconnects and resumes the sessions of all its nodes.
+ */
+public class GreenhouseHost {
+  private final HybridCipher cipher = new HybridCipher();
+  private final List<GreenhouseNode> nodes = new ArrayList<>();
+  private final Map<Integer, GreenhouseNode> nodesById = new HashMap<>();
+  private final List<SharedFrame> batch = new ArrayList<>();
+  private MessageStream stream;
+  private Socket socket;
+  private long reconnectDelay = Config.RECONNECT_DELAY;
+  private int nextCamera;
+  private final GreenhouseLogger logger = GreenhouseLogger.getInstance();
+
+  /**
+   * Create a host running a number of greenhouse nodes with the same sensors and actuators.
+   *
+   * @param count The number of nodes
+   * @param args  temperature, humidity, windows, fans, heaters, cameras of every node
+   */
+  public GreenhouseHost(int count, String[] args) {
+    for (int i = 0; i < count; i++) {
+      GreenhouseNode node = new GreenhouseNode(cipher);
+      node.create(args);
+      nodes.add(node);
+    }
+  }
+
+  /**
+   * Start the nodes and serve their connection. Reconnects whenever the connection to the
+   * server is lost.
+   */
+  public void start() {
+    nodes.forEach(GreenhouseNode::startDevices);
+    if (initiateCommunication()) {
+      System.out.println("Host of " + nodes.size() + " greenhouses connected");
+    } else {
+      System.out.println("Host of " + nodes.size() + " greenhouses initialized, connecting when "
+          + "the server is reachable");
+    }
+    while (true) {
+      if (socket == null || socket.isClosed()) {
+        reconnect();
+      } else {
+        listenForCommands();
+        sendCommandIfExists();
+      }
+    }
+  }
+
+  /**
+   * Opens the connection and the sessions of all the nodes. The key exchange and compression
+   * are negotiated once for the connection, as a single node does. The welcomes are matched to
+   * the nodes in the order their requests were sent. A node given a new ID sends its "add"
+   * message right away, and the messages it queued under the old ID are dropped. Any other
+   * message arriving among the welcomes is handled once all the nodes have their IDs.
+   *
+   * @return true if connected, false otherwise
+   */
+  private boolean initiateCommunication() {
+    try {
+      this.socket = new Socket(Config.SERVER_ADDRESS, Config.SERVER_PORT);
+      this.stream = MessageStream.open(socket);
+      socket.setSoTimeout(Config.HANDSHAKE_TIMEOUT);
+      KeyExchange exchange = Config.CIPHER.equals("session") ? new KeyExchange() : null;
+      if (exchange != null) {
+        this.stream.write(exchange.offer());
+      }
+      Compression compression = stream.getCompression();
+      if (compression != null && Config.COMPRESSION.equals("deflate")) {
+        this.stream.write(Compression.negotiation());
+      }
+      this.stream.write(new String[] {"host"});
+      for (GreenhouseNode node : nodes) {
+        this.stream.write(node.hello());
+      }
+      String[] reply = stream.read();
+      if (exchange != null && KeyExchange.isAnswer(reply)) {
+        cipher.setSession(exchange.accept(reply));
+        reply = stream.read();
+      }
+      if (compression != null && Compression.accepts(reply)) {
+        compression.enable();
+        reply = stream.read();
+      }
+      List<String[]> early = new ArrayList<>();
+      Set<String> stale = new HashSet<>();
+      int joined = 0;
+      nodesById.clear();
+      for (GreenhouseNode node : nodes) {
+        while (reply != null && reply.length > 0 && !reply[0].equals("welcome")) {
+          early.add(reply);
+          reply = stream.read();
+        }
+        int oldId = node.getNodeId();
+        String[] add = node.welcome(reply);
+        if (add != null) {
+          stale.add(String.valueOf(oldId));
+          joined++;
+          this.stream.write(add);
+        }
+        nodesById.put(node.getNodeId(), node);
+        if (node != nodes.get(nodes.size() - 1)) {
+          reply = stream.read();
+        }
+      }
+      batch.removeIf(frame -> stale.contains(frame.getAddress().split(":")[0]));
+      socket.setSoTimeout(Config.TIMEOUT);
+      reconnectDelay = Config.RECONNECT_DELAY;
+      logger.info("Host running nodes " + nodesById.keySet() + ", " + joined
+          + " with new sessions");
+      early.forEach(this::route);
+      return true;
+    } catch (IOException | RuntimeException e) {
+      logger.error("Failed to connect to server: " + e.getMessage());
+      disconnect();
+      return false;
+    }
+  }
+
+  /**
+   * Waits, then tries to connect to the server again. The wait doubles after every failed
+   * attempt, and is randomized so hosts cut off together do not all reconnect at once.
+   */
+  private void reconnect() {
+    try {
+      long jitter = ThreadLocalRandom.current().nextLong(reconnectDelay / 2 + 1);
+      Thread.sleep(reconnectDelay / 2 + jitter);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    if (!initiateCommunication()) {
+      reconnectDelay = Math.min(reconnectDelay * 2, Config.RECONNECT_MAX_DELAY);
+    }
+  }
+
+  /**
+   * Closes the connection to the server, so the host reconnects.
+   */
+  private void disconnect() {
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        logger.error("Failed to close socket: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Listens for commands from the server.
+   */
+  private void listenForCommands() {
+    try {
+      String[] payload = stream.read();
+      if (payload == null) {
+        logger.error("Wrong type of object");
+        return;
+      }
+      route(payload);
+    } catch (SocketTimeoutException e) {
+      // Nothing to read, go on sending
+    } catch (IOException e) {
+      logger.error("Failed to read, reconnecting");
+      disconnect();
+    }
+  }
+
+  /**
+   * Passes a message from the server on to the node or nodes it is addressed to. Messages are
+   * decrypted with the address they were sealed with, then passed on with the actuator ID alone
+   * as the address.
+   *
+   * @param payload The message
+   */
+  private void route(String[] payload) {
+    try {
+      String[] address = payload[1].split(":");
+      int nodeId = Integer.parseInt(address[0]);
+      GreenhouseNode target = nodesById.get(nodeId);
+      if (nodeId != -1 && target == null) {
+        logger.info("Discarding " + payload[0] + " for unknown node " + payload[1]);
+        return;
+      }
+      String[] command = cipher.decrypt(payload);
+      if (command == null) {
+        logger.error("Discarding " + payload[0] + " which could not be decrypted");
+        return;
+      }
+      if (address.length > 1) {
+        command = command.clone();
+        command[1] = address[1];
+      }
+      if (target != null) {
+        target.handleCommand(command);
+      } else {
+        for (GreenhouseNode node : nodes) {
+          node.handleCommand(command);
+        }
+      }
+    } catch (RuntimeException e) {
+      logger.error("Discarding malformed message from server: " + e);
+    }
+  }
+
+  /**
+   * Sends the queued messages of all the nodes, flushing once per batch, and then at most a
+   * window of image chunks, taken from the nodes in turn so every camera gets its share. A
+   * batch which fails to send is kept, and sent first once the host has reconnected.
+   */
+  private void sendCommandIfExists() {
+    try {
+      if (!batch.isEmpty()) {
+        stream.write(batch);
+        batch.clear();
+      }
+      for (GreenhouseNode node : nodes) {
+        while (node.drainTo(batch, Config.BATCH_MAX_SIZE - batch.size()) > 0) {
+          if (batch.size() >= Config.BATCH_MAX_SIZE) {
+            stream.write(batch);
+            batch.clear();
+          }
+        }
+      }
+      int window = Config.CAMERA_WINDOW;
+      for (int i = 0; i < nodes.size() && window > 0; i++) {
+        window -= nodes.get((nextCamera + i) % nodes.size()).pollCamera(batch, window);
+      }
+      nextCamera = (nextCamera + 1) % nodes.size();
+      if (!batch.isEmpty()) {
+        stream.write(batch);
+        batch.clear();
+      }
+    } catch (IOException e) {
+      logger.info("Failed to write to the server, reconnecting");
+      disconnect();
+    }
+  }
+}
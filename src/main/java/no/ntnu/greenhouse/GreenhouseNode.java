@@ -1,42 +1,50 @@
 package no.ntnu.greenhouse;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.math.BigInteger;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Base64;
 import java.util.List;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
 import no.ntnu.listeners.common.ActuatorListener;
 import no.ntnu.listeners.common.CameraListener;
 import no.ntnu.listeners.greenhouse.NodeStateListener;
 import no.ntnu.listeners.greenhouse.SensorListener;
 import no.ntnu.tools.Config;
-import no.ntnu.tools.RSA;
+import no.ntnu.tools.cipher.HybridCipher;
+import no.ntnu.tools.cipher.KeyExchange;
 import no.ntnu.tools.loggers.GreenhouseLogger;
+import no.ntnu.tools.transport.Compression;
+import no.ntnu.tools.transport.MessageStream;
+import no.ntnu.tools.transport.OutboundQueue;
+import no.ntnu.tools.transport.SharedFrame;
 
 /**
  * The GreenhouseNode class is responsible for handling the communication between the greenhouse and
  * the server. It listens for commands from the server and sends sensor readings to the server.
+ * The node is identified by the ID the server gives it when it joins. If the connection is lost
+ * the node keeps queuing its messages, only the latest sensor readings, and reconnects to
+ * resume its session under the same ID. A node run by a {@link GreenhouseHost} shares the
+ * connection of the host instead of opening its own.
  */
-public class GreenhouseNode extends TimerTask
-    implements SensorListener, NodeStateListener, ActuatorListener,
+public class GreenhouseNode
+    implements Runnable, SensorListener, NodeStateListener, ActuatorListener,
     CameraListener {
-  private final Map<Integer, SensorActuatorNode> nodes = new HashMap<>();
-  private final BigInteger[] keys = this.keyGen();
-  private ObjectInputStream objectInputStream;
-  private ObjectOutputStream objectOutputStream;
+  private final HybridCipher cipher;
+  private MessageStream stream;
   private Socket socket;
   private SensorActuatorNode node;
-  private LinkedBlockingQueue<String[]> commandQueue;
+  private SensorSchema schema;
+  private final DeltaEncoder deltaEncoder = new DeltaEncoder();
+  private final OutboundQueue commandQueue = new OutboundQueue(true);
+  private final CameraStream cameraStream = new CameraStream();
+  private final List<SharedFrame> batch = new ArrayList<>();
+  private volatile int nodeId = -1;
+  private String sessionToken;
+  private long reconnectDelay = Config.RECONNECT_DELAY;
   private boolean allowSendReading;
-  private ArrayList<ArrayList<SensorReading>> aggregateReadings = new ArrayList<>();
+  private SensorStatistics statistics;
   private GreenhouseLogger logger = GreenhouseLogger.getInstance();
 
 
@@ -44,19 +52,30 @@ public class GreenhouseNode extends TimerTask
    * Create a greenhouse node that should connect to specified TCP port of server.
    */
   public GreenhouseNode() {
+    this(new HybridCipher());
   }
 
   /**
-   * Start the greenhouse.
+   * Create a greenhouse node run by a host, sharing the cipher of the host connection.
+   *
+   * @param cipher The cipher of the connection
+   */
+  GreenhouseNode(HybridCipher cipher) {
+    this.cipher = cipher;
+  }
+
+  /**
+   * Start the greenhouse. Reconnects whenever the connection to the server is lost.
    */
   public void start() {
-    node.start();
-    this.commandQueue = new LinkedBlockingQueue<>();
-    Timer minAggregateTimer = new Timer();
-    minAggregateTimer.schedule(this, 5000, 60000);
-    while (!socket.isClosed()) {
-      listenForCommands();
-      sendCommandIfExists();
+    startDevices();
+    while (true) {
+      if (socket == null || socket.isClosed()) {
+        reconnect();
+      } else {
+        listenForCommands();
+        sendCommandIfExists();
+      }
     }
   }
 
@@ -69,6 +88,21 @@ public class GreenhouseNode extends TimerTask
    * @param args temperature, humidity, windows, fans, heaters
    */
   public void initialize(String[] args) {
+    create(args);
+    if (initiateCommunication()) {
+      System.out.println("Greenhouse initialized and connected");
+      processCommand();
+    } else {
+      System.out.println("Greenhouse initialized, connecting when the server is reachable");
+    }
+  }
+
+  /**
+   * Creates the sensors and actuators of the greenhouse, without connecting to the server.
+   *
+   * @param args temperature, humidity, windows, fans, heaters, cameras
+   */
+  void create(String[] args) {
     allowSendReading = true;
 
     if (argsValidator(args)) {
@@ -86,12 +120,19 @@ public class GreenhouseNode extends TimerTask
           + "(1 temperature, 2 humidity, 1 window, 1 camera)");
     }
     this.node.addStateListener(this);
+    if (!Config.READING_FORMAT.equals("text")) {
+      schema = SensorSchema.of(node.getSensors());
+    }
+    statistics = new SensorStatistics(node.getSensors());
+  }
 
-    initiateCommunication();
-    System.out.println("Greenhouse initialized and connected");
-    processCommand();
-    aggregateReadings = new ArrayList<>();
-
+  /**
+   * Starts the sensors, actuators and cameras, and the task sending aggregated readings, all on
+   * the shared scheduler.
+   */
+  void startDevices() {
+    node.start();
+    NodeScheduler.getInstance().scheduleWithFixedDelay(this, 5000, 60000);
   }
 
   /**
@@ -136,31 +177,144 @@ public class GreenhouseNode extends TimerTask
   /**
    * Initializes communication between a node and the server.
    * Each node is defined as a greenhouse consisting of multiple sensors.
+   * A node which has been connected before asks to resume its session. If the server still
+   * has it, the node keeps its ID and only sends the messages queued while it was away.
+   * Otherwise the node is given a new ID, drops the queued messages, which carry the old one,
+   * and sends its node info in full. A node using the session cipher first offers a public key,
+   * and the server answers with the session key before anything else. A framed node configured
+   * for compression offers it next, and the server answers before the welcome if it accepts.
+   * Messages queued on a resumed session were sealed with the same session key.
+   *
+   * @return true if connected, false otherwise
    */
-  private void initiateCommunication() {
+  private boolean initiateCommunication() {
     try {
       this.socket = new Socket(Config.SERVER_ADDRESS, Config.SERVER_PORT);
+      this.stream = MessageStream.open(socket);
+      socket.setSoTimeout(Config.HANDSHAKE_TIMEOUT);
+      KeyExchange exchange = Config.CIPHER.equals("session") ? new KeyExchange() : null;
+      if (exchange != null) {
+        this.stream.write(exchange.offer());
+      }
+      Compression compression = stream.getCompression();
+      if (compression != null && Config.COMPRESSION.equals("deflate")) {
+        this.stream.write(Compression.negotiation());
+      }
+      this.stream.write(hello());
+      String[] welcome = stream.read();
+      if (exchange != null && KeyExchange.isAnswer(welcome)) {
+        cipher.setSession(exchange.accept(welcome));
+        welcome = stream.read();
+      }
+      if (compression != null && Compression.accepts(welcome)) {
+        compression.enable();
+        welcome = stream.read();
+      }
+      String[] add = welcome(welcome);
+      if (add != null) {
+        this.stream.write(add);
+      }
       socket.setSoTimeout(Config.TIMEOUT);
-      this.objectInputStream = new ObjectInputStream(socket.getInputStream());
-      this.objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
-      String[] payload = nodeInfoForAddingNodesOnControlPanel();
-      payload[0] = "add";
-      logger.info("sending node info to server");
-      this.objectOutputStream.writeObject(payload);
-    } catch (IOException e) {
-      logger.error("Failed to connect to server");
+      reconnectDelay = Config.RECONNECT_DELAY;
+      return true;
+    } catch (IOException | RuntimeException e) {
+      logger.error("Failed to connect to server: " + e.getMessage());
+      disconnect();
+      return false;
+    }
+  }
+
+  /**
+   * Gets the message the node opens its session with: {"join"} the first time, and
+   * {"resume", nodeId, token} after that.
+   *
+   * @return The message
+   */
+  String[] hello() {
+    String cameras = String.valueOf(node.getCameras().size());
+    return sessionToken == null ? new String[] {"join", cameras}
+        : new String[] {"resume", String.valueOf(nodeId), sessionToken, cameras};
+  }
+
+  /**
+   * Takes the session the server welcomed the node with. A node given a new ID drops the
+   * messages queued under the old one, and must send its node info before anything else.
+   *
+   * @param welcome The message {"welcome", nodeId, token, status}
+   * @return The encrypted "add" message to send first, or null if the session was resumed
+   * @throws IOException If the message is not a welcome
+   */
+  String[] welcome(String[] welcome) throws IOException {
+    if (welcome == null || welcome.length < 4 || !welcome[0].equals("welcome")) {
+      throw new IOException("Unexpected reply to handshake");
+    }
+    sessionToken = welcome[2];
+    if (welcome[3].equals("resumed")) {
+      logger.info("Resumed session as node " + nodeId + ", sending "
+          + (commandQueue.size() + batch.size()) + " queued messages");
+      return null;
+    }
+    nodeId = Integer.parseInt(welcome[1]);
+    commandQueue.clear();
+    batch.clear();
+    deltaEncoder.reset();
+    String[] payload = nodeInfoForAddingNodesOnControlPanel();
+    payload[0] = "add";
+    logger.info("sending node info to server as node " + nodeId);
+    return cipher.encrypt(payload);
+  }
+
+  /**
+   * Gets the ID the server gave the node.
+   *
+   * @return The node ID, or -1 before the node has joined
+   */
+  int getNodeId() {
+    return nodeId;
+  }
+
+  /**
+   * Waits, then tries to connect to the server again. The wait doubles after every failed
+   * attempt, and is randomized so nodes cut off together do not all reconnect at once.
+   */
+  private void reconnect() {
+    try {
+      long jitter = ThreadLocalRandom.current().nextLong(reconnectDelay / 2 + 1);
+      Thread.sleep(reconnectDelay / 2 + jitter);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    if (!initiateCommunication()) {
+      reconnectDelay = Math.min(reconnectDelay * 2, Config.RECONNECT_MAX_DELAY);
+    }
+  }
+
+  /**
+   * Closes the connection to the server, so the node reconnects.
+   */
+  private void disconnect() {
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        logger.error("Failed to close socket: " + e.getMessage());
+      }
     }
   }
 
   /**
    * Returns the node information in the format: "empty-command", "nodeID", "actuatorType",
-   * "actuatorID", actuatorState, "actuatorType", "actuatorID", ...
+   * "actuatorID", actuatorState, "actuatorType", "actuatorID", ... When readings are sent as
+   * fixed-point values, the sensor schema follows the actuators.
    *
    * @return the node information
    */
   private String[] nodeInfoForAddingNodesOnControlPanel() {
-    String[] nodeInfo = new String[2 + node.getActuators().size() * 3];
-    nodeInfo[1] = String.valueOf(socket.getLocalPort());
+    String[] sensors = schema != null ? schema.toFields() : new String[0];
+    int actuatorFields = node.getActuators().size() * 3;
+    String[] nodeInfo = new String[2 + actuatorFields + sensors.length];
+    nodeInfo[1] = String.valueOf(nodeId);
     int index = 2;
     for (Actuator actuator : this.node.getActuators()) {
       nodeInfo[index] = actuator.getType();
@@ -168,17 +322,93 @@ public class GreenhouseNode extends TimerTask
       nodeInfo[index + 2] = String.valueOf(actuator.isOn());
       index = index + 3;
     }
+    System.arraycopy(sensors, 0, nodeInfo, index, sensors.length);
     return nodeInfo;
   }
 
   /**
-   * Processes the command received from the server.
+   * Formats the "aggregate" message. With a sensor schema the fixed-point means of all the
+   * sensors come first, then their minimums, their maximums and their standard deviations. In
+   * text mode every aggregate is written in full, with its statistics after the unit.
+   *
+   * @param aggregate The aggregate of every sensor
+   * @return The message
+   */
+  private String[] aggregateMessage(AggregateReading[] aggregate) {
+    int size = aggregate.length;
+    String[] message = new String[2 + (schema != null ? 4 * size : size)];
+    message[0] = "aggregate";
+    message[1] = String.valueOf(nodeId);
+    for (int i = 0; i < size; i++) {
+      AggregateReading reading = aggregate[i];
+      if (schema == null) {
+        message[2 + i] = reading.toString();
+      } else {
+        message[2 + i] = SensorSchema.encode(reading.getValue());
+        message[2 + size + i] = SensorSchema.encode(reading.getMin());
+        message[2 + 2 * size + i] = SensorSchema.encode(reading.getMax());
+        message[2 + 3 * size + i] = SensorSchema.encode(reading.getStddev());
+      }
+    }
+    return message;
+  }
+
+  /**
+   * Processes the command received from the server. Actuator commands are addressed
+   * "nodeId:actuatorId", the address they were sealed with, and carried out with the actuator
+   * ID alone.
    */
   private void processCommand() {
     try {
-      String[] payload = (String[]) objectInputStream.readObject();
-      String[] command = RSA.decrypt(payload, keys);
+      String[] payload = stream.read();
+      if (payload == null) {
+        logger.error("Wrong type of object");
+        return;
+      }
+      String[] command = cipher.decrypt(payload);
+      if (command == null) {
+        logger.error("Discarding " + payload[0] + " which could not be decrypted");
+        return;
+      }
+      if (command.length > 1 && command[1].contains(":")) {
+        command = command.clone();
+        command[1] = command[1].substring(command[1].indexOf(':') + 1);
+      }
+      handleCommand(command);
+    } catch (SocketTimeoutException e) {
+//      logger.info("Timeout when reading command");
+    } catch (IOException e) {
+      logger.error("Failed to read, reconnecting");
+      disconnect();
+    }
+  }
+
+  /**
+   * Sends a camera image again, as asked for by a "fetch" message.
+   *
+   * @param fetch The message {"fetch", nodeId, camera, hash}
+   */
+  private void resendImage(String[] fetch) {
+    try {
+      if (!cameraStream.resend(Integer.parseInt(fetch[2]), fetch[3])) {
+        logger.info("Image " + fetch[3] + " asked for is no longer kept");
+      }
+    } catch (RuntimeException e) {
+      logger.error(e.toString());
+    }
+  }
+
+  /**
+   * Carries out a decrypted command from the server.
+   *
+   * @param command The command, addressed to an actuator ID or -1 for "set" and "toggle"
+   */
+  void handleCommand(String[] command) {
+    try {
       switch (command[0]) {
+        case "fetch":
+          resendImage(command);
+          break;
         case "set":
           // Broadcast to all actuators
           if (command[1].contains("-1")) {
@@ -212,31 +442,63 @@ public class GreenhouseNode extends TimerTask
       }
     } catch (RuntimeException e) {
       logger.error(e.toString());
-    } catch (SocketTimeoutException e) {
-//      logger.info("Timeout when reading command");
-    } catch (IOException e) {
-      logger.error("Failed to read");
-    } catch (ClassNotFoundException e) {
-      logger.error("Wrong type of object");
     }
   }
 
   /**
-   * Sends a command to the server.
+   * Sends the queued commands to the server, flushing once per batch. Actuator state changes
+   * are sent before sensor readings and camera images. Then at most a window of image chunks
+   * is sent, so a message queued meanwhile waits for no more than that before the next call.
+   * A batch which fails to send is kept, and sent first once the node has resumed its session.
    * Command
    * SensorID
    * Value(s)
    */
   private void sendCommandIfExists() {
-    while (this.commandQueue.peek() != null) {
-      try {
-        objectOutputStream.writeObject(commandQueue.poll());
-      } catch (IOException e) {
-        logger.info("Failed to write to the server");
+    try {
+      while (!batch.isEmpty() || this.commandQueue.drainTo(batch, Config.BATCH_MAX_SIZE) > 0) {
+        stream.write(batch);
+        batch.clear();
       }
+      if (pollCamera(batch, Config.CAMERA_WINDOW) > 0) {
+        stream.write(batch);
+        batch.clear();
+      }
+    } catch (IOException e) {
+      logger.info("Failed to write to the server, reconnecting");
+      disconnect();
     }
   }
 
+  /**
+   * Moves queued messages to a batch, for a host sending the messages of all its nodes.
+   *
+   * @param batch The batch
+   * @param max   The most messages to move
+   * @return The number of messages moved
+   */
+  int drainTo(List<SharedFrame> batch, int max) {
+    return commandQueue.drainTo(batch, max);
+  }
+
+  /**
+   * Moves image chunks to a batch, sealed with the session key if the node has it.
+   *
+   * @param batch  The batch
+   * @param window The most chunks to move
+   * @return The number of chunks moved
+   */
+  int pollCamera(List<SharedFrame> batch, int window) {
+    int first = batch.size();
+    int taken = cameraStream.poll(String.valueOf(nodeId), batch, window);
+    if (cipher.hasSession()) {
+      for (int i = first; i < batch.size(); i++) {
+        batch.set(i, new SharedFrame(cipher.encrypt(batch.get(i).getMessage())));
+      }
+    }
+    return taken;
+  }
+
   /**
    * Listens for commands from the server.
    */
@@ -246,6 +508,7 @@ public class GreenhouseNode extends TimerTask
       processCommand();
     } catch (IOException e) {
       logger.error("failed to read from server");
+      disconnect();
     }
   }
 
@@ -255,30 +518,32 @@ public class GreenhouseNode extends TimerTask
    * @param command The command to be added to the queue
    */
   private void setCommandQueue(String[] command) {
-    try {
-      String[] payload = RSA.encrypt(command, keys);
-      this.commandQueue.put(payload);
-    } catch (InterruptedException e) {
-      throw new RuntimeException(e);
+    String[] payload = cipher.encrypt(command);
+    if (!this.commandQueue.offer(new SharedFrame(payload))) {
+      logger.error("Command queue is full, dropping " + command[0]);
     }
   }
 
   /**
-   * Listens for sensor updates.
+   * Listens for sensor updates. With a sensor schema the readings are sent as a keyframe or,
+   * if delta mode is on, as only the values that changed since the last keyframe.
    *
    * @param sensors A list of sensors having new values (readings)
    */
   @Override
   public void sensorsUpdated(List<Sensor> sensors) {
-    String[] readings = new String[sensors.size() + 2];
-    readings[0] = "data";
-    readings[1] = String.valueOf(socket.getLocalPort());
-    ArrayList<SensorReading> reading1 = new ArrayList<>();
-    for (int i = 0; i < sensors.size(); i++) {
-      readings[i + 2] = sensors.get(i).getReading().toString();
-      reading1.add(sensors.get(i).getReading());
+    String[] readings;
+    if (schema != null) {
+      readings = deltaEncoder.encode("data", String.valueOf(nodeId), sensors);
+    } else {
+      readings = new String[sensors.size() + 2];
+      readings[0] = "data";
+      readings[1] = String.valueOf(nodeId);
+      for (int i = 0; i < sensors.size(); i++) {
+        readings[i + 2] = sensors.get(i).getReading().toString();
+      }
     }
-    aggregateReadings.add(reading1);
+    statistics.add(sensors);
     this.setCommandQueue(readings);
 
   }
@@ -306,78 +571,68 @@ public class GreenhouseNode extends TimerTask
   }
 
   /**
-   * Updates the actuator state.
+   * Updates the actuator state. The state is addressed with the ID the server gave the node,
+   * which differs from the ID of the device when a host runs several nodes.
    *
-   * @param nodeId   ID of the node on which this actuator is placed
+   * @param nodeId   ID of the device on which this actuator is placed
    * @param actuator The actuator that has changed its state
    */
   @Override
   public void actuatorUpdated(int nodeId, Actuator actuator) {
     String[] payload = new String[4];
     payload[0] = "state";
-    payload[1] = socket.getLocalPort() + ":" + actuator.getId();
+    payload[1] = this.nodeId + ":" + actuator.getId();
     payload[2] = actuator.getType();
     payload[3] = String.valueOf(actuator.isOn());
     this.setCommandQueue(payload);
   }
 
   /**
-   * Listens for camera updates.
+   * Listens for camera updates. The images are sent as raw bytes in chunks, or as one
+   * encrypted "camera" message if the configuration asks for it.
    *
    * @param cameras A list of cameras having new images
    */
   @Override
   public void cameraUpdated(List<Camera> cameras) {
+    if (Config.CAMERA_STREAM.equals("chunked")) {
+      for (int i = 0; i < cameras.size(); i++) {
+        cameraStream.offer(i, Base64.getDecoder().decode(cameras.get(i).getImage()));
+      }
+      return;
+    }
     String[] payload = new String[2 + cameras.size()];
     payload[0] = "camera";
-    payload[1] = String.valueOf(socket.getLocalPort());
+    payload[1] = String.valueOf(nodeId);
     for (int i = 0; i < cameras.size(); i++) {
       payload[i + 2] = cameras.get(i).getImage();
     }
     this.setCommandQueue(payload);
   }
 
-  /**
-   * Generates a public and private key for the greenhouse node.
-   *
-   * @return an array containing the private key, public key, and product of the two keys
-   */
-  private BigInteger[] keyGen() {
-    int p = 7;
-    int q = 19;
-    BigInteger product = BigInteger.valueOf(p * q);
-    int totient = (p - 1) * (q - 1);
-    BigInteger pubKey = BigInteger.valueOf(29);
-    BigInteger privKey = BigInteger.valueOf(41);
-    return new BigInteger[] {privKey, pubKey, product};
-  }
-
 
   /**
-   * Aggregates the sensor readings and sends the average to the server.
+   * Sends the mean, minimum, maximum and standard deviation of every sensor since the last
+   * aggregate to the server, unless nothing has been read since.
    */
   @Override
   public void run() {
-    ArrayList<SensorReading> aggregate = new ArrayList<>();
-    for (SensorReading reading : aggregateReadings.get(0)) {
-      aggregate.add(new SensorReading(reading.getType(), 0, reading.getUnit()));
+    AggregateReading[] aggregate = statistics.aggregate();
+    if (aggregate != null) {
+      this.setCommandQueue(aggregateMessage(aggregate));
     }
-    for (ArrayList<SensorReading> readings : aggregateReadings) {
-      for (int i = 0; i < readings.size(); i++) {
-        aggregate.get(i).setValue(aggregate.get(i).getValue() + readings.get(i).getValue());
-      }
+    logger.info("Command queue: " + commandQueue);
+    if (Config.DELTA_KEYFRAME_INTERVAL > 1) {
+      logger.info("Sensor messages: " + deltaEncoder);
     }
-    for (SensorReading reading : aggregate) {
-      reading.setValue(reading.getValue() / aggregateReadings.size());
+    if (Config.CAMERA_STREAM.equals("chunked")) {
+      logger.info("Camera stream: " + cameraStream);
     }
-    String[] readings = new String[aggregate.size() + 2];
-    readings[0] = "aggregate";
-    readings[1] = String.valueOf(socket.getLocalPort());
-    for (int i = 0; i < aggregate.size(); i++) {
-      readings[i + 2] = aggregate.get(i).toString();
+    MessageStream current = stream;
+    if (current != null && current.getCompression() != null
+        && current.getCompression().isEnabled()) {
+      logger.info("Connection: " + current.getCompression());
     }
-    this.setCommandQueue(readings);
-    aggregateReadings.clear();
 
   }
 }
@@ -0,0 +1,123 @@
+package no.ntnu.greenhouse;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import no.ntnu.tools.Config;
+import no.ntnu.tools.loggers.Logger;
+import no.ntnu.tools.transport.LatencyHistogram;
+
+/**
+ * The scheduler every greenhouse node in a process runs its periodic tasks on: reading sensors,
+ * updating cameras and sending aggregated readings. A node used to start a timer thread for
+ * each, three threads per node doing a few microseconds of work every few seconds, which adds
+ * up to thousands of threads in a host running many nodes. The scheduler runs all the tasks on
+ * a small pool of daemon threads, one per core by default ({@code greenhouse.scheduler.threads}).
+ *
+ * <p>A task which throws is logged and keeps its schedule, where it used to stop its timer for
+ * good. The lateness of every run, from the time it was due to the time it started, is recorded
+ * so the skew of the schedule can be reported.
+ */
+public class NodeScheduler {
+  private static NodeScheduler instance;
+
+  private final ScheduledThreadPoolExecutor executor;
+  private final LatencyHistogram lateness = new LatencyHistogram();
+
+  /**
+   * Create the scheduler.
+   *
+   * @param threads The number of threads running the tasks
+   */
+  private NodeScheduler(int threads) {
+    AtomicInteger count = new AtomicInteger();
+    executor = new ScheduledThreadPoolExecutor(threads, task -> {
+      Thread thread = new Thread(task, "node-scheduler-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Get the scheduler of the process, creating it the first time.
+   *
+   * @return The scheduler
+   */
+  public static synchronized NodeScheduler getInstance() {
+    if (instance == null) {
+      instance = new NodeScheduler(Math.max(1, Config.SCHEDULER_THREADS));
+    }
+    return instance;
+  }
+
+  /**
+   * Run a task periodically, each run a fixed period after the previous one was due, as
+   * {@link java.util.Timer#scheduleAtFixedRate} does.
+   *
+   * @param task   The task
+   * @param delay  The time until the first run, in milliseconds
+   * @param period The time between runs, in milliseconds
+   * @return The handle to cancel the task with
+   */
+  public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long delay, long period) {
+    long[] due = {System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay)};
+    long periodNanos = TimeUnit.MILLISECONDS.toNanos(period);
+    return executor.scheduleAtFixedRate(() -> {
+      lateness.record(System.nanoTime() - due[0]);
+      due[0] += periodNanos;
+      runSafely(task);
+    }, delay, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Run a task periodically, each run a fixed delay after the previous one ended, as
+   * {@link java.util.Timer#schedule(java.util.TimerTask, long, long)} does.
+   *
+   * @param task  The task
+   * @param delay The time until the first run, in milliseconds
+   * @param wait  The time from the end of one run to the next, in milliseconds
+   * @return The handle to cancel the task with
+   */
+  public ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long delay, long wait) {
+    long[] due = {System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay)};
+    long waitNanos = TimeUnit.MILLISECONDS.toNanos(wait);
+    return executor.scheduleWithFixedDelay(() -> {
+      lateness.record(System.nanoTime() - due[0]);
+      runSafely(task);
+      due[0] = System.nanoTime() + waitNanos;
+    }, delay, wait, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Get the lateness of the runs so far, from the time each was due to the time it started.
+   *
+   * @return The histogram of lateness in nanoseconds
+   */
+  public LatencyHistogram getLateness() {
+    return lateness;
+  }
+
+  /**
+   * Get the number of tasks waiting for their next run.
+   *
+   * @return The number of tasks
+   */
+  public int getTaskCount() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * Run a task, logging anything it throws so its schedule goes on.
+   *
+   * @param task The task
+   */
+  private static void runSafely(Runnable task) {
+    try {
+      task.run();
+    } catch (RuntimeException e) {
+      Logger.error("Scheduled task failed: " + e);
+    }
+  }
+}
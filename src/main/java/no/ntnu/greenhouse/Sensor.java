@@ -33,6 +33,24 @@ public class Sensor {
     return reading.getType();
   }
 
+  /**
+   * Get the minimum allowed value.
+   *
+   * @return The minimum value
+   */
+  public double getMin() {
+    return min;
+  }
+
+  /**
+   * Get the maximum allowed value.
+   *
+   * @return The maximum value
+   */
+  public double getMax() {
+    return max;
+  }
+
   /**
    * Get the current sensor reading.
    *
@@ -3,8 +3,7 @@ package no.ntnu.greenhouse;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ScheduledFuture;
 import no.ntnu.listeners.common.ActuatorListener;
 import no.ntnu.listeners.common.CameraListener;
 import no.ntnu.listeners.common.CommunicationChannelListener;
@@ -13,10 +12,11 @@ import no.ntnu.listeners.greenhouse.SensorListener;
 import no.ntnu.tools.loggers.Logger;
 
 /**
- * Represents one node with sensors and actuators.
+ * Represents one node with sensors and actuators. Sensor readings and camera images are
+ * updated periodically on the shared {@link NodeScheduler}.
  */
-public class SensorActuatorNode extends TimerTask
-    implements ActuatorListener, CommunicationChannelListener {
+public class SensorActuatorNode
+    implements Runnable, ActuatorListener, CommunicationChannelListener {
 
   // How often to generate new sensor values, in seconds.
   private static final long SENSING_DELAY = 5000;
@@ -29,7 +29,8 @@ public class SensorActuatorNode extends TimerTask
   private final List<NodeStateListener> stateListeners = new LinkedList<>();
   private final List<CameraListener> cameraListeners = new LinkedList<>();
   private final Random random = new Random();
-  Timer sensorReadingTimer;
+  private ScheduledFuture<?> sensorReading;
+  private ScheduledFuture<?> imageUpdates;
   private boolean running;
 
   /**
@@ -156,8 +157,7 @@ public class SensorActuatorNode extends TimerTask
       startPeriodicSensorReading();
       running = true;
       notifyStateChanges(true);
-      Timer imageTimer = new Timer();
-      imageTimer.scheduleAtFixedRate(this, 5000, 30000);
+      imageUpdates = NodeScheduler.getInstance().scheduleAtFixedRate(this, 5000, 30000);
     }
   }
 
@@ -168,6 +168,7 @@ public class SensorActuatorNode extends TimerTask
     if (running) {
       Logger.info("-- Stopping simulation of node " + id);
       stopPeriodicSensorReading();
+      imageUpdates.cancel(false);
       running = false;
       notifyStateChanges(false);
     }
@@ -182,24 +183,22 @@ public class SensorActuatorNode extends TimerTask
     return running;
   }
 
+  /**
+   * Start the periodic sensor reading, after a random delay of up to one period, so nodes
+   * started together do not all read their sensors at the same time.
+   */
   private void startPeriodicSensorReading() {
-    sensorReadingTimer = new Timer();
-    TimerTask newSensorValueTask = new TimerTask() {
-      @Override
-      public void run() {
-        generateNewSensorValues();
-      }
-    };
     long randomStartDelay = random.nextLong(SENSING_DELAY);
-    sensorReadingTimer.scheduleAtFixedRate(newSensorValueTask, randomStartDelay, SENSING_DELAY);
+    sensorReading = NodeScheduler.getInstance().scheduleAtFixedRate(
+        this::generateNewSensorValues, randomStartDelay, SENSING_DELAY);
   }
 
   /**
    * Stop the periodic sensor reading.
    */
   private void stopPeriodicSensorReading() {
-    if (sensorReadingTimer != null) {
-      sensorReadingTimer.cancel();
+    if (sensorReading != null) {
+      sensorReading.cancel(false);
     }
   }
 
@@ -400,7 +399,7 @@ public class SensorActuatorNode extends TimerTask
 
 
   /**
-   * Run the scheduled task.
+   * Run the scheduled task, updating the camera images.
    */
   @Override
   public void run() {
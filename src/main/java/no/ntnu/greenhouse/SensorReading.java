@@ -42,12 +42,13 @@ public class SensorReading {
   }
 
   /**
-   * Set the value of the sensor.
+   * Set the value of the sensor, cut to two decimals. A value which already has two decimals,
+   * such as 0.29 stored as 0.28999..., is kept as it is.
    *
    * @param newValue The new value of the sensor
    */
   public void setValue(double newValue) {
-    this.value = Math.floor(newValue * 100) / 100;
+    this.value = Math.floor(newValue * 100 + 1e-7) / 100;
   }
 
   /**
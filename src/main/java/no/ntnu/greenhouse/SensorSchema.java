@@ -0,0 +1,224 @@
+package no.ntnu.greenhouse;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The sensors of a node, in the order their values are sent. A node declares its schema once,
+ * at the end of its "add" message, and its "data" and "aggregate" messages then only carry
+ * one fixed-point value per sensor slot: the reading in hundredths, as a whole number. The
+ * control panel turns the values back into readings with the type and unit of their slot.
+ * A "delta" message carries a bitmap of slots and the values of those slots only, see
+ * {@link DeltaEncoder}.
+ */
+public class SensorSchema {
+  // The field in an "add" message after which the sensors are declared
+  public static final String MARKER = "sensors";
+
+  private static final int FIELDS_PER_SENSOR = 4;
+  private static final double SCALE = 100;
+
+  private final String[] types;
+  private final String[] units;
+  private final double[] min;
+  private final double[] max;
+
+  /**
+   * Create a schema.
+   *
+   * @param size The number of sensor slots
+   */
+  private SensorSchema(int size) {
+    this.types = new String[size];
+    this.units = new String[size];
+    this.min = new double[size];
+    this.max = new double[size];
+  }
+
+  /**
+   * Create the schema of a list of sensors.
+   *
+   * @param sensors The sensors, in the order their readings are sent
+   * @return The schema
+   */
+  public static SensorSchema of(List<Sensor> sensors) {
+    SensorSchema schema = new SensorSchema(sensors.size());
+    for (int i = 0; i < sensors.size(); i++) {
+      Sensor sensor = sensors.get(i);
+      schema.types[i] = sensor.getType();
+      schema.units[i] = sensor.getReading().getUnit();
+      schema.min[i] = sensor.getMin();
+      schema.max[i] = sensor.getMax();
+    }
+    return schema;
+  }
+
+  /**
+   * Read the schema declared in a message.
+   *
+   * @param message The message
+   * @param from    The first field after the {@link #MARKER}
+   * @return The schema
+   * @throws IllegalArgumentException If the declaration is malformed
+   */
+  public static SensorSchema parse(String[] message, int from) {
+    int fields = message.length - from;
+    if (fields % FIELDS_PER_SENSOR != 0) {
+      throw new IllegalArgumentException("Malformed sensor schema");
+    }
+    SensorSchema schema = new SensorSchema(fields / FIELDS_PER_SENSOR);
+    for (int slot = 0; slot < schema.size(); slot++) {
+      int field = from + slot * FIELDS_PER_SENSOR;
+      schema.types[slot] = message[field];
+      schema.units[slot] = message[field + 1];
+      schema.min[slot] = Double.parseDouble(message[field + 2]);
+      schema.max[slot] = Double.parseDouble(message[field + 3]);
+    }
+    return schema;
+  }
+
+  /**
+   * Get the number of sensor slots.
+   *
+   * @return The number of sensors
+   */
+  public int size() {
+    return types.length;
+  }
+
+  /**
+   * Get the fields declaring the schema, starting with the {@link #MARKER}.
+   *
+   * @return The type, unit, minimum and maximum of every sensor slot
+   */
+  public String[] toFields() {
+    String[] fields = new String[1 + size() * FIELDS_PER_SENSOR];
+    fields[0] = MARKER;
+    for (int slot = 0; slot < size(); slot++) {
+      int field = 1 + slot * FIELDS_PER_SENSOR;
+      fields[field] = types[slot];
+      fields[field + 1] = units[slot];
+      fields[field + 2] = Double.toString(min[slot]);
+      fields[field + 3] = Double.toString(max[slot]);
+    }
+    return fields;
+  }
+
+  /**
+   * Encode a reading as a fixed-point value.
+   *
+   * @param value The reading
+   * @return The reading in hundredths
+   */
+  public static String encode(double value) {
+    return Long.toString(toFixed(value));
+  }
+
+  /**
+   * Convert a reading to fixed point.
+   *
+   * @param value The reading
+   * @return The reading in hundredths
+   */
+  public static long toFixed(double value) {
+    return Math.round(value * SCALE);
+  }
+
+  /**
+   * Write a set of sensor slots as a bitmap: a hexadecimal number with bit i set for slot i.
+   *
+   * @param slots The slots
+   * @return The bitmap
+   */
+  public static String toBitmap(BitSet slots) {
+    BigInteger bitmap = BigInteger.ZERO;
+    for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1)) {
+      bitmap = bitmap.setBit(slot);
+    }
+    return bitmap.toString(16);
+  }
+
+  /**
+   * Turn the fixed-point values of a message back into readings.
+   *
+   * @param message The message
+   * @param from    The field holding the value of the first slot
+   * @return The readings
+   * @throws IllegalArgumentException If a value is not a number or has no slot
+   */
+  public List<SensorReading> decode(String[] message, int from) {
+    if (message.length - from > size()) {
+      throw new IllegalArgumentException("More values than sensors");
+    }
+    List<SensorReading> readings = new ArrayList<>(message.length - from);
+    for (int field = from; field < message.length; field++) {
+      int slot = field - from;
+      double value = Long.parseLong(message[field]) / SCALE;
+      readings.add(new SensorReading(types[slot], value, units[slot]));
+    }
+    return readings;
+  }
+
+  /**
+   * Turn the fixed-point values of an "aggregate" message back into aggregate readings. The
+   * message holds the means of all the slots, then their minimums, their maximums and their
+   * standard deviations. A message with only the means gives readings without statistics.
+   *
+   * @param message The message
+   * @param from    The field holding the mean of the first slot
+   * @return The aggregate readings
+   * @throws IllegalArgumentException If a value is not a number or the message does not match
+   *                                  the schema
+   */
+  public List<SensorReading> decodeAggregate(String[] message, int from) {
+    int size = size();
+    if (message.length - from != 4 * size) {
+      return decode(message, from);
+    }
+    List<SensorReading> readings = new ArrayList<>(size);
+    for (int slot = 0; slot < size; slot++) {
+      readings.add(new AggregateReading(types[slot], fromFixed(message[from + slot]),
+          units[slot], fromFixed(message[from + size + slot]),
+          fromFixed(message[from + 2 * size + slot]), fromFixed(message[from + 3 * size + slot])));
+    }
+    return readings;
+  }
+
+  /**
+   * Convert a fixed-point value back to a reading.
+   *
+   * @param value The reading in hundredths
+   * @return The reading
+   * @throws NumberFormatException If the value is not a whole number
+   */
+  private static double fromFixed(String value) {
+    return Long.parseLong(value) / SCALE;
+  }
+
+  /**
+   * Apply a "delta" message to the readings of the last keyframe.
+   *
+   * @param message  The delta: command, node ID, bitmap, then the values of the slots set in it
+   * @param keyframe The readings of the last keyframe, which are not changed
+   * @return The readings with the changed slots replaced
+   * @throws IllegalArgumentException If the delta does not match the schema or keyframe
+   */
+  public List<SensorReading> applyDelta(String[] message, List<SensorReading> keyframe) {
+    BigInteger bitmap = new BigInteger(message[2], 16);
+    if (keyframe.size() != size() || bitmap.signum() < 0 || bitmap.bitLength() > size()
+        || bitmap.bitCount() != message.length - 3) {
+      throw new IllegalArgumentException("Delta does not match the sensor schema");
+    }
+    List<SensorReading> readings = new ArrayList<>(keyframe);
+    int field = 3;
+    for (int slot = 0; slot < size(); slot++) {
+      if (bitmap.testBit(slot)) {
+        double value = Long.parseLong(message[field++]) / SCALE;
+        readings.set(slot, new SensorReading(types[slot], value, units[slot]));
+      }
+    }
+    return readings;
+  }
+}
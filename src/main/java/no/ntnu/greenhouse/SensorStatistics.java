@@ -0,0 +1,110 @@
+package no.ntnu.greenhouse;
+
+import java.util.List;
+
+/**
+ * Running statistics of the readings of every sensor of a node, from which the node sends its
+ * "aggregate" message: the mean, minimum, maximum and standard deviation of each sensor since
+ * the last aggregate. Every reading updates a few numbers per sensor, counted and summed as they
+ * come, with the variance kept by Welford's method, so no readings are stored and nothing is
+ * allocated per reading.
+ *
+ * <p>The sensors are read on one thread and aggregated on another, so both are synchronized.
+ */
+public class SensorStatistics {
+  private final String[] types;
+  private final String[] units;
+  private final double[] sum;
+  private final double[] min;
+  private final double[] max;
+  private final double[] mean;
+  private final double[] squares;
+  private long count;
+
+  /**
+   * Create the statistics of a list of sensors.
+   *
+   * @param sensors The sensors, in the order their readings are given
+   */
+  public SensorStatistics(List<Sensor> sensors) {
+    int size = sensors.size();
+    types = new String[size];
+    units = new String[size];
+    sum = new double[size];
+    min = new double[size];
+    max = new double[size];
+    mean = new double[size];
+    squares = new double[size];
+    int slot = 0;
+    for (Sensor sensor : sensors) {
+      types[slot] = sensor.getType();
+      units[slot] = sensor.getReading().getUnit();
+      slot++;
+    }
+    reset();
+  }
+
+  /**
+   * Add the current reading of every sensor.
+   *
+   * @param sensors The sensors, in the order the statistics were created with
+   */
+  public synchronized void add(List<Sensor> sensors) {
+    count++;
+    int slot = 0;
+    for (Sensor sensor : sensors) {
+      if (slot == types.length) {
+        break;
+      }
+      double value = sensor.getReading().getValue();
+      sum[slot] += value;
+      min[slot] = Math.min(min[slot], value);
+      max[slot] = Math.max(max[slot], value);
+      double delta = value - mean[slot];
+      mean[slot] += delta / count;
+      squares[slot] += delta * (value - mean[slot]);
+      slot++;
+    }
+  }
+
+  /**
+   * Get the number of readings added since the last aggregate.
+   *
+   * @return The number of readings
+   */
+  public synchronized long getCount() {
+    return count;
+  }
+
+  /**
+   * Take the statistics of the readings since the last aggregate, and start over.
+   *
+   * @return The statistics of every sensor, or null if nothing has been read since
+   */
+  public synchronized AggregateReading[] aggregate() {
+    if (count == 0) {
+      return null;
+    }
+    AggregateReading[] aggregate = new AggregateReading[types.length];
+    for (int slot = 0; slot < types.length; slot++) {
+      aggregate[slot] = new AggregateReading(types[slot], sum[slot] / count, units[slot],
+          min[slot], max[slot], Math.sqrt(squares[slot] / count));
+    }
+    reset();
+    return aggregate;
+  }
+
+  /**
+   * Clear the statistics of every sensor.
+   */
+  private void reset() {
+    count = 0;
+    for (int slot = 0; slot < types.length; slot++) {
+      sum[slot] = 0;
+      min[slot] = Double.POSITIVE_INFINITY;
+      max[slot] = Double.NEGATIVE_INFINITY;
+      mean[slot] = 0;
+      squares[slot] = 0;
+    }
+  }
+}
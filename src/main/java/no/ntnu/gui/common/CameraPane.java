@@ -14,12 +14,20 @@ import javafx.scene.image.ImageView;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
 import no.ntnu.greenhouse.Camera;
+import no.ntnu.tools.Config;
+import no.ntnu.tools.ContentCache;
+import no.ntnu.tools.loggers.Logger;
 
 /**
- * A section of GUI displaying camera data.
+ * A section of GUI displaying camera data. Images received with the hash of their content are
+ * decoded once and kept in a cache shared by every camera pane, bounded by the bytes of their
+ * pixels, and a pane showing the same images again is left as it is.
  */
 public class CameraPane extends TitledPane {
+  private static final ContentCache<Image> decoded = new ContentCache<>(Config.IMAGE_CACHE_SIZE,
+      image -> (long) image.getWidth() * (long) image.getHeight() * 4);
   private final VBox contentBox = new VBox();
+  private List<String> shown = List.of();
 
 
   /**
@@ -60,6 +68,7 @@ public class CameraPane extends TitledPane {
    * @param images The camera data that has been updated
    */
   public void update(Iterable<String> images) {
+    shown = List.of();
     Platform.runLater(() -> contentBox.getChildren().clear());
     for (String image : images) {
       Platform.runLater(() -> contentBox.getChildren().add(createImageBox(image)));
@@ -73,7 +82,37 @@ public class CameraPane extends TitledPane {
    * @param cameras The sensor data that has been updated
    */
   public void update(List<Camera> cameras) {
-    update(cameras.stream().map(Camera::getImage).toList());
+    if (cameras.stream().anyMatch(camera -> camera.getHash() == null)) {
+      update(cameras.stream().map(Camera::getImage).toList());
+      return;
+    }
+    List<String> hashes = cameras.stream().map(Camera::getHash).toList();
+    if (hashes.equals(shown)) {
+      return;
+    }
+    shown = hashes;
+    Platform.runLater(() -> contentBox.getChildren().clear());
+    for (Camera camera : cameras) {
+      Platform.runLater(() -> contentBox.getChildren().add(
+          createImageBox(decode(camera.getImage(), camera.getHash()))));
+    }
+  }
+
+  /**
+   * Get the decoded image of a camera from the cache, decoding it if it is not there.
+   *
+   * @param image The image, base64 encoded
+   * @param hash  The hash of the image content
+   * @return The decoded image
+   */
+  private static Image decode(String image, String hash) {
+    Image img = decoded.get(hash);
+    if (img == null) {
+      img = new Image(new ByteArrayInputStream(Base64.getDecoder().decode(image)));
+      decoded.put(hash, img);
+      Logger.info("Decoded camera images: " + decoded);
+    }
+    return img;
   }
 
   /**
@@ -84,7 +123,16 @@ public class CameraPane extends TitledPane {
    */
   private Node createImageBox(String image) {
     byte[] imageBytes = Base64.getDecoder().decode(image);
-    Image img = new Image(new ByteArrayInputStream(imageBytes));
+    return createImageBox(new Image(new ByteArrayInputStream(imageBytes)));
+  }
+
+  /**
+   * Create a box containing a decoded image.
+   *
+   * @param img The image to display
+   * @return The box containing the image
+   */
+  private Node createImageBox(Image img) {
     ImageView imageView = new ImageView(img);
     imageView.getStyleClass().add("camera-view");
 
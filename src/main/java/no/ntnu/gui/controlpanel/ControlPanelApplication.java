@@ -38,6 +38,7 @@ import no.ntnu.gui.greenhouse.MainGuiController;
 import no.ntnu.listeners.common.CommunicationChannelListener;
 import no.ntnu.listeners.controlpanel.ActuatorChangedListener;
 import no.ntnu.listeners.controlpanel.GreenhouseEventListener;
+import no.ntnu.tools.Config;
 import no.ntnu.tools.loggers.ControlPanelLogger;
 import no.ntnu.tools.loggers.Logger;
 
@@ -397,10 +398,29 @@ public class ControlPanelApplication extends Application implements GreenhouseEv
 
     Tab tab = new Tab("Greenhouse " + nodeInfo.getId());
     tab.setContent(scrollPane);
+    tab.selectedProperty().addListener((observable, was, selected) ->
+        viewCameras(nodeInfo.getId(), tab, cameraPane));
+    cameraPane.expandedProperty().addListener((observable, was, expanded) ->
+        viewCameras(nodeInfo.getId(), tab, cameraPane));
     nodeTabs.put(nodeInfo.getId(), tab);
     return tab;
   }
 
+  /**
+   * Ask the server for full camera images of a node while its camera pane is shown, and for
+   * the smaller configured size otherwise.
+   *
+   * @param nodeId     The ID of the node
+   * @param tab        The tab of the node
+   * @param cameraPane The camera pane of the node
+   */
+  private void viewCameras(int nodeId, Tab tab, CameraPane cameraPane) {
+    if (channel != null) {
+      channel.viewCameras(nodeId, tab.isSelected() && cameraPane.isExpanded()
+          ? "full" : Config.CAMERA_VIEW);
+    }
+  }
+
   /**
    * Put a command on the queue.
    *
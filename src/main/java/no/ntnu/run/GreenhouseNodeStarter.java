@@ -1,9 +1,12 @@
 package no.ntnu.run;
 
+import no.ntnu.greenhouse.GreenhouseHost;
 import no.ntnu.greenhouse.GreenhouseNode;
+import no.ntnu.tools.Config;
 
 /**
- * Start the greenhouse node.
+ * Start the greenhouse node, or a host of many greenhouse nodes if the configuration asks for
+ * one.
  */
 public class GreenhouseNodeStarter {
 
@@ -13,8 +16,27 @@ public class GreenhouseNodeStarter {
    * @param args The arguments to the program.
    */
   public static void main(String[] args) {
+    if (Config.HOST_NODES > 0) {
+      startHosts(args);
+      return;
+    }
     GreenhouseNode manager = new GreenhouseNode();
     manager.initialize(args);
     manager.start();
   }
+
+  /**
+   * Start the configured number of greenhouse nodes, spread evenly over the configured number
+   * of host connections, each served by its own thread.
+   *
+   * @param args The sensors and actuators of every node
+   */
+  private static void startHosts(String[] args) {
+    int connections = Math.max(1, Math.min(Config.HOST_CONNECTIONS, Config.HOST_NODES));
+    for (int i = 0; i < connections; i++) {
+      int count = Config.HOST_NODES / connections + (i < Config.HOST_NODES % connections ? 1 : 0);
+      GreenhouseHost host = new GreenhouseHost(count, args);
+      new Thread(host::start, "host-" + i).start();
+    }
+  }
 }
@@ -0,0 +1,60 @@
+package no.ntnu.server;
+
+import no.ntnu.tools.transport.Compression;
+import no.ntnu.tools.transport.OutboundQueue;
+import no.ntnu.tools.transport.SharedFrame;
+
+/**
+ * A connection from a greenhouse node or a control panel, as seen by the server. The server
+ * only needs to be able to queue messages on it, regardless of how the connection is served.
+ */
+public interface ClientConnection {
+
+  /**
+   * Get the address of the connection: the node ID for a greenhouse node, the remote port of
+   * its socket for a control panel.
+   *
+   * @return The address of the connection
+   */
+  int getAddress();
+
+  /**
+   * Start serving the connection. Called once the connection has been registered.
+   */
+  void start();
+
+  /**
+   * Close the connection. It is removed from the server as on any other disconnect.
+   */
+  void close();
+
+  /**
+   * Put a message on the outbound queue of the connection.
+   *
+   * @param frame The message to send, possibly shared with other connections
+   */
+  void putOnQueue(SharedFrame frame);
+
+  /**
+   * Get the outbound queue of the connection, with its depth and drop counters.
+   *
+   * @return The outbound queue
+   */
+  OutboundQueue getOutboundQueue();
+
+  /**
+   * Get the compression of the connection, with its ratio and time counters.
+   *
+   * @return The compression, or null if the connection cannot compress
+   */
+  Compression getCompression();
+
+  /**
+   * Put a message meant only for this connection on its outbound queue.
+   *
+   * @param command The message to send
+   */
+  default void putOnQueue(String[] command) {
+    putOnQueue(new SharedFrame(command));
+  }
+}
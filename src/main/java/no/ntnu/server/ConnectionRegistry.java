@@ -0,0 +1,196 @@
+package no.ntnu.server;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Registry of the connected nodes or control panels, keyed by their address. Connects,
+ * disconnects and lookups go to a concurrent map and take constant time however many
+ * connections there are. Broadcasts walk an immutable array of the connections, which is only
+ * rebuilt by the first broadcast after a change, so a burst of reconnects costs one rebuild
+ * rather than one per connection, and routing never waits for connections coming and going.
+ */
+public class ConnectionRegistry {
+  private final Map<Integer, ClientConnection> connections = new ConcurrentHashMap<>();
+  private final AtomicLong version = new AtomicLong();
+  private final AtomicReference<Broadcast> broadcast =
+      new AtomicReference<>(new Broadcast(0, new ClientConnection[0]));
+  private final AtomicLong connects = new AtomicLong();
+  private final AtomicLong disconnects = new AtomicLong();
+
+  /**
+   * Get the connection with the given address.
+   *
+   * @param address The address of the connection
+   * @return The connection, or null if none is registered with the address
+   */
+  public ClientConnection get(int address) {
+    return connections.get(address);
+  }
+
+  /**
+   * Check whether a connection is registered with the given address.
+   *
+   * @param address The address of the connection
+   * @return True if a connection is registered with the address
+   */
+  public boolean containsKey(int address) {
+    return connections.containsKey(address);
+  }
+
+  /**
+   * Register a connection, replacing any connection registered with the same address.
+   *
+   * @param address    The address of the connection
+   * @param connection The connection to register
+   */
+  public void put(int address, ClientConnection connection) {
+    connections.put(address, connection);
+    version.incrementAndGet();
+    connects.incrementAndGet();
+  }
+
+  /**
+   * Remove the connection with the given address.
+   *
+   * @param address The address of the connection
+   * @return The removed connection, or null if none was registered with the address
+   */
+  public ClientConnection remove(int address) {
+    ClientConnection removed = connections.remove(address);
+    if (removed != null) {
+      version.incrementAndGet();
+      disconnects.incrementAndGet();
+    }
+    return removed;
+  }
+
+  /**
+   * Remove a connection, only if it is still the one registered with the given address.
+   *
+   * @param address    The address of the connection
+   * @param connection The connection to remove
+   * @return True if the connection was removed, false if another or none was registered
+   */
+  public boolean remove(int address, ClientConnection connection) {
+    if (!connections.remove(address, connection)) {
+      return false;
+    }
+    version.incrementAndGet();
+    disconnects.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Perform an action for every registered connection, as registered when the call started.
+   *
+   * @param action The action to perform
+   */
+  public void forEach(Consumer<ClientConnection> action) {
+    for (ClientConnection connection : broadcastArray()) {
+      action.accept(connection);
+    }
+  }
+
+  /**
+   * Get an immutable snapshot of the registered connections, to broadcast to.
+   *
+   * @return The registered connections
+   */
+  public List<ClientConnection> snapshot() {
+    return Collections.unmodifiableList(Arrays.asList(broadcastArray()));
+  }
+
+  /**
+   * Get the number of registered connections.
+   *
+   * @return The number of connections
+   */
+  public int size() {
+    return connections.size();
+  }
+
+  /**
+   * Check whether no connection is registered.
+   *
+   * @return True if the registry is empty
+   */
+  public boolean isEmpty() {
+    return connections.isEmpty();
+  }
+
+  /**
+   * Get the total number of connections registered since the server started.
+   *
+   * @return The number of connects
+   */
+  public long getConnects() {
+    return connects.get();
+  }
+
+  /**
+   * Get the total number of connections removed since the server started.
+   *
+   * @return The number of disconnects
+   */
+  public long getDisconnects() {
+    return disconnects.get();
+  }
+
+  /**
+   * Get a short summary of the registry, with counts and churn.
+   *
+   * @return The summary
+   */
+  @Override
+  public String toString() {
+    return size() + " connected (" + getConnects() + " connects, " + getDisconnects()
+        + " disconnects)";
+  }
+
+  /**
+   * Get the connections to broadcast to, rebuilding the array if the registry has changed
+   * since it was last built. A change is made to the map before its version is counted, so an
+   * array built after reading a version holds at least every change up to that version.
+   *
+   * @return The registered connections, not to be modified
+   */
+  private ClientConnection[] broadcastArray() {
+    Broadcast current = broadcast.get();
+    long latest = version.get();
+    if (current.version == latest) {
+      return current.connections;
+    }
+    Broadcast rebuilt =
+        new Broadcast(latest, connections.values().toArray(new ClientConnection[0]));
+    while (current.version < latest && !broadcast.compareAndSet(current, rebuilt)) {
+      current = broadcast.get();
+    }
+    return rebuilt.connections;
+  }
+
+  /**
+   * The connections to broadcast to, as of one version of the registry.
+   */
+  private static final class Broadcast {
+    private final long version;
+    private final ClientConnection[] connections;
+
+    /**
+     * Create a broadcast array.
+     *
+     * @param version     The version of the registry the array was built from
+     * @param connections The connections
+     */
+    private Broadcast(long version, ClientConnection[] connections) {
+      this.version = version;
+      this.connections = connections;
+    }
+  }
+}
@@ -1,111 +1,181 @@
 package no.ntnu.server;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.ArrayList;
+import java.util.List;
 import no.ntnu.tools.Config;
 import no.ntnu.tools.loggers.ServerLogger;
+import no.ntnu.tools.transport.Compression;
+import no.ntnu.tools.transport.MessageStream;
+import no.ntnu.tools.transport.OutboundQueue;
+import no.ntnu.tools.transport.SharedFrame;
 
 
 /**
  * The control panel handler class. This class is responsible for handling the communication between
  * the control panel and the server.
  */
-public class ControlPanelHandler extends Thread {
+public class ControlPanelHandler implements Runnable, ClientConnection {
   private final Socket socket;
-  private ObjectOutputStream outputStream;
-  private ObjectInputStream inputStream;
-  private AtomicReference<String[]> cmdStack;
-  private LinkedBlockingQueue<String[]> commandQueue;
+  private MessageStream stream;
+  private OutboundQueue commandQueue;
   private Server server;
   private ServerLogger logger = ServerLogger.getInstance();
   private int socketAddress;
+  private Thread writer;
+  private final List<SharedFrame> batch = new ArrayList<>();
 
 
   /**
    * Constructor for the control panel handler.
    *
    * @param clientSocket The socket for the control panel.
-   * @param output       the object outputstream for the socket.
-   * @param input        the object inputstream for the socket.
+   * @param stream       the message stream for the socket.
    * @param server       The server this handler belongs to.
    */
 
-  public ControlPanelHandler(Socket clientSocket, ObjectOutputStream output,
-                             ObjectInputStream input, Server server) {
+  public ControlPanelHandler(Socket clientSocket, MessageStream stream, Server server) {
     this.socket = clientSocket;
-    this.outputStream = output;
-    this.inputStream = input;
+    this.stream = stream;
     this.server = server;
-    this.cmdStack = new AtomicReference<>();
-    this.commandQueue = new LinkedBlockingQueue<>();
+    this.commandQueue = new OutboundQueue(Config.CONFLATE_TELEMETRY);
     this.socketAddress = socket.getPort();
   }
 
   /**
-   * The main run method of this handler.
+   * Start the thread running this handler.
    */
   @Override
-  public void run() {
+  public void start() {
+    HandlerThreads.start("control-panel-" + socketAddress, this);
+  }
 
+  /**
+   * The main run method of this handler. With blocking reads, commands are sent to the control
+   * panel by a separate writer thread, otherwise whenever a read times out.
+   */
+  @Override
+  public void run() {
+    if (HandlerThreads.BLOCKING_READS) {
+      writer = HandlerThreads.start("control-panel-writer-" + socketAddress,
+          this::writeCommands);
+    }
     while (!socket.isClosed()) {
       try {
-        socket.setSoTimeout(Config.TIMEOUT);
-        String[] commands = (String[]) inputStream.readObject();
-        int id;
-        if (commands[0].equals("set") || commands[0].equals("toggle")) {
-          String[] ids = commands[1].split(":");
-          commands[1] = ids[1];
-          id = Integer.parseInt(ids[0]);
+        socket.setSoTimeout(HandlerThreads.BLOCKING_READS ? 0 : Config.TIMEOUT);
+        SharedFrame commands = stream.readFrame();
+        if (commands != null) {
+          server.putCommandFromControlPanel(commands, this);
         } else {
-          id = Integer.parseInt(commands[1]);
+          logger.error("Wrong message format or class");
         }
-        server.putCommandNode(commands, id);
       } catch (SocketTimeoutException s) {
         processNextQueuedElement();
       } catch (IOException e) {
-        server.closeSocket(server.getCpMap(), this.socket);
-      } catch (ClassNotFoundException e) {
-        logger.error(e.toString());
+        break;
       }
     }
+    server.closeSocket(server.getCpMap(), this.socket);
+    if (writer != null) {
+      writer.interrupt();
+    }
   }
 
   /**
-   * Processes all the commands on the atomic stack and then sends each command sequentially to the
-   * control panel.
+   * Send commands to the control panel as soon as they are queued, until the socket is closed.
+   * Commands queued together are written as one batch.
+   */
+  private void writeCommands() {
+    while (!socket.isClosed()) {
+      try {
+        commandQueue.takeBatch(batch, Config.BATCH_MAX_SIZE, Config.BATCH_MAX_LINGER);
+        sendBatchToCp();
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Processes all the commands on the queue and sends them to the control panel in batches.
    */
   private void processNextQueuedElement() {
-    while (!commandQueue.isEmpty()) {
-      sendCommandToCp(commandQueue.poll());
+    while (commandQueue.drainTo(batch, Config.BATCH_MAX_SIZE) > 0) {
+      sendBatchToCp();
     }
   }
 
   /**
-   * Writes all processed commands in the queue to the control panel.
+   * Writes the batch of commands to the control panel, flushing once, and empties the batch.
    */
-  private void sendCommandToCp(String[] command) {
+  private void sendBatchToCp() {
     try {
-      outputStream.writeObject(command);
+      stream.write(batch);
     } catch (IOException e) {
       logger.error("failed to send to command to control panel: " + e.getMessage());
+    } finally {
+      batch.clear();
     }
   }
 
   /**
-   * Puts a command on the queue for the control panel.
+   * Get the address of the control panel, the remote port of its socket.
+   *
+   * @return The address of the control panel
+   */
+  @Override
+  public int getAddress() {
+    return socketAddress;
+  }
+
+  /**
+   * Puts a command on the queue for the control panel. If the control panel is too slow, only
+   * its socket is closed here, since the command may be broadcast while holding a node
+   * snapshot. The handler removes the control panel from the server once its loop ends.
    *
    * @param command The command to put on the queue.
    */
-  public void putOnQueue(String[] command) {
+  @Override
+  public void putOnQueue(SharedFrame command) {
+    if (!this.commandQueue.offer(command)) {
+      logger.error("Control panel " + socketAddress + " is too slow, disconnecting: "
+          + commandQueue);
+      close();
+    }
+  }
+
+  /**
+   * Close the socket of the control panel. The handler removes the control panel from the
+   * server once its loop ends.
+   */
+  @Override
+  public void close() {
     try {
-      this.commandQueue.put(command);
-    } catch (InterruptedException e) {
-      logger.error("Failed to put command on command queue ");
+      socket.close();
+    } catch (IOException e) {
+      logger.error("Failed to close control panel socket: " + e.getMessage());
     }
   }
+
+  /**
+   * Get the queue of commands waiting to be sent to the control panel.
+   *
+   * @return The outbound queue
+   */
+  @Override
+  public OutboundQueue getOutboundQueue() {
+    return commandQueue;
+  }
+
+  /**
+   * Get the compression of the frames to and from the control panel.
+   *
+   * @return The compression, or null if the control panel uses object streams
+   */
+  @Override
+  public Compression getCompression() {
+    return stream.getCompression();
+  }
 }
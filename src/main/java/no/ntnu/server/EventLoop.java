@@ -0,0 +1,111 @@
+package no.ntnu.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import no.ntnu.tools.loggers.ServerLogger;
+
+/**
+ * One event loop thread of the {@link SelectorTransport}. It waits on a selector for
+ * connections that are readable or writable, and runs tasks handed to it by other threads.
+ * All channel operations of a connection happen on the loop owning it.
+ */
+class EventLoop extends Thread {
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  private final Selector selector;
+  private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+  private ServerLogger logger = ServerLogger.getInstance();
+
+  /**
+   * Create an event loop.
+   *
+   * @param name The name of the loop thread
+   * @throws IOException If the selector could not be opened
+   */
+  EventLoop(String name) throws IOException {
+    super(name);
+    setDaemon(true);
+    this.selector = Selector.open();
+  }
+
+  /**
+   * Get the selector of this loop.
+   *
+   * @return The selector
+   */
+  Selector getSelector() {
+    return selector;
+  }
+
+  /**
+   * Run a task on the loop thread, waking the loop up if it is waiting.
+   *
+   * @param task The task to run
+   */
+  void execute(Runnable task) {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  /**
+   * Wait for ready connections and serve them until the selector is closed.
+   */
+  @Override
+  public void run() {
+    while (selector.isOpen()) {
+      try {
+        selector.select();
+        runTasks();
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          serve(key);
+        }
+      } catch (IOException e) {
+        logger.error("Event loop failed to select: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Serve one ready connection. A connection that fails is closed without affecting the
+   * other connections on the loop.
+   *
+   * @param key The selection key of the connection
+   */
+  private void serve(SelectionKey key) {
+    SelectorConnection connection = (SelectorConnection) key.attachment();
+    try {
+      if (key.isValid() && key.isReadable()) {
+        connection.handleRead(readBuffer);
+      }
+      if (key.isValid() && key.isWritable()) {
+        connection.handleWrite();
+      }
+    } catch (IOException | RuntimeException e) {
+      logger.error("Closing connection " + connection.getAddress() + ": " + e);
+      connection.close();
+    }
+  }
+
+  /**
+   * Run all the tasks handed to this loop since the last time. A task that fails is logged, and
+   * the loop goes on serving its other connections.
+   */
+  private void runTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        logger.error("Event loop task failed: " + e);
+      }
+    }
+  }
+}
@@ -1,25 +1,29 @@
 package no.ntnu.server;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
 import no.ntnu.tools.Config;
 import no.ntnu.tools.loggers.ServerLogger;
+import no.ntnu.tools.transport.Compression;
+import no.ntnu.tools.transport.MessageStream;
+import no.ntnu.tools.transport.OutboundQueue;
+import no.ntnu.tools.transport.SharedFrame;
 
 /**
  * The greenhouse handler class. This class
  * is responsible for handling the communication between the greenhouse and the server.
  */
-public class GreenhouseHandler extends Thread {
+public class GreenhouseHandler implements Runnable, ClientConnection {
   private final Socket socket;
-  private ObjectInputStream inputStream;
-  private ObjectOutputStream outputStream;
-  private LinkedBlockingQueue<String[]> commandQueue;
+  private MessageStream stream;
+  private OutboundQueue commandQueue;
   private Server server;
   private int socketAddress;
+  private Thread writer;
+  private final List<SharedFrame> batch = new ArrayList<>();
 
   private ServerLogger logger = ServerLogger.getInstance();
 
@@ -27,19 +31,21 @@ public class GreenhouseHandler extends Thread {
    * Constructor for the GreenhouseHandler.
    *
    * @param clientSocket The greenhouse client socket
+   * @param stream       The message stream for the socket
+   * @param server       The server this handler belongs to
+   * @param nodeId       The ID of the greenhouse node
    */
 
-  public GreenhouseHandler(Socket clientSocket, ObjectOutputStream outputStream,
-                           ObjectInputStream inputStream, Server server) {
+  public GreenhouseHandler(Socket clientSocket, MessageStream stream, Server server,
+                           int nodeId) {
     this.socket = clientSocket;
     try {
-      logger.info("I am greenouse: " + socket.getPort());
-      this.outputStream = outputStream;
-      this.inputStream = inputStream;
-      this.commandQueue = new LinkedBlockingQueue<>();
+      logger.info("I am greenouse: " + nodeId + " on port " + socket.getPort());
+      this.stream = stream;
+      this.commandQueue = new OutboundQueue();
       this.server = server;
-      this.socketAddress = socket.getPort();
-      socket.setSoTimeout(Config.TIMEOUT);
+      this.socketAddress = nodeId;
+      socket.setSoTimeout(HandlerThreads.BLOCKING_READS ? 0 : Config.TIMEOUT);
 
     } catch (IOException e) {
       throw new RuntimeException(e);
@@ -47,40 +53,123 @@ public class GreenhouseHandler extends Thread {
 
   }
 
+  /**
+   * Start the thread running this handler.
+   */
+  @Override
+  public void start() {
+    HandlerThreads.start("greenhouse-" + socketAddress, this);
+  }
+
   /**
    * Starts thread for greenhouse handler connection and continuously listens for commands.
+   * With blocking reads, commands are sent by a separate writer thread instead.
    */
   @Override
   public void run() {
-    while (!socket.isClosed()) {
-      receiveCommand();
-      sendCommandIfExists();
+    if (HandlerThreads.BLOCKING_READS) {
+      writer = HandlerThreads.start("greenhouse-writer-" + socketAddress, this::writeCommands);
+      while (!socket.isClosed()) {
+        receiveCommand();
+      }
+      writer.interrupt();
+    } else {
+      while (!socket.isClosed()) {
+        receiveCommand();
+        sendCommandIfExists();
+      }
     }
-    server.putCommandControlPanel(new String[] {"remove", Integer.toString(socketAddress)});
+    server.closeNode(this, socket);
   }
 
   /**
-   * Set a command to be sent to the control panel.
+   * Get the address of the greenhouse, its node ID.
    *
-   * @param commands The command to be sent.
+   * @return The address of the greenhouse
+   */
+  @Override
+  public int getAddress() {
+    return socketAddress;
+  }
+
+  /**
+   * Close the socket of the greenhouse. The handler removes the greenhouse from the server once
+   * its loop ends.
    */
-  public void setCommand(String[] commands) {
+  @Override
+  public void close() {
     try {
-      this.commandQueue.put(commands);
-    } catch (InterruptedException e) {
-      logger.error("failed to put command on command queue from node to cp");
+      socket.close();
+    } catch (IOException e) {
+      logger.error("Failed to close greenhouse socket: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Put a command on the queue to be sent to the greenhouse.
+   *
+   * @param frame The command to be sent.
+   */
+  @Override
+  public void putOnQueue(SharedFrame frame) {
+    if (!this.commandQueue.offer(frame)) {
+      logger.error("Greenhouse " + socketAddress + " is too slow, disconnecting: "
+          + commandQueue);
+      close();
     }
   }
 
   /**
-   * Send a command to the greenhouse if it exists.
+   * Get the queue of commands waiting to be sent to the greenhouse.
+   *
+   * @return The outbound queue
+   */
+  @Override
+  public OutboundQueue getOutboundQueue() {
+    return commandQueue;
+  }
+
+  /**
+   * Get the compression of the frames to and from the greenhouse.
+   *
+   * @return The compression, or null if the greenhouse uses object streams
+   */
+  @Override
+  public Compression getCompression() {
+    return stream.getCompression();
+  }
+
+  /**
+   * Send all commands waiting for the greenhouse, flushing once per batch.
    */
   private void sendCommandIfExists() {
-    if (this.commandQueue.peek() != null) {
+    try {
+      while (this.commandQueue.drainTo(batch, Config.BATCH_MAX_SIZE) > 0) {
+        stream.write(batch);
+        batch.clear();
+      }
+    } catch (IOException e) {
+      logger.error("Failed to write a command to greenhouse");
+    } finally {
+      batch.clear();
+    }
+  }
+
+  /**
+   * Send commands to the greenhouse as soon as they are queued, until the socket is closed.
+   * Commands queued together are written as one batch.
+   */
+  private void writeCommands() {
+    while (!socket.isClosed()) {
       try {
-        outputStream.writeObject(this.commandQueue.poll());
+        commandQueue.takeBatch(batch, Config.BATCH_MAX_SIZE, Config.BATCH_MAX_LINGER);
+        stream.write(batch);
+      } catch (InterruptedException e) {
+        return;
       } catch (IOException e) {
         logger.error("Failed to write a command to greenhouse");
+      } finally {
+        batch.clear();
       }
     }
   }
@@ -91,14 +180,16 @@ public class GreenhouseHandler extends Thread {
    */
   public void receiveCommand() {
     try {
-      String[] command = (String[]) inputStream.readObject();
-      server.putCommandControlPanel(command);
+      SharedFrame command = stream.readFrame();
+      if (command != null) {
+        server.putCommandFromNode(command, this);
+      } else {
+        logger.info("Wrong message format or class");
+      }
     } catch (SocketTimeoutException e) {
 //      logger.info("Timeout");
     } catch (IOException e) {
-      server.closeSocket(server.getNodeMap(), this.socket);
-    } catch (ClassNotFoundException e) {
-      logger.info("Wrong message format or class");
+      close();
     }
   }
 
@@ -0,0 +1,82 @@
+package no.ntnu.server;
+
+import java.lang.reflect.Method;
+import no.ntnu.tools.Config;
+
+/**
+ * Starts the threads running the connection handlers. In "virtual" server mode the handlers
+ * run on virtual threads, using blocking reads without a poll timeout and a writer per
+ * connection. Virtual threads need Java 21. The mode is refused on older runtimes, where it
+ * would take two platform threads per connection, twice as many as the blocking mode.
+ */
+class HandlerThreads {
+  // True when handlers should block on reads and use a separate writer
+  static final boolean BLOCKING_READS = Config.SERVER_MODE.equals("virtual");
+
+  private static final Method VIRTUAL_BUILDER = findVirtualBuilder();
+
+  /**
+   * Not allowed to create an instance of this class.
+   */
+  private HandlerThreads() {
+  }
+
+  /**
+   * Check that the runtime can serve the configured server mode.
+   *
+   * @throws IllegalStateException If the mode is "virtual" and the runtime has no virtual
+   *                               threads
+   */
+  static void checkRuntime() {
+    if (BLOCKING_READS && VIRTUAL_BUILDER == null) {
+      throw new IllegalStateException("Server mode \"virtual\" needs Java 21 or newer, this is "
+          + "Java " + Runtime.version().feature() + ". Use \"blocking\" or \"selector\"");
+    }
+  }
+
+  /**
+   * Start a thread running a handler task.
+   *
+   * @param name The name of the thread
+   * @param task The task to run
+   * @return The started thread
+   */
+  static Thread start(String name, Runnable task) {
+    Thread thread = BLOCKING_READS ? unstartedVirtual(task) : new Thread(task);
+    thread.setName(name);
+    thread.start();
+    return thread;
+  }
+
+  /**
+   * Create a virtual thread through {@code Thread.ofVirtual()}.
+   *
+   * @param task The task to run
+   * @return The unstarted thread
+   * @throws IllegalStateException If the runtime has no virtual threads
+   */
+  private static Thread unstartedVirtual(Runnable task) {
+    checkRuntime();
+    try {
+      Object builder = VIRTUAL_BUILDER.invoke(null);
+      Method unstarted = Class.forName("java.lang.Thread$Builder")
+          .getMethod("unstarted", Runnable.class);
+      return (Thread) unstarted.invoke(builder, task);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Failed to create a virtual thread", e);
+    }
+  }
+
+  /**
+   * Look up {@code Thread.ofVirtual()}, which only exists on Java 21 and newer.
+   *
+   * @return The method, or null if the runtime has no virtual threads
+   */
+  private static Method findVirtualBuilder() {
+    try {
+      return Thread.class.getMethod("ofVirtual");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,261 @@
+package no.ntnu.server;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import javax.imageio.ImageIO;
+import no.ntnu.tools.Config;
+import no.ntnu.tools.ContentCache;
+import no.ntnu.tools.ImageChunks;
+
+/**
+ * Smaller renditions of the camera images the server has put together: a thumbnail and a
+ * medium image, scaled down to fit a square and encoded as JPEG. Both are made once, when the
+ * full image first arrives or is first asked for at a smaller size, and kept in the image cache
+ * of the server under their own hash, so a control panel fetches and caches them like any other
+ * image. A rendition evicted from the cache is made again from the full image, if that is still
+ * kept. An image which can not be decoded is sent in full at every size.
+ *
+ * <p>Decoding and scaling an image takes milliseconds, so renditions are made on a few worker
+ * threads ({@code greenhouse.render.threads}) rather than on the thread routing messages. Until
+ * they are made the full image stands in for them, and the listener is told once they are, so
+ * the renditions can be sent. Images arriving while {@code greenhouse.render.queue} of them
+ * wait are not rendered, and are sent in full.
+ */
+class ImageRenditions {
+  // Camera image sizes a control panel can ask for
+  static final String THUMBNAIL = "thumbnail";
+  static final String MEDIUM = "medium";
+  static final String FULL = "full";
+
+  private static final int THUMBNAIL_SIZE = 120; // Longest side in pixels
+  private static final int MEDIUM_SIZE = 240; // Longest side in pixels
+  private static final int MAX_ENTRIES = 4096;
+
+  private final ContentCache<byte[]> images;
+  private final Consumer<String> listener;
+  private final ThreadPoolExecutor executor;
+  private final Map<String, String[]> renditions = bounded();
+  private final Map<String, String> sources = bounded();
+  private final Set<String> pending = new HashSet<>();
+  private long rendered;
+  private long renderNanos;
+  private long failed;
+  private long skipped;
+
+  /**
+   * Create the rendition stage.
+   *
+   * @param images   The image cache of the server, holding full images and renditions
+   * @param listener Told the hash of a full image once its renditions are made, or found not
+   *                 to be possible
+   */
+  ImageRenditions(ContentCache<byte[]> images, Consumer<String> listener) {
+    this.images = images;
+    this.listener = listener;
+    int threads = Math.max(1, Config.RENDER_THREADS);
+    AtomicInteger count = new AtomicInteger();
+    executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(Math.max(1, Config.RENDER_QUEUE)), task -> {
+          Thread thread = new Thread(task, "image-render-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  /**
+   * Check whether a camera image size is one a control panel can ask for.
+   *
+   * @param size The size
+   * @return True for "thumbnail", "medium" and "full"
+   */
+  static boolean isSize(String size) {
+    return size.equals(THUMBNAIL) || size.equals(MEDIUM) || size.equals(FULL);
+  }
+
+  /**
+   * Get the hash of an image at a size, starting to make the renditions of the image if they
+   * have not been made yet.
+   *
+   * @param hash The hash of the full image
+   * @param size The size, "thumbnail", "medium" or "full"
+   * @return The hash of the rendition, or of the full image if it is asked for, is not kept or
+   *         can not be decoded, or null while the renditions are being made
+   */
+  String hashFor(String hash, String size) {
+    if (size.equals(FULL)) {
+      return hash;
+    }
+    String[] made;
+    synchronized (this) {
+      made = renditions.get(hash);
+      if (made == null && pending.contains(hash)) {
+        return null;
+      }
+    }
+    if (made == null) {
+      byte[] image = images.peek(hash);
+      return image != null && render(hash, image) ? null : hash;
+    }
+    return size.equals(THUMBNAIL) ? made[0] : made[1];
+  }
+
+  /**
+   * Get an image or rendition to send to a control panel. A rendition which has been evicted
+   * is made again, if the full image is still kept, for the next time it is asked for.
+   *
+   * @param hash The hash of the image or rendition
+   * @return The image, or null if the server does not have it
+   */
+  byte[] get(String hash) {
+    byte[] image = images.get(hash);
+    String source = image == null ? sourceOf(hash) : null;
+    byte[] full = source != null ? images.peek(source) : null;
+    if (full != null) {
+      render(source, full);
+    }
+    return image;
+  }
+
+  /**
+   * Get the full image a rendition was made from.
+   *
+   * @param hash The hash of the rendition
+   * @return The hash of the full image, or null if the hash is not of a known rendition
+   */
+  synchronized String sourceOf(String hash) {
+    return sources.get(hash);
+  }
+
+  /**
+   * Start making the renditions of an image on a worker thread, unless they are being made
+   * already. The listener is told when they are done.
+   *
+   * @param hash  The hash of the full image
+   * @param image The full image
+   * @return True if the renditions are being made, false if too many images are waiting
+   */
+  boolean render(String hash, byte[] image) {
+    synchronized (this) {
+      if (!pending.add(hash)) {
+        return true;
+      }
+    }
+    try {
+      executor.execute(() -> {
+        try {
+          make(hash, image);
+        } finally {
+          synchronized (this) {
+            pending.remove(hash);
+          }
+          listener.accept(hash);
+        }
+      });
+      return true;
+    } catch (RejectedExecutionException e) {
+      synchronized (this) {
+        pending.remove(hash);
+        skipped++;
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Make the renditions of an image and keep them in the image cache.
+   *
+   * @param hash  The hash of the full image
+   * @param image The full image
+   */
+  private void make(String hash, byte[] image) {
+    long start = System.nanoTime();
+    try {
+      BufferedImage full = ImageIO.read(new ByteArrayInputStream(image));
+      if (full == null) {
+        throw new IOException("Not a readable image");
+      }
+      byte[] thumbnail = scale(full, THUMBNAIL_SIZE);
+      byte[] medium = scale(full, MEDIUM_SIZE);
+      String[] made = {ImageChunks.hash(thumbnail), ImageChunks.hash(medium)};
+      images.put(made[0], thumbnail);
+      images.put(made[1], medium);
+      synchronized (this) {
+        renditions.put(hash, made);
+        sources.put(made[0], hash);
+        sources.put(made[1], hash);
+        rendered++;
+        renderNanos += System.nanoTime() - start;
+      }
+    } catch (IOException | RuntimeException e) {
+      synchronized (this) {
+        renditions.put(hash, new String[] {hash, hash});
+        failed++;
+      }
+    }
+  }
+
+  /**
+   * Scale an image down to fit a square, keeping its proportions, and encode it as JPEG. An
+   * image already small enough keeps its size.
+   *
+   * @param image The image
+   * @param size  The side of the square in pixels
+   * @return The JPEG bytes
+   * @throws IOException If the image could not be encoded
+   */
+  private static byte[] scale(BufferedImage image, int size) throws IOException {
+    double factor = Math.min(1, size / (double) Math.max(image.getWidth(), image.getHeight()));
+    int width = Math.max(1, (int) Math.round(image.getWidth() * factor));
+    int height = Math.max(1, (int) Math.round(image.getHeight() * factor));
+    BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = scaled.createGraphics();
+    graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+        RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    graphics.drawImage(image, 0, 0, width, height, null);
+    graphics.dispose();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(scaled, "jpg", out);
+    return out.toByteArray();
+  }
+
+  /**
+   * Get a short summary of the counters.
+   *
+   * @return The summary
+   */
+  @Override
+  public synchronized String toString() {
+    return String.format("%d images rendered in %.1f ms on average, %d not decodable, %d not "
+        + "rendered with the queue full", rendered,
+        rendered > 0 ? renderNanos / 1e6 / rendered : 0, failed, skipped);
+  }
+
+  /**
+   * Create a map which forgets its least recently used entries beyond a fixed number.
+   *
+   * @param <V> The type of the values
+   * @return The map
+   */
+  private static <V> Map<String, V> bounded() {
+    return new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+        return size() > MAX_ENTRIES;
+      }
+    };
+  }
+}
@@ -0,0 +1,170 @@
+package no.ntnu.server;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+
+/**
+ * The IDs of the greenhouse nodes known to the server. A joining node is given the lowest free
+ * ID, so the IDs stay dense and index compactly, together with a secret session token. A node
+ * which loses its connection keeps its ID for a grace period, during which it can resume the
+ * session by presenting the token. Nodes using the old handshake keep the remote port of their
+ * socket as ID, which is reserved here so it is not handed out twice. Callers synchronize on the
+ * directory when a change must be atomic with the node registry.
+ */
+class NodeDirectory {
+  private final BitSet used = new BitSet();
+  private final Map<Integer, Session> sessions = new HashMap<>();
+  private final Timer expiryTimer = new Timer("node-expiry", true);
+  private final long grace;
+
+  /**
+   * Create a directory.
+   *
+   * @param grace The milliseconds a disconnected node keeps its ID
+   */
+  NodeDirectory(long grace) {
+    this.grace = grace;
+  }
+
+  /**
+   * Start a new session. The requested ID is given if it is free, so a node keeps its ID across
+   * a restart of the server, otherwise the lowest free ID.
+   *
+   * @param requested The ID the node asks for, or a non-positive value for any
+   * @return The session
+   */
+  synchronized Session join(int requested) {
+    int id = requested > 0 && requested <= NodeFilter.MAX_NODE_ID && !used.get(requested)
+        ? requested : used.nextClearBit(1);
+    if (id > NodeFilter.MAX_NODE_ID) {
+      throw new IllegalStateException("No free node ID");
+    }
+    used.set(id);
+    Session session = new Session(id, UUID.randomUUID().toString());
+    sessions.put(id, session);
+    return session;
+  }
+
+  /**
+   * Resume a session, stopping its expiry.
+   *
+   * @param id    The ID of the node
+   * @param token The session token the node was given
+   * @return The session, or null if it is unknown, expired or the token does not match
+   */
+  synchronized Session resume(int id, String token) {
+    Session session = sessions.get(id);
+    if (session == null || !session.token.equals(token)) {
+      return null;
+    }
+    if (session.expiry != null) {
+      session.expiry.cancel();
+      session.expiry = null;
+    }
+    return session;
+  }
+
+  /**
+   * Reserve the ID of a node using the old handshake, which has no session.
+   *
+   * @param id The ID, the remote port of the node
+   */
+  synchronized void claim(int id) {
+    used.set(id);
+  }
+
+  /**
+   * Let a disconnected node keep its session for the grace period. When it expires the node
+   * is forgotten: the action runs, still holding the directory lock so the ID is not handed out
+   * before it has finished, and then the ID is freed.
+   *
+   * @param id       The ID of the node
+   * @param onExpiry What to do if the node has not resumed in time
+   * @return False if the node has no session, and was not kept
+   */
+  synchronized boolean expireLater(int id, Runnable onExpiry) {
+    Session session = sessions.get(id);
+    if (session == null) {
+      return false;
+    }
+    if (session.expiry != null) {
+      session.expiry.cancel();
+    }
+    session.expiry = new TimerTask() {
+      @Override
+      public void run() {
+        synchronized (NodeDirectory.this) {
+          if (session.expiry == this) {
+            onExpiry.run();
+            sessions.remove(id);
+            used.clear(id);
+          }
+        }
+      }
+    };
+    expiryTimer.schedule(session.expiry, Math.max(0, grace));
+    return true;
+  }
+
+  /**
+   * Free the ID of a node which has no session to keep.
+   *
+   * @param id The ID of the node
+   */
+  synchronized void release(int id) {
+    if (!sessions.containsKey(id)) {
+      used.clear(id);
+    }
+  }
+
+  /**
+   * Get the number of IDs in use, by connected nodes and nodes within their grace period.
+   *
+   * @return The number of IDs in use
+   */
+  synchronized int size() {
+    return used.cardinality();
+  }
+
+  /**
+   * A node session: its ID, its secret token, and the pending expiry while it is disconnected.
+   */
+  static final class Session {
+    private final int id;
+    private final String token;
+    private TimerTask expiry;
+
+    /**
+     * Create a session.
+     *
+     * @param id    The ID of the node
+     * @param token The session token
+     */
+    private Session(int id, String token) {
+      this.id = id;
+      this.token = token;
+    }
+
+    /**
+     * Get the ID of the node.
+     *
+     * @return The ID
+     */
+    int getId() {
+      return id;
+    }
+
+    /**
+     * Get the session token, which the node presents to resume the session.
+     *
+     * @return The token
+     */
+    String getToken() {
+      return token;
+    }
+  }
+}
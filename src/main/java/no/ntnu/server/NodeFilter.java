@@ -0,0 +1,105 @@
+package no.ntnu.server;
+
+import java.util.BitSet;
+
+/**
+ * The greenhouse nodes a control panel is subscribed to. Nodes are given as groups separated
+ * by commas: a single node ID, a range of IDs such as "10-20", or "*" for every node. Node IDs
+ * are the stable, dense IDs handed out by the {@link NodeDirectory} from 1, which a node keeps
+ * when it resumes its session; only nodes using the old handshake are known by their remote
+ * port. A filter is immutable, subscribing or unsubscribing returns a new filter.
+ */
+final class NodeFilter {
+  static final int MAX_NODE_ID = 65535;
+
+  static final NodeFilter ALL = new NodeFilter(new BitSet()).change(new String[] {"*"}, 0, true);
+
+  static final NodeFilter NONE = new NodeFilter(new BitSet());
+
+  private final BitSet nodes;
+
+  /**
+   * Create a filter.
+   *
+   * @param nodes The IDs of the nodes which pass the filter
+   */
+  private NodeFilter(BitSet nodes) {
+    this.nodes = nodes;
+  }
+
+  /**
+   * Check whether messages from a node pass the filter.
+   *
+   * @param nodeId The ID of the node
+   * @return True if the node is subscribed to
+   */
+  boolean matches(int nodeId) {
+    return nodeId >= 0 && nodes.get(nodeId);
+  }
+
+  /**
+   * Get a filter which also lets the given nodes through.
+   *
+   * @param message A "subscribe" message, with node groups from slot 1
+   * @return The new filter
+   * @throws IllegalArgumentException If a group is malformed
+   */
+  NodeFilter subscribe(String[] message) {
+    return change(message, 1, true);
+  }
+
+  /**
+   * Get a filter which no longer lets the given nodes through.
+   *
+   * @param message An "unsubscribe" message, with node groups from slot 1
+   * @return The new filter
+   * @throws IllegalArgumentException If a group is malformed
+   */
+  NodeFilter unsubscribe(String[] message) {
+    return change(message, 1, false);
+  }
+
+  /**
+   * Get a copy of the filter with the given node groups added or removed.
+   *
+   * @param message The message holding the groups
+   * @param from    The slot of the first group
+   * @param value   True to add the groups, false to remove them
+   * @return The new filter
+   */
+  private NodeFilter change(String[] message, int from, boolean value) {
+    BitSet changed = (BitSet) nodes.clone();
+    for (int i = from; i < message.length; i++) {
+      for (String group : message[i].split(",")) {
+        group = group.trim();
+        int first;
+        int last;
+        if (group.equals("*")) {
+          first = 0;
+          last = MAX_NODE_ID;
+        } else if (group.indexOf('-') > 0) {
+          first = Integer.parseInt(group.substring(0, group.indexOf('-')));
+          last = Integer.parseInt(group.substring(group.indexOf('-') + 1));
+        } else {
+          first = Integer.parseInt(group);
+          last = first;
+        }
+        if (first < 0 || last > MAX_NODE_ID || first > last) {
+          throw new IllegalArgumentException("Invalid node group: " + group);
+        }
+        changed.set(first, last + 1, value);
+      }
+    }
+    return new NodeFilter(changed);
+  }
+
+  /**
+   * Get the number of nodes which pass the filter, for the log.
+   *
+   * @return The filter as a string
+   */
+  @Override
+  public String toString() {
+    return nodes.cardinality() + " nodes";
+  }
+}
@@ -0,0 +1,120 @@
+package no.ntnu.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import no.ntnu.tools.transport.SharedFrame;
+
+/**
+ * The latest messages seen from one greenhouse node: its "add" message, the latest "data",
+ * "delta" and "aggregate" messages, the latest "state" of every actuator, and the hash of the
+ * latest complete image of every camera, from which a panel fetches images. A "delta" only
+ * applies to the "data" keyframe before it, so a new keyframe discards it. Together they are what a
+ * control panel needs to show the node, so a joining panel can be brought up to date without
+ * asking the node. The frames are kept as they were broadcast, so their encoded bytes are
+ * reused. The snapshot also holds the control panels subscribed to the node, which are the
+ * ones its messages are broadcast to. Callers synchronize on the snapshot.
+ */
+class NodeSnapshot {
+  private SharedFrame add;
+  private SharedFrame data;
+  private SharedFrame delta;
+  private SharedFrame aggregate;
+  private final Map<String, SharedFrame> states = new LinkedHashMap<>();
+  private final Map<String, SharedFrame> images = new LinkedHashMap<>();
+  private List<ClientConnection> subscribers;
+
+  /**
+   * Record a message from the node.
+   *
+   * @param frame The message
+   */
+  void update(SharedFrame frame) {
+    switch (frame.getCommand()) {
+      case "add":
+        add = frame;
+        states.clear();
+        break;
+      case "data":
+        data = frame;
+        delta = null;
+        break;
+      case "delta":
+        delta = frame;
+        break;
+      case "aggregate":
+        aggregate = frame;
+        break;
+      case "state":
+        states.put(frame.getAddress(), frame);
+        break;
+      case "image":
+        images.put(frame.getMessage()[2], frame);
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Get the messages that bring a control panel up to date with the node, in the order they
+   * should be sent.
+   *
+   * @return The messages, or an empty list if the node has not been added yet
+   */
+  List<SharedFrame> frames() {
+    List<SharedFrame> frames = new ArrayList<>();
+    if (add != null) {
+      frames.add(add);
+      frames.addAll(states.values());
+      if (data != null) {
+        frames.add(data);
+        if (delta != null) {
+          frames.add(delta);
+        }
+      }
+      if (aggregate != null) {
+        frames.add(aggregate);
+      }
+      frames.addAll(images.values());
+    }
+    return frames;
+  }
+
+  /**
+   * Get the hash of the latest complete image of every camera of the node.
+   *
+   * @return The "image" messages, with the hashes of the full images
+   */
+  List<SharedFrame> getImages() {
+    return new ArrayList<>(images.values());
+  }
+
+  /**
+   * Get the latest "data" keyframe of the node.
+   *
+   * @return The keyframe, or null if the node has not sent one
+   */
+  SharedFrame getKeyframe() {
+    return data;
+  }
+
+  /**
+   * Get the control panels subscribed to the node.
+   *
+   * @return The subscribed control panels, or null if they have not been looked up yet
+   */
+  List<ClientConnection> getSubscribers() {
+    return subscribers;
+  }
+
+  /**
+   * Set the control panels subscribed to the node, once they have been looked up.
+   *
+   * @param subscribers The subscribed control panels
+   */
+  void setSubscribers(List<ClientConnection> subscribers) {
+    this.subscribers = subscribers;
+  }
+}
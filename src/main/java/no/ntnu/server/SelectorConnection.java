@@ -0,0 +1,302 @@
+package no.ntnu.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import no.ntnu.tools.Config;
+import no.ntnu.tools.loggers.ServerLogger;
+import no.ntnu.tools.transport.Compression;
+import no.ntnu.tools.transport.FrameCodec;
+import no.ntnu.tools.transport.FrameFormat;
+import no.ntnu.tools.transport.OutboundQueue;
+import no.ntnu.tools.transport.SharedFrame;
+
+/**
+ * A framed connection served by an {@link EventLoop}. Incoming bytes are assembled into frames
+ * and routed as soon as a frame is complete, and outgoing frames are written whenever the
+ * socket can take them.
+ */
+class SelectorConnection implements ClientConnection {
+  private final SocketChannel channel;
+  private final EventLoop loop;
+  private final Server server;
+  private final boolean controlPanel;
+  private final int address;
+  private final FrameFormat format;
+  private final OutboundQueue outbound;
+  private final Compression compression;
+  private final AtomicBoolean writeScheduled = new AtomicBoolean();
+  private final AtomicBoolean closed = new AtomicBoolean();
+  private final ByteBuffer header = ByteBuffer.allocate(FrameCodec.HEADER_SIZE);
+  private ByteBuffer frame;
+  private final List<SharedFrame> batch = new ArrayList<>();
+  private final List<ByteBuffer> writes = new ArrayList<>();
+  private ByteBuffer[] pendingWrites = new ByteBuffer[0];
+  private int pendingStart;
+  private volatile SelectionKey key;
+  private ServerLogger logger = ServerLogger.getInstance();
+
+  /**
+   * Create a connection.
+   *
+   * @param channel      The connected channel, still in blocking mode
+   * @param loop         The event loop which will serve the connection
+   * @param server       The server routing the messages
+   * @param controlPanel True if the connection is from a control panel, false for a node
+   * @param address      The node ID of a node, or the remote port of a control panel
+   * @param format       The format of the frames written to the connection
+   * @param compression  The compression negotiated in the handshake
+   * @throws IOException If the channel could not be switched to non-blocking mode
+   */
+  SelectorConnection(SocketChannel channel, EventLoop loop, Server server, boolean controlPanel,
+                     int address, FrameFormat format, Compression compression)
+      throws IOException {
+    this.channel = channel;
+    this.loop = loop;
+    this.server = server;
+    this.controlPanel = controlPanel;
+    this.address = address;
+    this.format = format;
+    this.compression = compression;
+    this.outbound = new OutboundQueue(controlPanel && Config.CONFLATE_TELEMETRY);
+    channel.configureBlocking(false);
+  }
+
+  /**
+   * Start serving the connection by registering the channel with the selector of the loop.
+   */
+  @Override
+  public void start() {
+    loop.execute(() -> {
+      try {
+        key = channel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+        if (!outbound.isEmpty()) {
+          scheduleWrite();
+        }
+      } catch (IOException e) {
+        logger.error("Failed to register connection " + address + ": " + e.getMessage());
+        close();
+      }
+    });
+  }
+
+  /**
+   * Get the address of the connection: the node ID of a node, the remote port of a control
+   * panel.
+   *
+   * @return The address of the connection
+   */
+  @Override
+  public int getAddress() {
+    return address;
+  }
+
+  /**
+   * Queue a message. Encoding and writing happen on the event loop.
+   *
+   * @param frame The message to send, possibly shared with other connections
+   */
+  @Override
+  public void putOnQueue(SharedFrame frame) {
+    if (outbound.offer(frame)) {
+      scheduleWrite();
+    } else {
+      logger.error("Connection " + address + " is too slow, disconnecting: " + outbound);
+      loop.execute(this::close);
+    }
+  }
+
+  /**
+   * Get the queue of messages waiting to be written.
+   *
+   * @return The outbound queue
+   */
+  @Override
+  public OutboundQueue getOutboundQueue() {
+    return outbound;
+  }
+
+  /**
+   * Get the compression of the connection.
+   *
+   * @return The compression with its counters
+   */
+  @Override
+  public Compression getCompression() {
+    return compression;
+  }
+
+  /**
+   * Read the available bytes and route every frame completed by them. A binary frame is routed
+   * as it arrived, with only its command and address decoded. A batch frame is split, and every
+   * frame in it routed on its own.
+   *
+   * @param readBuffer The read buffer shared by all connections on the loop
+   * @throws IOException If the channel failed or a frame is malformed
+   */
+  void handleRead(ByteBuffer readBuffer) throws IOException {
+    readBuffer.clear();
+    int count = channel.read(readBuffer);
+    if (count < 0) {
+      close();
+      return;
+    }
+    readBuffer.flip();
+    while (readBuffer.hasRemaining()) {
+      if (frame == null) {
+        transfer(readBuffer, header);
+        if (header.hasRemaining()) {
+          return;
+        }
+        frame = ByteBuffer.allocate(
+            FrameCodec.HEADER_SIZE + FrameCodec.readLength(header.array()));
+        frame.put(header.flip());
+        header.clear();
+      }
+      transfer(readBuffer, frame);
+      if (frame.hasRemaining()) {
+        return;
+      }
+      byte[] complete = frame.array();
+      frame = null;
+      if (FrameCodec.isBatch(complete)) {
+        for (byte[] part : FrameCodec.unbatch(complete)) {
+          route(SharedFrame.received(part, compression));
+        }
+      } else {
+        route(SharedFrame.received(complete, compression));
+      }
+    }
+  }
+
+  /**
+   * Write queued frames until the queue is empty or the socket buffer is full. In the latter
+   * case the loop is asked to call again once the socket is writable. The frames are taken in
+   * batches and each batch is handed to the socket in one gathering write, behind the header of
+   * a batch frame unless envelopes are turned off.
+   *
+   * @throws IOException If the channel failed
+   */
+  void handleWrite() throws IOException {
+    while (pendingStart < pendingWrites.length || nextWrites()) {
+      channel.write(pendingWrites, pendingStart, pendingWrites.length - pendingStart);
+      while (pendingStart < pendingWrites.length && !pendingWrites[pendingStart].hasRemaining()) {
+        pendingWrites[pendingStart++] = null;
+      }
+      if (pendingStart < pendingWrites.length) {
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        return;
+      }
+    }
+    key.interestOps(SelectionKey.OP_READ);
+    writeScheduled.set(false);
+    if (!outbound.isEmpty()) {
+      scheduleWrite();
+    }
+  }
+
+  /**
+   * Close the connection and remove it from the server. Safe to call more than once.
+   */
+  @Override
+  public void close() {
+    if (closed.compareAndSet(false, true)) {
+      if (key != null) {
+        key.cancel();
+      }
+      if (controlPanel) {
+        server.closeSocket(server.getCpMap(), channel.socket());
+      } else {
+        server.closeNode(this, channel.socket());
+      }
+    }
+  }
+
+  /**
+   * Take the next batch of messages from the queue as the pending writes.
+   *
+   * @return True if there was a message to write
+   * @throws IOException If a message could not be encoded
+   */
+  private boolean nextWrites() throws IOException {
+    try {
+      if (outbound.drainTo(batch, Config.BATCH_MAX_SIZE) == 0) {
+        return false;
+      }
+      for (int from = 0; from < batch.size(); ) {
+        int to = Config.BATCH_ENVELOPE
+            ? FrameCodec.batchEnd(batch, from, format, compression) : from + 1;
+        if (to - from > 1) {
+          writes.add(ByteBuffer.wrap(
+              FrameCodec.batchHeader(batch, from, to, format, compression)));
+        }
+        for (int i = from; i < to; i++) {
+          writes.add(batch.get(i).getBuffer(format, compression));
+        }
+        from = to;
+      }
+      if (pendingWrites.length != writes.size()) {
+        pendingWrites = new ByteBuffer[writes.size()];
+      }
+      pendingWrites = writes.toArray(pendingWrites);
+      pendingStart = 0;
+      return true;
+    } finally {
+      batch.clear();
+      writes.clear();
+    }
+  }
+
+  /**
+   * Ask the event loop to write the queued frames, unless it has already been asked.
+   */
+  private void scheduleWrite() {
+    if (writeScheduled.compareAndSet(false, true)) {
+      loop.execute(() -> {
+        try {
+          SelectionKey current = key;
+          if (current != null && current.isValid()) {
+            handleWrite();
+          } else {
+            // Not registered yet, or already closed: start() asks again once registered.
+            writeScheduled.set(false);
+          }
+        } catch (IOException e) {
+          close();
+        }
+      });
+    }
+  }
+
+  /**
+   * Route a message received on this connection.
+   *
+   * @param message The message, or null if it could not be decoded
+   */
+  private void route(SharedFrame message) {
+    if (message == null) {
+      logger.error("Wrong message format from " + address);
+    } else if (controlPanel) {
+      server.putCommandFromControlPanel(message, this);
+    } else {
+      server.putCommandFromNode(message, this);
+    }
+  }
+
+  /**
+   * Copy as many bytes as fit from one buffer into another.
+   *
+   * @param source      The buffer to copy from
+   * @param destination The buffer to copy into
+   */
+  private static void transfer(ByteBuffer source, ByteBuffer destination) {
+    int count = Math.min(source.remaining(), destination.remaining());
+    destination.put(destination.position(), source, source.position(), count);
+    destination.position(destination.position() + count);
+    source.position(source.position() + count);
+  }
+}
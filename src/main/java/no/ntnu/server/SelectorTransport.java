@@ -0,0 +1,59 @@
+package no.ntnu.server;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import no.ntnu.tools.transport.Compression;
+import no.ntnu.tools.transport.FrameFormat;
+import no.ntnu.tools.loggers.ServerLogger;
+
+/**
+ * Serves framed connections from a small fixed pool of event loop threads instead of one
+ * thread per connection. Connections are spread over the loops round-robin, and each loop
+ * multiplexes all its connections on one selector.
+ */
+public class SelectorTransport {
+  private final EventLoop[] loops;
+  private final Server server;
+  private int nextLoop;
+  private ServerLogger logger = ServerLogger.getInstance();
+
+  /**
+   * Create the transport and start its event loops.
+   *
+   * @param server  The server routing the messages
+   * @param threads The number of event loop threads
+   * @throws IOException If a selector could not be opened
+   */
+  public SelectorTransport(Server server, int threads) throws IOException {
+    this.server = server;
+    this.loops = new EventLoop[Math.max(1, threads)];
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new EventLoop("event-loop-" + i);
+      loops[i].start();
+    }
+    logger.info("Selector transport running " + loops.length + " event loops");
+  }
+
+  /**
+   * Create a connection served by one of the event loops, for a channel which has completed
+   * its handshake. The loop starts serving it when {@link ClientConnection#start()} is called.
+   *
+   * @param channel      The connected channel, still in blocking mode
+   * @param controlPanel True if the connection is from a control panel, false for a node
+   * @param address      The node ID of a node, or the remote port of a control panel
+   * @param format       The format of the frames written to the connection
+   * @param compression  The compression negotiated in the handshake
+   * @return The connection
+   * @throws IOException If the channel could not be switched to non-blocking mode
+   */
+  public synchronized ClientConnection createConnection(SocketChannel channel,
+                                                        boolean controlPanel, int address,
+                                                        FrameFormat format,
+                                                        Compression compression)
+      throws IOException {
+    EventLoop loop = loops[nextLoop];
+    nextLoop = (nextLoop + 1) % loops.length;
+    return new SelectorConnection(channel, loop, server, controlPanel, address, format,
+        compression);
+  }
+}
@@ -1,24 +1,78 @@
 package no.ntnu.server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.PushbackInputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import no.ntnu.tools.Config;
+import no.ntnu.tools.ContentCache;
+import no.ntnu.tools.ImageChunks;
+import no.ntnu.tools.cipher.HybridCipher;
+import no.ntnu.tools.cipher.KeyExchange;
+import no.ntnu.tools.cipher.SessionCipher;
 import no.ntnu.tools.loggers.ServerLogger;
+import no.ntnu.tools.transport.Compression;
+import no.ntnu.tools.transport.FrameCodec;
+import no.ntnu.tools.transport.FrameFormat;
+import no.ntnu.tools.transport.FramedMessageStream;
+import no.ntnu.tools.transport.MessageStream;
+import no.ntnu.tools.transport.ObjectMessageStream;
+import no.ntnu.tools.transport.OutboundQueue;
+import no.ntnu.tools.transport.SharedFrame;
+import no.ntnu.tools.transport.SharedObjectOutputStream;
 
 
 /**
  * The server class.
  */
 public class Server {
-  protected HashMap<Integer, GreenhouseHandler> greenHouseSockets;
-  protected HashMap<Integer, ControlPanelHandler> controlPanels;
+  protected ConnectionRegistry greenHouseSockets;
+  protected ConnectionRegistry controlPanels;
   private ServerSocket serverSocket;
+  private SelectorTransport selectorTransport;
+  private ExecutorService handshakes;
+  private Semaphore handshakeSlots;
 
-  private HashMap<String, String[]> latestReading;
+  private NodeDirectory nodes;
+  private Map<Integer, NodeSnapshot> snapshots;
+  private Map<Integer, NodeFilter> subscriptions;
+  private Map<Integer, Map<Integer, String>> cameraViews;
+  private Map<ClientConnection, Set<Integer>> hosts;
+  private final AtomicLong keyframes = new AtomicLong();
+  private final AtomicLong deltas = new AtomicLong();
+  private final AtomicLong deltaBytesSaved = new AtomicLong();
+  private final ContentCache<byte[]> images = new ContentCache<>(Config.IMAGE_CACHE_SIZE,
+      image -> image.length);
+  private final ImageChunks imageChunks = new ImageChunks();
+  private final ImageRenditions renditions =
+      new ImageRenditions(images, this::publishRenditions);
+  private final Map<String, Map<String, SharedFrame>> awaitingRenditions =
+      new ConcurrentHashMap<>();
+  private final byte[] sessionKey = SessionCipher.generateKey();
+  private final HybridCipher cipher = new HybridCipher();
 
   private ServerLogger logger = ServerLogger.getInstance();
 
@@ -26,10 +80,24 @@ public class Server {
    * Constructor for the server.
    */
   public Server() {
-    controlPanels = new HashMap<>();
-    greenHouseSockets = new HashMap<>();
+    controlPanels = new ConnectionRegistry();
+    greenHouseSockets = new ConnectionRegistry();
+    if (Config.CIPHER.equals("session")) {
+      cipher.setSession(new SessionCipher(sessionKey));
+    }
     serverSocket = openListeningPort();
-    latestReading = new HashMap<>();
+    nodes = new NodeDirectory(Config.RESUME_GRACE);
+    snapshots = new ConcurrentHashMap<>();
+    subscriptions = new ConcurrentHashMap<>();
+    cameraViews = new ConcurrentHashMap<>();
+    hosts = new ConcurrentHashMap<>();
+    handshakeSlots = new Semaphore(Config.MAX_PENDING_HANDSHAKES);
+    AtomicInteger handshakeThreads = new AtomicInteger();
+    handshakes = Executors.newFixedThreadPool(Config.HANDSHAKE_THREADS, task -> {
+      Thread thread = new Thread(task, "handshake-" + handshakeThreads.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
   }
 
   /**
@@ -48,38 +116,537 @@ public class Server {
    * @param id       The id of the greenhouse node to send the command to.
    */
   public void putCommandNode(String[] commands, int id) {
+    putCommandNode(new SharedFrame(commands), id);
+  }
+
+  /**
+   * Put a command on the command queue for the greenhouse node. A command for every node is
+   * sent once to each host, which passes it on to all the nodes it runs.
+   *
+   * @param frame The command to put on the queue
+   * @param id    The id of the greenhouse node to send the command to.
+   */
+  public void putCommandNode(SharedFrame frame, int id) {
     if (id == -1) {
-      greenHouseSockets.forEach((k, v) -> v.setCommand(commands));
-    } else if (greenHouseSockets.containsKey(id)) {
-      greenHouseSockets.get(id).setCommand(commands);
+      greenHouseSockets.forEach(node -> {
+        if (!hosts.containsKey(node)) {
+          node.putOnQueue(frame);
+        }
+      });
+      hosts.keySet().forEach(host -> host.putOnQueue(frame));
+    } else {
+      ClientConnection node = greenHouseSockets.get(id);
+      if (node != null) {
+        node.putOnQueue(frame);
+      }
+    }
+  }
+
+  /**
+   * Route a command received from a control panel to the greenhouse node(s) it addresses.
+   * For "set" and "toggle" the address is "nodeId:actuatorId", passed on as it is, since the
+   * command is sealed with its address. "subscribe" and "unsubscribe" change which nodes the
+   * control panel receives messages from, and "view" the size of the camera images it receives,
+   * and are handled by the server.
+   *
+   * @param commands     The command received from the control panel
+   * @param controlPanel The control panel which sent the command
+   */
+  public void putCommandFromControlPanel(String[] commands, ClientConnection controlPanel) {
+    putCommandFromControlPanel(new SharedFrame(commands), controlPanel);
+  }
+
+  /**
+   * Route a command received from a control panel to the greenhouse node(s) it addresses.
+   * Only the command and address of the frame are read, the rest is passed on as it is.
+   *
+   * @param frame        The command received from the control panel
+   * @param controlPanel The control panel which sent the command
+   */
+  public void putCommandFromControlPanel(SharedFrame frame, ClientConnection controlPanel) {
+    try {
+      String command = frame.getCommand();
+      if (command.equals("subscribe") || command.equals("unsubscribe")) {
+        NodeFilter filter = subscriptions.get(controlPanel.getAddress());
+        if (filter != null) {
+          filter = command.equals("subscribe")
+              ? filter.subscribe(frame.getMessage()) : filter.unsubscribe(frame.getMessage());
+          subscribe(controlPanel, filter, controlPanel::putOnQueue);
+          logger.info("Control panel " + controlPanel.getAddress() + " subscribed to " + filter);
+        }
+        return;
+      }
+      if (command.equals("fetch")) {
+        String[] fetch = cipher.decrypt(frame.getMessage());
+        if (fetch == null || fetch.length < 4) {
+          logger.error("Discarding image request which could not be decrypted");
+          return;
+        }
+        fetchImage(fetch, controlPanel);
+        return;
+      }
+      if (command.equals("view")) {
+        viewCameras(frame.getMessage(), controlPanel);
+        return;
+      }
+      if (command.equals("set") || command.equals("toggle")) {
+        putActuatorCommand(frame);
+      } else {
+        putCommandNode(frame, Integer.parseInt(frame.getAddress()));
+      }
+    } catch (RuntimeException e) {
+      logger.error("Discarding malformed command from control panel: " + e);
+    }
+  }
+
+  /**
+   * Route a "set" or "toggle" command addressed "nodeId:actuatorId" to the node, or to every
+   * node for node ID -1. The command keeps the address it was sealed with, and the node, or
+   * the host running it, takes the actuator ID from it.
+   *
+   * @param frame The command
+   */
+  private void putActuatorCommand(SharedFrame frame) {
+    putCommandNode(frame, Integer.parseInt(frame.getAddress().split(":")[0]));
+  }
+
+  /**
+   * Answer a control panel missing a camera image or rendition. The chunks of the image are
+   * sent to the control panel alone if the server has the image. A rendition which has been
+   * evicted is answered with the full image while it is made again. Otherwise the node is
+   * asked for the full image.
+   *
+   * @param fetch        The decrypted "fetch" message: {"fetch", nodeId, camera, hash}
+   * @param controlPanel The control panel which asked for the image
+   */
+  private void fetchImage(String[] fetch, ClientConnection controlPanel) {
+    String hash = fetch[3];
+    byte[] image = renditions.get(hash);
+    if (image == null) {
+      String source = renditions.sourceOf(hash);
+      image = source != null ? images.get(source) : null;
+      if (image == null) {
+        putCommandNode(cipher.encrypt(new String[] {"fetch", fetch[1], fetch[2],
+            source == null ? hash : source}), Integer.parseInt(fetch[1]));
+        return;
+      }
+      hash = source;
+    }
+    for (String[] chunk : ImageChunks.split(fetch[1], fetch[2], hash, image,
+        Config.CAMERA_CHUNK_SIZE)) {
+      controlPanel.putOnQueue(cipher.encrypt(chunk));
+    }
+  }
+
+  /**
+   * Change the size of the camera images a control panel is sent for a node, and send it the
+   * latest images of the node at that size.
+   *
+   * @param view         The "view" message: {"view", nodeId, size}
+   * @param controlPanel The control panel which asked for the size
+   */
+  private void viewCameras(String[] view, ClientConnection controlPanel) {
+    if (view.length < 3 || !ImageRenditions.isSize(view[2])) {
+      throw new IllegalArgumentException("Unknown camera image size");
+    }
+    int nodeId = Integer.parseInt(view[1]);
+    cameraViews.computeIfAbsent(controlPanel.getAddress(), address -> new ConcurrentHashMap<>())
+        .put(nodeId, view[2]);
+    NodeSnapshot snapshot = snapshots.get(nodeId);
+    if (snapshot == null) {
+      return;
+    }
+    synchronized (snapshot) {
+      if (snapshot.getSubscribers() != null && snapshot.getSubscribers().contains(controlPanel)) {
+        snapshot.getImages()
+            .forEach(image -> controlPanel.putOnQueue(seal(resize(image, view[2]))));
+      }
+    }
+  }
+
+  /**
+   * Get the size of the camera images a control panel is sent for a node.
+   *
+   * @param controlPanel The control panel
+   * @param nodeId       The ID of the node
+   * @return "thumbnail", "medium" or "full"
+   */
+  private String cameraView(ClientConnection controlPanel, int nodeId) {
+    Map<Integer, String> views = cameraViews.get(controlPanel.getAddress());
+    String size = views != null ? views.get(nodeId) : null;
+    return size != null ? size : Config.CAMERA_VIEW;
+  }
+
+  /**
+   * Name a camera image at a size. While the renditions of the image are being made the full
+   * image is named, and the image is remembered so the renditions are sent once they are made.
+   *
+   * @param image The "image" message of the full image: {"image", nodeId, camera, hash}
+   * @param size  The size
+   * @return The "image" message of the rendition at the size, the same frame if it is the full
+   *         image
+   */
+  private SharedFrame resize(SharedFrame image, String size) {
+    String[] message = image.getMessage();
+    String hash = renditions.hashFor(message[3], size);
+    if (hash == null) {
+      String camera = message[1] + ":" + message[2];
+      awaitingRenditions.computeIfAbsent(message[3], full -> new ConcurrentHashMap<>())
+          .put(camera, image);
+      // The renditions may have been made since they were asked for
+      hash = renditions.hashFor(message[3], size);
+      if (hash != null) {
+        awaitingRenditions.getOrDefault(message[3], Map.of()).remove(camera, image);
+      }
+    }
+    return hash == null || hash.equals(message[3]) ? image
+        : new SharedFrame(new String[] {"image", message[1], message[2], hash});
+  }
+
+  /**
+   * Send the renditions of a camera image, once they are made, to the control panels which
+   * were sent the full image in their place. A camera which has a newer image by now is
+   * skipped.
+   *
+   * @param hash The hash of the full image
+   */
+  private void publishRenditions(String hash) {
+    Map<String, SharedFrame> waiting = awaitingRenditions.remove(hash);
+    if (waiting == null) {
+      return;
     }
+    for (SharedFrame image : waiting.values()) {
+      int nodeId = Integer.parseInt(image.getMessage()[1]);
+      NodeSnapshot snapshot = snapshots.get(nodeId);
+      if (snapshot == null) {
+        continue;
+      }
+      synchronized (snapshot) {
+        boolean shown = snapshot.getImages().stream()
+            .anyMatch(latest -> Arrays.equals(latest.getMessage(), image.getMessage()));
+        if (snapshot.getSubscribers() == null || !shown) {
+          continue;
+        }
+        Map<String, SharedFrame> sized = new HashMap<>();
+        for (ClientConnection controlPanel : snapshot.getSubscribers()) {
+          String size = cameraView(controlPanel, nodeId);
+          if (!sized.containsKey(size)) {
+            SharedFrame rendition = resize(image, size);
+            sized.put(size, rendition != image ? seal(rendition) : null);
+          }
+          if (sized.get(size) != null) {
+            controlPanel.putOnQueue(sized.get(size));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Send the camera image messages of a node to the control panels subscribed to it, each at
+   * the size it has asked for. Chunks of the full image are relayed to the panels showing the
+   * full image alone. The other panels are sent the hash of the rendition, once the full image
+   * is complete, and fetch it if they do not have it. One frame is encoded and sealed per size.
+   *
+   * @param frame       The "chunk" or "image" message, as the node sent it
+   * @param image       The image as its hash alone, not sealed: the "image" message, or the
+   *                    image the chunk completed, or null
+   * @param nodeId      The ID of the node
+   * @param subscribers The control panels subscribed to the node
+   */
+  private void sendImage(SharedFrame frame, SharedFrame image, int nodeId,
+                         List<ClientConnection> subscribers) {
+    boolean chunk = frame.getCommand().equals("chunk");
+    Map<String, SharedFrame> sized = new HashMap<>();
+    for (ClientConnection controlPanel : subscribers) {
+      String size = cameraView(controlPanel, nodeId);
+      if (chunk && size.equals(ImageRenditions.FULL)) {
+        controlPanel.putOnQueue(frame);
+      } else if (image != null) {
+        controlPanel.putOnQueue(sized.computeIfAbsent(size, s -> seal(resize(image, s))));
+      }
+    }
+  }
+
+  /**
+   * Route a message received on a greenhouse connection. A host opens the sessions of the
+   * nodes it runs with "join" and "resume" messages on its connection, which are answered by
+   * the server. Everything else is passed on to the control panels.
+   *
+   * @param frame      The message
+   * @param connection The connection it was received on
+   */
+  public void putCommandFromNode(SharedFrame frame, ClientConnection connection) {
+    String command = frame.getCommand();
+    if ((command.equals("join") || command.equals("resume")) && hosts.containsKey(connection)) {
+      try {
+        openHostedSession(connection, frame.getMessage());
+      } catch (RuntimeException e) {
+        logger.error("Failed to open session for host " + connection.getAddress() + ": " + e);
+      }
+      return;
+    }
+    putCommandControlPanel(frame);
   }
 
   /**
-   * Put a command on the command queue for the control panel.
+   * Put a command on the command queue of the control panels subscribed to the node it comes
+   * from. The command is encoded once, and the same bytes are written to every control panel.
+   * The command is also recorded in the snapshot of the node.
    *
    * @param commands The commands to put on the queue
    */
   public void putCommandControlPanel(String[] commands) {
-    if (controlPanels.isEmpty()) {
-      latestReading.put(commands[1], commands);
-    } else {
-      controlPanels.forEach((k, v) -> v.putOnQueue(commands));
+    if (commands.length > 0) {
+      putCommandControlPanel(new SharedFrame(commands));
+    }
+  }
+
+  /**
+   * Put a command on the command queue of the control panels subscribed to the node it comes
+   * from. Only the command and address are read, so a binary frame received from the node is
+   * relayed as it arrived, whatever the size of its payload. Image chunks are also put together
+   * and the images kept by their hash, see {@link #sendImage}. An image sent as its hash alone is
+   * only relayed if the server has the image, otherwise the server asks the node for it.
+   *
+   * @param frame The command to put on the queue
+   */
+  public void putCommandControlPanel(SharedFrame frame) {
+    int nodeId;
+    try {
+      nodeId = Integer.parseInt(frame.getAddress().split(":")[0]);
+    } catch (RuntimeException e) {
+      logger.error("Discarding malformed command from greenhouse: " + e);
+      return;
+    }
+    if (frame.getCommand().equals("remove")) {
+      NodeSnapshot snapshot = snapshots.remove(nodeId);
+      if (snapshot != null) {
+        synchronized (snapshot) {
+          if (snapshot.getSubscribers() != null) {
+            snapshot.getSubscribers().forEach(controlPanel -> controlPanel.putOnQueue(frame));
+          }
+          snapshot.setSubscribers(null);
+        }
+      }
+      imageChunks.removeNode(String.valueOf(nodeId));
+      return;
+    }
+    boolean camera = frame.getCommand().equals("chunk") || frame.getCommand().equals("image");
+    SharedFrame plain = camera ? open(frame) : frame;
+    if (plain == null || frame.getCommand().equals("image") && !hasImage(plain, nodeId)) {
+      return;
+    }
+    SharedFrame completed = frame.getCommand().equals("chunk") ? cacheChunk(plain) : null;
+    NodeSnapshot snapshot = snapshots.computeIfAbsent(nodeId, id -> new NodeSnapshot());
+    synchronized (snapshot) {
+      if (snapshot.getSubscribers() == null) {
+        snapshot.setSubscribers(findSubscribers(nodeId));
+      }
+      countSensorMessage(frame, snapshot);
+      snapshot.update(plain);
+      if (completed != null) {
+        snapshot.update(completed);
+      }
+      if (camera) {
+        SharedFrame image = frame.getCommand().equals("chunk") ? completed : plain;
+        sendImage(frame, image, nodeId, snapshot.getSubscribers());
+      } else {
+        snapshot.getSubscribers().forEach(controlPanel -> controlPanel.putOnQueue(frame));
+      }
+    }
+  }
+
+  /**
+   * Add an image chunk from a node to the image it belongs to, and keep the image and its
+   * renditions once it is complete.
+   *
+   * @param frame The "chunk" message
+   * @return The image as its hash alone, {"image", nodeId, camera, hash}, if the chunk
+   *         completed it, or null
+   */
+  private SharedFrame cacheChunk(SharedFrame frame) {
+    String[] chunk = frame.getMessage();
+    try {
+      byte[] image = imageChunks.add(chunk);
+      if (image == null) {
+        return null;
+      }
+      images.put(chunk[3], image);
+      renditions.render(chunk[3], image);
+      return new SharedFrame(new String[] {"image", chunk[1], chunk[2], chunk[3]});
+    } catch (IllegalArgumentException e) {
+      logger.error("Discarding malformed image chunk from greenhouse: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Check whether the server has an image a node sent as its hash alone, and ask the node for
+   * the image if it does not.
+   *
+   * @param frame  The "image" message: {"image", nodeId, camera, hash}
+   * @param nodeId The ID of the node
+   * @return True if the server has the image
+   */
+  private boolean hasImage(SharedFrame frame, int nodeId) {
+    String[] image = frame.getMessage();
+    if (image.length < 4) {
+      return false;
+    }
+    if (images.get(image[3]) != null) {
+      return true;
+    }
+    putCommandNode(cipher.encrypt(new String[] {"fetch", image[1], image[2], image[3]}),
+        nodeId);
+    return false;
+  }
+
+  /**
+   * Open a camera message from a node, sealed or not.
+   *
+   * @param frame The "chunk" or "image" message
+   * @return The message as it was before it was sealed, or null if it could not be opened
+   */
+  private SharedFrame open(SharedFrame frame) {
+    String[] message = cipher.decrypt(frame.getMessage());
+    if (message == null) {
+      logger.error("Discarding " + frame.getCommand() + " which could not be decrypted");
+      return null;
+    }
+    return message == frame.getMessage() ? frame : new SharedFrame(message);
+  }
+
+  /**
+   * Seal a camera message for the control panels with the session key, if the server has one.
+   * The images are kept and resized unsealed, and sealed as they are sent.
+   *
+   * @param frame The "image" message
+   * @return The sealed message, or the same frame without a session key
+   */
+  private SharedFrame seal(SharedFrame frame) {
+    return cipher.hasSession() ? new SharedFrame(cipher.encrypt(frame.getMessage())) : frame;
+  }
+
+  /**
+   * Count a "data" keyframe or "delta" message from a node. A delta received as a frame saved
+   * the difference in size to the keyframe it applies to, when that was received as a frame.
+   *
+   * @param frame    The message
+   * @param snapshot The snapshot of the node, before the message is recorded in it
+   */
+  private void countSensorMessage(SharedFrame frame, NodeSnapshot snapshot) {
+    if (frame.getCommand().equals("data")) {
+      keyframes.incrementAndGet();
+    } else if (frame.getCommand().equals("delta")) {
+      deltas.incrementAndGet();
+      SharedFrame keyframe = snapshot.getKeyframe();
+      if (keyframe != null && keyframe.getReceivedSize() >= 0 && frame.getReceivedSize() >= 0) {
+        deltaBytesSaved.addAndGet(keyframe.getReceivedSize() - frame.getReceivedSize());
+      }
+    }
+  }
+
+  /**
+   * Find the registered control panels subscribed to a node.
+   *
+   * @param nodeId The ID of the node
+   * @return The subscribed control panels
+   */
+  private List<ClientConnection> findSubscribers(int nodeId) {
+    List<ClientConnection> subscribers = new ArrayList<>();
+    controlPanels.forEach(controlPanel -> {
+      NodeFilter filter = subscriptions.get(controlPanel.getAddress());
+      if (filter != null && filter.matches(nodeId)) {
+        subscribers.add(controlPanel);
+      }
+    });
+    return subscribers;
+  }
+
+  /**
+   * Change the nodes a control panel is subscribed to. The snapshot of every node the panel
+   * becomes subscribed to is sent to it, and a "remove" message for every node it is no longer
+   * subscribed to. The filter is published before the snapshots are visited, and each node is
+   * switched while holding its snapshot lock, so every message is either part of the snapshot
+   * or broadcast to the panel after it. Camera images are sent at the size the panel asked for.
+   *
+   * @param controlPanel The control panel, which must already be registered
+   * @param filter       The nodes the control panel is subscribed to from now on
+   * @param queue        Where the messages for the control panel are put
+   */
+  private void subscribe(ClientConnection controlPanel, NodeFilter filter,
+                         Consumer<SharedFrame> queue) {
+    subscriptions.put(controlPanel.getAddress(), filter);
+    for (Map.Entry<Integer, NodeSnapshot> entry : snapshots.entrySet()) {
+      NodeSnapshot snapshot = entry.getValue();
+      synchronized (snapshot) {
+        List<ClientConnection> subscribers = snapshot.getSubscribers();
+        if (subscribers == null) {
+          continue;
+        }
+        boolean subscribed = subscribers.contains(controlPanel);
+        if (filter.matches(entry.getKey()) && !subscribed) {
+          subscribers.add(controlPanel);
+          String size = cameraView(controlPanel, entry.getKey());
+          snapshot.frames().forEach(frame -> queue.accept(
+              frame.getCommand().equals("image") ? seal(resize(frame, size)) : frame));
+        } else if (!filter.matches(entry.getKey()) && subscribed) {
+          subscribers.remove(controlPanel);
+          queue.accept(new SharedFrame(new String[] {"remove", entry.getKey().toString()}));
+        }
+      }
+    }
+  }
 
+  /**
+   * Get the subscription a control panel asks for in its handshake, {"cp"} for every node or
+   * {"cp", groups} for some of them.
+   *
+   * @param hello The handshake message
+   * @return The nodes the control panel is subscribed to
+   */
+  private NodeFilter initialSubscription(String[] hello) {
+    try {
+      return hello.length > 1 ? NodeFilter.NONE.subscribe(hello) : NodeFilter.ALL;
+    } catch (RuntimeException e) {
+      logger.error("Subscribing control panel to every node, bad handshake: " + e);
+      return NodeFilter.ALL;
+    }
+  }
+
+  /**
+   * Remove a closed control panel from the subscribers of every node.
+   *
+   * @param controlPanel The control panel
+   */
+  private void unsubscribe(ClientConnection controlPanel) {
+    subscriptions.remove(controlPanel.getAddress());
+    cameraViews.remove(controlPanel.getAddress());
+    for (NodeSnapshot snapshot : snapshots.values()) {
+      synchronized (snapshot) {
+        if (snapshot.getSubscribers() != null) {
+          snapshot.getSubscribers().remove(controlPanel);
+        }
+      }
     }
   }
 
   /**
    * Closes specific socket.
    *
-   * @param map    Greenhouse or control panel map
-   * @param socket The socket to close
+   * @param registry Greenhouse or control panel registry
+   * @param socket   The socket to close
    */
-  public void closeSocket(HashMap map, Socket socket) {
+  public void closeSocket(ConnectionRegistry registry, Socket socket) {
     try {
       logger.info("Attempting to close greenouse socket with port " + socket.getPort());
       socket.close();
-      map.remove(socket.getPort());
+      ClientConnection connection = registry.get(socket.getPort());
+      registry.remove(socket.getPort());
+      if (connection != null && registry == controlPanels) {
+        unsubscribe(connection);
+      }
       logger.info("Greenouse socket with port " + socket.getPort() + " closed");
     } catch (IOException ex) {
       throw new RuntimeException(ex);
@@ -87,20 +654,71 @@ public class Server {
   }
 
   /**
-   * Get map of control panels.
+   * Close the connection of a greenhouse node, or of a host and every node it runs, and remove
+   * it from the server.
+   *
+   * @param node   The connection of the node or host
+   * @param socket The socket of the connection
+   */
+  public void closeNode(ClientConnection node, Socket socket) {
+    closeQuietly(socket);
+    Set<Integer> hosted;
+    synchronized (nodes) {
+      hosted = hosts.remove(node);
+    }
+    if (hosted == null) {
+      releaseNode(node, node.getAddress());
+      return;
+    }
+    logger.info("Host " + node.getAddress() + " with " + hosted.size() + " nodes disconnected");
+    hosted.forEach(nodeId -> releaseNode(node, nodeId));
+  }
+
+  /**
+   * Remove a node whose connection has closed. A node with a session keeps its ID and snapshot
+   * for the resume grace period, and the control panels are only told it is gone if it has not
+   * resumed by then. A node using the old handshake is removed right away. Nothing is removed
+   * if the connection has already been replaced by a resumed one.
    *
-   * @return Map of connected control panels
+   * @param node   The closed connection
+   * @param nodeId The ID of the node
    */
-  public HashMap getCpMap() {
+  private void releaseNode(ClientConnection node, int nodeId) {
+    String[] remove = {"remove", Integer.toString(nodeId)};
+    synchronized (nodes) {
+      if (!greenHouseSockets.remove(nodeId, node)) {
+        return;
+      }
+      boolean kept = nodes.expireLater(nodeId, () -> {
+        putCommandControlPanel(remove);
+        logger.info("Greenhouse " + nodeId + " did not resume, removed");
+      });
+      if (kept) {
+        logger.info("Greenhouse " + nodeId + " disconnected, keeping its session for "
+            + Config.RESUME_GRACE + " ms");
+        return;
+      }
+    }
+    putCommandControlPanel(remove);
+    nodes.release(nodeId);
+    logger.info("Greenhouse " + nodeId + " disconnected");
+  }
+
+  /**
+   * Get registry of control panels.
+   *
+   * @return Registry of connected control panels
+   */
+  public ConnectionRegistry getCpMap() {
     return this.controlPanels;
   }
 
   /**
-   * Get map of greenhouse nodes.
+   * Get registry of greenhouse nodes.
    *
-   * @return Map of connected greenhouse nodes
+   * @return Registry of connected greenhouse nodes
    */
-  public HashMap getNodeMap() {
+  public ConnectionRegistry getNodeMap() {
     return this.greenHouseSockets;
   }
 
@@ -110,24 +728,76 @@ public class Server {
   public void run() {
     logger.info("server starting");
     logger.info("Running on port: " + serverSocket.getLocalPort());
+    startQueueReport();
     boolean running = true;
     while (running) {
-      Socket socket = acceptNextClient();
-      logger.info("Connected to: " + socket.getPort());
-      logger.info("holding sockets for: " + greenHouseSockets.keySet() + " and "
-          + controlPanels.keySet());
+      acceptNextClient();
     }
   }
 
   /**
-   * Open a listening port
+   * Periodically log the connections which have messages waiting or have dropped messages,
+   * to show which clients are too slow, how well compressed connections compress, and how
+   * many sensor messages were sent as deltas.
+   */
+  private void startQueueReport() {
+    Timer reportTimer = new Timer("queue-report", true);
+    reportTimer.scheduleAtFixedRate(new TimerTask() {
+      @Override
+      public void run() {
+        reportQueues("greenhouse", greenHouseSockets);
+        reportQueues("control panel", controlPanels);
+        if (deltas.get() > 0) {
+          logger.info("Sensor messages: " + keyframes + " keyframes, " + deltas + " deltas, "
+              + deltaBytesSaved + " bytes saved");
+        }
+        if (images.getLookups() > 0) {
+          logger.info("Image cache: " + images + ", " + imageChunks.getDiscarded()
+              + " discarded incomplete, " + renditions);
+        }
+      }
+    }, Config.QUEUE_REPORT_INTERVAL, Config.QUEUE_REPORT_INTERVAL);
+  }
+
+  /**
+   * Log the outbound queue counters of the connections that are behind or have dropped, and
+   * the compression counters of the connections using compression.
+   *
+   * @param kind     The kind of connection, for the log
+   * @param registry The connections
+   */
+  private void reportQueues(String kind, ConnectionRegistry registry) {
+    registry.forEach(connection -> {
+      OutboundQueue queue = connection.getOutboundQueue();
+      if (!queue.isEmpty() || queue.getDropped() > 0) {
+        logger.info(kind + " " + connection.getAddress() + ": " + queue);
+      }
+      Compression compression = connection.getCompression();
+      if (compression != null && compression.isEnabled()) {
+        logger.info(kind + " " + connection.getAddress() + ": " + compression);
+      }
+    });
+  }
+
+  /**
+   * Open a listening port. In selector mode the port is opened through a channel, so that
+   * accepted sockets can be handed over to the event loops.
    *
    * @return The server socket
+   * @throws IllegalStateException If the server mode is "virtual" on a runtime older than 21
    */
   private ServerSocket openListeningPort() {
+    HandlerThreads.checkRuntime();
     ServerSocket listeningSocket = null;
     try {
-      listeningSocket = new ServerSocket(Config.SERVER_PORT);
+      if (Config.SERVER_MODE.equals("selector")) {
+        selectorTransport = new SelectorTransport(this, Config.EVENT_LOOP_THREADS);
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(Config.SERVER_PORT));
+        listeningSocket = channel.socket();
+      } else {
+        listeningSocket = new ServerSocket(Config.SERVER_PORT);
+      }
     } catch (IOException e) {
       System.out.println("Could not open listening socket: " + e.getMessage());
     }
@@ -135,42 +805,304 @@ public class Server {
   }
 
   /**
-   * Accept the next client.
+   * Accept the next client and hand its handshake over to the handshake threads, so a slow
+   * client does not hold up the clients behind it. When the limit of handshakes in progress
+   * is reached, new clients wait in the backlog of the listening socket.
+   */
+  private void acceptNextClient() {
+    try {
+      handshakeSlots.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    try {
+      Socket socket = serverSocket.accept();
+      handshakes.execute(() -> {
+        try {
+          handshake(socket);
+        } finally {
+          handshakeSlots.release();
+        }
+      });
+    } catch (IOException e) {
+      handshakeSlots.release();
+      System.out.println("Could not accept the next client: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Identify a newly accepted client and start serving it. The server always greets a client
+   * with the object stream header. The first byte the client answers with tells whether it
+   * uses object streams or frames, and the first frame tells its frame format. A client may
+   * first offer a public key, which is answered with the session key, see {@link KeyExchange}.
+   * A framed client may then offer compression, which is accepted if both ends have the same
+   * dictionary, and the handshake message follows the offers. Reads are
+   * buffered, except for framed clients in selector mode, whose channel is handed to an event
+   * loop after the handshake and must not have bytes left behind in a buffer. A client which
+   * does not finish the handshake in time is closed.
    *
-   * @return The client socket
+   * @param socket The client socket
    */
-  private Socket acceptNextClient() {
-    Socket socket = null;
+  private void handshake(Socket socket) {
     try {
-      socket = serverSocket.accept();
-
-      ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
-      ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream());
-      Object obj = inputStream.readObject();
-      String type = (obj instanceof String) ? obj.toString() : "fake";
-
-      if (type.equals("cp")) {
-        ControlPanelHandler handler = new ControlPanelHandler(socket, outputStream, inputStream,
-            this);
-        controlPanels.put(socket.getPort(), handler);
-        handler.start();
+      socket.setSoTimeout(Config.HANDSHAKE_TIMEOUT);
+      SharedObjectOutputStream outputStream =
+          new SharedObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      outputStream.flush();
+      InputStream socketInput = socket.getInputStream();
+      int firstByte = socketInput.read();
+      if (firstByte < 0) {
+        throw new EOFException("Client closed before handshake");
+      }
+      boolean selector = selectorTransport != null && FrameCodec.isFramed(firstByte);
+      PushbackInputStream input = new PushbackInputStream(
+          selector ? socketInput : new BufferedInputStream(socketInput));
+      input.unread(firstByte);
+
+      String[] hello;
+      MessageStream stream;
+      if (FrameCodec.isFramed(firstByte)) {
+        stream = new FramedMessageStream(input, socket.getOutputStream());
+        hello = stream.read();
+      } else {
+        ObjectInputStream inputStream = new ObjectInputStream(input);
+        Object obj = inputStream.readObject();
+        if (obj instanceof String[]) {
+          hello = (String[]) obj;
+        } else {
+          hello = (obj instanceof String) ? new String[] {obj.toString()} : null;
+        }
+        stream = new ObjectMessageStream(outputStream, inputStream);
+      }
+      String[] keyAnswer = null;
+      if (KeyExchange.isOffer(hello)) {
+        keyAnswer = KeyExchange.answer(hello, sessionKey);
+        hello = stream.read();
+      }
+      if (hello != null && hello.length > 0 && hello[0].equals(Compression.COMMAND)) {
+        if (stream.getCompression() != null && Compression.accepts(hello)) {
+          stream.getCompression().enable();
+        }
+        hello = stream.read();
+      }
+      boolean controlPanel = hello != null && hello.length > 0 && hello[0].equals("cp");
+
+      if (controlPanel) {
+        ClientConnection connection =
+            createConnection(socket, stream, keyAnswer, selector, true, socket.getPort());
+        controlPanels.put(socket.getPort(), connection);
+        boolean[] fits = {true};
+        subscribe(connection, initialSubscription(hello),
+            frame -> fits[0] = fits[0] && connection.getOutboundQueue().force(frame));
+        if (!fits[0]) {
+          logger.error("Snapshot does not fit the queue of control panel " + socket.getPort()
+              + ", disconnecting");
+          connection.close();
+        }
+        connection.start();
         logger.info("new control panel connected");
-        this.putCommandNode(new String[] {"info", "-1"}, -1);
+
+      } else if (hello != null && hello.length > 0
+          && (hello[0].equals("join") || hello[0].equals("resume"))) {
+        startSession(socket, stream, keyAnswer, hello, selector);
+
+      } else if (hello != null && hello.length > 0 && hello[0].equals("host")) {
+        ClientConnection connection =
+            createConnection(socket, stream, keyAnswer, selector, false, socket.getPort());
+        hosts.put(connection, ConcurrentHashMap.newKeySet());
+        connection.start();
+        logger.info("Greenhouse host " + connection.getAddress() + " connected");
 
       } else {
-        GreenhouseHandler handler = new GreenhouseHandler(socket, outputStream, inputStream, this);
-        greenHouseSockets.put(socket.getPort(), handler);
-        handler.start();
-        if (!controlPanels.isEmpty()) {
-          this.putCommandNode(new String[] {"info", "-1"}, -1);
+        int nodeId = socket.getPort();
+        nodes.claim(nodeId);
+        ClientConnection connection =
+            createConnection(socket, stream, keyAnswer, selector, false, nodeId);
+        greenHouseSockets.put(nodeId, connection);
+        if (hello != null && hello.length > 1 && hello[0].equals("add")) {
+          putCommandControlPanel(hello);
         }
+        connection.start();
+      }
+      logger.info("Connected to: " + socket.getPort());
+      logger.info("greenhouses: " + greenHouseSockets + ", control panels: " + controlPanels);
+    } catch (SocketTimeoutException e) {
+      logger.error("Handshake with " + socket.getPort() + " timed out");
+      closeQuietly(socket);
+    } catch (IOException | ClassNotFoundException | RuntimeException e) {
+      logger.error("Handshake with " + socket.getPort() + " failed: " + e);
+      closeQuietly(socket);
+    }
+  }
+
+  /**
+   * Start serving a greenhouse node which opened with {"join"} or {"resume", nodeId, token}.
+   * The node is first sent {"welcome", nodeId, token, status}. The status is "resumed" if the
+   * node kept its session, so its routing entry and snapshot are still in place and it only
+   * needs to send what changed while it was away. It is "new" otherwise, and the node must
+   * send its "add" message. A resumed node replaces its old connection, in case the server has
+   * not noticed yet that the old one is gone.
+   *
+   * @param socket    The node socket
+   * @param stream    The message stream for the socket
+   * @param keyAnswer The answer to the key offer of the node, or null if it made none
+   * @param hello     The handshake message
+   * @param selector  True if the node is to be served by the selector transport
+   * @throws IOException If the channel could not be handed to the selector transport
+   */
+  private void startSession(Socket socket, MessageStream stream, String[] keyAnswer,
+                            String[] hello, boolean selector) throws IOException {
+    int requested = requestedId(hello);
+    ClientConnection connection;
+    ClientConnection stale;
+    String status;
+    synchronized (nodes) {
+      NodeDirectory.Session session =
+          hello.length > 2 ? nodes.resume(requested, hello[2]) : null;
+      status = session != null ? "resumed" : "new";
+      if (session == null) {
+        session = nodes.join(requested);
+      }
+      int nodeId = session.getId();
+      connection = createConnection(socket, stream, keyAnswer, selector, false, nodeId);
+      connection.getOutboundQueue().force(new SharedFrame(new String[] {
+          "welcome", Integer.toString(nodeId), session.getToken(), status}));
+      stale = greenHouseSockets.get(nodeId);
+      greenHouseSockets.put(nodeId, connection);
+      declareCameras(nodeId, hello);
+    }
+    if (stale != null) {
+      stale.close();
+    }
+    connection.start();
+    logger.info("Greenhouse " + connection.getAddress() + " " + status + " session");
+  }
+
+  /**
+   * Open the session of a node run by a host, as {@link #startSession} does for a node on its
+   * own connection. The welcome is queued on the connection of the host, which matches the
+   * answers to its requests in order, and the node is routed to the host from now on.
+   *
+   * @param host  The connection of the host
+   * @param hello The "join" or "resume" message of the node
+   */
+  private void openHostedSession(ClientConnection host, String[] hello) {
+    int requested = requestedId(hello);
+    ClientConnection stale;
+    String status;
+    int nodeId;
+    synchronized (nodes) {
+      Set<Integer> hosted = hosts.get(host);
+      if (hosted == null) {
+        return;
       }
+      NodeDirectory.Session session =
+          hello.length > 2 ? nodes.resume(requested, hello[2]) : null;
+      status = session != null ? "resumed" : "new";
+      if (session == null) {
+        session = nodes.join(requested);
+      }
+      nodeId = session.getId();
+      host.putOnQueue(new String[] {
+          "welcome", Integer.toString(nodeId), session.getToken(), status});
+      stale = greenHouseSockets.get(nodeId);
+      greenHouseSockets.put(nodeId, host);
+      hosted.add(nodeId);
+      declareCameras(nodeId, hello);
+    }
+    if (stale != null && stale != host) {
+      stale.close();
+    }
+    logger.info("Greenhouse " + nodeId + " on host " + host.getAddress() + " " + status
+        + " session");
+  }
+
+  /**
+   * Get the node ID a node asks for in {"resume", nodeId, token}.
+   *
+   * @param hello The "join" or "resume" message
+   * @return The node ID, or 0 to take the next free ID
+   */
+  private int requestedId(String[] hello) {
+    if (hello[0].equals("resume") && hello.length > 1) {
+      try {
+        return Integer.parseInt(hello[1]);
+      } catch (NumberFormatException e) {
+        logger.error("Ignoring malformed node ID in resume: " + hello[1]);
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Take the number of cameras a node declares in its "join" or "resume" message, the field
+   * after the request, so image chunks are only taken from those cameras. A node which
+   * declares none may send from up to {@code greenhouse.camera.max} cameras.
+   *
+   * @param nodeId The ID the node was given
+   * @param hello  The "join" or "resume" message of the node
+   */
+  private void declareCameras(int nodeId, String[] hello) {
+    int field = hello[0].equals("resume") ? 3 : 1;
+    if (hello.length > field) {
+      try {
+        imageChunks.declareCameras(String.valueOf(nodeId), Integer.parseInt(hello[field]));
+      } catch (NumberFormatException e) {
+        logger.error("Ignoring malformed camera count of node " + nodeId + ": " + hello[field]);
+      }
+    }
+  }
+
+  /**
+   * Create the connection serving a client which has finished its handshake, on an event loop
+   * in selector mode and on handler threads otherwise. A framed connection writes in the frame
+   * format the client used in its handshake. The answer to a key offer is queued as the first
+   * message to the client, followed by the answer to a compression offer if it was accepted.
+   *
+   * @param socket       The client socket
+   * @param stream       The message stream the handshake was read from
+   * @param keyAnswer    The answer to the key offer of the client, or null if it made none
+   * @param selector     True if the client is to be served by the selector transport
+   * @param controlPanel True for a control panel, false for a greenhouse node
+   * @param address      The node ID of a node, or the remote port of a control panel
+   * @return The connection, not started yet
+   * @throws IOException If the channel could not be handed to the selector transport
+   */
+  private ClientConnection createConnection(Socket socket, MessageStream stream,
+                                            String[] keyAnswer, boolean selector,
+                                            boolean controlPanel, int address)
+      throws IOException {
+    ClientConnection connection;
+    if (selector) {
+      FrameFormat format = ((FramedMessageStream) stream).getFormat();
+      connection = selectorTransport.createConnection(socket.getChannel(), controlPanel,
+          address, format, stream.getCompression());
+    } else {
+      connection = controlPanel
+          ? new ControlPanelHandler(socket, stream, this)
+          : new GreenhouseHandler(socket, stream, this, address);
+    }
+    if (keyAnswer != null) {
+      connection.getOutboundQueue().force(new SharedFrame(keyAnswer));
+    }
+    if (stream.getCompression() != null && stream.getCompression().isEnabled()) {
+      connection.getOutboundQueue().force(new SharedFrame(Compression.negotiation()));
+    }
+    return connection;
+  }
+
+  /**
+   * Close a socket which never became a connection.
+   *
+   * @param socket The socket
+   */
+  private void closeQuietly(Socket socket) {
+    try {
+      socket.close();
     } catch (IOException e) {
-      System.out.println("Could not accept the next client: " + e.getMessage());
-    } catch (ClassNotFoundException e) {
-      throw new RuntimeException(e);
+      logger.error("Failed to close socket " + socket.getPort() + ": " + e.getMessage());
     }
-    return socket;
   }
 
 }
@@ -2,6 +2,8 @@ package no.ntnu.tools;
 
 /**
  * Configuration class for the greenhouse simulator.
+ * Settings that can differ between deployments are read from system properties, for example
+ * {@code -Dgreenhouse.server.mode=selector}, and fall back to the defaults below.
  */
 public class Config {
   public static final int TIMEOUT = 100; // Timeout in milliseconds
@@ -10,6 +12,159 @@ public class Config {
 
   public static final String SERVER_ADDRESS = "localhost"; // Server address
 
+  // Wire format used by nodes and control panels, "object" (Java object streams), "framed"
+  // (frames holding serialized messages) or "binary" (frames holding typed fields)
+  public static final String WIRE_FORMAT = System.getProperty("greenhouse.wire", "object");
+
+  // Compression a framed client asks the server for: "deflate" or "off". The server accepts
+  // deflate from any framed client which asks for it
+  public static final String COMPRESSION = System.getProperty("greenhouse.compression", "off");
+
+  // Cipher nodes and control panels encrypt payloads with: "session" (AES-GCM under a session
+  // key the server hands out in the handshake) or "rsa" (RSA on every character, as before).
+  // Either can decrypt messages from the other, given the session key
+  public static final String CIPHER = System.getProperty("greenhouse.cipher", "session");
+
+  // Frames with a smaller body than this are sent uncompressed, since they gain little
+  public static final int COMPRESSION_THRESHOLD = Integer.getInteger(
+      "greenhouse.compression.threshold", 128); // Size in bytes
+
+  // How nodes send sensor readings: "schema" (sensors declared once in "add", then one
+  // fixed-point value per sensor) or "text" (every reading in full, as before)
+  public static final String READING_FORMAT = System.getProperty("greenhouse.readings",
+      "schema");
+
+  // Sensor messages from one full keyframe to the next when nodes send only the values that
+  // changed in between, 0 or 1 to send every reading in full
+  public static final int DELTA_KEYFRAME_INTERVAL = Integer.getInteger(
+      "greenhouse.delta.keyframe", 0);
+
+  // Change from the keyframe, in the unit of the sensor, up to which a value is not resent
+  public static final double DELTA_DEADBAND = Double.parseDouble(
+      System.getProperty("greenhouse.delta.deadband", "0"));
+
+  // How nodes send camera images: "chunked" (the raw JPEG bytes split into "chunk" messages,
+  // sent a few at a time between other messages) or "message" (one encrypted base64 "camera"
+  // message per update)
+  public static final String CAMERA_STREAM = System.getProperty("greenhouse.camera.stream",
+      "chunked");
+
+  // Largest part of an image carried by one "chunk" message
+  public static final int CAMERA_CHUNK_SIZE = Integer.getInteger("greenhouse.camera.chunk",
+      8192); // Size in bytes
+
+  // Most image chunks a node writes between two reads of its connection, which bounds how long
+  // sensor and actuator messages wait behind an image
+  public static final int CAMERA_WINDOW = Integer.getInteger("greenhouse.camera.window", 4);
+
+  // Size of the camera images a control panel is sent for a node whose camera pane is not open:
+  // "thumbnail", "medium" or "full". A panel is sent full images of the node it shows
+  public static final String CAMERA_VIEW = System.getProperty("greenhouse.camera.view",
+      "thumbnail");
+
+  // Threads on which the server makes the thumbnail and medium renditions of camera images
+  public static final int RENDER_THREADS = Integer.getInteger("greenhouse.render.threads", 2);
+
+  // Camera images waiting for their renditions beyond which new images are sent in full only
+  public static final int RENDER_QUEUE = Integer.getInteger("greenhouse.render.queue", 256);
+
+  // Most cameras a node may send images from, whatever number it declares
+  public static final int MAX_CAMERAS = Integer.getInteger("greenhouse.camera.max", 16);
+
+  // How long an image being put together from chunks waits for its next chunk before it is
+  // discarded
+  public static final long IMAGE_PARTIAL_TIMEOUT = Long.getLong(
+      "greenhouse.image.partial.timeout", 30000); // Timeout in milliseconds
+
+  // Bytes of camera images the server, a node and a control panel each keep by the hash of their
+  // content, so an image the receiver has seen before is sent as its hash alone
+  public static final long IMAGE_CACHE_SIZE = Long.getLong("greenhouse.image.cache",
+      16 * 1024 * 1024); // Size in bytes
+
+  // Transport used by the server: "blocking" (one polling thread per connection), "virtual"
+  // (handlers on virtual threads with blocking reads, Java 21 or newer) or "selector"
+  // (event loops)
+  public static final String SERVER_MODE = System.getProperty("greenhouse.server.mode",
+      "blocking");
+
+  // Number of event loop threads driving framed connections in selector mode
+  public static final int EVENT_LOOP_THREADS = Integer.getInteger("greenhouse.server.loops",
+      Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+  // Time a new client has to identify itself before the server closes it
+  public static final int HANDSHAKE_TIMEOUT = Integer.getInteger("greenhouse.handshake.timeout",
+      5000); // Timeout in milliseconds
+
+  // Threads running handshakes of new clients, off the thread accepting connections
+  public static final int HANDSHAKE_THREADS = Integer.getInteger("greenhouse.handshake.threads",
+      16);
+
+  // Accepted clients waiting for or in a handshake before the server stops accepting more
+  public static final int MAX_PENDING_HANDSHAKES = Integer.getInteger(
+      "greenhouse.handshake.limit", 256);
+
+  // Time a disconnected node keeps its ID and snapshot, waiting for it to resume its session
+  public static final long RESUME_GRACE = Long.getLong("greenhouse.resume.grace",
+      30000); // Grace period in milliseconds
+
+  // Time a node waits before reconnecting to the server, doubled after every failed attempt
+  public static final long RECONNECT_DELAY = Long.getLong("greenhouse.reconnect.delay",
+      500); // Delay in milliseconds
+
+  // Longest time a node waits between attempts to reconnect
+  public static final long RECONNECT_MAX_DELAY = Long.getLong("greenhouse.reconnect.max",
+      30000); // Delay in milliseconds
+
+  // Greenhouses one node process runs as a host, sharing its connections to the server, or 0
+  // to run a single greenhouse on its own connection
+  public static final int HOST_NODES = Integer.getInteger("greenhouse.host.nodes", 0);
+
+  // Connections a host spreads its greenhouses over
+  public static final int HOST_CONNECTIONS = Integer.getInteger("greenhouse.host.connections",
+      1);
+
+  // Threads running the periodic tasks of all the greenhouse nodes in a process: reading
+  // sensors, updating cameras and aggregating readings
+  public static final int SCHEDULER_THREADS = Integer.getInteger("greenhouse.scheduler.threads",
+      Runtime.getRuntime().availableProcessors());
+
+  // Messages waiting on one connection before the overflow policy applies
+  public static final int OUTBOUND_QUEUE_CAPACITY = Integer.getInteger("greenhouse.queue.capacity",
+      1000);
+
+  // Messages a connection queue may hold over its capacity for the handshake and the snapshot
+  // sent to a joining control panel
+  public static final int OUTBOUND_QUEUE_HEADROOM = Integer.getInteger(
+      "greenhouse.queue.headroom", 10000);
+
+  // What a full connection queue gives up: "drop-oldest", "drop-telemetry" or "disconnect"
+  public static final String OVERFLOW_POLICY = System.getProperty("greenhouse.queue.overflow",
+      "drop-telemetry");
+
+  // Whether a control panel queue replaces waiting "data", "delta" and "aggregate" messages of
+  // a node with newer ones, instead of queuing every reading
+  public static final boolean CONFLATE_TELEMETRY = Boolean.parseBoolean(
+      System.getProperty("greenhouse.cp.conflate", "true"));
+
+  // How often the server logs connections that have queued or dropped messages
+  public static final long QUEUE_REPORT_INTERVAL = 30000; // Interval in milliseconds
+
+  // Most queued messages written to a connection before the stream is flushed
+  public static final int BATCH_MAX_SIZE = Integer.getInteger("greenhouse.batch.size", 64);
+
+  // Whether a batch of messages is sent in one envelope, a batch frame or one object on object
+  // streams, instead of as one frame or object per message
+  public static final boolean BATCH_ENVELOPE = Boolean.parseBoolean(
+      System.getProperty("greenhouse.batch.envelope", "true"));
+
+  // How long a writer waits for more messages to fill a batch before flushing
+  public static final long BATCH_MAX_LINGER = Long.getLong("greenhouse.batch.linger", 0); // ms
+
+  // Nodes a control panel subscribes to: "*", or node IDs and ranges such as "1238,5000-5100"
+  public static final String CONTROL_PANEL_NODES = System.getProperty("greenhouse.cp.nodes", "*");
+
+  public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024; // Largest accepted frame in bytes
+
   private Config() {
 
   }
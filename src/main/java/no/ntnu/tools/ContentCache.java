@@ -0,0 +1,116 @@
+package no.ntnu.tools;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * Values, such as camera images, kept by the hash of their content. The cache is bounded by the
+ * total size of its values: when it grows past its capacity the least recently used values are
+ * evicted. A value larger than the capacity is not kept at all. The cache counts its hits,
+ * misses and evictions. It is safe to use from several threads.
+ *
+ * @param <V> The type of the values
+ */
+public class ContentCache<V> {
+  private final long capacity;
+  private final ToLongFunction<V> sizer;
+  private final LinkedHashMap<String, V> values = new LinkedHashMap<>(16, 0.75f, true);
+  private long size;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * Create a cache.
+   *
+   * @param capacity The most bytes the values may take together
+   * @param sizer    The size of a value in bytes
+   */
+  public ContentCache(long capacity, ToLongFunction<V> sizer) {
+    this.capacity = capacity;
+    this.sizer = sizer;
+  }
+
+  /**
+   * Get a value, counting a hit or a miss, and mark it as recently used.
+   *
+   * @param hash The hash of the content
+   * @return The value, or null if it is not in the cache
+   */
+  public synchronized V get(String hash) {
+    V value = values.get(hash);
+    if (value != null) {
+      hits++;
+    } else {
+      misses++;
+    }
+    return value;
+  }
+
+  /**
+   * Get a value without counting a hit or a miss, for example to serve a request for it.
+   *
+   * @param hash The hash of the content
+   * @return The value, or null if it is not in the cache
+   */
+  public synchronized V peek(String hash) {
+    return values.get(hash);
+  }
+
+  /**
+   * Add a value, evicting the least recently used values if the cache grows too large.
+   *
+   * @param hash  The hash of the content
+   * @param value The value
+   */
+  public synchronized void put(String hash, V value) {
+    long valueSize = sizer.applyAsLong(value);
+    V old = values.remove(hash);
+    if (old != null) {
+      size -= sizer.applyAsLong(old);
+    }
+    if (valueSize > capacity) {
+      return;
+    }
+    values.put(hash, value);
+    size += valueSize;
+    Iterator<Map.Entry<String, V>> eldest = values.entrySet().iterator();
+    while (size > capacity && eldest.hasNext()) {
+      size -= sizer.applyAsLong(eldest.next().getValue());
+      eldest.remove();
+      evictions++;
+    }
+  }
+
+  /**
+   * Get the number of lookups counted, hits and misses.
+   *
+   * @return The number of lookups
+   */
+  public synchronized long getLookups() {
+    return hits + misses;
+  }
+
+  /**
+   * Get the share of lookups that found their value.
+   *
+   * @return The hit rate from 0 to 1, 0 if nothing has been looked up
+   */
+  public synchronized double getHitRate() {
+    return hits + misses > 0 ? hits / (double) (hits + misses) : 0;
+  }
+
+  /**
+   * Get a short summary of the counters.
+   *
+   * @return The summary
+   */
+  @Override
+  public synchronized String toString() {
+    return String.format("%d entries, %d of %d bytes, %d hits, %d misses (%.0f%% hit rate), "
+        + "%d evicted", values.size(), size, capacity, hits, misses, getHitRate() * 100,
+        evictions);
+  }
+}
@@ -0,0 +1,247 @@
+package no.ntnu.tools;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits camera images into "chunk" messages and puts them back together:
+ * {"chunk", nodeId, camera, hash, offset, total length, bytes}. The bytes are carried one per
+ * character, which the binary frame format writes as they are. An image is named by the hash of
+ * its content, so the chunks of a new image are told apart from those of the last one, and a
+ * receiver which already has an image can be sent its hash alone.
+ *
+ * <p>The chunks of an image arrive in order, but a connection short of room may drop some of
+ * them. An image missing a chunk, overtaken by another image from the same camera, or not
+ * matching its hash, is discarded.
+ *
+ * <p>A sender can not make the receiver hold more than it has sent. An image in progress grows
+ * with its chunks rather than taking its whole length up front. Chunks are only taken from the
+ * cameras a node declared, at most {@code greenhouse.camera.max}, so a node has at most one
+ * image in progress per camera. An image which gets no chunk for
+ * {@code greenhouse.image.partial.timeout} milliseconds is discarded.
+ */
+public class ImageChunks {
+  private static final int HASH_BYTES = 16;
+
+  private final Map<String, Partial> partials = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<String, Integer> cameras = new HashMap<>();
+  private long discarded;
+
+  /**
+   * Name an image by the hash of its content, the first 16 bytes of its SHA-256 digest.
+   *
+   * @param image The image
+   * @return The hash as hexadecimal
+   */
+  public static String hash(byte[] image) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(image);
+      return HexFormat.of().formatHex(digest, 0, HASH_BYTES);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  /**
+   * Build one chunk of an image.
+   *
+   * @param nodeId The ID of the node, the address of the chunk
+   * @param camera The index of the camera on the node
+   * @param hash   The hash of the image
+   * @param image  The image
+   * @param offset The first byte of the chunk
+   * @param length The number of bytes in the chunk
+   * @return The "chunk" message
+   */
+  public static String[] chunk(String nodeId, String camera, String hash, byte[] image,
+                               int offset, int length) {
+    String bytes = new String(image, offset, length, StandardCharsets.ISO_8859_1);
+    return new String[] {"chunk", nodeId, camera, hash, String.valueOf(offset),
+        String.valueOf(image.length), bytes};
+  }
+
+  /**
+   * Split a whole image into chunks.
+   *
+   * @param nodeId    The ID of the node, the address of the chunks
+   * @param camera    The index of the camera on the node
+   * @param hash      The hash of the image
+   * @param image     The image
+   * @param chunkSize The most bytes in one chunk
+   * @return The "chunk" messages, in order
+   */
+  public static List<String[]> split(String nodeId, String camera, String hash, byte[] image,
+                                     int chunkSize) {
+    List<String[]> chunks = new ArrayList<>();
+    int offset = 0;
+    do {
+      int length = Math.min(chunkSize, image.length - offset);
+      chunks.add(chunk(nodeId, camera, hash, image, offset, length));
+      offset += length;
+    } while (offset < image.length);
+    return chunks;
+  }
+
+  /**
+   * Add a chunk of an image.
+   *
+   * @param chunk The "chunk" message
+   * @return The image, if the chunk completed it and it matches its hash, or null
+   * @throws IllegalArgumentException If the chunk is malformed
+   */
+  public synchronized byte[] add(String[] chunk) {
+    if (chunk.length < 7) {
+      throw new IllegalArgumentException("Truncated image chunk");
+    }
+    String key = chunk[1] + ":" + chunk[2];
+    int camera = Integer.parseInt(chunk[2]);
+    if (camera < 0 || camera >= cameras.getOrDefault(chunk[1], Config.MAX_CAMERAS)) {
+      throw new IllegalArgumentException("Image chunk from undeclared camera " + key);
+    }
+    String hash = chunk[3];
+    int offset = Integer.parseInt(chunk[4]);
+    int total = Integer.parseInt(chunk[5]);
+    String data = chunk[6];
+    if (total < 0 || total > Config.MAX_FRAME_SIZE || offset < 0
+        || data.length() > total - offset) {
+      throw new IllegalArgumentException("Image chunk out of bounds");
+    }
+
+    long now = System.currentTimeMillis();
+    evictStale(now);
+    Partial partial = partials.get(key);
+    if (offset == 0) {
+      if (partial != null) {
+        discarded++;
+      }
+      partial = new Partial(hash, total);
+      partials.put(key, partial);
+    } else if (partial == null || !partial.hash.equals(hash) || offset != partial.received
+        || total != partial.total) {
+      // A chunk was lost, skip the rest of the image
+      if (partial != null) {
+        discarded++;
+        partials.remove(key);
+      }
+      return null;
+    }
+    partial.append(data, now);
+    if (partial.received < partial.total) {
+      return null;
+    }
+    partials.remove(key);
+    if (!hash(partial.bytes).equals(hash)) {
+      discarded++;
+      return null;
+    }
+    return partial.bytes;
+  }
+
+  /**
+   * Set the number of cameras of a node, from which chunks are taken. A node which has not
+   * declared its cameras may send from up to {@code greenhouse.camera.max} of them.
+   *
+   * @param nodeId The ID of the node
+   * @param count  The number of cameras
+   */
+  public synchronized void declareCameras(String nodeId, int count) {
+    cameras.put(nodeId, Math.max(0, Math.min(count, Config.MAX_CAMERAS)));
+    partials.keySet().removeIf(key -> key.startsWith(nodeId + ":")
+        && Integer.parseInt(key.substring(nodeId.length() + 1)) >= cameras.get(nodeId));
+  }
+
+  /**
+   * Forget the incomplete images and cameras of a node which has been removed.
+   *
+   * @param nodeId The ID of the node
+   */
+  public synchronized void removeNode(String nodeId) {
+    partials.keySet().removeIf(key -> key.startsWith(nodeId + ":"));
+    cameras.remove(nodeId);
+  }
+
+  /**
+   * Get the number of images in progress.
+   *
+   * @return The number of incomplete images
+   */
+  public synchronized int getPartials() {
+    return partials.size();
+  }
+
+  /**
+   * Get the number of images discarded incomplete or not matching their hash.
+   *
+   * @return The number of images discarded
+   */
+  public synchronized long getDiscarded() {
+    return discarded;
+  }
+
+  /**
+   * Discard the images which have not had a chunk for the timeout. The images are kept in the
+   * order of their last chunk, so only the stale ones at the head are looked at.
+   *
+   * @param now The current time in milliseconds
+   */
+  private void evictStale(long now) {
+    Iterator<Partial> waiting = partials.values().iterator();
+    while (waiting.hasNext()) {
+      Partial partial = waiting.next();
+      if (now - partial.updated < Config.IMAGE_PARTIAL_TIMEOUT) {
+        return;
+      }
+      waiting.remove();
+      discarded++;
+    }
+  }
+
+  /**
+   * An image of which only the first chunks have arrived.
+   */
+  private static final class Partial {
+    private final String hash;
+    private final int total;
+    private byte[] bytes = new byte[0];
+    private int received;
+    private long updated;
+
+    /**
+     * Create an image waiting for its chunks.
+     *
+     * @param hash  The hash of the image
+     * @param total The length of the image
+     */
+    private Partial(String hash, int total) {
+      this.hash = hash;
+      this.total = total;
+    }
+
+    /**
+     * Add the bytes of the next chunk, growing the buffer at most to the length of the image.
+     *
+     * @param data The bytes, one per character
+     * @param now  The current time in milliseconds
+     */
+    private void append(String data, long now) {
+      int needed = received + data.length();
+      if (needed > bytes.length) {
+        int grown = (int) Math.min(total, Math.max(needed, 2L * bytes.length));
+        bytes = Arrays.copyOf(bytes, grown);
+      }
+      for (int i = 0; i < data.length(); i++) {
+        bytes[received++] = (byte) data.charAt(i);
+      }
+      updated = now;
+    }
+  }
+}
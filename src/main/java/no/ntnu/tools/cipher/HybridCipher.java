@@ -0,0 +1,75 @@
+package no.ntnu.tools.cipher;
+
+/**
+ * The cipher of a node, control panel or the server: the session cipher once it has the session
+ * key, and the RSA cipher until then or if the client did not ask for the key. Messages are
+ * decrypted with whichever cipher sealed them, so clients using either can talk to each other,
+ * as long as the receiver has the session key for sealed messages.
+ *
+ * <p>The camera messages, "chunk", "image" and "fetch", are sealed with the session key like
+ * any other message. RSA can not encrypt the raw bytes of a chunk, so without the session key
+ * they are sent as they are, and received as they are when they are not sealed.
+ */
+public class HybridCipher implements MessageCipher {
+  private final RsaCipher legacy = new RsaCipher();
+  private volatile SessionCipher session;
+
+  /**
+   * Start encrypting with the session key, after the key exchange.
+   *
+   * @param session The cipher for the session key
+   */
+  public void setSession(SessionCipher session) {
+    this.session = session;
+  }
+
+  /**
+   * Check whether the client has the session key.
+   *
+   * @return True once the session key has been given
+   */
+  public boolean hasSession() {
+    return session != null;
+  }
+
+  /**
+   * Encrypt the payload of a message with the session key, or with RSA without one.
+   *
+   * @param payload The message
+   * @return The message with its payload encrypted
+   */
+  @Override
+  public String[] encrypt(String[] payload) {
+    SessionCipher current = session;
+    if (current != null) {
+      return current.encrypt(payload);
+    }
+    return isCamera(payload) ? payload : legacy.encrypt(payload);
+  }
+
+  /**
+   * Decrypt the payload of a message with the cipher which encrypted it.
+   *
+   * @param payload The message with its payload encrypted
+   * @return The message, or null if it is sealed and can not be opened with the session key
+   */
+  @Override
+  public String[] decrypt(String[] payload) {
+    if (!SessionCipher.isSealed(payload)) {
+      return isCamera(payload) ? payload : legacy.decrypt(payload);
+    }
+    SessionCipher current = session;
+    return current != null ? current.decrypt(payload) : null;
+  }
+
+  /**
+   * Check whether a message is a camera message, which is not encrypted with RSA.
+   *
+   * @param payload The message
+   * @return True for "chunk", "image" and "fetch" messages
+   */
+  private static boolean isCamera(String[] payload) {
+    String command = payload.length > 0 ? payload[0] : "";
+    return "chunk".equals(command) || "image".equals(command) || "fetch".equals(command);
+  }
+}
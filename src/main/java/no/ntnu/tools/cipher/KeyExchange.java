@@ -0,0 +1,170 @@
+package no.ntnu.tools.cipher;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import javax.crypto.KeyAgreement;
+
+/**
+ * The exchange which gives a client the session key of the server during its handshake. The
+ * client sends {"key", "x25519", public key} before its first message, with a new X25519 key
+ * pair for every connection. The server answers with {"key", "x25519", public key, sealed
+ * session key}, again with a new key pair, as the first message to the client. Both ends agree
+ * on a shared secret from their own private key and the other's public key, hash it with both
+ * public keys into a key for AES-GCM, and the server seals the session key with it. Public keys
+ * and the sealed key are sent as base64.
+ *
+ * <p>The server is not authenticated, so the exchange keeps the session key from anyone
+ * listening on the connection, but not from someone able to pose as the server.
+ */
+public class KeyExchange {
+  // The command of the messages exchanging keys
+  public static final String COMMAND = "key";
+
+  private static final String ALGORITHM = "X25519";
+  private static final String METHOD = "x25519";
+
+  private final KeyPair keys = generateKeyPair();
+
+  /**
+   * Get the message a client offers its public key with.
+   *
+   * @return The message
+   */
+  public String[] offer() {
+    return new String[] {COMMAND, METHOD, encode(keys.getPublic())};
+  }
+
+  /**
+   * Check whether a message is a client offering its public key.
+   *
+   * @param message The message
+   * @return True if the message is an offer
+   */
+  public static boolean isOffer(String[] message) {
+    return message != null && message.length == 3 && COMMAND.equals(message[0]);
+  }
+
+  /**
+   * Check whether a message is the answer of the server to an offer.
+   *
+   * @param message The message
+   * @return True if the message is an answer
+   */
+  public static boolean isAnswer(String[] message) {
+    return message != null && message.length == 4 && COMMAND.equals(message[0]);
+  }
+
+  /**
+   * Answer the offer of a client with the session key, sealed so only that client can open it.
+   *
+   * @param offer      The offer of the client
+   * @param sessionKey The session key of the server
+   * @return The answer
+   * @throws IllegalArgumentException If the offer is for another method or holds no valid key
+   */
+  public static String[] answer(String[] offer, byte[] sessionKey) {
+    if (!METHOD.equals(offer[1])) {
+      throw new IllegalArgumentException("Unknown key exchange method " + offer[1]);
+    }
+    KeyPair server = generateKeyPair();
+    String serverKey = encode(server.getPublic());
+    SessionCipher wrapper = new SessionCipher(
+        deriveKey(server.getPrivate(), decode(offer[2]), offer[2], serverKey));
+    byte[] sealed = wrapper.seal(sessionKey, 0, COMMAND.getBytes(StandardCharsets.UTF_8));
+    return new String[] {COMMAND, METHOD, serverKey, Base64.getEncoder().encodeToString(sealed)};
+  }
+
+  /**
+   * Open the session key in the answer of the server.
+   *
+   * @param answer The answer of the server
+   * @return A cipher for the session key
+   * @throws IllegalArgumentException If the answer holds no valid key, or a session key sealed
+   *                                  for another client
+   */
+  public SessionCipher accept(String[] answer) {
+    if (!METHOD.equals(answer[1])) {
+      throw new IllegalArgumentException("Unknown key exchange method " + answer[1]);
+    }
+    SessionCipher wrapper = new SessionCipher(
+        deriveKey(keys.getPrivate(), decode(answer[2]), encode(keys.getPublic()), answer[2]));
+    byte[] sessionKey = wrapper.open(Base64.getDecoder().decode(answer[3]),
+        COMMAND.getBytes(StandardCharsets.UTF_8));
+    if (sessionKey == null) {
+      throw new IllegalArgumentException("Session key could not be opened");
+    }
+    return new SessionCipher(sessionKey);
+  }
+
+  /**
+   * Agree on a shared secret and hash it into a key, along with the public keys of both ends.
+   *
+   * @param own       The private key of this end
+   * @param other     The public key of the other end
+   * @param clientKey The public key of the client as sent
+   * @param serverKey The public key of the server as sent
+   * @return The key for sealing the session key
+   */
+  private static byte[] deriveKey(PrivateKey own, PublicKey other, String clientKey,
+                                  String serverKey) {
+    try {
+      KeyAgreement agreement = KeyAgreement.getInstance(ALGORITHM);
+      agreement.init(own);
+      agreement.doPhase(other, true);
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(agreement.generateSecret());
+      digest.update(clientKey.getBytes(StandardCharsets.US_ASCII));
+      digest.update(serverKey.getBytes(StandardCharsets.US_ASCII));
+      return digest.digest();
+    } catch (GeneralSecurityException e) {
+      throw new IllegalArgumentException("Key agreement failed", e);
+    }
+  }
+
+  /**
+   * Generate a new X25519 key pair.
+   *
+   * @return The key pair
+   */
+  private static KeyPair generateKeyPair() {
+    try {
+      return KeyPairGenerator.getInstance(ALGORITHM).generateKeyPair();
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("X25519 is not available", e);
+    }
+  }
+
+  /**
+   * Encode a public key to send it.
+   *
+   * @param key The public key
+   * @return The key as base64
+   */
+  private static String encode(PublicKey key) {
+    return Base64.getEncoder().encodeToString(key.getEncoded());
+  }
+
+  /**
+   * Decode a public key received as base64.
+   *
+   * @param key The key as base64
+   * @return The public key
+   * @throws IllegalArgumentException If the text is not a valid X25519 public key
+   */
+  private static PublicKey decode(String key) {
+    try {
+      return KeyFactory.getInstance(ALGORITHM)
+          .generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(key)));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalArgumentException("Invalid public key", e);
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package no.ntnu.tools.cipher;
+
+/**
+ * Encrypts the payload of messages between greenhouse nodes and control panels. The command
+ * and address of a message, its first two fields, are left as they are so the server can route
+ * it without decrypting it, and the fields after them are encrypted.
+ */
+public interface MessageCipher {
+  /**
+   * Encrypt the payload of a message.
+   *
+   * @param payload The message
+   * @return The message with its payload encrypted
+   */
+  String[] encrypt(String[] payload);
+
+  /**
+   * Decrypt the payload of a message.
+   *
+   * @param payload The message with its payload encrypted
+   * @return The message, or null if it can not be decrypted
+   */
+  String[] decrypt(String[] payload);
+}
@@ -0,0 +1,49 @@
+package no.ntnu.tools.cipher;
+
+import java.math.BigInteger;
+import no.ntnu.tools.RSA;
+
+/**
+ * The original cipher, RSA applied to every character of the payload with a small fixed key
+ * pair shared by every node and control panel, see {@link RSA}. It is kept so a client which
+ * has no session key can still talk to the others.
+ */
+public class RsaCipher implements MessageCipher {
+  private final BigInteger[] keys = keyGen();
+
+  /**
+   * Encrypt the payload of a message, one character at a time.
+   *
+   * @param payload The message
+   * @return The message with its payload encrypted
+   */
+  @Override
+  public String[] encrypt(String[] payload) {
+    return RSA.encrypt(payload, keys);
+  }
+
+  /**
+   * Decrypt the payload of a message, one character at a time.
+   *
+   * @param payload The message with its payload encrypted
+   * @return The message
+   */
+  @Override
+  public String[] decrypt(String[] payload) {
+    return RSA.decrypt(payload, keys);
+  }
+
+  /**
+   * Generates the RSA keys for the communication.
+   *
+   * @return an array containing the private key, public key, and product of the two keys
+   */
+  private static BigInteger[] keyGen() {
+    int p = 7;
+    int q = 19;
+    BigInteger product = BigInteger.valueOf(p * q);
+    BigInteger pubKey = BigInteger.valueOf(29);
+    BigInteger privKey = BigInteger.valueOf(41);
+    return new BigInteger[] {privKey, pubKey, product};
+  }
+}
@@ -0,0 +1,198 @@
+package no.ntnu.tools.cipher;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import no.ntnu.tools.transport.FrameCodec;
+import no.ntnu.tools.transport.FrameFormat;
+
+/**
+ * Encrypts payloads with AES-256 in GCM mode under a session key, which every node and control
+ * panel is given by the server in its handshake, see {@link KeyExchange}. The fields after the
+ * command and address are encoded as a binary frame body, which is sealed as a whole into one
+ * field: a marker byte, a 12 byte nonce, and the encrypted body with its 16 byte tag. The bytes
+ * are carried one per character. The command and the address are authenticated along with the
+ * payload, so a sealed message can not be passed off as one for another node or actuator. The
+ * server relays messages with the address they were sealed with.
+ *
+ * <p>The marker byte is above 132, which the RSA cipher never produces, so a receiver can tell
+ * the two ciphers apart. The nonce is 8 random bytes followed by a counter, and new random
+ * bytes are drawn whenever the counter wraps, so the many senders sharing a key do not repeat a
+ * nonce.
+ */
+public class SessionCipher implements MessageCipher {
+  // The first byte of a sealed payload
+  static final char SEALED = '\u00a5';
+
+  // The length of a session key in bytes
+  public static final int KEY_SIZE = 32;
+
+  private static final String ALGORITHM = "AES/GCM/NoPadding";
+  private static final int NONCE_SIZE = 12;
+  private static final int PREFIX_SIZE = 8;
+  private static final int TAG_SIZE = 16;
+  private static final SecureRandom random = new SecureRandom();
+
+  private final SecretKeySpec key;
+  private final Cipher sealer;
+  private final Cipher opener;
+  private final byte[] nonce = new byte[NONCE_SIZE];
+  private int counter;
+
+  /**
+   * Create a cipher for a session key.
+   *
+   * @param key The session key
+   * @throws IllegalArgumentException If the key is not {@value #KEY_SIZE} bytes
+   */
+  public SessionCipher(byte[] key) {
+    if (key.length != KEY_SIZE) {
+      throw new IllegalArgumentException("Session key must be " + KEY_SIZE + " bytes");
+    }
+    this.key = new SecretKeySpec(key, "AES");
+    try {
+      this.sealer = Cipher.getInstance(ALGORITHM);
+      this.opener = Cipher.getInstance(ALGORITHM);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("AES-GCM is not available", e);
+    }
+  }
+
+  /**
+   * Generate a new random session key.
+   *
+   * @return The key
+   */
+  public static byte[] generateKey() {
+    byte[] key = new byte[KEY_SIZE];
+    random.nextBytes(key);
+    return key;
+  }
+
+  /**
+   * Check whether a message has a payload sealed by this cipher.
+   *
+   * @param payload The message
+   * @return True if the message is sealed
+   */
+  public static boolean isSealed(String[] payload) {
+    return payload != null && payload.length == 3 && payload[2] != null
+        && !payload[2].isEmpty() && payload[2].charAt(0) == SEALED;
+  }
+
+  /**
+   * Seal the fields after the command and address of a message. A message with no such fields
+   * is returned as it is.
+   *
+   * @param payload The message
+   * @return The command, the address and the sealed payload
+   */
+  @Override
+  public String[] encrypt(String[] payload) {
+    if (payload.length <= 2) {
+      return payload;
+    }
+    String[] fields = Arrays.copyOfRange(payload, 2, payload.length);
+    byte[] body;
+    try {
+      body = FrameCodec.encode(fields, FrameFormat.BINARY);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    byte[] sealed = seal(body, FrameCodec.HEADER_SIZE, header(payload));
+    return new String[] {payload[0], payload[1],
+        new String(sealed, StandardCharsets.ISO_8859_1)};
+  }
+
+  /**
+   * Open a sealed message.
+   *
+   * @param payload The command, the address and the sealed payload
+   * @return The message, or null if it is not sealed, not sealed with this key, or altered
+   */
+  @Override
+  public String[] decrypt(String[] payload) {
+    if (!isSealed(payload)) {
+      return null;
+    }
+    byte[] body = open(payload[2].getBytes(StandardCharsets.ISO_8859_1), header(payload));
+    String[] fields = body != null ? FrameCodec.decode(body) : null;
+    if (fields == null) {
+      return null;
+    }
+    String[] message = new String[fields.length + 2];
+    message[0] = payload[0];
+    message[1] = payload[1];
+    System.arraycopy(fields, 0, message, 2, fields.length);
+    return message;
+  }
+
+  /**
+   * Encrypt bytes with a fresh nonce.
+   *
+   * @param plain  The bytes to encrypt
+   * @param offset The first byte to encrypt
+   * @param aad    Bytes authenticated along with them, but not encrypted
+   * @return The marker byte, the nonce and the encrypted bytes with their tag
+   */
+  synchronized byte[] seal(byte[] plain, int offset, byte[] aad) {
+    if (counter == 0) {
+      random.nextBytes(nonce);
+    }
+    for (int i = 0; i < NONCE_SIZE - PREFIX_SIZE; i++) {
+      nonce[NONCE_SIZE - 1 - i] = (byte) (counter >>> (8 * i));
+    }
+    counter++;
+    try {
+      sealer.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+      sealer.updateAAD(aad);
+      byte[] sealed = new byte[1 + NONCE_SIZE + sealer.getOutputSize(plain.length - offset)];
+      sealed[0] = (byte) SEALED;
+      System.arraycopy(nonce, 0, sealed, 1, NONCE_SIZE);
+      sealer.doFinal(plain, offset, plain.length - offset, sealed, 1 + NONCE_SIZE);
+      return sealed;
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Failed to encrypt", e);
+    }
+  }
+
+  /**
+   * Decrypt bytes sealed with this key.
+   *
+   * @param sealed The marker byte, the nonce and the encrypted bytes with their tag
+   * @param aad    The bytes authenticated along with them
+   * @return The bytes, or null if they are truncated, sealed with another key, or altered
+   */
+  synchronized byte[] open(byte[] sealed, byte[] aad) {
+    if (sealed.length < 1 + NONCE_SIZE + TAG_SIZE || sealed[0] != (byte) SEALED) {
+      return null;
+    }
+    try {
+      opener.init(Cipher.DECRYPT_MODE, key,
+          new GCMParameterSpec(TAG_SIZE * 8, sealed, 1, NONCE_SIZE));
+      opener.updateAAD(aad);
+      return opener.doFinal(sealed, 1 + NONCE_SIZE, sealed.length - 1 - NONCE_SIZE);
+    } catch (AEADBadTagException e) {
+      return null;
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Failed to decrypt", e);
+    }
+  }
+
+  /**
+   * Get the command and address of a message as the bytes authenticated with its payload.
+   *
+   * @param payload The message
+   * @return The UTF-8 bytes of the command and the address, separated by a zero byte
+   */
+  private static byte[] header(String[] payload) {
+    return (payload[0] + '\0' + payload[1]).getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,480 @@
+package no.ntnu.tools.transport;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encodes messages as typed fields, the body of the binary frame format. A body is a version
+ * byte, the number of fields, and every field as a one byte type followed by its value:
+ *
+ * <ul>
+ *   <li>an integer, such as a node ID, as a variable length zigzag number</li>
+ *   <li>"true" or "false" as the type alone</li>
+ *   <li>an address "nodeId:actuatorId" as two variable length zigzag numbers</li>
+ *   <li>a string of characters up to U+00FF, some of them above ASCII, such as raw image
+ *   bytes carried one per character, as its length followed by one byte per character</li>
+ *   <li>anything else as a string, its UTF-8 length followed by its UTF-8 bytes</li>
+ * </ul>
+ *
+ * <p>A field is only given a type if it is written exactly as that type would print it, so
+ * every message decodes back to the same strings. Unlike object serialization the body holds
+ * no class descriptors and no references to earlier messages. Since every field carries its
+ * own length, the command and address can be read without decoding the fields after them.
+ */
+final class BinaryCodec {
+  // The first byte of a binary body. A serialized body starts with 0xAC instead.
+  static final byte VERSION = 0x01;
+
+  private static final byte NULL = 0;
+  private static final byte STRING = 1;
+  private static final byte INT = 2;
+  private static final byte TRUE = 3;
+  private static final byte FALSE = 4;
+  private static final byte ADDRESS = 5;
+  private static final byte BYTES = 6;
+
+  private static final long NOT_INT = Long.MIN_VALUE;
+
+  /**
+   * Not allowed to create an instance of this class.
+   */
+  private BinaryCodec() {
+  }
+
+  /**
+   * Encode a message into a complete frame, including the length header.
+   *
+   * @param message The message to encode
+   * @return The frame bytes
+   */
+  static byte[] encode(String[] message) {
+    int capacity = FrameCodec.HEADER_SIZE + 6;
+    for (String field : message) {
+      capacity += 6 + (field == null ? 0 : field.length());
+    }
+    Output out = new Output(capacity);
+    out.position = FrameCodec.HEADER_SIZE;
+    out.write(VERSION);
+    out.writeVarint(message.length);
+    for (String field : message) {
+      writeField(out, field);
+    }
+    byte[] frame = Arrays.copyOf(out.bytes, out.position);
+    FrameCodec.writeLength(frame, frame.length - FrameCodec.HEADER_SIZE);
+    return frame;
+  }
+
+  /**
+   * Decode a binary frame body back into a message.
+   *
+   * @param bytes  The bytes holding the body
+   * @param offset The start of the body
+   * @param length The length of the body
+   * @return The message, or null if the body is malformed
+   */
+  static String[] decode(byte[] bytes, int offset, int length) {
+    try {
+      Input in = new Input(bytes, offset, offset + length);
+      int count = in.readCount();
+      String[] message = new String[count];
+      for (int i = 0; i < count; i++) {
+        message[i] = readField(in);
+      }
+      return in.position == in.end ? message : null;
+    } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Read the command and address of a binary frame body, and check that the rest of the body
+   * is well formed by stepping over the fields without decoding them.
+   *
+   * @param bytes  The bytes holding the body
+   * @param offset The start of the body
+   * @param length The length of the body
+   * @return The command and the address, which is null if the message has no second field,
+   *         or null if the body is malformed or has no fields
+   */
+  static String[] decodeHeader(byte[] bytes, int offset, int length) {
+    try {
+      Input in = new Input(bytes, offset, offset + length);
+      int count = in.readCount();
+      if (count < 1) {
+        return null;
+      }
+      String[] header = new String[2];
+      header[0] = readField(in);
+      if (count > 1) {
+        header[1] = readField(in);
+      }
+      for (int i = 2; i < count; i++) {
+        in.skipField();
+      }
+      return in.position == in.end && header[0] != null ? header : null;
+    } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Write one field with the narrowest type that decodes back to the same string.
+   *
+   * @param out   Where to write the field
+   * @param field The field
+   */
+  private static void writeField(Output out, String field) {
+    if (field == null) {
+      out.write(NULL);
+      return;
+    }
+    if (field.equals("true") || field.equals("false")) {
+      out.write(field.equals("true") ? TRUE : FALSE);
+      return;
+    }
+    long value = parseInt(field, 0, field.length());
+    if (value != NOT_INT) {
+      out.write(INT);
+      out.writeVarint(zigzag((int) value));
+      return;
+    }
+    int colon = field.indexOf(':');
+    if (colon > 0) {
+      long node = parseInt(field, 0, colon);
+      long actuator = parseInt(field, colon + 1, field.length());
+      if (node != NOT_INT && actuator != NOT_INT) {
+        out.write(ADDRESS);
+        out.writeVarint(zigzag((int) node));
+        out.writeVarint(zigzag((int) actuator));
+        return;
+      }
+    }
+    if (isBytes(field)) {
+      out.write(BYTES);
+      out.writeBytes(field);
+      return;
+    }
+    out.write(STRING);
+    out.writeString(field);
+  }
+
+  /**
+   * Check whether a string is written shorter as one byte per character than as UTF-8: all its
+   * characters are up to U+00FF, and some are above ASCII.
+   *
+   * @param field The field
+   * @return True if the string is best written as bytes
+   */
+  private static boolean isBytes(String field) {
+    boolean aboveAscii = false;
+    for (int i = 0; i < field.length(); i++) {
+      char c = field.charAt(i);
+      if (c > 0xFF) {
+        return false;
+      }
+      aboveAscii |= c >= 0x80;
+    }
+    return aboveAscii;
+  }
+
+  /**
+   * Read one field.
+   *
+   * @param in Where to read the field from
+   * @return The field as a string
+   */
+  private static String readField(Input in) {
+    byte type = in.read();
+    switch (type) {
+      case NULL:
+        return null;
+      case STRING:
+        return in.readString();
+      case BYTES:
+        return in.readBytes();
+      case INT:
+        return Integer.toString(unzigzag(in.readVarint()));
+      case TRUE:
+        return "true";
+      case FALSE:
+        return "false";
+      case ADDRESS:
+        int node = unzigzag(in.readVarint());
+        return node + ":" + unzigzag(in.readVarint());
+      default:
+        throw new IllegalArgumentException("Unknown field type " + type);
+    }
+  }
+
+  /**
+   * Parse part of a string as an integer, if it is written the way an integer prints: no plus
+   * sign, no leading zeros and no "-0".
+   *
+   * @param text The string
+   * @param from The first character of the part
+   * @param to   The end of the part, exclusive
+   * @return The integer, or {@link #NOT_INT} if the part is not an integer
+   */
+  private static long parseInt(String text, int from, int to) {
+    int index = from;
+    boolean negative = index < to && text.charAt(index) == '-';
+    if (negative) {
+      index++;
+    }
+    int digits = to - index;
+    if (digits < 1 || digits > 10 || (text.charAt(index) == '0' && (digits > 1 || negative))) {
+      return NOT_INT;
+    }
+    long value = 0;
+    for (; index < to; index++) {
+      char c = text.charAt(index);
+      if (c < '0' || c > '9') {
+        return NOT_INT;
+      }
+      value = value * 10 + (c - '0');
+    }
+    value = negative ? -value : value;
+    return value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ? NOT_INT : value;
+  }
+
+  /**
+   * Map a signed integer to an unsigned one, so small negative numbers stay short.
+   *
+   * @param value The signed integer
+   * @return The zigzag encoded integer
+   */
+  private static int zigzag(int value) {
+    return (value << 1) ^ (value >> 31);
+  }
+
+  /**
+   * Map a zigzag encoded integer back to the signed integer.
+   *
+   * @param value The zigzag encoded integer
+   * @return The signed integer
+   */
+  private static int unzigzag(int value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  /**
+   * A growing byte array being written.
+   */
+  private static final class Output {
+    private byte[] bytes;
+    private int position;
+
+    /**
+     * Create an output.
+     *
+     * @param capacity The expected number of bytes
+     */
+    private Output(int capacity) {
+      this.bytes = new byte[capacity];
+    }
+
+    /**
+     * Write one byte.
+     *
+     * @param value The byte
+     */
+    private void write(byte value) {
+      ensure(1);
+      bytes[position++] = value;
+    }
+
+    /**
+     * Write an unsigned integer in as few bytes as it needs, seven bits per byte.
+     *
+     * @param value The integer, treated as unsigned
+     */
+    private void writeVarint(int value) {
+      ensure(5);
+      while ((value & ~0x7F) != 0) {
+        bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      bytes[position++] = (byte) value;
+    }
+
+    /**
+     * Write a string as its UTF-8 length and bytes. ASCII strings are copied directly.
+     *
+     * @param value The string
+     */
+    private void writeString(String value) {
+      int length = value.length();
+      for (int i = 0; i < length; i++) {
+        if (value.charAt(i) >= 0x80) {
+          byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+          writeVarint(utf8.length);
+          ensure(utf8.length);
+          System.arraycopy(utf8, 0, bytes, position, utf8.length);
+          position += utf8.length;
+          return;
+        }
+      }
+      writeVarint(length);
+      ensure(length);
+      for (int i = 0; i < length; i++) {
+        bytes[position++] = (byte) value.charAt(i);
+      }
+    }
+
+    /**
+     * Write a string of characters up to U+00FF as its length and one byte per character.
+     *
+     * @param value The string
+     */
+    private void writeBytes(String value) {
+      int length = value.length();
+      writeVarint(length);
+      ensure(length);
+      for (int i = 0; i < length; i++) {
+        bytes[position++] = (byte) value.charAt(i);
+      }
+    }
+
+    /**
+     * Make room for more bytes.
+     *
+     * @param count The number of bytes about to be written
+     */
+    private void ensure(int count) {
+      if (position + count > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(position + count, bytes.length * 2));
+      }
+    }
+  }
+
+  /**
+   * A part of a byte array being read.
+   */
+  private static final class Input {
+    private final byte[] bytes;
+    private final int end;
+    private int position;
+
+    /**
+     * Create an input.
+     *
+     * @param bytes  The bytes to read
+     * @param offset The first byte to read
+     * @param end    The end of the bytes to read, exclusive
+     */
+    private Input(byte[] bytes, int offset, int end) {
+      this.bytes = bytes;
+      this.position = offset;
+      this.end = end;
+    }
+
+    /**
+     * Read one byte.
+     *
+     * @return The byte
+     */
+    private byte read() {
+      if (position >= end) {
+        throw new IndexOutOfBoundsException("End of body");
+      }
+      return bytes[position++];
+    }
+
+    /**
+     * Read the version byte and the number of fields at the start of a body.
+     *
+     * @return The number of fields
+     */
+    private int readCount() {
+      if (read() != VERSION) {
+        throw new IllegalArgumentException("Not a binary body");
+      }
+      int count = readVarint();
+      if (count < 0 || count > end - position) {
+        throw new IllegalArgumentException("Malformed field count " + count);
+      }
+      return count;
+    }
+
+    /**
+     * Step over one field without decoding it.
+     */
+    private void skipField() {
+      byte type = read();
+      switch (type) {
+        case NULL:
+        case TRUE:
+        case FALSE:
+          break;
+        case INT:
+          readVarint();
+          break;
+        case ADDRESS:
+          readVarint();
+          readVarint();
+          break;
+        case STRING:
+        case BYTES:
+          int length = readLength();
+          position += length;
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown field type " + type);
+      }
+    }
+
+    /**
+     * Read the length of a string and check that the string fits in the body.
+     *
+     * @return The length in bytes
+     */
+    private int readLength() {
+      int length = readVarint();
+      if (length < 0 || length > end - position) {
+        throw new IllegalArgumentException("Malformed string length " + length);
+      }
+      return length;
+    }
+
+    /**
+     * Read an unsigned integer written seven bits per byte.
+     *
+     * @return The integer
+     */
+    private int readVarint() {
+      int value = 0;
+      for (int shift = 0; shift < 35; shift += 7) {
+        byte b = read();
+        value |= (b & 0x7F) << shift;
+        if (b >= 0) {
+          return value;
+        }
+      }
+      throw new IllegalArgumentException("Malformed number");
+    }
+
+    /**
+     * Read a string written as its UTF-8 length and bytes.
+     *
+     * @return The string
+     */
+    private String readString() {
+      int length = readLength();
+      String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+      position += length;
+      return value;
+    }
+
+    /**
+     * Read a string written as its length and one byte per character.
+     *
+     * @return The string
+     */
+    private String readBytes() {
+      int length = readLength();
+      String value = new String(bytes, position, length, StandardCharsets.ISO_8859_1);
+      position += length;
+      return value;
+    }
+  }
+}
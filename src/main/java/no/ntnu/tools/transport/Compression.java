@@ -0,0 +1,331 @@
+package no.ntnu.tools.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import no.ntnu.tools.Config;
+
+/**
+ * Compression of the frames of one framed connection, with its counters. A compressed frame
+ * has the body byte {@code 03}, the length of the original body as four bytes, and the original
+ * body deflated with a preset dictionary holding the commands, field values and serialization
+ * headers most messages share, so even a message of a few hundred bytes shrinks. Frames with a
+ * body below the threshold in the configuration, and frames deflating does not make smaller,
+ * are written as they are.
+ *
+ * <p>Compression is negotiated in the handshake. A client asking for it sends
+ * {"compress", "deflate", dictionary ID} before its first message, and the server answers with
+ * the same message if it has the same dictionary. The server compresses the frames it writes
+ * once it has accepted, the client once it has the answer. Every framed stream inflates the
+ * compressed frames it reads, whether or not it asked for them. Deflaters and inflaters are
+ * kept in pools and reused, since creating them is far more costly than compressing a small
+ * message.
+ */
+public class Compression {
+  // The command of the messages negotiating compression
+  public static final String COMMAND = "compress";
+
+  // The first body byte of a compressed frame
+  static final byte COMPRESSED = 0x03;
+
+  private static final String METHOD = "deflate";
+  private static final int PREFIX_SIZE = FrameCodec.HEADER_SIZE + 1 + FrameCodec.HEADER_SIZE;
+  private static final byte[] DICTIONARY = buildDictionary();
+  private static final String DICTIONARY_ID = dictionaryId();
+  private static final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+  private static final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+  private volatile boolean enabled;
+  private long bytesWritten;
+  private long wireBytesWritten;
+  private long bytesRead;
+  private long wireBytesRead;
+  private long deflateNanos;
+  private long inflateNanos;
+
+  /**
+   * Get the message offering or accepting compression.
+   *
+   * @return The message
+   */
+  public static String[] negotiation() {
+    return new String[] {COMMAND, METHOD, DICTIONARY_ID};
+  }
+
+  /**
+   * Check whether a message offers or accepts compression this end can use.
+   *
+   * @param message The message
+   * @return True if the message asks for deflate with the same dictionary
+   */
+  public static boolean accepts(String[] message) {
+    return message != null && message.length > 2 && message[0].equals(COMMAND)
+        && message[1].equals(METHOD) && message[2].equals(DICTIONARY_ID);
+  }
+
+  /**
+   * Start compressing the frames written to the connection, once the other end has said it
+   * can inflate them.
+   */
+  public void enable() {
+    enabled = true;
+  }
+
+  /**
+   * Check whether the frames written to the connection are compressed.
+   *
+   * @return True once compression has been negotiated
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Check whether a frame is compressed.
+   *
+   * @param frame The complete frame, including the length header
+   * @return True for a compressed frame
+   */
+  static boolean isCompressed(byte[] frame) {
+    return frame.length > FrameCodec.HEADER_SIZE && frame[FrameCodec.HEADER_SIZE] == COMPRESSED;
+  }
+
+  /**
+   * Compress a frame if it is large enough, and deflating makes it smaller.
+   *
+   * @param frame The complete frame, including the length header
+   * @return The compressed frame, or the same frame if it is not worth compressing
+   */
+  static byte[] compress(byte[] frame) {
+    int bodyLength = frame.length - FrameCodec.HEADER_SIZE;
+    if (bodyLength < Config.COMPRESSION_THRESHOLD) {
+      return frame;
+    }
+    Deflater deflater = deflaters.poll();
+    if (deflater == null) {
+      deflater = new Deflater(Deflater.BEST_SPEED);
+    }
+    try {
+      deflater.setDictionary(DICTIONARY);
+      deflater.setInput(frame, FrameCodec.HEADER_SIZE, bodyLength);
+      deflater.finish();
+      byte[] compressed = new byte[frame.length];
+      int length = PREFIX_SIZE;
+      while (!deflater.finished() && length < compressed.length) {
+        length += deflater.deflate(compressed, length, compressed.length - length);
+      }
+      if (!deflater.finished()) {
+        return frame;
+      }
+      FrameCodec.writeLength(compressed, length - FrameCodec.HEADER_SIZE);
+      compressed[FrameCodec.HEADER_SIZE] = COMPRESSED;
+      byte[] originalLength = new byte[FrameCodec.HEADER_SIZE];
+      FrameCodec.writeLength(originalLength, bodyLength);
+      System.arraycopy(originalLength, 0, compressed, FrameCodec.HEADER_SIZE + 1,
+          originalLength.length);
+      return Arrays.copyOf(compressed, length);
+    } finally {
+      deflater.reset();
+      deflaters.offer(deflater);
+    }
+  }
+
+  /**
+   * Restore the original frame from a compressed frame.
+   *
+   * @param frame The compressed frame, including the length header
+   * @return The original frame, including the length header
+   * @throws StreamCorruptedException If the frame is truncated, too large or not deflated
+   *                                  with the same dictionary
+   */
+  static byte[] inflate(byte[] frame) throws StreamCorruptedException {
+    if (frame.length < PREFIX_SIZE) {
+      throw new StreamCorruptedException("Truncated compressed frame");
+    }
+    int bodyLength = FrameCodec.readLength(frame, FrameCodec.HEADER_SIZE + 1);
+    byte[] original = new byte[FrameCodec.HEADER_SIZE + bodyLength];
+    FrameCodec.writeLength(original, bodyLength);
+    Inflater inflater = inflaters.poll();
+    if (inflater == null) {
+      inflater = new Inflater();
+    }
+    try {
+      inflater.setInput(frame, PREFIX_SIZE, frame.length - PREFIX_SIZE);
+      int length = FrameCodec.HEADER_SIZE;
+      while (length < original.length) {
+        int count = inflater.inflate(original, length, original.length - length);
+        if (count == 0 && inflater.needsDictionary()) {
+          inflater.setDictionary(DICTIONARY);
+        } else if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+          throw new StreamCorruptedException("Truncated compressed frame");
+        }
+        length += count;
+      }
+      return original;
+    } catch (DataFormatException | IllegalArgumentException e) {
+      throw new StreamCorruptedException("Malformed compressed frame: " + e.getMessage());
+    } finally {
+      inflater.reset();
+      inflaters.offer(inflater);
+    }
+  }
+
+  /**
+   * Compress a frame written to the connection, if compression is enabled.
+   *
+   * @param frame The complete frame, including the length header
+   * @return The frame to write
+   */
+  byte[] deflate(byte[] frame) {
+    if (!enabled) {
+      return frame;
+    }
+    long start = System.nanoTime();
+    byte[] compressed = compress(frame);
+    countDeflate(System.nanoTime() - start);
+    countWritten(frame.length, compressed.length);
+    return compressed;
+  }
+
+  /**
+   * Restore a frame read from the connection, if it is compressed.
+   *
+   * @param frame The complete frame as read, including the length header
+   * @return The original frame
+   * @throws StreamCorruptedException If the compressed frame is malformed
+   */
+  byte[] inflateRead(byte[] frame) throws StreamCorruptedException {
+    if (!isCompressed(frame)) {
+      countRead(frame.length, frame.length);
+      return frame;
+    }
+    long start = System.nanoTime();
+    byte[] original = inflate(frame);
+    synchronized (this) {
+      inflateNanos += System.nanoTime() - start;
+    }
+    countRead(original.length, frame.length);
+    return original;
+  }
+
+  /**
+   * Count a frame written to the connection.
+   *
+   * @param original The size of the frame before compression
+   * @param wire     The size of the frame as written
+   */
+  synchronized void countWritten(int original, int wire) {
+    bytesWritten += original;
+    wireBytesWritten += wire;
+  }
+
+  /**
+   * Count the time spent compressing a frame for the connection.
+   *
+   * @param nanos The nanoseconds spent
+   */
+  synchronized void countDeflate(long nanos) {
+    deflateNanos += nanos;
+  }
+
+  /**
+   * Count a frame read from the connection.
+   *
+   * @param original The size of the frame after inflating
+   * @param wire     The size of the frame as read
+   */
+  private synchronized void countRead(int original, int wire) {
+    bytesRead += original;
+    wireBytesRead += wire;
+  }
+
+  /**
+   * Get the CPU time spent compressing frames for the connection.
+   *
+   * @return The time in nanoseconds
+   */
+  public synchronized long getDeflateNanos() {
+    return deflateNanos;
+  }
+
+  /**
+   * Get the CPU time spent inflating frames read from the connection.
+   *
+   * @return The time in nanoseconds
+   */
+  public synchronized long getInflateNanos() {
+    return inflateNanos;
+  }
+
+  /**
+   * Get a short summary of the counters: how many times smaller the frames written and read
+   * were on the wire, and the CPU time spent compressing and inflating them.
+   *
+   * @return The summary
+   */
+  @Override
+  public synchronized String toString() {
+    return String.format("compression %.2f:1 written, %.2f:1 read, deflate %.1f ms, "
+            + "inflate %.1f ms", ratio(bytesWritten, wireBytesWritten),
+        ratio(bytesRead, wireBytesRead), deflateNanos / 1e6, inflateNanos / 1e6);
+  }
+
+  /**
+   * Compute a compression ratio.
+   *
+   * @param original The bytes before compression
+   * @param wire     The bytes on the wire
+   * @return The ratio, 1 if nothing was sent
+   */
+  private static double ratio(long original, long wire) {
+    return wire > 0 ? original / (double) wire : 1;
+  }
+
+  /**
+   * Build the preset dictionary from the encodings of typical messages in both frame formats.
+   * Deflate looks back into the dictionary, so the strings near its end, used most, are the
+   * cheapest to refer to.
+   *
+   * @return The dictionary
+   */
+  private static byte[] buildDictionary() {
+    String[][] messages = {
+        {"camera", "1", "/9j/4AAQSkZJRgABAQAAAQABAAD/2wBDAA"},
+        {"add", "1", "window", "1", "false", "fan", "2", "false", "heater", "3", "false",
+            "sensors", "temperature", "°C", "15.0", "40.0", "humidity", "%", "50.0", "100.0"},
+        {"aggregate", "1", "{ type=temperature, value=20.00, unit=°C }",
+            "{ type=humidity, value=80.00, unit=% }"},
+        {"data", "1", "{ type=temperature, value=20.00, unit=°C }",
+            "{ type=humidity, value=80.00, unit=% }"},
+        {"state", "1:1", "window", "true"}};
+    ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+    try {
+      for (FrameFormat format : FrameFormat.values()) {
+        for (String[] message : messages) {
+          dictionary.write(FrameCodec.encode(message, format));
+        }
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not build the compression dictionary", e);
+    }
+    return dictionary.toByteArray();
+  }
+
+  /**
+   * Name the dictionary by its checksum, so both ends can check they use the same one.
+   *
+   * @return The checksum as hexadecimal
+   */
+  private static String dictionaryId() {
+    Adler32 checksum = new Adler32();
+    checksum.update(DICTIONARY);
+    return Long.toHexString(checksum.getValue());
+  }
+}
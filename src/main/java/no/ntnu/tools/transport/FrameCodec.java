@@ -0,0 +1,245 @@
+package no.ntnu.tools.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import no.ntnu.tools.Config;
+
+/**
+ * Encodes and decodes the frames of the framed wire formats. A frame is a four byte big-endian
+ * length followed by a body of that many bytes. The body holds one message on its own, so a
+ * frame can be decoded without any state from earlier frames. The body is either serialized
+ * with Java object serialization or encoded as typed fields, see {@link FrameFormat}.
+ *
+ * <p>A batch frame carries several messages in one envelope. Its body is the byte {@code 02}
+ * followed by complete frames, each with its own length header, so the frames of a batch can be
+ * written as they are behind a five byte envelope header, and read back one by one.
+ */
+public class FrameCodec {
+  public static final int HEADER_SIZE = 4;
+
+  // The stream header every connection from the server starts with, see protocol.md
+  static final byte[] GREETING = {(byte) 0xAC, (byte) 0xED, 0x00, 0x05};
+
+  // The first body byte of a batch frame
+  static final byte BATCH = 0x02;
+
+  private static final ObjectInputFilter MESSAGE_FILTER = ObjectInputFilter.Config
+      .createFilter("java.lang.String;maxdepth=2;!*");
+
+  /**
+   * Not allowed to create an instance of this class.
+   */
+  private FrameCodec() {
+  }
+
+  /**
+   * Encode a message into a complete frame, including the length header.
+   *
+   * @param message The message to encode
+   * @param format  The format of the frame body
+   * @return The frame bytes
+   * @throws IOException If the message could not be serialized
+   */
+  public static byte[] encode(String[] message, FrameFormat format) throws IOException {
+    return format == FrameFormat.BINARY ? BinaryCodec.encode(message) : encode(message);
+  }
+
+  /**
+   * Encode a message into a complete frame with a serialized body, including the length header.
+   *
+   * @param message The message to encode
+   * @return The frame bytes
+   * @throws IOException If the message could not be serialized
+   */
+  public static byte[] encode(String[] message) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    bytes.write(new byte[HEADER_SIZE]);
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(message);
+    }
+    byte[] frame = bytes.toByteArray();
+    writeLength(frame, frame.length - HEADER_SIZE);
+    return frame;
+  }
+
+  /**
+   * Decode the body of a frame back into a message, in whichever format it is.
+   *
+   * @param body The frame body, without the length header
+   * @return The message, or null if the body does not hold a message
+   */
+  public static String[] decode(byte[] body) {
+    return decode(body, 0, body.length);
+  }
+
+  /**
+   * Decode the body of a frame back into a message, in whichever format it is. A serialized
+   * body must hold the message and nothing after it, since the body is written as it is to
+   * connections using object streams.
+   *
+   * @param bytes  The bytes holding the body
+   * @param offset The start of the body
+   * @param length The length of the body
+   * @return The message, or null if the body does not hold a message
+   */
+  public static String[] decode(byte[] bytes, int offset, int length) {
+    if (FrameFormat.of(bytes, offset, length) == FrameFormat.BINARY) {
+      return BinaryCodec.decode(bytes, offset, length);
+    }
+    ByteArrayInputStream body = new ByteArrayInputStream(bytes, offset, length);
+    try (ObjectInputStream in = new ObjectInputStream(body)) {
+      in.setObjectInputFilter(MESSAGE_FILTER);
+      Object object = in.readObject();
+      return (object instanceof String[]) && body.available() == 0 ? (String[]) object : null;
+    } catch (IOException | ClassNotFoundException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Read and validate the body length from a frame header.
+   *
+   * @param header The four header bytes
+   * @return The body length
+   * @throws StreamCorruptedException If the length is negative or too large
+   */
+  public static int readLength(byte[] header) throws StreamCorruptedException {
+    return readLength(header, 0);
+  }
+
+  /**
+   * Read and validate the body length from a frame header.
+   *
+   * @param bytes  The bytes holding the header
+   * @param offset The start of the header
+   * @return The body length
+   * @throws StreamCorruptedException If the length is negative or too large
+   */
+  static int readLength(byte[] bytes, int offset) throws StreamCorruptedException {
+    int length = ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+        | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    if (length < 0 || length > Config.MAX_FRAME_SIZE) {
+      throw new StreamCorruptedException("Invalid frame length " + length);
+    }
+    return length;
+  }
+
+  /**
+   * Check whether the first byte sent by a client belongs to the framed wire format. Clients
+   * using Java object streams always start with the stream header 0xACED.
+   *
+   * @param firstByte The first byte received from the client
+   * @return True if the client uses framed messages
+   */
+  public static boolean isFramed(int firstByte) {
+    return firstByte != (GREETING[0] & 0xFF);
+  }
+
+  /**
+   * Check whether a frame is a batch of frames.
+   *
+   * @param frame The complete frame, including the length header
+   * @return True for a batch frame
+   */
+  public static boolean isBatch(byte[] frame) {
+    return frame.length > HEADER_SIZE && frame[HEADER_SIZE] == BATCH;
+  }
+
+  /**
+   * Split a batch frame into the frames it carries.
+   *
+   * @param batch The complete batch frame, including the length header
+   * @return The frames, each including its length header
+   * @throws StreamCorruptedException If the batch is empty, nested or cut short
+   */
+  public static List<byte[]> unbatch(byte[] batch) throws StreamCorruptedException {
+    List<byte[]> frames = new ArrayList<>();
+    int position = HEADER_SIZE + 1;
+    while (position < batch.length) {
+      if (batch.length - position < HEADER_SIZE) {
+        throw new StreamCorruptedException("Truncated frame in batch");
+      }
+      int end = position + HEADER_SIZE + readLength(batch, position);
+      if (end > batch.length || end - position > HEADER_SIZE && batch[position + HEADER_SIZE]
+          == BATCH) {
+        throw new StreamCorruptedException("Malformed frame in batch");
+      }
+      frames.add(Arrays.copyOfRange(batch, position, end));
+      position = end;
+    }
+    if (frames.isEmpty()) {
+      throw new StreamCorruptedException("Empty batch");
+    }
+    return frames;
+  }
+
+  /**
+   * Find the end of the run of frames, starting at a position, that fits in one batch frame.
+   *
+   * @param frames      The frames to write
+   * @param from        The first frame of the run
+   * @param format      The format the frames are written in
+   * @param compression The compression of the connection, or null
+   * @return The index after the last frame of the run, which holds at least one frame
+   * @throws IOException If a message could not be encoded
+   */
+  public static int batchEnd(List<SharedFrame> frames, int from, FrameFormat format,
+                             Compression compression) throws IOException {
+    long length = 1 + frames.get(from).getSize(format, compression);
+    int end = from + 1;
+    while (end < frames.size()) {
+      length += frames.get(end).getSize(format, compression);
+      if (length > Config.MAX_FRAME_SIZE) {
+        break;
+      }
+      end++;
+    }
+    return end;
+  }
+
+  /**
+   * Build the envelope header of a batch frame: its length header and the batch byte. The
+   * frames of the batch follow as they are.
+   *
+   * @param frames      The frames to write
+   * @param from        The first frame of the batch
+   * @param to          The index after the last frame of the batch
+   * @param format      The format the frames are written in
+   * @param compression The compression of the connection, or null
+   * @return The five header bytes
+   * @throws IOException If a message could not be encoded
+   */
+  public static byte[] batchHeader(List<SharedFrame> frames, int from, int to,
+                                   FrameFormat format, Compression compression)
+      throws IOException {
+    int length = 1;
+    for (int i = from; i < to; i++) {
+      length += frames.get(i).getSize(format, compression);
+    }
+    byte[] header = new byte[HEADER_SIZE + 1];
+    writeLength(header, length);
+    header[HEADER_SIZE] = BATCH;
+    return header;
+  }
+
+  /**
+   * Write a big-endian body length into the start of a frame.
+   *
+   * @param frame  The frame to write into
+   * @param length The body length
+   */
+  static void writeLength(byte[] frame, int length) {
+    frame[0] = (byte) (length >>> 24);
+    frame[1] = (byte) (length >>> 16);
+    frame[2] = (byte) (length >>> 8);
+    frame[3] = (byte) length;
+  }
+}
@@ -0,0 +1,49 @@
+package no.ntnu.tools.transport;
+
+/**
+ * How the body of a frame is encoded. The first byte of a body tells the formats apart, so a
+ * frame can always be decoded, and a server answers every client in the format it writes.
+ */
+public enum FrameFormat {
+  /**
+   * The message is a {@code String[]} serialized on its own with Java object serialization.
+   */
+  SERIALIZED,
+
+  /**
+   * The message is a list of typed fields, see {@link BinaryCodec}.
+   */
+  BINARY;
+
+  /**
+   * Get the format of a frame body.
+   *
+   * @param body The frame body, without the length header
+   * @return The format of the body
+   */
+  public static FrameFormat of(byte[] body) {
+    return of(body, 0, body.length);
+  }
+
+  /**
+   * Get the format of a frame body.
+   *
+   * @param bytes  The bytes holding the body
+   * @param offset The start of the body
+   * @param length The length of the body
+   * @return The format of the body
+   */
+  public static FrameFormat of(byte[] bytes, int offset, int length) {
+    return length > 0 && bytes[offset] == BinaryCodec.VERSION ? BINARY : SERIALIZED;
+  }
+
+  /**
+   * Get the format used by clients configured with a wire format.
+   *
+   * @param wireFormat The wire format, "framed" or "binary"
+   * @return The frame format
+   */
+  public static FrameFormat fromWireFormat(String wireFormat) {
+    return wireFormat.equals("binary") ? BINARY : SERIALIZED;
+  }
+}
@@ -0,0 +1,231 @@
+package no.ntnu.tools.transport;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import no.ntnu.tools.Config;
+
+/**
+ * Message stream using length prefixed frames, see {@link FrameCodec}. A read that times out
+ * halfway through a frame keeps the bytes received so far, so the next read continues where
+ * the previous one stopped. Frames are read in either format, and written in the format of the
+ * stream. A stream created without a format takes the format of the first frame it reads, so
+ * the server answers every client in the format the client writes. A batch of messages is
+ * written as one batch frame, and a batch frame read is returned one frame at a time.
+ * Compressed frames are inflated when read, and frames are compressed when written once
+ * compression has been negotiated, see {@link Compression}.
+ */
+public class FramedMessageStream implements MessageStream {
+  private final InputStream inputStream;
+  private final OutputStream outputStream;
+  private volatile FrameFormat format;
+  private final byte[] header = new byte[FrameCodec.HEADER_SIZE];
+  private int headerRead;
+  private byte[] frame;
+  private int frameRead;
+  private final Deque<byte[]> unbatched = new ArrayDeque<>();
+  private final Compression compression = new Compression();
+
+  /**
+   * Create a framed message stream which writes in the format of the first frame it reads.
+   *
+   * @param inputStream  The input stream of the socket, buffered unless no more than one
+   *                     frame may be read from it
+   * @param outputStream The output stream of the socket, which is buffered by this stream
+   */
+  public FramedMessageStream(InputStream inputStream, OutputStream outputStream) {
+    this(inputStream, outputStream, null);
+  }
+
+  /**
+   * Create a framed message stream.
+   *
+   * @param inputStream  The input stream of the socket, buffered unless no more than one
+   *                     frame may be read from it
+   * @param outputStream The output stream of the socket, which is buffered by this stream
+   * @param format       The format of the frames written
+   */
+  public FramedMessageStream(InputStream inputStream, OutputStream outputStream,
+                             FrameFormat format) {
+    this.inputStream = inputStream;
+    this.outputStream = new BufferedOutputStream(outputStream, 8192);
+    this.format = format;
+  }
+
+  /**
+   * Get the format of the frames written by this stream.
+   *
+   * @return The frame format
+   */
+  public FrameFormat getFormat() {
+    return format != null ? format : FrameFormat.SERIALIZED;
+  }
+
+  /**
+   * Get the compression of the frames on this stream.
+   *
+   * @return The compression with its counters
+   */
+  @Override
+  public Compression getCompression() {
+    return compression;
+  }
+
+  /**
+   * Read and check the greeting the server sends when a connection is opened.
+   *
+   * @throws IOException If the greeting is missing or wrong
+   */
+  void readGreeting() throws IOException {
+    byte[] greeting = inputStream.readNBytes(FrameCodec.GREETING.length);
+    if (!Arrays.equals(greeting, FrameCodec.GREETING)) {
+      throw new StreamCorruptedException("Unexpected server greeting");
+    }
+  }
+
+  /**
+   * Read the next frame and decode it.
+   *
+   * @return The message, or null if the frame does not hold a message
+   * @throws IOException If the stream is broken or the read timed out
+   */
+  @Override
+  public String[] read() throws IOException {
+    byte[] complete = compression.inflateRead(readComplete());
+    return FrameCodec.decode(complete, FrameCodec.HEADER_SIZE,
+        complete.length - FrameCodec.HEADER_SIZE);
+  }
+
+  /**
+   * Read the next frame without decoding more of a binary frame than its command and
+   * address, so the frame can be relayed as it arrived.
+   *
+   * @return The message, or null if the frame does not hold a message
+   * @throws IOException If the stream is broken or the read timed out
+   */
+  @Override
+  public SharedFrame readFrame() throws IOException {
+    return SharedFrame.received(readComplete(), compression);
+  }
+
+  /**
+   * Read the next complete frame, continuing a frame a timed out read left partially read.
+   * The frames of a batch frame are returned one by one before the next frame is read. The
+   * first uncompressed frame read sets the format of a stream created without one.
+   *
+   * @return The frame, including the length header
+   * @throws IOException If the stream is broken, the read timed out or a batch is malformed
+   */
+  private byte[] readComplete() throws IOException {
+    if (unbatched.isEmpty()) {
+      byte[] complete = readNext();
+      if (FrameCodec.isBatch(complete)) {
+        unbatched.addAll(FrameCodec.unbatch(complete));
+      } else {
+        unbatched.add(complete);
+      }
+    }
+    byte[] complete = unbatched.poll();
+    if (format == null && !Compression.isCompressed(complete)) {
+      format = FrameFormat.of(complete, FrameCodec.HEADER_SIZE,
+          complete.length - FrameCodec.HEADER_SIZE);
+    }
+    return complete;
+  }
+
+  /**
+   * Read the next frame off the stream, continuing a frame a timed out read left partially
+   * read.
+   *
+   * @return The frame, including the length header
+   * @throws IOException If the stream is broken or the read timed out
+   */
+  private byte[] readNext() throws IOException {
+    while (headerRead < header.length) {
+      headerRead += readSome(header, headerRead);
+    }
+    if (frame == null) {
+      frame = new byte[FrameCodec.HEADER_SIZE + FrameCodec.readLength(header)];
+      System.arraycopy(header, 0, frame, 0, FrameCodec.HEADER_SIZE);
+      frameRead = FrameCodec.HEADER_SIZE;
+    }
+    while (frameRead < frame.length) {
+      frameRead += readSome(frame, frameRead);
+    }
+    byte[] complete = frame;
+    frame = null;
+    headerRead = 0;
+    return complete;
+  }
+
+  /**
+   * Encode a message into a frame and write it.
+   *
+   * @param message The message to write
+   * @throws IOException If the message could not be written
+   */
+  @Override
+  public synchronized void write(String[] message) throws IOException {
+    outputStream.write(compression.deflate(FrameCodec.encode(message, getFormat())));
+    outputStream.flush();
+  }
+
+  /**
+   * Write the shared encoded bytes of a message.
+   *
+   * @param frame The shared message
+   * @throws IOException If the message could not be written
+   */
+  @Override
+  public synchronized void write(SharedFrame frame) throws IOException {
+    frame.writeTo(outputStream, getFormat(), compression);
+    outputStream.flush();
+  }
+
+  /**
+   * Write the shared encoded bytes of several messages in batch frames and flush once. The
+   * frames are written as they are, behind the header of the batch frame.
+   *
+   * @param frames The shared messages
+   * @throws IOException If the messages could not be written
+   */
+  @Override
+  public synchronized void write(List<SharedFrame> frames) throws IOException {
+    FrameFormat format = getFormat();
+    for (int from = 0; from < frames.size(); ) {
+      int to = Config.BATCH_ENVELOPE
+          ? FrameCodec.batchEnd(frames, from, format, compression) : from + 1;
+      if (to - from > 1) {
+        outputStream.write(FrameCodec.batchHeader(frames, from, to, format, compression));
+      }
+      for (int i = from; i < to; i++) {
+        frames.get(i).writeTo(outputStream, format, compression);
+      }
+      from = to;
+    }
+    outputStream.flush();
+  }
+
+  /**
+   * Read as many bytes as are available into the remainder of a buffer.
+   *
+   * @param buffer The buffer to fill
+   * @param offset The first free position in the buffer
+   * @return The number of bytes read
+   * @throws IOException If the stream ended or failed
+   */
+  private int readSome(byte[] buffer, int offset) throws IOException {
+    int count = inputStream.read(buffer, offset, buffer.length - offset);
+    if (count < 0) {
+      throw new EOFException("Connection closed");
+    }
+    return count;
+  }
+}
@@ -0,0 +1,105 @@
+package no.ntnu.tools.transport;
+
+/**
+ * A histogram of latencies in nanoseconds, used to report percentiles such as the p99 of the
+ * time messages wait in a queue. Every power of two is split into 16 buckets, so a percentile
+ * is accurate to about 6%, with a fixed footprint regardless of how many values are recorded.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKETS = 16;
+  private static final int SUB_BUCKET_BITS = 4;
+
+  private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+  private long count;
+  private long max;
+
+  /**
+   * Record a latency.
+   *
+   * @param nanos The latency in nanoseconds
+   */
+  public synchronized void record(long nanos) {
+    long value = Math.max(0, nanos);
+    counts[bucket(value)]++;
+    count++;
+    max = Math.max(max, value);
+  }
+
+  /**
+   * Get the number of recorded latencies.
+   *
+   * @return The count
+   */
+  public synchronized long getCount() {
+    return count;
+  }
+
+  /**
+   * Get the largest recorded latency.
+   *
+   * @return The largest latency in nanoseconds
+   */
+  public synchronized long getMax() {
+    return max;
+  }
+
+  /**
+   * Get a percentile of the recorded latencies.
+   *
+   * @param percentile The percentile, for example 99 for the p99
+   * @return The upper bound of the bucket holding the percentile in nanoseconds, or 0 if
+   *         nothing has been recorded
+   */
+  public synchronized long getPercentile(double percentile) {
+    long rank = (long) Math.ceil(count * percentile / 100);
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank && seen > 0) {
+        return Math.min(upperBound(i), max);
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Get the p50, p99 and maximum in milliseconds, for the log.
+   *
+   * @return The summary
+   */
+  @Override
+  public synchronized String toString() {
+    return String.format("p50 %.2f ms, p99 %.2f ms, max %.2f ms (%d)", getPercentile(50) / 1e6,
+        getPercentile(99) / 1e6, max / 1e6, count);
+  }
+
+  /**
+   * Find the bucket of a value.
+   *
+   * @param value The value, not negative
+   * @return The index of the bucket
+   */
+  private static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+  }
+
+  /**
+   * Get the largest value that falls in a bucket.
+   *
+   * @param bucket The index of the bucket
+   * @return The largest value of the bucket
+   */
+  private static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    return lower + (1L << shift) - 1;
+  }
+}
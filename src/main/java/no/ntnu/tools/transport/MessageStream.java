@@ -0,0 +1,96 @@
+package no.ntnu.tools.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.net.Socket;
+import java.util.List;
+import no.ntnu.tools.Config;
+
+/**
+ * A bidirectional stream of messages over one socket. A message is a string array where the
+ * first slot is the command and the second slot is the address, see protocol.md.
+ */
+public interface MessageStream {
+
+  /**
+   * Read the next message. Blocks until a message arrives or the socket read timeout expires.
+   * A read that is interrupted by a timeout can safely be retried.
+   *
+   * @return The message, or null if a message was received but could not be understood
+   * @throws IOException If the stream is broken or closed, or the read timed out
+   */
+  String[] read() throws IOException;
+
+  /**
+   * Read the next message as a frame which can be relayed to other connections. Framed
+   * streams keep a binary frame as it arrived and only decode its command and address.
+   *
+   * @return The message, or null if a message was received but could not be understood
+   * @throws IOException If the stream is broken or closed, or the read timed out
+   */
+  default SharedFrame readFrame() throws IOException {
+    String[] message = read();
+    return message != null && message.length > 0 ? new SharedFrame(message) : null;
+  }
+
+  /**
+   * Write a message. Safe to call from several threads.
+   *
+   * @param message The message to write
+   * @throws IOException If the message could not be written
+   */
+  void write(String[] message) throws IOException;
+
+  /**
+   * Write a message shared with other connections. Framed streams write the shared encoded
+   * bytes, so the message is not encoded again for this connection.
+   *
+   * @param frame The shared message
+   * @throws IOException If the message could not be written
+   */
+  void write(SharedFrame frame) throws IOException;
+
+  /**
+   * Write several messages and flush the stream once, so they leave in as few packets as
+   * possible.
+   *
+   * @param frames The messages, possibly shared with other connections
+   * @throws IOException If the messages could not be written
+   */
+  void write(List<SharedFrame> frames) throws IOException;
+
+  /**
+   * Get the compression of the connection. Only framed streams can compress their frames.
+   *
+   * @return The compression with its counters, or null if the stream cannot compress
+   */
+  default Compression getCompression() {
+    return null;
+  }
+
+  /**
+   * Open the client side of a connection to the server, using the wire format from the
+   * configuration.
+   *
+   * @param socket The socket connected to the server
+   * @return The message stream for the socket
+   * @throws IOException If the stream could not be set up
+   */
+  static MessageStream open(Socket socket) throws IOException {
+    if (Config.WIRE_FORMAT.equals("framed") || Config.WIRE_FORMAT.equals("binary")) {
+      FramedMessageStream stream = new FramedMessageStream(
+          new BufferedInputStream(socket.getInputStream()), socket.getOutputStream(),
+          FrameFormat.fromWireFormat(Config.WIRE_FORMAT));
+      stream.readGreeting();
+      return stream;
+    }
+    ObjectInputStream inputStream =
+        new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+    SharedObjectOutputStream outputStream =
+        new SharedObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    outputStream.flush();
+    return new ObjectMessageStream(outputStream, inputStream);
+  }
+}
@@ -0,0 +1,161 @@
+package no.ntnu.tools.transport;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import no.ntnu.tools.Config;
+
+/**
+ * Message stream using Java object serialization, where every message is written as a
+ * {@code String[]} object. This is the original wire format of the application. A batch of
+ * messages is written as one {@code String[][]} object, which the reading end unpacks. A
+ * message queued for several connections, such as a broadcast, is instead written as the
+ * object serialized once into its {@link SharedFrame}, see {@link SharedObjectOutputStream}.
+ * The object output stream should be buffered, since the stream is flushed after every
+ * message or batch of messages. The stream is reset every few hundred messages, so neither end
+ * keeps a reference to every message that has passed through the connection, while the class
+ * descriptor of the messages is only sent again after a reset.
+ */
+public class ObjectMessageStream implements MessageStream {
+  private static final int RESET_INTERVAL = 256; // Messages written between resets
+
+  private final SharedObjectOutputStream outputStream;
+  private final ObjectInputStream inputStream;
+  private int sinceReset;
+  private final Deque<String[]> unbatched = new ArrayDeque<>();
+  private final List<String[]> own = new ArrayList<>();
+
+  /**
+   * Create a message stream on top of already opened object streams.
+   *
+   * @param outputStream The object output stream of the socket
+   * @param inputStream  The object input stream of the socket
+   */
+  public ObjectMessageStream(SharedObjectOutputStream outputStream,
+                             ObjectInputStream inputStream) {
+    this.outputStream = outputStream;
+    this.inputStream = inputStream;
+  }
+
+  /**
+   * Read the next message object from the object stream. The messages of a batch object are
+   * returned one by one before the next object is read.
+   *
+   * @return The message, or null if the object is not a message
+   * @throws IOException If the stream is broken or the read timed out
+   */
+  @Override
+  public String[] read() throws IOException {
+    if (!unbatched.isEmpty()) {
+      return unbatched.poll();
+    }
+    try {
+      Object object = inputStream.readObject();
+      if (object instanceof String[][]) {
+        for (String[] message : (String[][]) object) {
+          if (message != null) {
+            unbatched.add(message);
+          }
+        }
+        return unbatched.poll();
+      }
+      return (object instanceof String[]) ? (String[]) object : null;
+    } catch (ClassNotFoundException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Write a message as one object to the object stream.
+   *
+   * @param message The message to write
+   * @throws IOException If the message could not be written
+   */
+  @Override
+  public synchronized void write(String[] message) throws IOException {
+    outputStream.writeObject(message);
+    resetIfDue(1);
+    outputStream.flush();
+  }
+
+  /**
+   * Write a message from the queue. A message queued for several connections is written as
+   * the object serialized once for all of them.
+   *
+   * @param frame The message, possibly shared with other connections
+   * @throws IOException If the message could not be written
+   */
+  @Override
+  public synchronized void write(SharedFrame frame) throws IOException {
+    if (frame.isShared()) {
+      frame.writeTo(outputStream);
+      sinceReset = 0;
+      outputStream.flush();
+    } else {
+      write(frame.getMessage());
+    }
+  }
+
+  /**
+   * Write several messages and flush once. Messages queued for several connections are written
+   * as the objects serialized once for all of them. The messages in between, meant for this
+   * connection alone, are written as one batch object, or one by one if there is only one of
+   * them or envelopes are turned off.
+   *
+   * @param frames The messages
+   * @throws IOException If the messages could not be written
+   */
+  @Override
+  public synchronized void write(List<SharedFrame> frames) throws IOException {
+    for (SharedFrame frame : frames) {
+      if (frame.isShared()) {
+        writeOwn();
+        frame.writeTo(outputStream);
+        sinceReset = 0;
+      } else {
+        own.add(frame.getMessage());
+      }
+    }
+    writeOwn();
+    outputStream.flush();
+  }
+
+  /**
+   * Write the messages collected for this connection alone, as one batch object if there are
+   * several and envelopes are on.
+   *
+   * @throws IOException If the messages could not be written
+   */
+  private void writeOwn() throws IOException {
+    if (own.isEmpty()) {
+      return;
+    }
+    if (Config.BATCH_ENVELOPE && own.size() > 1) {
+      outputStream.writeObject(own.toArray(new String[0][]));
+    } else {
+      for (String[] message : own) {
+        outputStream.writeObject(message);
+      }
+    }
+    resetIfDue(own.size());
+    own.clear();
+  }
+
+  /**
+   * Reset the object stream once enough messages have been written since the last reset, so
+   * the messages it refers to can be collected on both ends.
+   *
+   * @param written The number of messages just written
+   * @throws IOException If the reset could not be written
+   */
+  private void resetIfDue(int written) throws IOException {
+    sinceReset += written;
+    if (sinceReset >= RESET_INTERVAL) {
+      outputStream.reset();
+      sinceReset = 0;
+    }
+  }
+}
@@ -0,0 +1,492 @@
+package no.ntnu.tools.transport;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import no.ntnu.tools.Config;
+
+/**
+ * The bounded queue of messages waiting to be sent on one connection. When the queue is full
+ * its {@link OverflowPolicy} decides what is given up, so one stalled client can not grow the
+ * server heap without limit. Under the "drop-telemetry" policy a queue full of control
+ * messages has nothing left to drop, and refuses the next control message so the connection is
+ * disconnected. Forced messages may go over the capacity, but only up to a fixed headroom. The
+ * queue keeps counters of its depth and drops.
+ *
+ * <p>Messages are kept in two lanes. Control messages, such as actuator commands and state
+ * changes, are always taken before telemetry, so they never wait behind a backlog of sensor
+ * data or camera images. Messages keep their order within a lane. The time messages wait is
+ * recorded per lane.
+ *
+ * <p>A conflating queue keeps at most one "data", one "delta" and one "aggregate" message per
+ * node. A newer message replaces the one still waiting in place, so a client that has fallen
+ * behind catches up with the latest readings instead of every stale one. A "data" keyframe
+ * also discards the waiting "delta" of its node, which only applies to an older keyframe.
+ * Other messages are never conflated.
+ *
+ * <p>A delta only makes sense on top of the keyframe before it. When a "data" keyframe is
+ * dropped to make room, the deltas of its node queued behind it are dropped with it, and so
+ * are the node's deltas offered later, until its next keyframe.
+ */
+public class OutboundQueue {
+  private final ArrayDeque<Entry> control = new ArrayDeque<>();
+  private final ArrayDeque<Entry> telemetry = new ArrayDeque<>();
+  private final LatencyHistogram controlLatency = new LatencyHistogram();
+  private final LatencyHistogram telemetryLatency = new LatencyHistogram();
+  private final int capacity;
+  private final int limit;
+  private final OverflowPolicy policy;
+  private final Map<String, Entry> pending;
+  private final Set<String> orphaned = new HashSet<>();
+  private long dropped;
+  private long conflated;
+  private int maxDepth;
+
+  /**
+   * Create a queue with the capacity and policy from the configuration.
+   */
+  public OutboundQueue() {
+    this(Config.OUTBOUND_QUEUE_CAPACITY, OverflowPolicy.fromName(Config.OVERFLOW_POLICY));
+  }
+
+  /**
+   * Create a queue.
+   *
+   * @param capacity The number of messages the queue holds before the policy applies
+   * @param policy   What to do when the queue is full
+   */
+  public OutboundQueue(int capacity, OverflowPolicy policy) {
+    this(capacity, policy, false);
+  }
+
+  /**
+   * Create a queue with the capacity and policy from the configuration.
+   *
+   * @param conflate True to replace waiting "data", "delta" and "aggregate" messages of the
+   *                 same node
+   */
+  public OutboundQueue(boolean conflate) {
+    this(Config.OUTBOUND_QUEUE_CAPACITY, OverflowPolicy.fromName(Config.OVERFLOW_POLICY),
+        conflate);
+  }
+
+  /**
+   * Create a queue.
+   *
+   * @param capacity The number of messages the queue holds before the policy applies
+   * @param policy   What to do when the queue is full
+   * @param conflate True to replace waiting "data", "delta" and "aggregate" messages of the
+   *                 same node
+   */
+  public OutboundQueue(int capacity, OverflowPolicy policy, boolean conflate) {
+    this.capacity = capacity;
+    this.limit = capacity + Math.max(0, Config.OUTBOUND_QUEUE_HEADROOM);
+    this.policy = policy;
+    this.pending = conflate ? new HashMap<>() : null;
+  }
+
+  /**
+   * Check whether a message is telemetry, which goes in the telemetry lane and may be dropped
+   * under pressure.
+   *
+   * @param frame The message
+   * @return True for "data", "delta", "aggregate", "camera", "chunk" and "image" messages
+   */
+  public static boolean isTelemetry(SharedFrame frame) {
+    String command = frame.getCommand();
+    return command.equals("data") || command.equals("delta") || command.equals("aggregate")
+        || command.equals("camera") || command.equals("chunk") || command.equals("image");
+  }
+
+  /**
+   * Add a message to the queue, applying the overflow policy if the queue is full. A "remove"
+   * message discards the queued telemetry of the node it removes, which would arrive after it
+   * otherwise. Under "drop-telemetry" a full queue with no telemetry left to drop refuses a
+   * control message, since commands and state changes are never dropped.
+   *
+   * @param frame The message
+   * @return False if the connection should be disconnected, true otherwise
+   */
+  public synchronized boolean offer(SharedFrame frame) {
+    frame.countQueued();
+    if (frame.getCommand().equals("remove") && frame.getAddress() != null) {
+      String nodeId = frame.getAddress();
+      telemetry.removeIf(entry -> nodeId.equals(entry.frame.getAddress()) && unmap(entry));
+      orphaned.remove(nodeId);
+    }
+    if (frame.getCommand().equals("data")) {
+      orphaned.remove(frame.getAddress());
+    } else if (frame.getCommand().equals("delta") && orphaned.contains(frame.getAddress())) {
+      dropped++;
+      return true;
+    }
+    if (pending != null && isConflated(frame)) {
+      if (frame.getCommand().equals("data")) {
+        Entry delta = pending.remove("delta " + frame.getAddress());
+        if (delta != null) {
+          telemetry.removeFirstOccurrence(delta);
+          conflated++;
+        }
+      }
+      Entry waiting = pending.get(conflationKey(frame));
+      if (waiting != null) {
+        waiting.frame = frame;
+        conflated++;
+        return true;
+      }
+    }
+    if (size() >= capacity) {
+      if (policy == OverflowPolicy.DISCONNECT) {
+        dropped++;
+        return false;
+      }
+      if (policy == OverflowPolicy.DROP_OLDEST) {
+        drop(removeFirst(oldestLane()));
+      } else if (!telemetry.isEmpty()) {
+        drop(removeFirst(telemetry));
+      } else {
+        dropped++;
+        if (frame.getCommand().equals("data") && frame.getAddress() != null) {
+          orphaned.add(frame.getAddress());
+        }
+        return isTelemetry(frame);
+      }
+      if (frame.getCommand().equals("delta") && orphaned.contains(frame.getAddress())) {
+        dropped++;
+        return true;
+      }
+    }
+    add(frame);
+    return true;
+  }
+
+  /**
+   * Add a message to the queue over its capacity, up to the headroom
+   * ({@code greenhouse.queue.headroom}). Used for the handshake replies and the one-time
+   * snapshot sent to a joining control panel, whose size grows with the number of nodes. Past
+   * the headroom the oldest telemetry makes room, and once there is none left the message is
+   * refused.
+   *
+   * @param frame The message
+   * @return False if the connection should be disconnected, true otherwise
+   */
+  public synchronized boolean force(SharedFrame frame) {
+    frame.countQueued();
+    if (size() >= limit) {
+      if (telemetry.isEmpty()) {
+        dropped++;
+        return false;
+      }
+      drop(removeFirst(telemetry));
+    }
+    add(frame);
+    return true;
+  }
+
+  /**
+   * Take the next message, if any.
+   *
+   * @return The next message, or null if the queue is empty
+   */
+  public synchronized SharedFrame poll() {
+    if (!control.isEmpty()) {
+      return take(control, controlLatency);
+    }
+    if (!telemetry.isEmpty()) {
+      return take(telemetry, telemetryLatency);
+    }
+    return null;
+  }
+
+  /**
+   * Take the next message, waiting until one is available.
+   *
+   * @return The next message
+   * @throws InterruptedException If interrupted while waiting
+   */
+  public synchronized SharedFrame take() throws InterruptedException {
+    while (isEmpty()) {
+      wait();
+    }
+    return poll();
+  }
+
+  /**
+   * Move the waiting messages into a batch, control messages first.
+   *
+   * @param batch The batch to add the messages to
+   * @param max   The most messages to move
+   * @return The number of messages moved
+   */
+  public synchronized int drainTo(List<SharedFrame> batch, int max) {
+    int count = 0;
+    while (count < max && !isEmpty()) {
+      batch.add(poll());
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Wait for a message and move it into a batch, together with the messages waiting behind it.
+   * If the batch is not full, wait up to the linger time for more messages to fill it.
+   *
+   * @param batch  The batch to add the messages to
+   * @param max    The most messages to move
+   * @param linger The most milliseconds to wait for more messages after the first one
+   * @return The number of messages moved
+   * @throws InterruptedException If interrupted while waiting
+   */
+  public synchronized int takeBatch(List<SharedFrame> batch, int max, long linger)
+      throws InterruptedException {
+    while (isEmpty()) {
+      wait();
+    }
+    int count = drainTo(batch, max);
+    long deadline = System.currentTimeMillis() + linger;
+    long remaining = linger;
+    while (count < max && remaining > 0) {
+      wait(remaining);
+      count += drainTo(batch, max - count);
+      remaining = deadline - System.currentTimeMillis();
+    }
+    return count;
+  }
+
+  /**
+   * Discard every waiting message.
+   */
+  public synchronized void clear() {
+    control.clear();
+    telemetry.clear();
+    orphaned.clear();
+    if (pending != null) {
+      pending.clear();
+    }
+  }
+
+  /**
+   * Check whether the queue is empty.
+   *
+   * @return True if no message is waiting
+   */
+  public synchronized boolean isEmpty() {
+    return control.isEmpty() && telemetry.isEmpty();
+  }
+
+  /**
+   * Get the number of messages waiting.
+   *
+   * @return The queue depth
+   */
+  public synchronized int size() {
+    return control.size() + telemetry.size();
+  }
+
+  /**
+   * Get the largest depth the queue has had.
+   *
+   * @return The maximum depth
+   */
+  public synchronized int getMaxDepth() {
+    return maxDepth;
+  }
+
+  /**
+   * Get the number of messages dropped or refused because the queue was full.
+   *
+   * @return The number of drops
+   */
+  public synchronized long getDropped() {
+    return dropped;
+  }
+
+  /**
+   * Get the number of messages which replaced a waiting message of the same node.
+   *
+   * @return The number of conflated messages
+   */
+  public synchronized long getConflated() {
+    return conflated;
+  }
+
+  /**
+   * Get the time control messages have waited in the queue.
+   *
+   * @return The latency histogram of the control lane
+   */
+  public LatencyHistogram getControlLatency() {
+    return controlLatency;
+  }
+
+  /**
+   * Get the time telemetry messages have waited in the queue.
+   *
+   * @return The latency histogram of the telemetry lane
+   */
+  public LatencyHistogram getTelemetryLatency() {
+    return telemetryLatency;
+  }
+
+  /**
+   * Get a short summary of the queue counters.
+   *
+   * @return The summary
+   */
+  @Override
+  public synchronized String toString() {
+    return "depth " + size() + "/" + capacity + ", max " + maxDepth + ", dropped "
+        + dropped + " (" + policy + "), conflated " + conflated + ", control wait "
+        + controlLatency + ", telemetry wait " + telemetryLatency;
+  }
+
+  /**
+   * Add a message to its lane and wake a waiting writer.
+   *
+   * @param frame The message
+   */
+  private void add(SharedFrame frame) {
+    Entry entry = new Entry(frame, System.nanoTime());
+    if (isTelemetry(frame)) {
+      telemetry.add(entry);
+      if (pending != null && isConflated(frame)) {
+        pending.put(conflationKey(frame), entry);
+      }
+    } else {
+      control.add(entry);
+    }
+    maxDepth = Math.max(maxDepth, size());
+    notifyAll();
+  }
+
+  /**
+   * Take the first message of a lane and record how long it waited.
+   *
+   * @param lane    The lane, not empty
+   * @param latency The latency histogram of the lane
+   * @return The message
+   */
+  private SharedFrame take(ArrayDeque<Entry> lane, LatencyHistogram latency) {
+    Entry entry = removeFirst(lane);
+    latency.record(System.nanoTime() - entry.queuedAt);
+    return entry.frame;
+  }
+
+  /**
+   * Remove the first message of a lane.
+   *
+   * @param lane The lane
+   * @return The removed entry, or null if the lane is empty
+   */
+  private Entry removeFirst(ArrayDeque<Entry> lane) {
+    Entry entry = lane.poll();
+    if (entry != null) {
+      unmap(entry);
+    }
+    return entry;
+  }
+
+  /**
+   * Count a message dropped to make room. A dropped "data" keyframe takes the deltas of its
+   * node queued behind it along, up to the node's next keyframe. If no later keyframe is
+   * queued, the node's deltas are refused until one is offered.
+   *
+   * @param entry The dropped entry
+   */
+  private void drop(Entry entry) {
+    dropped++;
+    if (!entry.frame.getCommand().equals("data") || entry.frame.getAddress() == null) {
+      return;
+    }
+    String nodeId = entry.frame.getAddress();
+    Iterator<Entry> queued = telemetry.iterator();
+    while (queued.hasNext()) {
+      Entry next = queued.next();
+      if (nodeId.equals(next.frame.getAddress())) {
+        if (next.frame.getCommand().equals("data")) {
+          return;
+        }
+        if (next.frame.getCommand().equals("delta")) {
+          queued.remove();
+          unmap(next);
+          dropped++;
+        }
+      }
+    }
+    orphaned.add(nodeId);
+  }
+
+  /**
+   * Forget a message leaving the telemetry lane, so a newer message of its node is queued
+   * instead of replacing it.
+   *
+   * @param entry The entry leaving the queue
+   * @return Always true, for use in a removal condition
+   */
+  private boolean unmap(Entry entry) {
+    if (pending != null && isConflated(entry.frame)) {
+      pending.remove(conflationKey(entry.frame), entry);
+    }
+    return true;
+  }
+
+  /**
+   * Check whether a message may be replaced by a newer one of the same node.
+   *
+   * @param frame The message
+   * @return True for "data", "delta" and "aggregate" messages
+   */
+  private static boolean isConflated(SharedFrame frame) {
+    String command = frame.getCommand();
+    return (command.equals("data") || command.equals("delta") || command.equals("aggregate"))
+        && frame.getAddress() != null;
+  }
+
+  /**
+   * Get the key under which a message replaces waiting messages, its command and node.
+   *
+   * @param frame The message
+   * @return The key
+   */
+  private static String conflationKey(SharedFrame frame) {
+    return frame.getCommand() + ' ' + frame.getAddress();
+  }
+
+  /**
+   * Find the lane holding the oldest message.
+   *
+   * @return The lane, which is empty only if both lanes are
+   */
+  private ArrayDeque<Entry> oldestLane() {
+    if (telemetry.isEmpty()) {
+      return control;
+    }
+    if (control.isEmpty()) {
+      return telemetry;
+    }
+    return control.peek().queuedAt <= telemetry.peek().queuedAt ? control : telemetry;
+  }
+
+  /**
+   * A queued message and the time it was queued.
+   */
+  private static final class Entry {
+    private SharedFrame frame;
+    private final long queuedAt;
+
+    /**
+     * Create an entry.
+     *
+     * @param frame    The message
+     * @param queuedAt The time the message was queued, from {@link System#nanoTime()}
+     */
+    private Entry(SharedFrame frame, long queuedAt) {
+      this.frame = frame;
+      this.queuedAt = queuedAt;
+    }
+  }
+}
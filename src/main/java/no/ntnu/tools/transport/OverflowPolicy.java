@@ -0,0 +1,57 @@
+package no.ntnu.tools.transport;
+
+/**
+ * What an {@link OutboundQueue} does when a message arrives and the queue is full.
+ */
+public enum OverflowPolicy {
+  /**
+   * Drop the oldest queued message to make room for the new one.
+   */
+  DROP_OLDEST("drop-oldest"),
+  /**
+   * Drop the oldest queued telemetry ("data", "aggregate", "camera", "chunk") to make room. Other
+   * messages, such as actuator commands and state changes, are never dropped.
+   */
+  DROP_TELEMETRY("drop-telemetry"),
+  /**
+   * Disconnect the connection, which is too slow to keep up.
+   */
+  DISCONNECT("disconnect");
+
+  private final String name;
+
+  /**
+   * Create a policy.
+   *
+   * @param name The name used in the configuration
+   */
+  OverflowPolicy(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Find the policy with a configuration name.
+   *
+   * @param name The configuration name
+   * @return The policy
+   * @throws IllegalArgumentException If no policy has the name
+   */
+  public static OverflowPolicy fromName(String name) {
+    for (OverflowPolicy policy : values()) {
+      if (policy.name.equals(name)) {
+        return policy;
+      }
+    }
+    throw new IllegalArgumentException("Unknown overflow policy: " + name);
+  }
+
+  /**
+   * Get the name of the policy, as used in the configuration.
+   *
+   * @return The name
+   */
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,354 @@
+package no.ntnu.tools.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A message that is sent to several connections. The message is encoded into a frame at most
+ * once per frame format, the first time a framed connection needs it, and every framed
+ * connection using that format then writes the same immutable bytes. Connections using object
+ * streams write the object held by the serialized frame once the message is queued for more
+ * than one of them, so it is serialized once for them too, see
+ * {@link SharedObjectOutputStream}. The message array must not be changed after the frame is
+ * created.
+ *
+ * <p>A frame received in the binary format is kept as it arrived. Only its command and address
+ * are decoded, which is all the server needs to route it, and it is relayed to connections
+ * using the same format as the received bytes. The rest of the message is only decoded if a
+ * connection using another format needs it, so relaying costs the same for any payload size.
+ *
+ * <p>Connections with compression enabled write the compressed frame, which is also made at
+ * most once per format. A compressed frame as received is kept, and relayed as it is to other
+ * connections using compression.
+ */
+public final class SharedFrame {
+  private static final int STREAM_HEADER_SIZE = 4; // The magic number and version
+  private static final AtomicLong framesEncoded = new AtomicLong();
+  private static final AtomicLong bytesEncoded = new AtomicLong();
+  private static final AtomicLong messagesDecoded = new AtomicLong();
+
+  private final String command;
+  private final String address;
+  private int receivedSize = -1;
+  private final AtomicInteger queued = new AtomicInteger();
+  private volatile String[] message;
+  private volatile byte[] serialized;
+  private volatile byte[] binary;
+  private volatile byte[] compressedSerialized;
+  private volatile byte[] compressedBinary;
+
+  /**
+   * Create a shared frame for a message.
+   *
+   * @param message The message
+   */
+  public SharedFrame(String[] message) {
+    this.message = message;
+    this.command = message[0];
+    this.address = message.length > 1 ? message[1] : null;
+  }
+
+  /**
+   * Create a shared frame for a binary frame as received.
+   *
+   * @param frame   The complete frame, including the length header
+   * @param command The command of the message
+   * @param address The address of the message, or null if it has none
+   */
+  private SharedFrame(byte[] frame, String command, String address) {
+    this.binary = frame;
+    this.command = command;
+    this.address = address;
+  }
+
+  /**
+   * Create a shared frame for a frame received from a connection. A binary frame keeps its
+   * bytes and only has its command and address decoded. A serialized frame is decoded.
+   *
+   * @param frame The complete frame, including the length header
+   * @return The shared frame, or null if the frame does not hold a message
+   */
+  public static SharedFrame received(byte[] frame) {
+    return received(frame, null);
+  }
+
+  /**
+   * Create a shared frame for a frame received from a connection, inflating it first if it is
+   * compressed.
+   *
+   * @param frame       The complete frame, including the length header
+   * @param compression The compression of the connection, counting the frame, or null
+   * @return The shared frame, or null if the frame does not hold a message
+   */
+  public static SharedFrame received(byte[] frame, Compression compression) {
+    byte[] compressed = Compression.isCompressed(frame) ? frame : null;
+    try {
+      frame = compression != null ? compression.inflateRead(frame)
+          : compressed != null ? Compression.inflate(frame) : frame;
+    } catch (StreamCorruptedException e) {
+      return null;
+    }
+    int bodyLength = frame.length - FrameCodec.HEADER_SIZE;
+    if (FrameFormat.of(frame, FrameCodec.HEADER_SIZE, bodyLength) == FrameFormat.BINARY) {
+      String[] header = BinaryCodec.decodeHeader(frame, FrameCodec.HEADER_SIZE, bodyLength);
+      if (header == null) {
+        return null;
+      }
+      SharedFrame shared = new SharedFrame(frame, header[0], header[1]);
+      shared.receivedSize = compressed != null ? compressed.length : frame.length;
+      shared.compressedBinary = compressed;
+      return shared;
+    }
+    String[] decoded = FrameCodec.decode(frame, FrameCodec.HEADER_SIZE, bodyLength);
+    if (decoded == null || decoded.length == 0 || decoded[0] == null) {
+      return null;
+    }
+    SharedFrame shared = new SharedFrame(decoded);
+    shared.serialized = frame;
+    shared.receivedSize = compressed != null ? compressed.length : frame.length;
+    shared.compressedSerialized = compressed;
+    return shared;
+  }
+
+  /**
+   * Get the message, decoding it first if the frame was received in the binary format.
+   *
+   * @return The message, which must not be changed
+   */
+  public String[] getMessage() {
+    String[] decoded = message;
+    if (decoded == null) {
+      byte[] frame = binary;
+      decoded = BinaryCodec.decode(frame, FrameCodec.HEADER_SIZE,
+          frame.length - FrameCodec.HEADER_SIZE);
+      messagesDecoded.incrementAndGet();
+      message = decoded;
+    }
+    return decoded;
+  }
+
+  /**
+   * Get the command of the message, its first slot.
+   *
+   * @return The command
+   */
+  public String getCommand() {
+    return command;
+  }
+
+  /**
+   * Get the address of the message, its second slot.
+   *
+   * @return The address, or null if the message has only a command
+   */
+  public String getAddress() {
+    return address;
+  }
+
+  /**
+   * Get the size of the frame as it was received.
+   *
+   * @return The bytes of the frame, including the length header, or -1 if the message was not
+   *         received as a frame
+   */
+  public int getReceivedSize() {
+    return receivedSize;
+  }
+
+  /**
+   * Get a read-only buffer over the encoded frame. Every call returns an independent buffer
+   * over the same bytes, so it can be written to one connection without copying.
+   *
+   * @param format The format of the frame body
+   * @return The frame, including the length header
+   * @throws IOException If the message could not be encoded
+   */
+  public ByteBuffer getBuffer(FrameFormat format) throws IOException {
+    return getBuffer(format, null);
+  }
+
+  /**
+   * Get a read-only buffer over the frame as written to a connection, compressed if the
+   * connection uses compression.
+   *
+   * @param format      The format of the frame body
+   * @param compression The compression of the connection, or null
+   * @return The frame, including the length header
+   * @throws IOException If the message could not be encoded
+   */
+  public ByteBuffer getBuffer(FrameFormat format, Compression compression) throws IOException {
+    return ByteBuffer.wrap(written(format, compression, true)).asReadOnlyBuffer();
+  }
+
+  /**
+   * Get the size of the encoded frame.
+   *
+   * @param format The format of the frame body
+   * @return The bytes of the frame, including the length header
+   * @throws IOException If the message could not be encoded
+   */
+  public int getSize(FrameFormat format) throws IOException {
+    return encoded(format).length;
+  }
+
+  /**
+   * Get the size of the frame as written to a connection.
+   *
+   * @param format      The format of the frame body
+   * @param compression The compression of the connection, or null
+   * @return The bytes of the frame, including the length header
+   * @throws IOException If the message could not be encoded
+   */
+  public int getSize(FrameFormat format, Compression compression) throws IOException {
+    return written(format, compression, false).length;
+  }
+
+  /**
+   * Write the encoded frame to a stream.
+   *
+   * @param out    The stream to write to
+   * @param format The format of the frame body
+   * @throws IOException If the message could not be encoded or written
+   */
+  public void writeTo(OutputStream out, FrameFormat format) throws IOException {
+    writeTo(out, format, null);
+  }
+
+  /**
+   * Write the frame to a stream, compressed if the connection uses compression.
+   *
+   * @param out         The stream to write to
+   * @param format      The format of the frame body
+   * @param compression The compression of the connection, or null
+   * @throws IOException If the message could not be encoded or written
+   */
+  public void writeTo(OutputStream out, FrameFormat format, Compression compression)
+      throws IOException {
+    out.write(written(format, compression, true));
+  }
+
+  /**
+   * Count the frame as queued for one more connection.
+   */
+  void countQueued() {
+    queued.incrementAndGet();
+  }
+
+  /**
+   * Check whether the frame has been queued for more than one connection.
+   *
+   * @return True if the frame is shared between connections
+   */
+  boolean isShared() {
+    return queued.get() > 1;
+  }
+
+  /**
+   * Write the message to an object stream as the object held by the serialized frame, so it is
+   * serialized once however many object streams it is written to.
+   *
+   * @param out The object stream to write to
+   * @throws IOException If the message could not be encoded or written
+   */
+  public void writeTo(SharedObjectOutputStream out) throws IOException {
+    byte[] frame = encoded(FrameFormat.SERIALIZED);
+    int start = FrameCodec.HEADER_SIZE + STREAM_HEADER_SIZE;
+    out.writeSerialized(frame, start, frame.length - start);
+  }
+
+  /**
+   * Get the total number of frames encoded by shared frames.
+   *
+   * @return The number of frames encoded
+   */
+  public static long getFramesEncoded() {
+    return framesEncoded.get();
+  }
+
+  /**
+   * Get the total number of bytes encoded by shared frames.
+   *
+   * @return The number of bytes encoded
+   */
+  public static long getBytesEncoded() {
+    return bytesEncoded.get();
+  }
+
+  /**
+   * Get the total number of received binary frames which had to be decoded in full, because
+   * a connection using another format needed them.
+   *
+   * @return The number of messages decoded
+   */
+  public static long getMessagesDecoded() {
+    return messagesDecoded.get();
+  }
+
+  /**
+   * Get the frame as written to a connection: the encoded frame, or the compressed frame if
+   * the connection uses compression. The frame is compressed at most once per format, and the
+   * time it takes is counted by the connection which needed it first.
+   *
+   * @param format      The format of the frame body
+   * @param compression The compression of the connection, or null
+   * @param count       True to count the frame as written to the connection
+   * @return The frame
+   * @throws IOException If the message could not be encoded
+   */
+  private byte[] written(FrameFormat format, Compression compression, boolean count)
+      throws IOException {
+    byte[] bytes = encoded(format);
+    if (compression == null || !compression.isEnabled()) {
+      return bytes;
+    }
+    byte[] compressed = format == FrameFormat.BINARY ? compressedBinary : compressedSerialized;
+    if (compressed == null && getCommand().equals("chunk")) {
+      // Image chunks hold JPEG data, which does not deflate any further
+      compressed = bytes;
+    } else if (compressed == null) {
+      long start = System.nanoTime();
+      compressed = Compression.compress(bytes);
+      compression.countDeflate(System.nanoTime() - start);
+      if (format == FrameFormat.BINARY) {
+        compressedBinary = compressed;
+      } else {
+        compressedSerialized = compressed;
+      }
+    }
+    if (count) {
+      compression.countWritten(bytes.length, compressed.length);
+    }
+    return compressed;
+  }
+
+  /**
+   * Encode the message, unless it has already been encoded in the format.
+   *
+   * @param format The format of the frame body
+   * @return The encoded frame
+   * @throws IOException If the message could not be encoded
+   */
+  private byte[] encoded(FrameFormat format) throws IOException {
+    byte[] bytes = format == FrameFormat.BINARY ? binary : serialized;
+    if (bytes == null) {
+      synchronized (this) {
+        bytes = format == FrameFormat.BINARY ? binary : serialized;
+        if (bytes == null) {
+          bytes = FrameCodec.encode(getMessage(), format);
+          framesEncoded.incrementAndGet();
+          bytesEncoded.addAndGet(bytes.length);
+          if (format == FrameFormat.BINARY) {
+            binary = bytes;
+          } else {
+            serialized = bytes;
+          }
+        }
+      }
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,42 @@
+package no.ntnu.tools.transport;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Object output stream which can also write an object serialized ahead of time, such as the
+ * body of a serialized frame shared by many connections. The stream is reset before and after
+ * such an object, so the reading end decodes it with no references to earlier objects, exactly
+ * as it was serialized, and the objects written after it do not refer to it either. The reading
+ * end is an ordinary {@link java.io.ObjectInputStream}.
+ */
+public class SharedObjectOutputStream extends ObjectOutputStream {
+  private final OutputStream out;
+
+  /**
+   * Create an object output stream, writing the stream header.
+   *
+   * @param out The stream to write to, which should be buffered
+   * @throws IOException If the stream header could not be written
+   */
+  public SharedObjectOutputStream(OutputStream out) throws IOException {
+    super(out);
+    this.out = out;
+  }
+
+  /**
+   * Write one object serialized on its own stream, without the header of that stream.
+   *
+   * @param bytes  The bytes holding the serialized object
+   * @param offset The start of the object
+   * @param length The length of the object
+   * @throws IOException If the object could not be written
+   */
+  public void writeSerialized(byte[] bytes, int offset, int length) throws IOException {
+    reset();
+    drain();
+    out.write(bytes, offset, length);
+    reset();
+  }
+}
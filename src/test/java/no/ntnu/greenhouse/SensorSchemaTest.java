@@ -0,0 +1,187 @@
+package no.ntnu.greenhouse;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Tests of the sensor schema: declaring it, and decoding "data", "aggregate" and "delta"
+ * messages with it, as encoded by {@link DeltaEncoder}.
+ */
+public class SensorSchemaTest {
+  private final List<Sensor> sensors = Arrays.asList(
+      new Sensor("temperature", 15, 40, 21.5, "\u00b0C"),
+      new Sensor("humidity", 50, 100, 80.25, "%"),
+      new Sensor("humidity", 50, 100, 75, "%"));
+  private final SensorSchema schema = SensorSchema.of(sensors);
+
+  /**
+   * A schema declared in a message reads back the same.
+   */
+  @Test
+  public void declarationRoundTrip() {
+    String[] fields = schema.toFields();
+    assertEquals(SensorSchema.MARKER, fields[0]);
+    SensorSchema parsed = SensorSchema.parse(fields, 1);
+    assertEquals(3, parsed.size());
+    assertArrayEquals(fields, parsed.toFields());
+  }
+
+  /**
+   * A declaration which does not hold four fields per sensor is refused.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void malformedDeclarationIsRefused() {
+    SensorSchema.parse(new String[] {"sensors", "temperature", "\u00b0C", "15"}, 1);
+  }
+
+  /**
+   * The fixed-point values of a keyframe decode to the readings with the type and unit of their
+   * slot.
+   */
+  @Test
+  public void keyframeDecodes() {
+    String[] data = {"data", "1", "2150", "8025", "7500"};
+    List<SensorReading> readings = schema.decode(data, 2);
+    assertEquals(readings(21.5, 80.25, 75), readings);
+  }
+
+  /**
+   * A keyframe with more values than the schema has sensors is refused.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void keyframeWithTooManyValuesIsRefused() {
+    schema.decode(new String[] {"data", "1", "2150", "8025", "7500", "1"}, 2);
+  }
+
+  /**
+   * An aggregate holding the means, minimums, maximums and standard deviations decodes to
+   * aggregate readings.
+   */
+  @Test
+  public void aggregateDecodes() {
+    String[] aggregate = {"aggregate", "1", "2150", "8025", "7500", "2000", "8000", "7400",
+        "2300", "8050", "7600", "75", "3", "50"};
+    List<SensorReading> readings = schema.decodeAggregate(aggregate, 2);
+    assertEquals(3, readings.size());
+    AggregateReading temperature = (AggregateReading) readings.get(0);
+    assertEquals("temperature", temperature.getType());
+    assertEquals(21.5, temperature.getValue(), 0);
+    assertEquals(20, temperature.getMin(), 0);
+    assertEquals(23, temperature.getMax(), 0);
+    assertEquals(0.75, temperature.getStddev(), 0);
+    AggregateReading humidity = (AggregateReading) readings.get(2);
+    assertEquals("%", humidity.getUnit());
+    assertEquals(74, humidity.getMin(), 0);
+    assertEquals(0.5, humidity.getStddev(), 0);
+  }
+
+  /**
+   * An aggregate holding only the means decodes to plain readings.
+   */
+  @Test
+  public void aggregateOfMeansDecodesToReadings() {
+    List<SensorReading> readings =
+        schema.decodeAggregate(new String[] {"aggregate", "1", "2150", "8025", "7500"}, 2);
+    assertEquals(readings(21.5, 80.25, 75), readings);
+    assertFalse(readings.get(0) instanceof AggregateReading);
+  }
+
+  /**
+   * A delta replaces the slots set in its bitmap, and leaves the keyframe as it was.
+   */
+  @Test
+  public void deltaAppliesToTheKeyframe() {
+    List<SensorReading> keyframe = readings(21.5, 80.25, 75);
+    BitSet changed = new BitSet();
+    changed.set(0);
+    changed.set(2);
+    String bitmap = SensorSchema.toBitmap(changed);
+    assertEquals("5", bitmap);
+    List<SensorReading> readings =
+        schema.applyDelta(new String[] {"delta", "1", bitmap, "2200", "7650"}, keyframe);
+    assertEquals(readings(22, 80.25, 76.5), readings);
+    assertEquals(readings(21.5, 80.25, 75), keyframe);
+  }
+
+  /**
+   * A delta whose bitmap does not match its values or the schema is refused.
+   */
+  @Test
+  public void mismatchedDeltaIsRefused() {
+    List<SensorReading> keyframe = readings(21.5, 80.25, 75);
+    assertRefused(new String[] {"delta", "1", "5", "2200"}, keyframe);
+    assertRefused(new String[] {"delta", "1", "8", "2200"}, keyframe);
+    assertRefused(new String[] {"delta", "1", "1", "2200"}, keyframe.subList(0, 2));
+  }
+
+  /**
+   * The messages of the encoder decode to the current readings, whether they are keyframes or
+   * deltas, and only the changed slots are sent in a delta.
+   */
+  @Test
+  public void encodedMessagesDecodeToTheReadings() {
+    DeltaEncoder encoder = new DeltaEncoder(10, 0);
+    String[] first = encoder.encode("data", "1", sensors);
+    assertEquals("data", first[0]);
+    List<SensorReading> keyframe = schema.decode(first, 2);
+    assertEquals(currentReadings(), keyframe);
+
+    sensors.get(1).getReading().setValue(81.5);
+    String[] second = encoder.encode("data", "1", sensors);
+    assertEquals("delta", second[0]);
+    assertArrayEquals(new String[] {"delta", "1", "2", "8150"}, second);
+    assertEquals(currentReadings(), schema.applyDelta(second, keyframe));
+
+    sensors.get(0).getReading().setValue(30);
+    sensors.get(1).getReading().setValue(90);
+    sensors.get(2).getReading().setValue(60);
+    assertEquals("data", encoder.encode("data", "1", sensors)[0]);
+    assertEquals(2, encoder.getKeyframes());
+    assertEquals(1, encoder.getDeltas());
+  }
+
+  /**
+   * Build the readings of the three sensors of the schema.
+   *
+   * @param temperature The temperature
+   * @param first       The first humidity
+   * @param second      The second humidity
+   * @return The readings
+   */
+  private static List<SensorReading> readings(double temperature, double first,
+                                              double second) {
+    return Arrays.asList(new SensorReading("temperature", temperature, "\u00b0C"),
+        new SensorReading("humidity", first, "%"), new SensorReading("humidity", second, "%"));
+  }
+
+  /**
+   * Get the current readings of the sensors.
+   *
+   * @return The readings
+   */
+  private List<SensorReading> currentReadings() {
+    return readings(sensors.get(0).getReading().getValue(),
+        sensors.get(1).getReading().getValue(), sensors.get(2).getReading().getValue());
+  }
+
+  /**
+   * Check that a delta is refused.
+   *
+   * @param delta    The delta
+   * @param keyframe The readings of the keyframe
+   */
+  private void assertRefused(String[] delta, List<SensorReading> keyframe) {
+    try {
+      schema.applyDelta(delta, keyframe);
+    } catch (IllegalArgumentException e) {
+      return;
+    }
+    throw new AssertionError("Delta " + Arrays.toString(delta) + " was applied");
+  }
+}
@@ -0,0 +1,97 @@
+package no.ntnu.greenhouse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Tests of the running statistics a node sends its "aggregate" message from.
+ */
+public class SensorStatisticsTest {
+  private final List<Sensor> sensors = Arrays.asList(
+      new Sensor("temperature", 15, 40, 20, "\u00b0C"),
+      new Sensor("humidity", 50, 100, 80, "%"));
+  private final SensorStatistics statistics = new SensorStatistics(sensors);
+
+  /**
+   * Nothing is aggregated before the first reading.
+   */
+  @Test
+  public void nothingToAggregateAtFirst() {
+    assertEquals(0, statistics.getCount());
+    assertNull(statistics.aggregate());
+  }
+
+  /**
+   * The aggregate holds the mean, lowest and highest reading and standard deviation of each
+   * sensor, with its type and unit.
+   */
+  @Test
+  public void aggregateHoldsTheStatistics() {
+    add(20, 80);
+    add(22, 80);
+    add(24, 80);
+    add(26, 80);
+    assertEquals(4, statistics.getCount());
+    AggregateReading[] aggregate = statistics.aggregate();
+    assertEquals(2, aggregate.length);
+
+    AggregateReading temperature = aggregate[0];
+    assertEquals("temperature", temperature.getType());
+    assertEquals("\u00b0C", temperature.getUnit());
+    assertEquals(23, temperature.getValue(), 0);
+    assertEquals(20, temperature.getMin(), 0);
+    assertEquals(26, temperature.getMax(), 0);
+    assertEquals(2.24, temperature.getStddev(), 0);
+
+    AggregateReading humidity = aggregate[1];
+    assertEquals(80, humidity.getValue(), 0);
+    assertEquals(0, humidity.getStddev(), 0);
+  }
+
+  /**
+   * The standard deviation stays accurate for readings far from zero, where summing squares
+   * would lose it.
+   */
+  @Test
+  public void deviationOfLargeReadingsIsAccurate() {
+    List<Sensor> pressure = List.of(new Sensor("pressure", 0, 2e9, 1e9, "Pa"));
+    SensorStatistics large = new SensorStatistics(pressure);
+    for (int i = 0; i < 1000; i++) {
+      pressure.get(0).getReading().setValue(1e9 + (i % 2 == 0 ? 0.5 : -0.5));
+      large.add(pressure);
+    }
+    assertEquals(0.5, large.aggregate()[0].getStddev(), 0);
+  }
+
+  /**
+   * Taking the aggregate starts the statistics over.
+   */
+  @Test
+  public void aggregateStartsOver() {
+    add(20, 80);
+    add(30, 90);
+    statistics.aggregate();
+    assertEquals(0, statistics.getCount());
+    assertNull(statistics.aggregate());
+    add(25, 70);
+    AggregateReading[] aggregate = statistics.aggregate();
+    assertEquals(25, aggregate[0].getMin(), 0);
+    assertEquals(70, aggregate[1].getMax(), 0);
+  }
+
+  /**
+   * Set the readings of the sensors and add them.
+   *
+   * @param temperature The temperature
+   * @param humidity    The humidity
+   */
+  private void add(double temperature, double humidity) {
+    sensors.get(0).getReading().setValue(temperature);
+    sensors.get(1).getReading().setValue(humidity);
+    statistics.add(sensors);
+  }
+}
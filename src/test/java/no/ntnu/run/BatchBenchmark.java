@@ -0,0 +1,110 @@
+package no.ntnu.run;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import no.ntnu.tools.Config;
+import no.ntnu.tools.transport.FrameFormat;
+import no.ntnu.tools.transport.FramedMessageStream;
+import no.ntnu.tools.transport.MessageStream;
+import no.ntnu.tools.transport.ObjectMessageStream;
+import no.ntnu.tools.transport.SharedFrame;
+import no.ntnu.tools.transport.SharedObjectOutputStream;
+
+/**
+ * Measures a burst of actuator "state" messages, as a node sends when all its actuators are
+ * toggled, written as one batch in every wire format: the bytes and the writes reaching the
+ * socket per burst, and the time the receiving end takes to read the burst back. Run it once
+ * as it is and once with {@code -Dgreenhouse.batch.envelope=false} to compare batch envelopes
+ * with one frame or object per message. The fastest of ten reads is reported.
+ */
+public class BatchBenchmark {
+  private static final int ROUNDS = 20000;
+
+  /**
+   * Entrypoint for the benchmark.
+   *
+   * @param args The number of messages in a burst, 40 by default
+   * @throws IOException If a message could not be written or read
+   */
+  public static void main(String[] args) throws IOException {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+    List<SharedFrame> burst = new ArrayList<>();
+    for (int actuator = 1; actuator <= count; actuator++) {
+      burst.add(new SharedFrame(new String[] {"state", "12:" + actuator, "window", "true"}));
+    }
+
+    System.out.println("Messages per burst: " + count + ", envelope: " + Config.BATCH_ENVELOPE);
+    System.out.println("Format        bytes/burst   writes/burst   read ns/burst");
+    for (String format : new String[] {"object", "serialized", "binary"}) {
+      double[] result = run(format, burst);
+      for (int repeat = 0; repeat < 9; repeat++) {
+        double[] next = run(format, burst);
+        result[2] = Math.min(result[2], next[2]);
+      }
+      System.out.printf("%-12s %12.0f %14.1f %15.0f%n", format, result[0], result[1], result[2]);
+    }
+  }
+
+  /**
+   * Write the burst repeatedly to a buffer and read every message back.
+   *
+   * @param format "object", or the name of a frame format
+   * @param burst  The messages of a burst
+   * @return The bytes, writes and nanoseconds taken to read back, per burst
+   * @throws IOException If a message could not be written or read
+   */
+  private static double[] run(String format, List<SharedFrame> burst) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    long[] writes = new long[1];
+    OutputStream socket = new FilterOutputStream(bytes) {
+      @Override
+      public void write(byte[] buffer, int offset, int length) throws IOException {
+        writes[0]++;
+        out.write(buffer, offset, length);
+      }
+    };
+    MessageStream writer = open(format, null, socket);
+    for (int round = 0; round < ROUNDS; round++) {
+      writer.write(burst);
+    }
+
+    MessageStream reader = open(format, new ByteArrayInputStream(bytes.toByteArray()), null);
+    long start = System.nanoTime();
+    for (int message = 0; message < ROUNDS * burst.size(); message++) {
+      if (reader.read() == null) {
+        throw new IOException("Message could not be read back");
+      }
+    }
+    long nanos = System.nanoTime() - start;
+    return new double[] {bytes.size() / (double) ROUNDS, writes[0] / (double) ROUNDS,
+        nanos / (double) ROUNDS};
+  }
+
+  /**
+   * Open a message stream of a wire format on one side of an in-memory connection.
+   *
+   * @param format "object", or the name of a frame format
+   * @param input  The bytes to read, or null for a writing stream
+   * @param output The stream to write to, or null for a reading stream
+   * @return The message stream
+   * @throws IOException If an object stream could not be opened
+   */
+  private static MessageStream open(String format, ByteArrayInputStream input,
+                                    OutputStream output) throws IOException {
+    if (format.equals("object")) {
+      return input == null
+          ? new ObjectMessageStream(
+              new SharedObjectOutputStream(new BufferedOutputStream(output)), null)
+          : new ObjectMessageStream(null, new ObjectInputStream(input));
+    }
+    return new FramedMessageStream(input, output == null ? OutputStream.nullOutputStream()
+        : output, FrameFormat.valueOf(format.toUpperCase()));
+  }
+}
@@ -0,0 +1,163 @@
+package no.ntnu.run;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import no.ntnu.controlpanel.ImageAssembler;
+import no.ntnu.greenhouse.Camera;
+import no.ntnu.greenhouse.CameraStream;
+import no.ntnu.tools.Config;
+import no.ntnu.tools.RSA;
+import no.ntnu.tools.transport.FrameFormat;
+import no.ntnu.tools.transport.SharedFrame;
+
+/**
+ * Compares the two ways a node sends a camera image. As a "camera" message the image is base64
+ * encoded and encrypted character by character, and goes out as one frame. As "chunk" messages
+ * the raw bytes are split into chunks, and a node writes a window of chunks at a time. For each
+ * image the table shows the CPU time the node spends preparing and encoding it, the bytes sent
+ * in each frame format, and the most bytes a sensor reading queued meanwhile waits behind on the
+ * wire. The chunks are read back and put together, to check the image arrives intact.
+ *
+ * <p>A second table sends a series of updates picking one of the images at random, as the
+ * simulated cameras do, and compares the bytes sent with and without the cache of sent images,
+ * which sends an image seen before as its hash alone.
+ */
+public class CameraBenchmark {
+  private static final BigInteger[] KEYS = {
+      BigInteger.valueOf(41), BigInteger.valueOf(29), BigInteger.valueOf(133)};
+  private static final int ROUNDS = 200;
+  private static final int UPDATES = 100;
+
+  /**
+   * Entrypoint for the benchmark.
+   *
+   * @param args Not used
+   * @throws IOException If an image could not be loaded, or a message encoded or read back
+   */
+  public static void main(String[] args) throws IOException {
+    System.out.println("Chunk size: " + Config.CAMERA_CHUNK_SIZE + " bytes, window: "
+        + Config.CAMERA_WINDOW + " chunks");
+    System.out.println("Image            jpeg   mode        cpu ms   binary bytes"
+        + "   serialized bytes   ahead of a reading");
+    List<byte[]> jpegs = new ArrayList<>();
+    for (int number = 1; number <= 5; number++) {
+      String name = "webcamera" + number + ".jpg";
+      byte[] jpeg;
+      try (InputStream in = CameraBenchmark.class.getResourceAsStream("/images/" + name)) {
+        jpeg = in.readAllBytes();
+      }
+      jpegs.add(jpeg);
+      message(name, jpeg);
+      chunked(name, jpeg);
+    }
+
+    System.out.println();
+    System.out.println("Updates   cache        binary bytes   messages   sent as hash");
+    repeated(jpegs, 0);
+    repeated(jpegs, Config.IMAGE_CACHE_SIZE);
+  }
+
+  /**
+   * Send a series of images picked at random, and print a row.
+   *
+   * @param jpegs     The images to pick from
+   * @param cacheSize The bytes of sent images kept, 0 to send every image in full
+   * @throws IOException If a message could not be encoded
+   */
+  private static void repeated(List<byte[]> jpegs, long cacheSize) throws IOException {
+    Random random = new Random(1);
+    CameraStream stream = new CameraStream(Config.CAMERA_CHUNK_SIZE, cacheSize);
+    long binary = 0;
+    int messages = 0;
+    int references = 0;
+    for (int update = 0; update < UPDATES; update++) {
+      stream.offer(0, jpegs.get(random.nextInt(jpegs.size())));
+      List<SharedFrame> sent = new ArrayList<>();
+      while (stream.poll("12", sent, Config.CAMERA_WINDOW) > 0) {
+        // Every window is written before the next is taken
+      }
+      for (SharedFrame frame : sent) {
+        binary += frame.getSize(FrameFormat.BINARY);
+        references += frame.getCommand().equals("image") ? 1 : 0;
+      }
+      messages += sent.size();
+    }
+    System.out.printf("%-9d %-12s %12d %10d %14d%n", UPDATES, cacheSize > 0 ? "on" : "off",
+        binary, messages, references);
+  }
+
+  /**
+   * Measure an image sent as one encrypted base64 "camera" message, and print a row.
+   *
+   * @param name The name of the image
+   * @param jpeg The image
+   * @throws IOException If the message could not be encoded
+   */
+  private static void message(String name, byte[] jpeg) throws IOException {
+    long start = System.nanoTime();
+    String[] payload = RSA.encrypt(new String[] {"camera", "12",
+        Base64.getEncoder().encodeToString(jpeg)}, KEYS);
+    SharedFrame frame = new SharedFrame(payload);
+    int binary = frame.getSize(FrameFormat.BINARY);
+    long nanos = System.nanoTime() - start;
+    int serialized = frame.getSize(FrameFormat.SERIALIZED);
+    System.out.printf("%-14s %6d   %-9s %8.2f %14d %18d %20d%n", name, jpeg.length, "message",
+        nanos / 1e6, binary, serialized, binary);
+  }
+
+  /**
+   * Measure an image sent as "chunk" messages, check it is put back together intact, and print
+   * a row.
+   *
+   * @param name The name of the image
+   * @param jpeg The image
+   * @throws IOException If a chunk could not be encoded or read back
+   */
+  private static void chunked(String name, byte[] jpeg) throws IOException {
+    long nanos = Long.MAX_VALUE;
+    List<SharedFrame> chunks = null;
+    for (int round = 0; round < ROUNDS; round++) {
+      long start = System.nanoTime();
+      CameraStream stream = new CameraStream();
+      stream.offer(0, jpeg);
+      chunks = new ArrayList<>();
+      while (stream.poll("12", chunks, Config.CAMERA_WINDOW) > 0) {
+        // Every window is written before the next is taken
+      }
+      for (SharedFrame chunk : chunks) {
+        chunk.getSize(FrameFormat.BINARY);
+      }
+      nanos = Math.min(nanos, System.nanoTime() - start);
+    }
+
+    int binary = 0;
+    int serialized = 0;
+    int ahead = 0;
+    List<Camera> images = null;
+    ImageAssembler assembler = new ImageAssembler();
+    for (int i = 0; i < chunks.size(); i++) {
+      SharedFrame chunk = chunks.get(i);
+      binary += chunk.getSize(FrameFormat.BINARY);
+      serialized += chunk.getSize(FrameFormat.SERIALIZED);
+      if (i < Config.CAMERA_WINDOW) {
+        ahead += chunk.getSize(FrameFormat.BINARY);
+      }
+      ByteBuffer buffer = chunk.getBuffer(FrameFormat.BINARY);
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      images = assembler.add(SharedFrame.received(bytes).getMessage());
+    }
+    if (images == null || !images.get(0).getImage()
+        .equals(Base64.getEncoder().encodeToString(jpeg))) {
+      throw new IOException("Image was not put back together intact");
+    }
+    System.out.printf("%-14s %6d   %-9s %8.2f %14d %18d %20d%n", name, jpeg.length, "chunked",
+        nanos / 1e6, binary, serialized, ahead);
+  }
+}
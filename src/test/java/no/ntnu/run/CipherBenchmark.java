@@ -0,0 +1,102 @@
+package no.ntnu.run;
+
+import java.io.IOException;
+import java.util.Arrays;
+import no.ntnu.greenhouse.DeviceFactory;
+import no.ntnu.tools.cipher.KeyExchange;
+import no.ntnu.tools.cipher.MessageCipher;
+import no.ntnu.tools.cipher.RsaCipher;
+import no.ntnu.tools.cipher.SessionCipher;
+import no.ntnu.tools.transport.FrameFormat;
+import no.ntnu.tools.transport.SharedFrame;
+
+/**
+ * Compares the throughput of the two payload ciphers, RSA on every character and AES-GCM under
+ * a session key, on a sensor message and on a camera image sent as one base64 message. Each
+ * message is encrypted and decrypted for about a second, or at least three times, and checked
+ * to come back intact. Throughput is the payload characters handled per second. The size is the
+ * binary frame of the encrypted message. The cost of the key exchange a client makes once per
+ * connection is measured as well.
+ */
+public class CipherBenchmark {
+  private static final long TARGET_NANOS = 1_000_000_000L;
+  private static final int MIN_ROUNDS = 3;
+
+  /**
+   * Entrypoint for the benchmark.
+   *
+   * @param args Not used
+   * @throws IOException If a message could not be encoded
+   */
+  public static void main(String[] args) throws IOException {
+    String[][] messages = {
+        {"data", "12", "2731", "8012", "7955", "2690", "7990", "8101", "2702", "7820", "8033",
+            "2745", "7915", "8020"},
+        {"camera", "12", DeviceFactory.createCamera(12).getImage()}};
+    MessageCipher[] ciphers = {new RsaCipher(), new SessionCipher(SessionCipher.generateKey())};
+
+    System.out.println("Message   cipher     payload chars   binary bytes   encrypt MB/s"
+        + "   decrypt MB/s");
+    for (String[] message : messages) {
+      for (MessageCipher cipher : ciphers) {
+        run(message, cipher);
+      }
+    }
+    exchange();
+  }
+
+  /**
+   * Encrypt and decrypt one message repeatedly, and print a row.
+   *
+   * @param message The message
+   * @param cipher  The cipher
+   * @throws IOException If the encrypted message could not be encoded
+   */
+  private static void run(String[] message, MessageCipher cipher) throws IOException {
+    long chars = 0;
+    for (int i = 2; i < message.length; i++) {
+      chars += message[i].length();
+    }
+    String[] encrypted = cipher.encrypt(message);
+    if (!Arrays.equals(cipher.decrypt(encrypted), message)) {
+      throw new IllegalStateException("Message did not decrypt intact");
+    }
+
+    long rounds = 0;
+    long start = System.nanoTime();
+    while (rounds < MIN_ROUNDS || System.nanoTime() - start < TARGET_NANOS) {
+      encrypted = cipher.encrypt(message);
+      rounds++;
+    }
+    double encrypt = chars * rounds / ((System.nanoTime() - start) / 1e9) / 1e6;
+
+    rounds = 0;
+    start = System.nanoTime();
+    while (rounds < MIN_ROUNDS || System.nanoTime() - start < TARGET_NANOS) {
+      cipher.decrypt(encrypted);
+      rounds++;
+    }
+    double decrypt = chars * rounds / ((System.nanoTime() - start) / 1e9) / 1e6;
+
+    String name = cipher instanceof RsaCipher ? "rsa" : "session";
+    System.out.printf("%-9s %-10s %13d %14d %14.3f %14.3f%n", message[0], name, chars,
+        new SharedFrame(encrypted).getSize(FrameFormat.BINARY), encrypt, decrypt);
+  }
+
+  /**
+   * Measure the key exchange, the offer of the client, the answer of the server and the client
+   * opening the session key, and print the time per exchange.
+   */
+  private static void exchange() {
+    byte[] sessionKey = SessionCipher.generateKey();
+    long rounds = 0;
+    long start = System.nanoTime();
+    while (rounds < MIN_ROUNDS || System.nanoTime() - start < TARGET_NANOS) {
+      KeyExchange client = new KeyExchange();
+      client.accept(KeyExchange.answer(client.offer(), sessionKey));
+      rounds++;
+    }
+    System.out.printf("%nKey exchange: %.3f ms per connection%n",
+        (System.nanoTime() - start) / 1e6 / rounds);
+  }
+}
@@ -0,0 +1,291 @@
+package no.ntnu.run;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import no.ntnu.greenhouse.DeviceFactory;
+import no.ntnu.greenhouse.Sensor;
+import no.ntnu.greenhouse.SensorSchema;
+import no.ntnu.tools.RSA;
+import no.ntnu.tools.transport.FrameCodec;
+import no.ntnu.tools.transport.FrameFormat;
+import no.ntnu.tools.transport.ObjectMessageStream;
+import no.ntnu.tools.transport.SharedObjectOutputStream;
+
+/**
+ * Compares the wire formats on typical messages: Java object streams, frames holding a
+ * serialized message, and frames holding typed fields. It reports the bytes per message, the
+ * time to encode and decode a message, and the heap an object output stream keeps after a
+ * million messages, without resets and with the periodic resets of {@link ObjectMessageStream}.
+ * Last it compares "data" messages holding full text readings with ones holding fixed-point
+ * values by sensor slot, encrypted as nodes send them.
+ */
+public class CodecBenchmark {
+  private static final String[][] MESSAGES = {
+      {"data", "12", "{ type=temperature, value=27.31, unit=°C }",
+          "{ type=humidity, value=80.12, unit=% }", "{ type=humidity, value=79.55, unit=% }"},
+      {"state", "12:2", "window", "true"},
+      {"add", "12", "window", "2", "true", "fan", "3", "false", "heater", "4", "false"},
+      {"set", "2", "true"},
+      {"aggregate", "12", "{ type=temperature, value=26.90, unit=°C }"}};
+  private static final int ROUNDS = 200000;
+  private static final int RETAINED_MESSAGES = 1000000;
+  private static final int[] SENSOR_COUNTS = {3, 12};
+  private static final BigInteger[] KEYS = {
+      BigInteger.valueOf(41), BigInteger.valueOf(29), BigInteger.valueOf(133)};
+
+  // Distinct copies of the messages, so object streams can not refer back to earlier ones
+  private static final String[][] INPUTS = new String[ROUNDS][];
+
+  /**
+   * Entrypoint for the benchmark.
+   *
+   * @param args Not used
+   * @throws IOException If a message could not be encoded
+   */
+  public static void main(String[] args) throws IOException {
+    for (int i = 0; i < ROUNDS; i++) {
+      INPUTS[i] = copy(MESSAGES[i % MESSAGES.length]);
+    }
+    System.out.println(
+        "Bytes per message      object   object+reset   serialized frame   binary frame");
+    for (String[] message : MESSAGES) {
+      System.out.printf("%-18s %10d %14d %18d %14d%n", message[0], objectBytes(message, false),
+          objectBytes(message, true), FrameCodec.encode(message).length,
+          FrameCodec.encode(message, FrameFormat.BINARY).length);
+    }
+
+    for (int warmup = 0; warmup < 3; warmup++) {
+      encodeObject();
+      encodeFrames(FrameFormat.SERIALIZED);
+      encodeFrames(FrameFormat.BINARY);
+      decodeObject();
+      decodeFrames(FrameFormat.SERIALIZED);
+      decodeFrames(FrameFormat.BINARY);
+    }
+    System.out.println();
+    System.out.println("Nanoseconds per message      encode     decode");
+    System.out.printf("Object stream           %11.0f %10.0f%n", encodeObject(), decodeObject());
+    System.out.printf("Serialized frame        %11.0f %10.0f%n",
+        encodeFrames(FrameFormat.SERIALIZED), decodeFrames(FrameFormat.SERIALIZED));
+    System.out.printf("Binary frame            %11.0f %10.0f%n",
+        encodeFrames(FrameFormat.BINARY), decodeFrames(FrameFormat.BINARY));
+
+    System.out.println();
+    System.out.println("Heap retained after " + RETAINED_MESSAGES + " messages");
+    System.out.printf("Object stream, no reset %8.1f MB%n", retainedByObjectStream(false) / 1e6);
+    System.out.printf("Object stream           %8.1f MB%n", retainedByObjectStream(true) / 1e6);
+    System.out.printf("Binary frames           %8.1f MB%n", retainedByFrames() / 1e6);
+
+    System.out.println();
+    System.out.println("Bytes per data message   text serialized   text binary   "
+        + "fixed serialized   fixed binary");
+    for (int count : SENSOR_COUNTS) {
+      List<Sensor> sensors = new ArrayList<>();
+      for (int i = 0; i < count; i++) {
+        sensors.add(i % 3 == 0 ? DeviceFactory.createTemperatureSensor()
+            : DeviceFactory.createHumiditySensor());
+      }
+      String[] text = readings(sensors, false);
+      String[] fixed = readings(sensors, true);
+      System.out.printf("%2d sensors %21d %13d %18d %14d%n", count,
+          FrameCodec.encode(text).length, FrameCodec.encode(text, FrameFormat.BINARY).length,
+          FrameCodec.encode(fixed).length, FrameCodec.encode(fixed, FrameFormat.BINARY).length);
+    }
+  }
+
+  /**
+   * Build the encrypted "data" message a node sends for its sensors.
+   *
+   * @param sensors The sensors
+   * @param fixed   True for fixed-point values by sensor slot, false for full text readings
+   * @return The message
+   */
+  private static String[] readings(List<Sensor> sensors, boolean fixed) {
+    String[] message = new String[2 + sensors.size()];
+    message[0] = "data";
+    message[1] = "12";
+    for (int i = 0; i < sensors.size(); i++) {
+      message[i + 2] = fixed ? SensorSchema.encode(sensors.get(i).getReading().getValue())
+          : sensors.get(i).getReading().toString();
+    }
+    return RSA.encrypt(message, KEYS);
+  }
+
+  /**
+   * Get the bytes a message adds to a long-lived object stream which has already sent the
+   * same kind of message before.
+   *
+   * @param message The message
+   * @param reset   True to reset the stream after every message
+   * @return The bytes written for the message
+   * @throws IOException If the message could not be written
+   */
+  private static long objectBytes(String[] message, boolean reset) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(copy(message));
+    if (reset) {
+      out.reset();
+    }
+    out.flush();
+    int before = bytes.size();
+    out.writeObject(copy(message));
+    if (reset) {
+      out.reset();
+    }
+    out.flush();
+    return bytes.size() - before;
+  }
+
+  /**
+   * Time writing messages to an object message stream.
+   *
+   * @return Average nanoseconds per message
+   * @throws IOException If a message could not be written
+   */
+  private static double encodeObject() throws IOException {
+    ObjectMessageStream stream = new ObjectMessageStream(
+        new SharedObjectOutputStream(OutputStream.nullOutputStream()), null);
+    long start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      stream.write(INPUTS[i]);
+    }
+    return (System.nanoTime() - start) / (double) ROUNDS;
+  }
+
+  /**
+   * Time reading messages from an object message stream.
+   *
+   * @return Average nanoseconds per message
+   * @throws IOException If a message could not be read
+   */
+  private static double decodeObject() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectMessageStream out = new ObjectMessageStream(new SharedObjectOutputStream(bytes), null);
+    for (int i = 0; i < ROUNDS; i++) {
+      out.write(INPUTS[i]);
+    }
+    ObjectMessageStream in = new ObjectMessageStream(null,
+        new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    long fields = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      fields += in.read().length;
+    }
+    double nanos = (System.nanoTime() - start) / (double) ROUNDS;
+    return fields > 0 ? nanos : 0;
+  }
+
+  /**
+   * Time encoding messages into frames.
+   *
+   * @param format The format of the frame bodies
+   * @return Average nanoseconds per message
+   * @throws IOException If a message could not be encoded
+   */
+  private static double encodeFrames(FrameFormat format) throws IOException {
+    long bytes = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      bytes += FrameCodec.encode(INPUTS[i], format).length;
+    }
+    double nanos = (System.nanoTime() - start) / (double) ROUNDS;
+    return bytes > 0 ? nanos : 0;
+  }
+
+  /**
+   * Time decoding frame bodies back into messages.
+   *
+   * @param format The format of the frame bodies
+   * @return Average nanoseconds per message
+   * @throws IOException If a message could not be encoded
+   */
+  private static double decodeFrames(FrameFormat format) throws IOException {
+    byte[][] bodies = new byte[MESSAGES.length][];
+    for (int i = 0; i < MESSAGES.length; i++) {
+      byte[] frame = FrameCodec.encode(MESSAGES[i], format);
+      bodies[i] = Arrays.copyOfRange(frame, FrameCodec.HEADER_SIZE, frame.length);
+    }
+    long fields = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      fields += FrameCodec.decode(bodies[i % bodies.length]).length;
+    }
+    double nanos = (System.nanoTime() - start) / (double) ROUNDS;
+    return fields > 0 ? nanos : 0;
+  }
+
+  /**
+   * Measure the heap held by an object output stream after writing a million distinct
+   * messages, as a connection does over its lifetime.
+   *
+   * @param reset True to write through an object message stream, which resets periodically
+   * @return The bytes of heap retained while the stream is still open
+   * @throws IOException If a message could not be written
+   */
+  private static long retainedByObjectStream(boolean reset) throws IOException {
+    long before = usedHeap();
+    SharedObjectOutputStream out = new SharedObjectOutputStream(OutputStream.nullOutputStream());
+    ObjectMessageStream stream = new ObjectMessageStream(out, null);
+    for (int i = 0; i < RETAINED_MESSAGES; i++) {
+      if (reset) {
+        stream.write(copy(MESSAGES[i % MESSAGES.length]));
+      } else {
+        out.writeObject(copy(MESSAGES[i % MESSAGES.length]));
+      }
+    }
+    long retained = usedHeap() - before;
+    out.close();
+    return retained;
+  }
+
+  /**
+   * Measure the heap held after encoding a million distinct messages into binary frames.
+   *
+   * @return The bytes of heap retained
+   * @throws IOException If a message could not be encoded
+   */
+  private static long retainedByFrames() throws IOException {
+    long before = usedHeap();
+    OutputStream out = OutputStream.nullOutputStream();
+    for (int i = 0; i < RETAINED_MESSAGES; i++) {
+      out.write(FrameCodec.encode(copy(MESSAGES[i % MESSAGES.length]), FrameFormat.BINARY));
+    }
+    return usedHeap() - before;
+  }
+
+  /**
+   * Copy a message into new strings, as every message read from a sensor is.
+   *
+   * @param message The message
+   * @return The copy
+   */
+  private static String[] copy(String[] message) {
+    String[] copy = new String[message.length];
+    for (int i = 0; i < message.length; i++) {
+      copy[i] = new String(message[i]);
+    }
+    return copy;
+  }
+
+  /**
+   * Get the heap in use after collecting garbage.
+   *
+   * @return The bytes of heap in use
+   */
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,100 @@
+package no.ntnu.run;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import no.ntnu.greenhouse.DeviceFactory;
+import no.ntnu.tools.RSA;
+import no.ntnu.tools.transport.Compression;
+import no.ntnu.tools.transport.FrameFormat;
+import no.ntnu.tools.transport.SharedFrame;
+
+/**
+ * Compares the size of the messages a node sends, encrypted as a node sends them, uncompressed,
+ * compressed with the preset dictionary of {@link Compression} and deflated without it, and
+ * reports the CPU time a connection spends compressing and inflating them. Messages below the
+ * compression threshold are sent as they are, which shows in the table as no change.
+ */
+public class CompressionBenchmark {
+  private static final int ROUNDS = 5000;
+  private static final BigInteger[] KEYS = {
+      BigInteger.valueOf(41), BigInteger.valueOf(29), BigInteger.valueOf(133)};
+
+  /**
+   * Entrypoint for the benchmark.
+   *
+   * @param args Not used
+   * @throws IOException If a message could not be encoded
+   */
+  public static void main(String[] args) throws IOException {
+    String[][] messages = {
+        {"state", "12:2", "window", "true"},
+        {"data", "12", "2731", "8012", "7955"},
+        {"aggregate", "12", "{ type=temperature, value=27.31, unit=°C }",
+            "{ type=humidity, value=80.12, unit=% }", "{ type=humidity, value=79.55, unit=% }"},
+        {"add", "12", "window", "1", "false", "window", "2", "false", "fan", "3", "false",
+            "heater", "4", "false", "sensors", "temperature", "°C", "15.0", "40.0", "humidity",
+            "%", "50.0", "100.0", "humidity", "%", "50.0", "100.0"},
+        {"camera", "12", DeviceFactory.createCamera(12).getImage()}};
+
+    System.out.println("Message     format        bytes   dictionary   no dictionary"
+        + "   deflate us   inflate us");
+    for (String[] message : messages) {
+      String[] encrypted = RSA.encrypt(message, KEYS);
+      for (FrameFormat format : FrameFormat.values()) {
+        run(encrypted, format);
+      }
+    }
+  }
+
+  /**
+   * Compress and inflate one message repeatedly, as a fresh frame every round, and print a row.
+   *
+   * @param message The message, encrypted
+   * @param format  The frame format
+   * @throws IOException If the message could not be encoded
+   */
+  private static void run(String[] message, FrameFormat format) throws IOException {
+    Compression writer = new Compression();
+    writer.enable();
+    Compression reader = new Compression();
+    int plain = new SharedFrame(message).getSize(format);
+    byte[] compressed = null;
+    for (int round = 0; round < ROUNDS; round++) {
+      ByteBuffer buffer = new SharedFrame(message).getBuffer(format, writer);
+      compressed = new byte[buffer.remaining()];
+      buffer.get(compressed);
+      if (SharedFrame.received(compressed, reader) == null) {
+        throw new IOException("Frame could not be read back");
+      }
+    }
+    System.out.printf("%-11s %-10s %8d %12d %15d %12.1f %12.1f%n", message[0],
+        format.name().toLowerCase(), plain, compressed.length, deflated(message, format),
+        writer.getDeflateNanos() / 1e3 / ROUNDS, reader.getInflateNanos() / 1e3 / ROUNDS);
+  }
+
+  /**
+   * Deflate the body of a frame without a dictionary, for comparison.
+   *
+   * @param message The message
+   * @param format  The frame format
+   * @return The size of the frame with its body deflated
+   * @throws IOException If the message could not be encoded
+   */
+  private static int deflated(String[] message, FrameFormat format) throws IOException {
+    ByteBuffer frame = new SharedFrame(message).getBuffer(format);
+    byte[] body = new byte[frame.remaining()];
+    frame.get(body);
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    deflater.setInput(body, 4, body.length - 4);
+    deflater.finish();
+    byte[] output = new byte[body.length + 64];
+    int length = 0;
+    while (!deflater.finished()) {
+      length += deflater.deflate(output, length, output.length - length);
+    }
+    deflater.end();
+    return 9 + length;
+  }
+}
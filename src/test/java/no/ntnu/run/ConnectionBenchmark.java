@@ -0,0 +1,108 @@
+package no.ntnu.run;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import no.ntnu.server.Server;
+import no.ntnu.tools.Config;
+import no.ntnu.tools.transport.MessageStream;
+
+/**
+ * Measures what each connection costs the server in the configured server mode. It runs a
+ * server in this process, connects idle greenhouse nodes to it until the requested number is
+ * reached or the system refuses more, and reports threads and memory per connection.
+ * Connections whose handshake times out under the load are not counted. Run it once per mode
+ * and compare, for example with {@code -Dgreenhouse.server.mode=selector}.
+ */
+public class ConnectionBenchmark {
+
+  /**
+   * Entrypoint for the benchmark.
+   *
+   * @param args The number of connections to open, 1000 by default
+   * @throws Exception If the server could not be started
+   */
+  public static void main(String[] args) throws Exception {
+    int target = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    Server server = new Server();
+    Thread serverThread = new Thread(server::run, "server");
+    serverThread.setDaemon(true);
+    serverThread.start();
+    Thread.sleep(500);
+
+    long heapBefore = usedHeap();
+    long rssBefore = residentMemory();
+    int threadsBefore = Thread.activeCount();
+    long start = System.nanoTime();
+
+    List<Socket> sockets = new ArrayList<>();
+    try {
+      while (sockets.size() < target) {
+        Socket socket = new Socket(Config.SERVER_ADDRESS, Config.SERVER_PORT);
+        MessageStream stream = MessageStream.open(socket);
+        stream.write(new String[] {"add", String.valueOf(socket.getLocalPort())});
+        sockets.add(socket);
+      }
+    } catch (IOException | OutOfMemoryError e) {
+      System.out.println("Stopped after " + sockets.size() + " connections: " + e);
+    }
+    long deadline = System.currentTimeMillis() + Config.HANDSHAKE_TIMEOUT + 1000;
+    while (server.getNodeMap().size() < sockets.size()
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    Thread.sleep(1000);
+
+    int connections = server.getNodeMap().size();
+    long heapAfter = usedHeap();
+    long rssAfter = residentMemory();
+    int threadsAfter = Thread.activeCount();
+    System.out.println("Server mode:             " + Config.SERVER_MODE);
+    System.out.println("Wire format:             " + Config.WIRE_FORMAT);
+    System.out.println("Connections:             " + connections + " of " + sockets.size()
+        + " opened");
+    System.out.printf("Connect time:            %.2f s%n", seconds);
+    System.out.println("Threads (all):           " + threadsBefore + " -> " + threadsAfter);
+    System.out.printf("Heap per connection:     %.1f KiB%n",
+        (heapAfter - heapBefore) / 1024.0 / Math.max(1, connections));
+    if (rssBefore > 0) {
+      System.out.printf("Resident per connection: %.1f KiB%n",
+          (rssAfter - rssBefore) / 1024.0 / Math.max(1, connections));
+    }
+    System.out.println("(client sockets live in the same process and are included)");
+    System.exit(0);
+  }
+
+  /**
+   * Get the heap in use after a garbage collection.
+   *
+   * @return Used heap in bytes
+   */
+  private static long usedHeap() {
+    System.gc();
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  /**
+   * Get the resident memory of the process, which includes thread stacks.
+   *
+   * @return Resident memory in bytes, or 0 if it is not available on this system
+   */
+  private static long residentMemory() {
+    try {
+      for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+        if (line.startsWith("VmRSS:")) {
+          return Long.parseLong(line.replaceAll("\\D", "")) * 1024;
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      return 0;
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,91 @@
+package no.ntnu.run;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import no.ntnu.greenhouse.DeltaEncoder;
+import no.ntnu.greenhouse.DeviceFactory;
+import no.ntnu.greenhouse.Sensor;
+import no.ntnu.greenhouse.SensorReading;
+import no.ntnu.greenhouse.SensorSchema;
+import no.ntnu.tools.RSA;
+import no.ntnu.tools.transport.FrameCodec;
+import no.ntnu.tools.transport.FrameFormat;
+
+/**
+ * Compares the bytes a node sends for its sensor readings as full keyframes and as deltas, for
+ * some keyframe intervals and deadbands. The sensors drift with the same random noise as in a
+ * running node. Every message is encrypted and encoded as a binary frame, as a node sends it,
+ * and decoded again as a control panel does, to check how far the readings shown on the panel
+ * are from the real ones.
+ */
+public class DeltaBenchmark {
+  private static final int MESSAGES = 10000;
+  private static final int[] SENSOR_COUNTS = {3, 12};
+  private static final int[] KEYFRAME_INTERVALS = {1, 12, 60};
+  private static final double[] DEADBANDS = {0, 0.1, 0.5};
+  private static final BigInteger[] KEYS = {
+      BigInteger.valueOf(41), BigInteger.valueOf(29), BigInteger.valueOf(133)};
+
+  /**
+   * Entrypoint for the benchmark.
+   *
+   * @param args Not used
+   * @throws IOException If a message could not be encoded
+   */
+  public static void main(String[] args) throws IOException {
+    System.out.println("Sensors  interval  deadband   keyframes   deltas   bytes/message   "
+        + "saved   max error");
+    for (int count : SENSOR_COUNTS) {
+      for (int interval : KEYFRAME_INTERVALS) {
+        for (double deadband : DEADBANDS) {
+          if (interval > 1 || deadband == 0) {
+            run(count, interval, deadband);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Send readings through an encoder and report the bytes sent and the largest error seen by
+   * the control panel.
+   *
+   * @param count    The number of sensors
+   * @param interval The keyframe interval
+   * @param deadband The deadband
+   * @throws IOException If a message could not be encoded
+   */
+  private static void run(int count, int interval, double deadband) throws IOException {
+    List<Sensor> sensors = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      sensors.add(i % 3 == 0 ? DeviceFactory.createTemperatureSensor()
+          : DeviceFactory.createHumiditySensor());
+    }
+    SensorSchema schema = SensorSchema.of(sensors);
+    DeltaEncoder encoder = new DeltaEncoder(interval, deadband);
+    List<SensorReading> keyframe = null;
+    long bytes = 0;
+    double maxError = 0;
+    for (int i = 0; i < MESSAGES; i++) {
+      sensors.forEach(Sensor::addRandomNoise);
+      String[] message = encoder.encode("data", "12", sensors);
+      bytes += FrameCodec.encode(RSA.encrypt(message, KEYS), FrameFormat.BINARY).length;
+      List<SensorReading> shown;
+      if (message[0].equals("data")) {
+        keyframe = schema.decode(message, 2);
+        shown = keyframe;
+      } else {
+        shown = schema.applyDelta(message, keyframe);
+      }
+      for (int slot = 0; slot < count; slot++) {
+        double error = sensors.get(slot).getReading().getValue() - shown.get(slot).getValue();
+        maxError = Math.max(maxError, Math.abs(error));
+      }
+    }
+    System.out.printf("%7d %9d %9.1f %11d %8d %15.1f %7d %11.2f%n", count, interval, deadband,
+        encoder.getKeyframes(), encoder.getDeltas(), bytes / (double) MESSAGES,
+        encoder.getBytesSaved(), maxError);
+  }
+}
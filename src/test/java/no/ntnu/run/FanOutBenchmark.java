@@ -0,0 +1,195 @@
+package no.ntnu.run;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import no.ntnu.tools.transport.FrameCodec;
+import no.ntnu.tools.transport.FrameFormat;
+import no.ntnu.tools.transport.ObjectMessageStream;
+import no.ntnu.tools.transport.OutboundQueue;
+import no.ntnu.tools.transport.SharedFrame;
+import no.ntnu.tools.transport.SharedObjectOutputStream;
+
+/**
+ * Compares the cost of broadcasting one sensor message to many control panels when every panel
+ * encodes the message itself, against encoding it once into a shared frame. Both framed panels
+ * and panels using object streams, the default wire format, are measured.
+ */
+public class FanOutBenchmark {
+  private static final int ROUNDS = 20000;
+
+  private static long objectBytes;
+
+  /**
+   * Entrypoint for the benchmark.
+   *
+   * @param args The number of control panels, 20 by default
+   * @throws IOException If a message could not be encoded
+   */
+  public static void main(String[] args) throws IOException {
+    int panels = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+    String[] message = {"data", "50123",
+        "{ type=temperature, value=27.31, unit=°C }",
+        "{ type=humidity, value=80.12, unit=% }",
+        "{ type=humidity, value=79.55, unit=% }"};
+
+    for (int warmup = 0; warmup < 3; warmup++) {
+      perPanel(message, panels);
+      shared(message, panels);
+      objectStreams(message, panels, false);
+      objectStreams(message, panels, true);
+    }
+    double perPanelNanos = perPanel(message, panels);
+    long framesBefore = SharedFrame.getFramesEncoded();
+    double sharedNanos = shared(message, panels);
+    long framesPerBroadcast = (SharedFrame.getFramesEncoded() - framesBefore) / ROUNDS;
+    double objectNanos = objectStreams(message, panels, false);
+    long objectMessageBytes = objectBytes / ((long) ROUNDS * panels);
+    framesBefore = SharedFrame.getFramesEncoded();
+    double sharedObjectNanos = objectStreams(message, panels, true);
+    long objectFramesPerBroadcast = (SharedFrame.getFramesEncoded() - framesBefore) / ROUNDS;
+    long sharedObjectMessageBytes = objectBytes / ((long) ROUNDS * panels);
+
+    System.out.println("Control panels:                 " + panels);
+    System.out.printf("Encode per panel:   %10.0f ns per broadcast%n", perPanelNanos);
+    System.out.printf("Shared frame:       %10.0f ns per broadcast%n", sharedNanos);
+    System.out.println("Encodes per broadcast (shared): " + framesPerBroadcast);
+    System.out.printf("Object streams, serialize per panel: %10.0f ns per broadcast, %d bytes"
+        + " per message%n", objectNanos, objectMessageBytes);
+    System.out.printf("Object streams, shared frame:        %10.0f ns per broadcast, %d bytes"
+        + " per message%n", sharedObjectNanos, sharedObjectMessageBytes);
+    System.out.println("Encodes per broadcast (object streams, shared): "
+        + objectFramesPerBroadcast);
+  }
+
+  /**
+   * Broadcast by encoding the message once for every panel.
+   *
+   * @param message The message
+   * @param panels  The number of panels
+   * @return Average nanoseconds per broadcast
+   * @throws IOException If the message could not be encoded
+   */
+  private static double perPanel(String[] message, int panels) throws IOException {
+    long bytes = 0;
+    long start = System.nanoTime();
+    for (int round = 0; round < ROUNDS; round++) {
+      for (int panel = 0; panel < panels; panel++) {
+        bytes += ByteBuffer.wrap(FrameCodec.encode(message)).remaining();
+      }
+    }
+    return report(start, bytes);
+  }
+
+  /**
+   * Broadcast by sharing one encoded frame between all panels.
+   *
+   * @param message The message
+   * @param panels  The number of panels
+   * @return Average nanoseconds per broadcast
+   * @throws IOException If the message could not be encoded
+   */
+  private static double shared(String[] message, int panels) throws IOException {
+    long bytes = 0;
+    long start = System.nanoTime();
+    for (int round = 0; round < ROUNDS; round++) {
+      SharedFrame frame = new SharedFrame(message);
+      for (int panel = 0; panel < panels; panel++) {
+        bytes += frame.getBuffer(FrameFormat.SERIALIZED).remaining();
+      }
+    }
+    return report(start, bytes);
+  }
+
+  /**
+   * Broadcast to panels using object streams through their queues, either serializing the
+   * message on every stream or writing the object serialized once into the shared frame. Every
+   * broadcast is a new message, as sensor data is, so streams can not refer back to one they
+   * wrote before. The bytes written are counted in {@link #objectBytes}.
+   *
+   * @param message The message
+   * @param panels  The number of panels
+   * @param share   True to write a shared frame, false to serialize the message per panel
+   * @return Average nanoseconds per broadcast
+   * @throws IOException If the message could not be written
+   */
+  private static double objectStreams(String[] message, int panels, boolean share)
+      throws IOException {
+    String[][] broadcasts = new String[ROUNDS][];
+    for (int round = 0; round < ROUNDS; round++) {
+      broadcasts[round] = new String[message.length];
+      for (int i = 0; i < message.length; i++) {
+        broadcasts[round][i] = new String(message[i]);
+      }
+    }
+    CountingOutputStream counter = new CountingOutputStream();
+    ObjectMessageStream[] streams = new ObjectMessageStream[panels];
+    OutboundQueue[] queues = new OutboundQueue[panels];
+    for (int panel = 0; panel < panels; panel++) {
+      streams[panel] = new ObjectMessageStream(new SharedObjectOutputStream(counter), null);
+      queues[panel] = new OutboundQueue();
+    }
+    counter.count = 0;
+    long start = System.nanoTime();
+    for (int round = 0; round < ROUNDS; round++) {
+      SharedFrame frame = new SharedFrame(broadcasts[round]);
+      for (OutboundQueue queue : queues) {
+        queue.offer(frame);
+      }
+      for (int panel = 0; panel < panels; panel++) {
+        if (share) {
+          streams[panel].write(queues[panel].poll());
+        } else {
+          streams[panel].write(queues[panel].poll().getMessage());
+        }
+      }
+    }
+    objectBytes = counter.count;
+    return report(start, counter.count);
+  }
+
+  /**
+   * Compute the average time per round. The byte count keeps the work from being optimized
+   * away.
+   *
+   * @param start Start time in nanoseconds
+   * @param bytes Bytes produced
+   * @return Average nanoseconds per round
+   */
+  private static double report(long start, long bytes) {
+    double nanos = (System.nanoTime() - start) / (double) ROUNDS;
+    if (bytes == 0) {
+      throw new IllegalStateException("No bytes produced");
+    }
+    return nanos;
+  }
+
+  /**
+   * Output stream which only counts the bytes written to it.
+   */
+  private static final class CountingOutputStream extends OutputStream {
+    private long count;
+
+    /**
+     * Count one byte.
+     *
+     * @param b The byte
+     */
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    /**
+     * Count the bytes.
+     *
+     * @param b   The bytes
+     * @param off The start of the bytes
+     * @param len The number of bytes
+     */
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+}
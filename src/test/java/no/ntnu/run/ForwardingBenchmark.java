@@ -0,0 +1,105 @@
+package no.ntnu.run;
+
+import java.io.IOException;
+import java.util.Arrays;
+import no.ntnu.tools.transport.FrameCodec;
+import no.ntnu.tools.transport.FrameFormat;
+import no.ntnu.tools.transport.SharedFrame;
+
+/**
+ * Measures what the server spends on relaying one binary "camera" message to a control panel,
+ * for payloads from a few bytes to a megabyte. Relaying keeps the received frame and only
+ * decodes its command and address. For comparison it also times decoding the whole message and
+ * encoding it again, which is what relaying cost before.
+ */
+public class ForwardingBenchmark {
+  private static final int[] PAYLOAD_SIZES = {64, 1024, 16 * 1024, 256 * 1024, 1024 * 1024};
+  private static final long BYTES_PER_ROUND = 256L * 1024 * 1024;
+
+  /**
+   * Entrypoint for the benchmark.
+   *
+   * @param args Not used
+   * @throws IOException If a message could not be encoded
+   */
+  public static void main(String[] args) throws IOException {
+    for (int warmup = 0; warmup < 3; warmup++) {
+      for (int size : PAYLOAD_SIZES) {
+        byte[] frame = cameraFrame(size);
+        relay(frame, rounds(size));
+        decodeAndEncode(frame, rounds(size));
+      }
+    }
+    System.out.println("Payload bytes     relay ns/msg     decode+encode ns/msg");
+    for (int size : PAYLOAD_SIZES) {
+      byte[] frame = cameraFrame(size);
+      System.out.printf("%13d %16.0f %24.0f%n", size, relay(frame, rounds(size)),
+          decodeAndEncode(frame, rounds(size)));
+    }
+    System.out.println("Messages decoded in full while relaying: "
+        + SharedFrame.getMessagesDecoded());
+  }
+
+  /**
+   * Time relaying a received frame: routing it by its header and getting the bytes to write.
+   *
+   * @param frame  The received frame
+   * @param rounds The number of messages
+   * @return Average nanoseconds per message
+   * @throws IOException If the frame could not be encoded
+   */
+  private static double relay(byte[] frame, int rounds) throws IOException {
+    long bytes = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < rounds; i++) {
+      SharedFrame shared = SharedFrame.received(frame);
+      bytes += shared.getAddress().length() + shared.getBuffer(FrameFormat.BINARY).remaining();
+    }
+    double nanos = (System.nanoTime() - start) / (double) rounds;
+    return bytes > 0 ? nanos : 0;
+  }
+
+  /**
+   * Time decoding a received frame in full and encoding the message again.
+   *
+   * @param frame  The received frame
+   * @param rounds The number of messages
+   * @return Average nanoseconds per message
+   * @throws IOException If the message could not be encoded
+   */
+  private static double decodeAndEncode(byte[] frame, int rounds) throws IOException {
+    long bytes = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < rounds; i++) {
+      String[] message = FrameCodec.decode(frame, FrameCodec.HEADER_SIZE,
+          frame.length - FrameCodec.HEADER_SIZE);
+      bytes += FrameCodec.encode(message, FrameFormat.BINARY).length;
+    }
+    double nanos = (System.nanoTime() - start) / (double) rounds;
+    return bytes > 0 ? nanos : 0;
+  }
+
+  /**
+   * Encode a "camera" message with an image of the given size, as a node sends it.
+   *
+   * @param size The number of image characters
+   * @return The binary frame
+   * @throws IOException If the message could not be encoded
+   */
+  private static byte[] cameraFrame(int size) throws IOException {
+    char[] image = new char[size];
+    Arrays.fill(image, 'A');
+    return FrameCodec.encode(new String[] {"camera", "12", new String(image)},
+        FrameFormat.BINARY);
+  }
+
+  /**
+   * Get the number of messages to time, so every payload size moves about the same bytes.
+   *
+   * @param size The payload size
+   * @return The number of messages
+   */
+  private static int rounds(int size) {
+    return (int) Math.max(1000, Math.min(1000000, BYTES_PER_ROUND / size));
+  }
+}
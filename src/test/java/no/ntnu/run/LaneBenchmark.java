@@ -0,0 +1,82 @@
+package no.ntnu.run;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import no.ntnu.tools.Config;
+import no.ntnu.tools.transport.LatencyHistogram;
+import no.ntnu.tools.transport.OutboundQueue;
+import no.ntnu.tools.transport.OverflowPolicy;
+import no.ntnu.tools.transport.SharedFrame;
+
+/**
+ * Shows how long control messages wait in an {@link OutboundQueue} while telemetry saturates
+ * it. A writer drains the queue in batches and blocks for a fixed time per message, like a
+ * slow socket, while a producer offers sensor data at twice the rate the writer can take and
+ * an actuator state change every millisecond. In a single FIFO every message would wait about
+ * as long as telemetry.
+ */
+public class LaneBenchmark {
+  private static final long WRITE_NANOS = 20000;
+
+  /**
+   * Entrypoint for the benchmark.
+   *
+   * @param args The number of seconds to run, 5 by default
+   * @throws InterruptedException If interrupted while waiting for the threads
+   */
+  public static void main(String[] args) throws InterruptedException {
+    long seconds = args.length > 0 ? Long.parseLong(args[0]) : 5;
+    OutboundQueue queue = new OutboundQueue(Config.OUTBOUND_QUEUE_CAPACITY,
+        OverflowPolicy.fromName(Config.OVERFLOW_POLICY));
+    SharedFrame data = new SharedFrame(new String[] {"data", "50123",
+        "{ type=temperature, value=27.31, unit=C }"});
+    SharedFrame state = new SharedFrame(new String[] {"state", "50123:2", "window", "true"});
+    long end = System.nanoTime() + seconds * 1000000000L;
+
+    Thread writer = new Thread(() -> {
+      List<SharedFrame> batch = new ArrayList<>();
+      try {
+        while (System.nanoTime() < end) {
+          queue.takeBatch(batch, Config.BATCH_MAX_SIZE, 0);
+          LockSupport.parkNanos(batch.size() * WRITE_NANOS);
+          batch.clear();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    writer.setDaemon(true);
+    writer.start();
+
+    long offered = 0;
+    long dataPerMillisecond = 2 * 1000000 / WRITE_NANOS;
+    while (System.nanoTime() < end) {
+      for (int i = 0; i < dataPerMillisecond; i++) {
+        queue.offer(data);
+        offered++;
+      }
+      queue.offer(state);
+      Thread.sleep(1);
+    }
+    writer.join();
+
+    System.out.println("Queue:                " + queue.size() + " waiting, capacity "
+        + Config.OUTBOUND_QUEUE_CAPACITY + ", " + Config.OVERFLOW_POLICY);
+    System.out.println("Telemetry offered:    " + offered + ", dropped " + queue.getDropped());
+    print("Control wait:         ", queue.getControlLatency());
+    print("Telemetry wait:       ", queue.getTelemetryLatency());
+  }
+
+  /**
+   * Print the percentiles of a lane.
+   *
+   * @param label   The label
+   * @param latency The latency histogram of the lane
+   */
+  private static void print(String label, LatencyHistogram latency) {
+    System.out.printf("%sp50 %8.3f ms, p99 %8.3f ms, max %8.3f ms, %d messages%n", label,
+        latency.getPercentile(50) / 1e6, latency.getPercentile(99) / 1e6,
+        latency.getMax() / 1e6, latency.getCount());
+  }
+}
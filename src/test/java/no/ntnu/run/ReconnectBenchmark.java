@@ -0,0 +1,82 @@
+package no.ntnu.run;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import no.ntnu.server.Server;
+import no.ntnu.tools.Config;
+import no.ntnu.tools.transport.MessageStream;
+
+/**
+ * Simulates greenhouse nodes reconnecting all at once, as after a power failure, and reports
+ * how many connections per second the server takes in. It runs a server in this process.
+ * Some clients can be made silent: they connect but never finish the handshake, like a
+ * stalled device, and must not hold up the others.
+ */
+public class ReconnectBenchmark {
+  private static final long GIVE_UP_MILLIS = 60000;
+
+  /**
+   * Entrypoint for the benchmark.
+   *
+   * @param args The number of nodes, 2000 by default, the number of silent clients, 0 by
+   *             default, and the number of nodes connecting in parallel, 64 by default
+   * @throws Exception If the server could not be started
+   */
+  public static void main(String[] args) throws Exception {
+    int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int silent = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+    int parallel = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+    Server server = new Server();
+    Thread serverThread = new Thread(server::run, "server");
+    serverThread.setDaemon(true);
+    serverThread.start();
+    Thread.sleep(500);
+
+    List<Socket> sockets = Collections.synchronizedList(new ArrayList<>());
+    for (int i = 0; i < silent; i++) {
+      sockets.add(new Socket(Config.SERVER_ADDRESS, Config.SERVER_PORT));
+    }
+
+    AtomicInteger failed = new AtomicInteger();
+    ExecutorService clients = Executors.newFixedThreadPool(parallel);
+    long start = System.nanoTime();
+    for (int i = 0; i < nodes; i++) {
+      clients.execute(() -> {
+        try {
+          Socket socket = new Socket(Config.SERVER_ADDRESS, Config.SERVER_PORT);
+          sockets.add(socket);
+          MessageStream stream = MessageStream.open(socket);
+          stream.write(new String[] {"add", String.valueOf(socket.getLocalPort())});
+        } catch (IOException e) {
+          failed.incrementAndGet();
+        }
+      });
+    }
+    long deadline = System.currentTimeMillis() + GIVE_UP_MILLIS;
+    while (server.getNodeMap().size() < nodes - failed.get()
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    int registered = server.getNodeMap().size();
+    clients.shutdownNow();
+    clients.awaitTermination(1, TimeUnit.SECONDS);
+
+    System.out.println("Server mode:         " + Config.SERVER_MODE);
+    System.out.println("Wire format:         " + Config.WIRE_FORMAT);
+    System.out.println("Silent clients:      " + silent);
+    System.out.println("Nodes registered:    " + registered + " of " + nodes
+        + (failed.get() > 0 ? " (" + failed.get() + " failed to connect)" : ""));
+    System.out.printf("Time:                %.2f s%s%n", seconds,
+        registered < nodes ? " (gave up)" : "");
+    System.out.printf("Accept rate:         %.0f connections/s%n", registered / seconds);
+    System.exit(0);
+  }
+}
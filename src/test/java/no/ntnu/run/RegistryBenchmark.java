@@ -0,0 +1,161 @@
+package no.ntnu.run;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import no.ntnu.server.ClientConnection;
+import no.ntnu.server.ConnectionRegistry;
+import no.ntnu.tools.transport.Compression;
+import no.ntnu.tools.transport.OutboundQueue;
+import no.ntnu.tools.transport.SharedFrame;
+
+/**
+ * Measures what connections coming and going cost the connection registry as it grows. Handshake
+ * threads disconnect and reconnect nodes of a full registry, as in a reconnect storm, while
+ * another thread broadcasts to every connection, and the cost per connect is reported for each
+ * registry size. It runs without a server or sockets.
+ */
+public class RegistryBenchmark {
+  private static final int[] SIZES = {1000, 10000, 50000};
+
+  /**
+   * Entrypoint for the benchmark.
+   *
+   * @param args The number of reconnects per size, 200000 by default, and the number of
+   *             handshake threads, 16 by default
+   * @throws InterruptedException If interrupted while waiting for the threads
+   */
+  public static void main(String[] args) throws InterruptedException {
+    int reconnects = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+    System.out.println("Reconnects:          " + reconnects + " per size");
+    System.out.println("Handshake threads:   " + threads);
+    for (int size : SIZES) {
+      run(size, reconnects, threads);
+    }
+  }
+
+  /**
+   * Churn a registry of one size and report the cost.
+   *
+   * @param size       The number of connections in the registry
+   * @param reconnects The number of reconnects
+   * @param threads    The number of threads reconnecting
+   * @throws InterruptedException If interrupted while waiting for the threads
+   */
+  private static void run(int size, int reconnects, int threads) throws InterruptedException {
+    ConnectionRegistry registry = new ConnectionRegistry();
+    ClientConnection[] nodes = new ClientConnection[size];
+    for (int i = 0; i < size; i++) {
+      nodes[i] = new IdleConnection(i + 1);
+      registry.put(i + 1, nodes[i]);
+    }
+    LongAdder reached = new LongAdder();
+    LongAdder broadcasts = new LongAdder();
+    Thread broadcaster = new Thread(() -> {
+      while (!Thread.currentThread().isInterrupted()) {
+        registry.forEach(connection -> reached.increment());
+        broadcasts.increment();
+      }
+    }, "broadcaster");
+    broadcaster.setDaemon(true);
+
+    List<Thread> workers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      int first = t;
+      workers.add(new Thread(() -> {
+        for (int i = first; i < reconnects; i += threads) {
+          int index = (int) ((i * 2654435761L) % size);
+          registry.remove(index + 1, nodes[index]);
+          registry.put(index + 1, nodes[index]);
+        }
+      }, "handshake-" + t));
+    }
+    long start = System.nanoTime();
+    broadcaster.start();
+    workers.forEach(Thread::start);
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    long nanos = System.nanoTime() - start;
+    broadcaster.interrupt();
+    broadcaster.join();
+
+    System.out.println();
+    System.out.println("Connections:         " + size);
+    System.out.printf("Time:                %.2f s%n", nanos / 1e9);
+    System.out.printf("Per reconnect:       %.0f ns%n", (double) nanos / reconnects);
+    System.out.printf("Broadcasts:          %d, %.0f connections each%n", broadcasts.sum(),
+        broadcasts.sum() == 0 ? 0.0 : (double) reached.sum() / broadcasts.sum());
+    System.out.println("Registry:            " + registry);
+  }
+
+  /**
+   * A connection which is only registered, never served.
+   */
+  private static final class IdleConnection implements ClientConnection {
+    private final int address;
+
+    /**
+     * Create a connection.
+     *
+     * @param address The address of the connection
+     */
+    private IdleConnection(int address) {
+      this.address = address;
+    }
+
+    /**
+     * Get the address of the connection.
+     *
+     * @return The address
+     */
+    @Override
+    public int getAddress() {
+      return address;
+    }
+
+    /**
+     * Do nothing, the connection is not served.
+     */
+    @Override
+    public void start() {
+    }
+
+    /**
+     * Do nothing, the connection is not served.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Drop the message, the connection is not served.
+     *
+     * @param frame The message
+     */
+    @Override
+    public void putOnQueue(SharedFrame frame) {
+    }
+
+    /**
+     * Get no queue, the connection is not served.
+     *
+     * @return Null
+     */
+    @Override
+    public OutboundQueue getOutboundQueue() {
+      return null;
+    }
+
+    /**
+     * Get no compression, the connection is not served.
+     *
+     * @return Null
+     */
+    @Override
+    public Compression getCompression() {
+      return null;
+    }
+  }
+}
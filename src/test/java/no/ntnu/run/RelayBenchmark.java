@@ -0,0 +1,117 @@
+package no.ntnu.run;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import no.ntnu.server.Server;
+import no.ntnu.tools.Config;
+import no.ntnu.tools.transport.MessageStream;
+
+/**
+ * Measures the throughput of the node to server to control panel path. It runs a server in
+ * this process, connects control panels, and lets one greenhouse node send sensor messages as
+ * fast as it can. It reports how many messages per second reach the control panels.
+ * Run it with a queue capacity large enough to hold the burst, for example
+ * {@code -Dgreenhouse.queue.capacity=1000000}, so no message is dropped.
+ */
+public class RelayBenchmark {
+  private static final String[] READINGS = {
+      "{ type=temperature, value=27.31, unit=C }",
+      "{ type=humidity, value=80.12, unit=% }",
+      "{ type=humidity, value=79.55, unit=% }"};
+
+  /**
+   * Entrypoint for the benchmark.
+   *
+   * @param args The number of messages, 100000 by default, and the number of control panels,
+   *             4 by default
+   * @throws Exception If the server could not be started
+   */
+  public static void main(String[] args) throws Exception {
+    int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    int panels = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    Server server = new Server();
+    Thread serverThread = new Thread(server::run, "server");
+    serverThread.setDaemon(true);
+    serverThread.start();
+    Thread.sleep(500);
+
+    AtomicLong received = new AtomicLong();
+    AtomicLong lastReceived = new AtomicLong();
+    List<Thread> readers = new ArrayList<>();
+    for (int i = 0; i < panels; i++) {
+      Socket socket = new Socket(Config.SERVER_ADDRESS, Config.SERVER_PORT);
+      MessageStream stream = MessageStream.open(socket);
+      stream.write(new String[] {"cp"});
+      Thread reader = new Thread(() -> readPanel(socket, stream, messages, received,
+          lastReceived));
+      reader.setDaemon(true);
+      reader.start();
+      readers.add(reader);
+    }
+    while (server.getCpMap().size() < panels) {
+      Thread.sleep(50);
+    }
+
+    Socket node = new Socket(Config.SERVER_ADDRESS, Config.SERVER_PORT);
+    MessageStream nodeStream = MessageStream.open(node);
+    String nodeId = String.valueOf(node.getLocalPort());
+    nodeStream.write(new String[] {"add", nodeId});
+    Thread.sleep(500);
+    received.set(0);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < messages; i++) {
+      String[] message = new String[2 + READINGS.length];
+      message[0] = "data";
+      message[1] = nodeId;
+      System.arraycopy(READINGS, 0, message, 2, READINGS.length);
+      nodeStream.write(message);
+    }
+    double sendSeconds = (System.nanoTime() - start) / 1e9;
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    double seconds = (lastReceived.get() - start) / 1e9;
+
+    long expected = (long) messages * panels;
+    System.out.println("Server mode:         " + Config.SERVER_MODE);
+    System.out.println("Wire format:         " + Config.WIRE_FORMAT);
+    System.out.println("Control panels:      " + panels);
+    System.out.println("Messages delivered:  " + received.get() + " of " + expected);
+    System.out.printf("Node send rate:      %10.0f messages/s%n", messages / sendSeconds);
+    System.out.printf("Delivery rate:       %10.0f messages/s to each panel%n",
+        received.get() / (double) panels / seconds);
+    System.exit(0);
+  }
+
+  /**
+   * Read data messages on a control panel connection until all have arrived or the stream has
+   * been quiet for two seconds.
+   *
+   * @param socket       The control panel socket
+   * @param stream       The control panel stream
+   * @param messages     The number of data messages to wait for
+   * @param received     Counter of received data messages
+   * @param lastReceived Time of the last received data message
+   */
+  private static void readPanel(Socket socket, MessageStream stream, int messages,
+                                AtomicLong received, AtomicLong lastReceived) {
+    int count = 0;
+    try {
+      socket.setSoTimeout(2000);
+      while (count < messages) {
+        String[] message = stream.read();
+        if (message != null && message[0].equals("data")) {
+          count++;
+          received.incrementAndGet();
+          lastReceived.accumulateAndGet(System.nanoTime(), Math::max);
+        }
+      }
+    } catch (IOException e) {
+      System.out.println("Control panel stopped after " + count + " messages: " + e);
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package no.ntnu.run;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import no.ntnu.greenhouse.DeviceFactory;
+import no.ntnu.greenhouse.NodeScheduler;
+import no.ntnu.greenhouse.Sensor;
+import no.ntnu.greenhouse.SensorActuatorNode;
+import no.ntnu.tools.transport.LatencyHistogram;
+
+/**
+ * Runs many simulated greenhouse nodes in one process, and reports the threads their periodic
+ * tasks take and how late the tasks run. Every node has the three tasks of a greenhouse node:
+ * reading its sensors every 5 s after a random start delay, updating its cameras every 30 s and
+ * aggregating its readings every 60 s, the first two after 5 s. In "shared" mode the tasks run
+ * on the {@link NodeScheduler}, in "timers" mode every task gets a timer thread of its own, as
+ * nodes used to. The nodes have no cameras, so the scheduling is measured rather than image
+ * encoding, and their console output is discarded. Lateness is the time from when a run was
+ * due to when it started.
+ */
+public class SchedulerBenchmark {
+  private static final long SENSING_DELAY = 5000;
+  private static final Random random = new Random();
+
+  /**
+   * Entrypoint for the benchmark.
+   *
+   * @param args The number of nodes, 10000 by default, the seconds to run, 20 by default, and
+   *             the mode, "shared" by default or "timers"
+   * @throws InterruptedException If interrupted while the nodes run
+   */
+  public static void main(String[] args) throws InterruptedException {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    boolean timers = args.length > 2 && args[2].equals("timers");
+    PrintStream out = System.out;
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    int before = threads.getThreadCount();
+
+    LatencyHistogram lateness = timers ? new LatencyHistogram()
+        : NodeScheduler.getInstance().getLateness();
+    long start = System.nanoTime();
+    int started = 0;
+    try {
+      while (started < count) {
+        SensorActuatorNode node = DeviceFactory.createNode(1, 2, 1, 1, 1, 0);
+        if (timers) {
+          startTimers(node, lateness);
+        } else {
+          node.start();
+          NodeScheduler.getInstance().scheduleWithFixedDelay(() -> aggregate(node), 5000, 60000);
+        }
+        started++;
+      }
+    } catch (OutOfMemoryError e) {
+      out.println("Stopped starting nodes: " + e.getMessage());
+    }
+    double startup = (System.nanoTime() - start) / 1e6;
+    Thread.sleep(seconds * 1000L);
+
+    out.printf("Mode %s, %d of %d nodes started in %.0f ms%n", timers ? "timers" : "shared",
+        started, count, startup);
+    out.printf("Threads: %d before, %d running, %d at most%n", before,
+        threads.getThreadCount(), threads.getPeakThreadCount());
+    out.printf("Lateness over %d s: %s%n", seconds, lateness);
+    System.exit(0);
+  }
+
+  /**
+   * Start the tasks of a node on timers of their own, one thread each.
+   *
+   * @param node     The node
+   * @param lateness Where to record the lateness of the runs
+   */
+  private static void startTimers(SensorActuatorNode node, LatencyHistogram lateness) {
+    new Timer().scheduleAtFixedRate(measured(node::generateNewSensorValues, lateness),
+        random.nextLong(SENSING_DELAY), SENSING_DELAY);
+    new Timer().scheduleAtFixedRate(measured(node, lateness), 5000, 30000);
+    new Timer().schedule(measured(() -> aggregate(node), lateness), 5000, 60000);
+  }
+
+  /**
+   * Wrap a task for a timer, recording how late each run starts.
+   *
+   * @param task     The task
+   * @param lateness Where to record the lateness
+   * @return The timer task
+   */
+  private static TimerTask measured(Runnable task, LatencyHistogram lateness) {
+    return new TimerTask() {
+      @Override
+      public void run() {
+        lateness.record((System.currentTimeMillis() - scheduledExecutionTime()) * 1_000_000);
+        task.run();
+      }
+    };
+  }
+
+  /**
+   * Stand in for the aggregation of a greenhouse node: average the current sensor values.
+   *
+   * @param node The node
+   * @return The average
+   */
+  private static double aggregate(SensorActuatorNode node) {
+    double sum = 0;
+    for (Sensor sensor : node.getSensors()) {
+      sum += sensor.getReading().getValue();
+    }
+    return sum / Math.max(1, node.getSensors().size());
+  }
+}
@@ -0,0 +1,188 @@
+package no.ntnu.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import no.ntnu.tools.transport.Compression;
+import no.ntnu.tools.transport.OutboundQueue;
+import no.ntnu.tools.transport.SharedFrame;
+import org.junit.Test;
+
+/**
+ * Tests of the registry of connected nodes or control panels.
+ */
+public class ConnectionRegistryTest {
+  private final ConnectionRegistry registry = new ConnectionRegistry();
+
+  /**
+   * A registered connection is found by its address, and replaced by one registered with the
+   * same address.
+   */
+  @Test
+  public void putReplacesByAddress() {
+    ClientConnection first = new IdleConnection(1);
+    ClientConnection second = new IdleConnection(1);
+    registry.put(1, first);
+    assertSame(first, registry.get(1));
+    registry.put(1, second);
+    assertSame(second, registry.get(1));
+    assertEquals(1, registry.size());
+    assertEquals(2, registry.getConnects());
+  }
+
+  /**
+   * A connection is only removed by its own close, not by that of the connection it replaced.
+   */
+  @Test
+  public void staleConnectionDoesNotRemoveItsReplacement() {
+    ClientConnection stale = new IdleConnection(1);
+    ClientConnection current = new IdleConnection(1);
+    registry.put(1, stale);
+    registry.put(1, current);
+    assertFalse(registry.remove(1, stale));
+    assertSame(current, registry.get(1));
+    assertTrue(registry.remove(1, current));
+    assertNull(registry.remove(1));
+    assertTrue(registry.isEmpty());
+    assertEquals(1, registry.getDisconnects());
+  }
+
+  /**
+   * Broadcasts reach the connections registered when they start, including those registered
+   * or removed since the last broadcast, and a snapshot taken earlier stays as it was.
+   */
+  @Test
+  public void broadcastFollowsChanges() {
+    for (int address = 1; address <= 3; address++) {
+      registry.put(address, new IdleConnection(address));
+    }
+    List<ClientConnection> before = registry.snapshot();
+    assertEquals(Set.of(1, 2, 3), addresses());
+    registry.remove(2);
+    registry.put(4, new IdleConnection(4));
+    assertEquals(Set.of(1, 3, 4), addresses());
+    assertEquals(3, before.size());
+    assertSame(registry.snapshot().get(0), registry.snapshot().get(0));
+  }
+
+  /**
+   * Nodes reconnecting on many threads at once leave every node registered once.
+   *
+   * @throws InterruptedException If interrupted while waiting for the threads
+   */
+  @Test
+  public void concurrentReconnectsKeepEveryNode() throws InterruptedException {
+    int nodes = 10000;
+    ClientConnection[] connections = new ClientConnection[nodes];
+    for (int i = 0; i < nodes; i++) {
+      connections[i] = new IdleConnection(i + 1);
+      registry.put(i + 1, connections[i]);
+    }
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      int first = t;
+      threads.add(new Thread(() -> {
+        for (int i = first; i < nodes; i += 8) {
+          registry.remove(i + 1, connections[i]);
+          registry.forEach(connection -> { });
+          registry.put(i + 1, connections[i]);
+        }
+      }));
+    }
+    threads.forEach(Thread::start);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(nodes, registry.size());
+    assertEquals(nodes, addresses().size());
+    assertEquals(2L * nodes, registry.getConnects());
+    assertEquals(nodes, registry.getDisconnects());
+  }
+
+  /**
+   * Get the addresses a broadcast reaches.
+   *
+   * @return The addresses
+   */
+  private Set<Integer> addresses() {
+    Set<Integer> addresses = new HashSet<>();
+    registry.forEach(connection -> addresses.add(connection.getAddress()));
+    return addresses;
+  }
+
+  /**
+   * A connection which is only registered, never served.
+   */
+  private static final class IdleConnection implements ClientConnection {
+    private final int address;
+
+    /**
+     * Create a connection.
+     *
+     * @param address The address of the connection
+     */
+    private IdleConnection(int address) {
+      this.address = address;
+    }
+
+    /**
+     * Get the address of the connection.
+     *
+     * @return The address
+     */
+    @Override
+    public int getAddress() {
+      return address;
+    }
+
+    /**
+     * Do nothing, the connection is not served.
+     */
+    @Override
+    public void start() {
+    }
+
+    /**
+     * Do nothing, the connection is not served.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Drop the message, the connection is not served.
+     *
+     * @param frame The message
+     */
+    @Override
+    public void putOnQueue(SharedFrame frame) {
+    }
+
+    /**
+     * Get no queue, the connection is not served.
+     *
+     * @return Null
+     */
+    @Override
+    public OutboundQueue getOutboundQueue() {
+      return null;
+    }
+
+    /**
+     * Get no compression, the connection is not served.
+     *
+     * @return Null
+     */
+    @Override
+    public Compression getCompression() {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package no.ntnu.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * Tests of the node directory: handing out IDs, resuming sessions and expiring them.
+ */
+public class NodeDirectoryTest {
+
+  /**
+   * Joining nodes get the lowest free IDs from 1, each with its own token.
+   */
+  @Test
+  public void joinGivesTheLowestFreeId() {
+    NodeDirectory directory = new NodeDirectory(1000);
+    NodeDirectory.Session first = directory.join(0);
+    NodeDirectory.Session second = directory.join(-1);
+    assertEquals(1, first.getId());
+    assertEquals(2, second.getId());
+    assertNotEquals(first.getToken(), second.getToken());
+    assertEquals(2, directory.size());
+  }
+
+  /**
+   * A node asking for a free ID gets it, and one asking for a taken ID gets the lowest free.
+   */
+  @Test
+  public void joinGivesTheRequestedIdIfFree() {
+    NodeDirectory directory = new NodeDirectory(1000);
+    assertEquals(7, directory.join(7).getId());
+    assertEquals(1, directory.join(7).getId());
+    assertEquals(2, directory.join(NodeFilter.MAX_NODE_ID + 1).getId());
+  }
+
+  /**
+   * IDs claimed by nodes using the old handshake are not handed out, until released.
+   */
+  @Test
+  public void claimedIdsAreNotHandedOut() {
+    NodeDirectory directory = new NodeDirectory(1000);
+    directory.claim(1);
+    assertEquals(2, directory.join(1).getId());
+    directory.release(1);
+    assertEquals(1, directory.join(0).getId());
+  }
+
+  /**
+   * A session resumes with its token, and not with another.
+   */
+  @Test
+  public void resumeNeedsTheToken() {
+    NodeDirectory directory = new NodeDirectory(1000);
+    NodeDirectory.Session session = directory.join(0);
+    assertNull(directory.resume(session.getId(), "not the token"));
+    assertNull(directory.resume(session.getId() + 1, session.getToken()));
+    assertSame(session, directory.resume(session.getId(), session.getToken()));
+  }
+
+  /**
+   * A node which does not resume within the grace period is forgotten and its ID freed.
+   *
+   * @throws InterruptedException If interrupted while waiting for the expiry
+   */
+  @Test
+  public void sessionExpiresAfterTheGracePeriod() throws InterruptedException {
+    NodeDirectory directory = new NodeDirectory(10);
+    NodeDirectory.Session session = directory.join(0);
+    CountDownLatch expired = new CountDownLatch(1);
+    assertTrue(directory.expireLater(session.getId(), expired::countDown));
+    assertTrue(expired.await(5, TimeUnit.SECONDS));
+    synchronized (directory) {
+      assertEquals(0, directory.size());
+      assertNull(directory.resume(session.getId(), session.getToken()));
+    }
+  }
+
+  /**
+   * Resuming within the grace period stops the expiry.
+   *
+   * @throws InterruptedException If interrupted while waiting past the grace period
+   */
+  @Test
+  public void resumeStopsTheExpiry() throws InterruptedException {
+    NodeDirectory directory = new NodeDirectory(200);
+    NodeDirectory.Session session = directory.join(0);
+    CountDownLatch expired = new CountDownLatch(1);
+    directory.expireLater(session.getId(), expired::countDown);
+    assertSame(session, directory.resume(session.getId(), session.getToken()));
+    assertFalse(expired.await(500, TimeUnit.MILLISECONDS));
+    assertEquals(1, directory.size());
+  }
+
+  /**
+   * A node without a session, such as one using the old handshake, is not kept.
+   */
+  @Test
+  public void nodeWithoutSessionIsNotKept() {
+    NodeDirectory directory = new NodeDirectory(1000);
+    directory.claim(40000);
+    assertFalse(directory.expireLater(40000, () -> { }));
+  }
+}
@@ -0,0 +1,48 @@
+package no.ntnu.server;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import no.ntnu.tools.transport.Compression;
+import no.ntnu.tools.transport.FrameCodec;
+import no.ntnu.tools.transport.FrameFormat;
+import no.ntnu.tools.transport.SharedFrame;
+import org.junit.Test;
+
+/**
+ * Tests of a connection served by an event loop.
+ */
+public class SelectorConnectionTest {
+
+  /**
+   * A message queued before the connection is registered with its loop is written once it is,
+   * even when the loop tried to write it first.
+   *
+   * @throws IOException If the sockets failed
+   */
+  @Test(timeout = 5000)
+  public void messageQueuedBeforeStartIsWritten() throws IOException {
+    try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+      listener.bind(new InetSocketAddress("localhost", 0));
+      try (SocketChannel peer = SocketChannel.open(listener.getLocalAddress());
+           SocketChannel channel = listener.accept()) {
+        EventLoop loop = new EventLoop("test-loop");
+        SelectorConnection connection = new SelectorConnection(channel, loop, null, true,
+            channel.socket().getPort(), FrameFormat.BINARY, new Compression());
+        String[] welcome = {"welcome", "1"};
+        connection.putOnQueue(new SharedFrame(welcome));
+        connection.start();
+        loop.start();
+
+        DataInputStream in = new DataInputStream(peer.socket().getInputStream());
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        assertArrayEquals(welcome, FrameCodec.decode(body));
+      }
+    }
+  }
+}
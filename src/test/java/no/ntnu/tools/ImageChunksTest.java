@@ -0,0 +1,160 @@
+package no.ntnu.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Tests of splitting camera images into chunks and putting them back together.
+ */
+public class ImageChunksTest {
+  private final byte[] image = randomImage(20000, 1);
+  private final String hash = ImageChunks.hash(image);
+
+  /**
+   * An image split into chunks comes back whole from its last chunk, with every byte value.
+   */
+  @Test
+  public void chunksPutTogetherIntoTheImage() {
+    List<String[]> chunks = ImageChunks.split("1", "0", hash, image, 8192);
+    assertEquals(3, chunks.size());
+    ImageChunks assembler = new ImageChunks();
+    assertNull(assembler.add(chunks.get(0)));
+    assertEquals(1, assembler.getPartials());
+    assertNull(assembler.add(chunks.get(1)));
+    assertArrayEquals(image, assembler.add(chunks.get(2)));
+    assertEquals(0, assembler.getPartials());
+    assertEquals(0, assembler.getDiscarded());
+  }
+
+  /**
+   * An image of a single chunk, and an empty image, are complete with their first chunk.
+   */
+  @Test
+  public void smallImagesAreCompleteAtOnce() {
+    ImageChunks assembler = new ImageChunks();
+    byte[] small = randomImage(100, 2);
+    String[] chunk = ImageChunks.split("1", "0", ImageChunks.hash(small), small, 8192).get(0);
+    assertArrayEquals(small, assembler.add(chunk));
+    byte[] empty = new byte[0];
+    assertArrayEquals(empty,
+        assembler.add(ImageChunks.chunk("1", "0", ImageChunks.hash(empty), empty, 0, 0)));
+  }
+
+  /**
+   * An image missing a chunk is discarded, and the chunks after the gap are ignored.
+   */
+  @Test
+  public void imageMissingAChunkIsDiscarded() {
+    List<String[]> chunks = ImageChunks.split("1", "0", hash, image, 8192);
+    ImageChunks assembler = new ImageChunks();
+    assembler.add(chunks.get(0));
+    assertNull(assembler.add(chunks.get(2)));
+    assertEquals(1, assembler.getDiscarded());
+    assertEquals(0, assembler.getPartials());
+  }
+
+  /**
+   * A new image from the same camera overtakes the one in progress, while other cameras keep
+   * theirs.
+   */
+  @Test
+  public void newerImageOvertakesTheOlder() {
+    byte[] newer = randomImage(10000, 3);
+    List<String[]> first = ImageChunks.split("1", "0", hash, image, 8192);
+    List<String[]> other = ImageChunks.split("1", "1", hash, image, 8192);
+    List<String[]> second = ImageChunks.split("1", "0", ImageChunks.hash(newer), newer, 8192);
+    ImageChunks assembler = new ImageChunks();
+    assembler.add(first.get(0));
+    assembler.add(other.get(0));
+    assembler.add(second.get(0));
+    assertEquals(1, assembler.getDiscarded());
+    assertArrayEquals(newer, assembler.add(second.get(1)));
+    assembler.add(other.get(1));
+    assertArrayEquals(image, assembler.add(other.get(2)));
+  }
+
+  /**
+   * An image which does not match its hash is discarded.
+   */
+  @Test
+  public void imageNotMatchingItsHashIsDiscarded() {
+    ImageChunks assembler = new ImageChunks();
+    String[] chunk = ImageChunks.chunk("1", "0", ImageChunks.hash(new byte[] {1}), image, 0,
+        image.length);
+    assertNull(assembler.add(chunk));
+    assertEquals(1, assembler.getDiscarded());
+  }
+
+  /**
+   * Chunks are only taken from the cameras a node declared.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void chunkFromUndeclaredCameraIsRefused() {
+    ImageChunks assembler = new ImageChunks();
+    assembler.declareCameras("1", 1);
+    assembler.add(ImageChunks.split("1", "0", hash, image, 8192).get(0));
+    assembler.add(ImageChunks.split("1", "1", hash, image, 8192).get(0));
+  }
+
+  /**
+   * Declaring fewer cameras drops the images in progress from the cameras no longer declared.
+   */
+  @Test
+  public void declaringFewerCamerasDropsTheirImages() {
+    ImageChunks assembler = new ImageChunks();
+    assembler.add(ImageChunks.split("1", "0", hash, image, 8192).get(0));
+    assembler.add(ImageChunks.split("1", "3", hash, image, 8192).get(0));
+    assembler.declareCameras("1", 2);
+    assertEquals(1, assembler.getPartials());
+  }
+
+  /**
+   * A chunk which claims more bytes than its image has left is refused.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void chunkOutOfBoundsIsRefused() {
+    String[] chunk = ImageChunks.chunk("1", "0", hash, image, 0, 100);
+    chunk[5] = "50";
+    new ImageChunks().add(chunk);
+  }
+
+  /**
+   * An image claiming more than a frame may hold is refused before anything is kept for it.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void oversizedImageIsRefused() {
+    String[] chunk = ImageChunks.chunk("1", "0", hash, image, 0, 100);
+    chunk[5] = String.valueOf(Config.MAX_FRAME_SIZE + 1L);
+    new ImageChunks().add(chunk);
+  }
+
+  /**
+   * Removing a node forgets its images in progress.
+   */
+  @Test
+  public void removedNodeIsForgotten() {
+    ImageChunks assembler = new ImageChunks();
+    assembler.add(ImageChunks.split("1", "0", hash, image, 8192).get(0));
+    assembler.add(ImageChunks.split("2", "0", hash, image, 8192).get(0));
+    assembler.removeNode("1");
+    assertEquals(1, assembler.getPartials());
+  }
+
+  /**
+   * Make an image of random bytes.
+   *
+   * @param length The length of the image
+   * @param seed   The seed of the bytes
+   * @return The image
+   */
+  private static byte[] randomImage(int length, long seed) {
+    byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,141 @@
+package no.ntnu.tools.cipher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests of the session cipher, the key exchange handing out its key, and the hybrid cipher
+ * choosing between it and RSA.
+ */
+public class SessionCipherTest {
+  private final byte[] key = SessionCipher.generateKey();
+  private final SessionCipher cipher = new SessionCipher(key);
+
+  /**
+   * A sealed message opens to the same fields with the same key, and the command and address
+   * stay readable.
+   */
+  @Test
+  public void sealedMessageOpens() {
+    String[] message = {"chunk", "3", "0", "abc", "0", "3", "\u00ff\u0000\u0080"};
+    String[] sealed = cipher.encrypt(message);
+    assertEquals(3, sealed.length);
+    assertEquals("chunk", sealed[0]);
+    assertEquals("3", sealed[1]);
+    assertTrue(SessionCipher.isSealed(sealed));
+    assertArrayEquals(message, new SessionCipher(key).decrypt(sealed));
+  }
+
+  /**
+   * Every message is sealed with a fresh nonce, so the same message seals differently.
+   */
+  @Test
+  public void nonceIsFresh() {
+    String[] message = {"set", "1:2", "true"};
+    assertNotEquals(cipher.encrypt(message)[2], cipher.encrypt(message)[2]);
+  }
+
+  /**
+   * A message sealed with another key does not open.
+   */
+  @Test
+  public void otherKeyDoesNotOpen() {
+    String[] sealed = cipher.encrypt(new String[] {"data", "1", "2150"});
+    assertNull(new SessionCipher(SessionCipher.generateKey()).decrypt(sealed));
+  }
+
+  /**
+   * The command and address are authenticated, so a sealed message can not be passed off as
+   * another command or as one for another node or actuator.
+   */
+  @Test
+  public void headerIsAuthenticated() {
+    String[] sealed = cipher.encrypt(new String[] {"set", "1:2", "true"});
+    assertNull(cipher.decrypt(new String[] {"toggle", sealed[1], sealed[2]}));
+    assertNull(cipher.decrypt(new String[] {sealed[0], "1:3", sealed[2]}));
+    assertNull(cipher.decrypt(new String[] {sealed[0], "2:2", sealed[2]}));
+  }
+
+  /**
+   * A sealed payload altered in transit does not open.
+   */
+  @Test
+  public void alteredPayloadDoesNotOpen() {
+    String[] sealed = cipher.encrypt(new String[] {"data", "1", "2150"});
+    char[] payload = sealed[2].toCharArray();
+    payload[payload.length - 1] ^= 1;
+    assertNull(cipher.decrypt(new String[] {sealed[0], sealed[1], new String(payload)}));
+  }
+
+  /**
+   * A message with no fields after the address is sent as it is, and a message which is not
+   * sealed is not opened.
+   */
+  @Test
+  public void shortMessageIsNotSealed() {
+    String[] message = {"toggle", "-1:-1"};
+    assertSame(message, cipher.encrypt(message));
+    assertFalse(SessionCipher.isSealed(message));
+    assertNull(cipher.decrypt(new String[] {"data", "1", "2150"}));
+  }
+
+  /**
+   * A key of the wrong size is refused.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void wrongKeySizeIsRefused() {
+    new SessionCipher(new byte[16]);
+  }
+
+  /**
+   * The key exchange hands the client the session key of the server.
+   */
+  @Test
+  public void keyExchangeHandsOutTheSessionKey() {
+    KeyExchange client = new KeyExchange();
+    String[] offer = client.offer();
+    assertTrue(KeyExchange.isOffer(offer));
+    String[] answer = KeyExchange.answer(offer, key);
+    assertTrue(KeyExchange.isAnswer(answer));
+    SessionCipher received = client.accept(answer);
+    String[] message = {"state", "4:1", "fan", "true"};
+    assertArrayEquals(message, received.decrypt(cipher.encrypt(message)));
+  }
+
+  /**
+   * An answer meant for another client does not give the session key away.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void answerForAnotherClientIsRefused() {
+    String[] answer = KeyExchange.answer(new KeyExchange().offer(), key);
+    new KeyExchange().accept(answer);
+  }
+
+  /**
+   * The hybrid cipher seals with the session key once it has it, opens messages from clients
+   * without it, and passes camera messages on as they are without the key.
+   */
+  @Test
+  public void hybridCipherOpensEither() {
+    HybridCipher legacy = new HybridCipher();
+    HybridCipher session = new HybridCipher();
+    session.setSession(cipher);
+    String[] message = {"set", "1:2", "true"};
+
+    assertArrayEquals(message, session.decrypt(legacy.encrypt(message)));
+    assertArrayEquals(message, session.decrypt(session.encrypt(message)));
+    assertNull(legacy.decrypt(session.encrypt(message)));
+
+    String[] chunk = {"chunk", "1", "0", "abc", "0", "1", "\u00ff"};
+    assertSame(chunk, legacy.encrypt(chunk));
+    assertSame(chunk, session.decrypt(chunk));
+    assertTrue(SessionCipher.isSealed(session.encrypt(chunk)));
+  }
+}
@@ -0,0 +1,202 @@
+package no.ntnu.tools.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Tests of the frame codecs: both body formats, the frame header and batch frames.
+ */
+public class FrameCodecTest {
+  private static final String[] MESSAGE = {"data", "12", "2150", "-37", "true", "false",
+      "3:-1", "007", "+5", "", "temperature \u00b0C", "\u00ff\u0080\u0000raw", "\u4e2d", null};
+
+  /**
+   * Every field of a message decodes back to the same string in the serialized format.
+   *
+   * @throws IOException If the message could not be encoded
+   */
+  @Test
+  public void serializedRoundTrip() throws IOException {
+    assertArrayEquals(MESSAGE, decodeFrame(FrameCodec.encode(MESSAGE, FrameFormat.SERIALIZED)));
+  }
+
+  /**
+   * Every field of a message decodes back to the same string in the binary format, including
+   * fields which look like numbers, booleans or addresses but are not written as they print.
+   *
+   * @throws IOException If the message could not be encoded
+   */
+  @Test
+  public void binaryRoundTrip() throws IOException {
+    byte[] frame = FrameCodec.encode(MESSAGE, FrameFormat.BINARY);
+    assertEquals(BinaryCodec.VERSION, frame[FrameCodec.HEADER_SIZE]);
+    assertArrayEquals(MESSAGE, decodeFrame(frame));
+  }
+
+  /**
+   * Numbers at the limits of an int, and beyond it, keep their value.
+   */
+  @Test
+  public void binaryKeepsLargeNumbers() {
+    String[] message = {"set", "2147483647:-2147483648", "2147483648", "-2147483649",
+        "99999999999999999999"};
+    assertArrayEquals(message, decodeFrame(BinaryCodec.encode(message)));
+  }
+
+  /**
+   * The length header holds the length of the body.
+   *
+   * @throws IOException If the message could not be encoded
+   */
+  @Test
+  public void headerHoldsBodyLength() throws IOException {
+    byte[] frame = FrameCodec.encode(new String[] {"toggle", "1:2"}, FrameFormat.BINARY);
+    assertEquals(frame.length - FrameCodec.HEADER_SIZE, FrameCodec.readLength(frame));
+  }
+
+  /**
+   * A length header which is negative or larger than a frame may be is refused.
+   */
+  @Test
+  public void invalidLengthIsRefused() {
+    assertRefused(new byte[] {(byte) 0xFF, 0, 0, 0});
+    assertRefused(new byte[] {0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF});
+  }
+
+  /**
+   * The header of a binary body is read without decoding the fields after it.
+   */
+  @Test
+  public void binaryHeaderIsReadAlone() {
+    byte[] frame = BinaryCodec.encode(new String[] {"chunk", "4", "0", "\u00ff\u00fe"});
+    String[] header = BinaryCodec.decodeHeader(frame, FrameCodec.HEADER_SIZE,
+        frame.length - FrameCodec.HEADER_SIZE);
+    assertArrayEquals(new String[] {"chunk", "4"}, header);
+  }
+
+  /**
+   * A truncated or garbled body decodes to null rather than throwing.
+   */
+  @Test
+  public void malformedBodyDecodesToNull() {
+    byte[] frame = BinaryCodec.encode(new String[] {"data", "1", "2150"});
+    byte[] body = Arrays.copyOfRange(frame, FrameCodec.HEADER_SIZE, frame.length - 1);
+    assertNull(FrameCodec.decode(body));
+    assertNull(FrameCodec.decode(new byte[] {(byte) 0xAC, (byte) 0xED, 0x00}));
+    assertNull(BinaryCodec.decodeHeader(body, 0, body.length));
+  }
+
+  /**
+   * A serialized body with anything after the message is refused, since it would be written as
+   * it is to connections using object streams.
+   *
+   * @throws IOException If the message could not be encoded
+   */
+  @Test
+  public void serializedBodyWithTrailingBytesIsRefused() throws IOException {
+    byte[] frame = FrameCodec.encode(new String[] {"data", "1", "2150"}, FrameFormat.SERIALIZED);
+    byte[] body = Arrays.copyOfRange(frame, FrameCodec.HEADER_SIZE, frame.length + 1);
+    body[body.length - 1] = 0x79;
+    assertNull(FrameCodec.decode(body));
+  }
+
+  /**
+   * A received binary frame is relayed as the same bytes, and its message decoded on demand.
+   *
+   * @throws IOException If the message could not be encoded
+   */
+  @Test
+  public void receivedFrameIsRelayedAsItArrived() throws IOException {
+    String[] message = {"data", "7", "2150", "6012"};
+    byte[] frame = FrameCodec.encode(message, FrameFormat.BINARY);
+    SharedFrame received = SharedFrame.received(frame);
+    assertEquals("data", received.getCommand());
+    assertEquals("7", received.getAddress());
+    byte[] relayed = new byte[received.getSize(FrameFormat.BINARY)];
+    received.getBuffer(FrameFormat.BINARY).get(relayed);
+    assertArrayEquals(frame, relayed);
+    assertArrayEquals(message, received.getMessage());
+  }
+
+  /**
+   * The frames of a batch are split back out as they were written.
+   *
+   * @throws IOException If a message could not be encoded
+   */
+  @Test
+  public void batchSplitsIntoItsFrames() throws IOException {
+    byte[] first = FrameCodec.encode(new String[] {"data", "1", "2150"}, FrameFormat.BINARY);
+    byte[] second = FrameCodec.encode(new String[] {"state", "1:2", "fan", "true"},
+        FrameFormat.SERIALIZED);
+    byte[] batch = new byte[FrameCodec.HEADER_SIZE + 1 + first.length + second.length];
+    FrameCodec.writeLength(batch, batch.length - FrameCodec.HEADER_SIZE);
+    batch[FrameCodec.HEADER_SIZE] = FrameCodec.BATCH;
+    System.arraycopy(first, 0, batch, FrameCodec.HEADER_SIZE + 1, first.length);
+    System.arraycopy(second, 0, batch, FrameCodec.HEADER_SIZE + 1 + first.length,
+        second.length);
+
+    assertTrue(FrameCodec.isBatch(batch));
+    assertFalse(FrameCodec.isBatch(first));
+    List<byte[]> frames = FrameCodec.unbatch(batch);
+    assertEquals(2, frames.size());
+    assertArrayEquals(first, frames.get(0));
+    assertArrayEquals(second, frames.get(1));
+  }
+
+  /**
+   * A batch whose last frame is cut short is refused.
+   *
+   * @throws IOException If a message could not be encoded
+   */
+  @Test(expected = StreamCorruptedException.class)
+  public void truncatedBatchIsRefused() throws IOException {
+    byte[] frame = FrameCodec.encode(new String[] {"data", "1", "2150"}, FrameFormat.BINARY);
+    byte[] batch = new byte[FrameCodec.HEADER_SIZE + 1 + frame.length - 1];
+    batch[FrameCodec.HEADER_SIZE] = FrameCodec.BATCH;
+    System.arraycopy(frame, 0, batch, FrameCodec.HEADER_SIZE + 1, frame.length - 1);
+    FrameCodec.unbatch(batch);
+  }
+
+  /**
+   * A framed client is told apart from one using Java object streams by its first byte.
+   */
+  @Test
+  public void framedClientIsDetected() {
+    assertFalse(FrameCodec.isFramed(0xAC));
+    assertTrue(FrameCodec.isFramed(0x00));
+  }
+
+  /**
+   * Decode a complete frame.
+   *
+   * @param frame The frame, including the length header
+   * @return The message
+   */
+  private static String[] decodeFrame(byte[] frame) {
+    return FrameCodec.decode(frame, FrameCodec.HEADER_SIZE,
+        frame.length - FrameCodec.HEADER_SIZE);
+  }
+
+  /**
+   * Check that a length header is refused.
+   *
+   * @param header The header
+   */
+  private static void assertRefused(byte[] header) {
+    try {
+      FrameCodec.readLength(header);
+    } catch (StreamCorruptedException e) {
+      return;
+    }
+    throw new AssertionError("Length " + Arrays.toString(header) + " was accepted");
+  }
+}
@@ -0,0 +1,143 @@
+package no.ntnu.tools.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ * Tests of the object message stream, writing messages queued for several connections
+ * serialized once.
+ */
+public class ObjectMessageStreamTest {
+  private static final String[] DATA = {"data", "3", "2150", "\u00b0C", "\u00ff\u0000"};
+  private static final String[] STATE = {"state", "3:1", "fan", "true"};
+
+  /**
+   * A message queued for many connections is serialized once however many streams it is
+   * written to, and reads back from each of them.
+   *
+   * @throws IOException If a message could not be written or read
+   */
+  @Test
+  public void sharedMessageIsSerializedOnce() throws IOException {
+    SharedFrame frame = new SharedFrame(DATA);
+    OutboundQueue[] queues = new OutboundQueue[20];
+    for (int i = 0; i < queues.length; i++) {
+      queues[i] = new OutboundQueue();
+      queues[i].offer(frame);
+    }
+    ByteArrayOutputStream[] outputs = new ByteArrayOutputStream[queues.length];
+    long encoded = SharedFrame.getFramesEncoded();
+    for (int i = 0; i < queues.length; i++) {
+      outputs[i] = new ByteArrayOutputStream();
+      stream(outputs[i]).write(queues[i].poll());
+    }
+    assertEquals(1, SharedFrame.getFramesEncoded() - encoded);
+    for (ByteArrayOutputStream output : outputs) {
+      assertArrayEquals(DATA, reader(output).read());
+    }
+  }
+
+  /**
+   * Messages meant for one connection are serialized on its stream, and a batch of them is
+   * written as one batch object.
+   *
+   * @throws IOException            If a message could not be written or read
+   * @throws ClassNotFoundException Never, only string arrays are written
+   */
+  @Test
+  public void ownMessagesAreBatched() throws IOException, ClassNotFoundException {
+    long encoded = SharedFrame.getFramesEncoded();
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    stream(output).write(Arrays.asList(queued(STATE, 1), queued(DATA, 1)));
+    assertEquals(encoded, SharedFrame.getFramesEncoded());
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(output.toByteArray()));
+    assertArrayEquals(new String[][] {STATE, DATA}, (String[][]) in.readObject());
+  }
+
+  /**
+   * Shared messages, batches and messages of the connection alone can follow each other, and
+   * read back in order, also when a message of the connection refers to objects it wrote
+   * before.
+   *
+   * @throws IOException If a message could not be written or read
+   */
+  @Test
+  public void messagesReadBackInOrder() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ObjectMessageStream stream = stream(output);
+    stream.write(STATE);
+    stream.write(queued(DATA, 2));
+    stream.write(STATE);
+    stream.write(Arrays.asList(queued(STATE, 1), queued(DATA, 1), queued(DATA, 2),
+        queued(STATE, 1)));
+    stream.write(DATA);
+
+    ObjectMessageStream in = reader(output);
+    for (String[] expected : new String[][] {STATE, DATA, STATE, STATE, DATA, DATA, STATE,
+        DATA}) {
+      assertArrayEquals(expected, in.read());
+    }
+  }
+
+  /**
+   * A message received in a serialized frame is written to object streams as it arrived.
+   *
+   * @throws IOException If a message could not be written or read
+   */
+  @Test
+  public void receivedFrameIsWrittenAsItArrived() throws IOException {
+    SharedFrame received = SharedFrame.received(FrameCodec.encode(DATA, FrameFormat.SERIALIZED));
+    received.countQueued();
+    received.countQueued();
+    long encoded = SharedFrame.getFramesEncoded();
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    stream(output).write(received);
+    assertEquals(encoded, SharedFrame.getFramesEncoded());
+    assertArrayEquals(DATA, reader(output).read());
+  }
+
+  /**
+   * Make a frame queued for some connections.
+   *
+   * @param message     The message
+   * @param connections The number of connections the frame is queued for
+   * @return The frame
+   */
+  private static SharedFrame queued(String[] message, int connections) {
+    SharedFrame frame = new SharedFrame(message);
+    for (int i = 0; i < connections; i++) {
+      frame.countQueued();
+    }
+    return frame;
+  }
+
+  /**
+   * Open a writing message stream.
+   *
+   * @param output The stream to write to
+   * @return The message stream
+   * @throws IOException If the object stream could not be opened
+   */
+  private static ObjectMessageStream stream(ByteArrayOutputStream output) throws IOException {
+    return new ObjectMessageStream(new SharedObjectOutputStream(output), null);
+  }
+
+  /**
+   * Open a reading message stream on what was written.
+   *
+   * @param output The written bytes
+   * @return The message stream
+   * @throws IOException If the object stream could not be opened
+   */
+  private static ObjectMessageStream reader(ByteArrayOutputStream output) throws IOException {
+    return new ObjectMessageStream(null,
+        new ObjectInputStream(new ByteArrayInputStream(output.toByteArray())));
+  }
+}
@@ -0,0 +1,251 @@
+package no.ntnu.tools.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import no.ntnu.tools.Config;
+import org.junit.Test;
+
+/**
+ * Tests of the outbound queue: its overflow policies, lanes, conflation and the handling of
+ * deltas whose keyframe was dropped.
+ */
+public class OutboundQueueTest {
+
+  /**
+   * Under "disconnect" a full queue refuses the next message, and keeps what it holds.
+   */
+  @Test
+  public void disconnectRefusesWhenFull() {
+    OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.DISCONNECT);
+    assertTrue(queue.offer(data("1", "100")));
+    assertTrue(queue.offer(data("2", "200")));
+    assertFalse(queue.offer(data("3", "300")));
+    assertEquals(2, queue.size());
+    assertEquals(1, queue.getDropped());
+  }
+
+  /**
+   * Under "drop-oldest" the oldest message makes room, whichever lane it is in.
+   */
+  @Test
+  public void dropOldestDropsTheOldestMessage() {
+    OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.DROP_OLDEST);
+    SharedFrame state = state("1:1");
+    queue.offer(state);
+    queue.offer(data("1", "100"));
+    assertTrue(queue.offer(state("1:2")));
+    assertEquals(2, queue.size());
+    assertEquals("1:2", queue.poll().getAddress());
+    assertEquals("data", queue.poll().getCommand());
+    assertEquals(1, queue.getDropped());
+  }
+
+  /**
+   * Under "drop-telemetry" telemetry makes room for control messages, which are never dropped.
+   */
+  @Test
+  public void dropTelemetryKeepsControlMessages() {
+    OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.DROP_TELEMETRY);
+    queue.offer(data("1", "100"));
+    queue.offer(state("1:1"));
+    assertTrue(queue.offer(state("1:2")));
+    assertEquals("1:1", queue.poll().getAddress());
+    assertEquals("1:2", queue.poll().getAddress());
+    assertNull(queue.poll());
+    assertEquals(1, queue.getDropped());
+  }
+
+  /**
+   * Under "drop-telemetry" a queue full of control messages drops new telemetry, and refuses a
+   * new control message so the connection is closed.
+   */
+  @Test
+  public void dropTelemetryRefusesControlWhenFullOfControl() {
+    OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.DROP_TELEMETRY);
+    queue.offer(state("1:1"));
+    queue.offer(state("1:2"));
+    assertTrue(queue.offer(data("1", "100")));
+    assertFalse(queue.offer(state("1:3")));
+    assertEquals(2, queue.size());
+    assertEquals(2, queue.getDropped());
+  }
+
+  /**
+   * Control messages are taken before telemetry queued earlier, and each lane keeps its order.
+   */
+  @Test
+  public void controlLaneGoesFirst() {
+    OutboundQueue queue = new OutboundQueue(10, OverflowPolicy.DROP_TELEMETRY);
+    queue.offer(data("1", "100"));
+    queue.offer(data("2", "200"));
+    queue.offer(state("1:1"));
+    List<SharedFrame> batch = new ArrayList<>();
+    assertEquals(3, queue.drainTo(batch, 10));
+    assertEquals("state", batch.get(0).getCommand());
+    assertEquals("1", batch.get(1).getAddress());
+    assertEquals("2", batch.get(2).getAddress());
+    assertTrue(queue.isEmpty());
+  }
+
+  /**
+   * A "remove" discards the telemetry of its node still waiting.
+   */
+  @Test
+  public void removeDiscardsTheTelemetryOfTheNode() {
+    OutboundQueue queue = new OutboundQueue(10, OverflowPolicy.DROP_TELEMETRY);
+    queue.offer(data("1", "100"));
+    queue.offer(data("2", "200"));
+    queue.offer(new SharedFrame(new String[] {"remove", "1"}));
+    assertEquals("remove", queue.poll().getCommand());
+    assertEquals("2", queue.poll().getAddress());
+    assertNull(queue.poll());
+  }
+
+  /**
+   * A conflating queue replaces the waiting "data" of a node in place, and a keyframe discards
+   * the waiting delta of its node.
+   */
+  @Test
+  public void conflationKeepsTheLatestOfEachNode() {
+    OutboundQueue queue = new OutboundQueue(10, OverflowPolicy.DROP_TELEMETRY, true);
+    queue.offer(data("1", "100"));
+    queue.offer(data("2", "200"));
+    SharedFrame latest = data("1", "101");
+    queue.offer(latest);
+    queue.offer(delta("2"));
+    queue.offer(data("2", "201"));
+    assertEquals(2, queue.size());
+    assertSame(latest, queue.poll());
+    assertEquals("201", queue.poll().getMessage()[2]);
+    assertEquals(3, queue.getConflated());
+  }
+
+  /**
+   * A message taken from a conflating queue is not replaced, the next one is queued.
+   */
+  @Test
+  public void conflationOnlyReplacesWaitingMessages() {
+    OutboundQueue queue = new OutboundQueue(10, OverflowPolicy.DROP_TELEMETRY, true);
+    queue.offer(data("1", "100"));
+    queue.poll();
+    queue.offer(data("1", "101"));
+    assertEquals(1, queue.size());
+    assertEquals(0, queue.getConflated());
+  }
+
+  /**
+   * A queue which is not conflating keeps every message.
+   */
+  @Test
+  public void withoutConflationEveryMessageIsKept() {
+    OutboundQueue queue = new OutboundQueue(10, OverflowPolicy.DROP_TELEMETRY, false);
+    queue.offer(data("1", "100"));
+    queue.offer(data("1", "101"));
+    assertEquals(2, queue.size());
+  }
+
+  /**
+   * A dropped keyframe takes the deltas of its node queued behind it, and the node's later
+   * deltas are refused until its next keyframe.
+   */
+  @Test
+  public void droppedKeyframeTakesItsDeltas() {
+    OutboundQueue queue = new OutboundQueue(3, OverflowPolicy.DROP_TELEMETRY);
+    queue.offer(data("1", "100"));
+    queue.offer(delta("1"));
+    queue.offer(data("2", "200"));
+    queue.offer(state("1:1"));
+    assertEquals(2, queue.size());
+    assertEquals(2, queue.getDropped());
+
+    assertTrue(queue.offer(delta("1")));
+    assertEquals(2, queue.size());
+    queue.offer(data("1", "101"));
+    queue.poll();
+    queue.poll();
+    queue.poll();
+    assertTrue(queue.offer(delta("1")));
+    assertEquals("delta", queue.poll().getCommand());
+  }
+
+  /**
+   * Deltas behind a newer keyframe of the same node are kept when an older keyframe is dropped.
+   */
+  @Test
+  public void deltasOfANewerKeyframeAreKept() {
+    OutboundQueue queue = new OutboundQueue(3, OverflowPolicy.DROP_TELEMETRY);
+    queue.offer(data("1", "100"));
+    queue.offer(data("1", "101"));
+    queue.offer(delta("1"));
+    queue.offer(state("1:1"));
+    assertEquals(1, queue.getDropped());
+    assertEquals("state", queue.poll().getCommand());
+    assertEquals("data", queue.poll().getCommand());
+    assertEquals("delta", queue.poll().getCommand());
+  }
+
+  /**
+   * Forced messages go over the capacity up to the headroom, then telemetry makes room, and once
+   * there is none left they are refused.
+   */
+  @Test
+  public void forceIsBoundedByTheHeadroom() {
+    OutboundQueue queue = new OutboundQueue(1, OverflowPolicy.DROP_TELEMETRY);
+    queue.offer(data("1", "100"));
+    int limit = 1 + Config.OUTBOUND_QUEUE_HEADROOM;
+    for (int i = 1; i < limit; i++) {
+      assertTrue(queue.force(state("1:" + i)));
+    }
+    assertEquals(limit, queue.size());
+    assertTrue(queue.force(state("1:0")));
+    assertEquals(limit, queue.size());
+    assertEquals(1, queue.getDropped());
+    assertFalse(queue.force(state("1:0")));
+    assertEquals(limit, queue.size());
+  }
+
+  /**
+   * Only the known policy names are accepted.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void unknownPolicyIsRefused() {
+    OverflowPolicy.fromName("drop-newest");
+  }
+
+  /**
+   * Create a "data" keyframe with one value.
+   *
+   * @param nodeId The ID of the node
+   * @param value  The value
+   * @return The message
+   */
+  private static SharedFrame data(String nodeId, String value) {
+    return new SharedFrame(new String[] {"data", nodeId, value});
+  }
+
+  /**
+   * Create a "delta" changing the first value.
+   *
+   * @param nodeId The ID of the node
+   * @return The message
+   */
+  private static SharedFrame delta(String nodeId) {
+    return new SharedFrame(new String[] {"delta", nodeId, "1", "105"});
+  }
+
+  /**
+   * Create a "state" message of an actuator.
+   *
+   * @param address The address, "nodeId:actuatorId"
+   * @return The message
+   */
+  private static SharedFrame state(String address) {
+    return new SharedFrame(new String[] {"state", address, "fan", "true"});
+  }
+}